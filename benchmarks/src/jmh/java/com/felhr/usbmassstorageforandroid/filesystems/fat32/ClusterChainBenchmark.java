@@ -0,0 +1,101 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.benchmarks.MemoryBlockDevice;
+import com.felhr.usbmassstorageforandroid.benchmarks.SyntheticVolume;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClusterChainBenchmark
+{
+    /*
+        Cluster chains over a synthetic FAT of a 64 MB volume with 512 bytes clusters (~129000 clusters).
+        The FAT holds, from its start: a fragmented chain of chainLength clusters (every other cluster),
+        a contiguous chain of chainLength clusters and a chain of usedClusters clusters that free cluster
+        searches have to skip. The whole FAT fits in the FAT sectors cache, the device is not measured
+     */
+    private static final int VOLUME_BLOCKS = 131072;
+    private static final int ALLOCATION_CLUSTERS = 8;
+
+    @Param({"64", "4096"})
+    private int chainLength;
+
+    @Param({"65536"})
+    private int usedClusters;
+
+    private FATHandler fatHandler;
+    private long fragmentedCluster;
+    private long contiguousCluster;
+
+    @Setup
+    public void setup()
+    {
+        MemoryBlockDevice device = new MemoryBlockDevice(VOLUME_BLOCKS, 65536);
+        if(!SyntheticVolume.format(device, 1))
+            throw new IllegalStateException("Volume could not be formatted");
+        fatHandler = new FATHandler(device);
+        if(!fatHandler.mount(0, 0))
+            throw new IllegalStateException("Volume could not be mounted");
+
+        // Single cluster chains, every other one is freed and taken by the fragmented chain
+        List<List<Long>> singles = new ArrayList<List<Long>>();
+        for(int i=0;i<=2*chainLength-1;i++)
+            singles.add(allocate(1));
+        for(int i=0;i<=2*chainLength-1;i+=2)
+            fatHandler.deleteClusterChain(singles.get(i));
+        fragmentedCluster = allocate(chainLength).get(0);
+        contiguousCluster = allocate(chainLength).get(0);
+        allocate(usedClusters);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        fatHandler.unMount();
+    }
+
+    @Benchmark
+    public List<Long> resolveFragmentedChain()
+    {
+        return fatHandler.getClusterChain(fragmentedCluster);
+    }
+
+    @Benchmark
+    public List<Long> resolveContiguousChain()
+    {
+        return fatHandler.getClusterChain(contiguousCluster);
+    }
+
+    /*
+        Search free clusters from the start of the FAT and give them back, the FAT is left as it was
+     */
+    @Benchmark
+    public List<Long> findFreeClusters()
+    {
+        List<Long> chain = fatHandler.setClusterChain(ALLOCATION_CLUSTERS, false);
+        fatHandler.deleteClusterChain(chain);
+        return chain;
+    }
+
+    private List<Long> allocate(int clusters)
+    {
+        List<Long> chain = fatHandler.setClusterChain(clusters, false);
+        if(chain == null)
+            throw new IllegalStateException("FAT is full");
+        return chain;
+    }
+}
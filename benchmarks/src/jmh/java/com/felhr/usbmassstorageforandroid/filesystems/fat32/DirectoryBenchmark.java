@@ -0,0 +1,60 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DirectoryBenchmark
+{
+    /*
+        Parsing a whole directory, every entry with a long name of 2 LFN slots
+     */
+    @Param({"16", "512"})
+    private int entries;
+
+    private byte[] directory;
+
+    @Setup
+    public void setup()
+    {
+        directory = buildDirectory(entries);
+    }
+
+    @Benchmark
+    public List<FileEntry> getFileEntries()
+    {
+        return FATHandler.getFileEntries(directory);
+    }
+
+    /*
+        Raw directory with entries named "Benchmark file N.txt", followed by an end of directory slot
+     */
+    static byte[] buildDirectory(int entries)
+    {
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        FileEntry[] fileEntries = new FileEntry[entries];
+        int length = DirectoryParser.ENTRY_SIZE;
+        for(int i=0;i<=entries-1;i++)
+        {
+            fileEntries[i] = FileEntry.getEntry("Benchmark file " + i + ".txt", 3 + i, 1000 + i, shortNames,
+                    false, false, false, 1571443200000L);
+            length += fileEntries[i].getRawLength();
+        }
+        byte[] data = new byte[length];
+        int offset = 0;
+        for(int i=0;i<=entries-1;i++)
+            offset = fileEntries[i].writeRawFileEntry(data, offset);
+        return data;
+    }
+}
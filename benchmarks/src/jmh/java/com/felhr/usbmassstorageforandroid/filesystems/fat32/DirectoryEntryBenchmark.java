@@ -0,0 +1,53 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DirectoryEntryBenchmark
+{
+    /*
+        Decoding and encoding of a single entry: "Benchmark file 0.txt", 2 LFN slots and the 8.3 slot
+     */
+    private static final String LONG_NAME = "Benchmark file 0.txt";
+
+    private byte[] directory;
+    private byte[] lfnSlot;
+    private int shortSlotOffset;
+
+    @Setup
+    public void setup()
+    {
+        directory = DirectoryBenchmark.buildDirectory(1);
+        shortSlotOffset = LFNHandler.getLFNEntries(LONG_NAME) * DirectoryParser.ENTRY_SIZE;
+        lfnSlot = Arrays.copyOfRange(directory, 0, DirectoryParser.ENTRY_SIZE);
+    }
+
+    @Benchmark
+    public FileEntry getEntry()
+    {
+        return FileEntry.getEntry(LONG_NAME, directory, shortSlotOffset);
+    }
+
+    @Benchmark
+    public String parseLFNEntry()
+    {
+        return LFNHandler.parseLFNEntry(lfnSlot);
+    }
+
+    @Benchmark
+    public byte[] getRawLongName()
+    {
+        return LFNHandler.getRawLongName(LONG_NAME, "BENCHM~1", "TXT");
+    }
+}
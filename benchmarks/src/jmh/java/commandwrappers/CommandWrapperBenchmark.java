@@ -0,0 +1,56 @@
+package commandwrappers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CommandWrapperBenchmark
+{
+    /*
+        Every SCSI command builds a CBW and parses a CSW
+     */
+    private CommandBlockWrapper cbw;
+    private byte[] cswBuffer;
+
+    @Setup
+    public void setup()
+    {
+        // READ (10) of 32 blocks from LBA 0x1000
+        byte[] commandBlock = new byte[16];
+        commandBlock[0] = 0x28;
+        commandBlock[4] = 0x10;
+        commandBlock[8] = 0x20;
+        cbw = new CommandBlockWrapper(16384, (byte) 0x80, (byte) 0, (byte) 10);
+        cbw.setCommandBlock(commandBlock);
+
+        cswBuffer = new byte[CommandWrapper.CBS_SIZE];
+        cswBuffer[0] = 0x55; // USBS, little endian
+        cswBuffer[1] = 0x53;
+        cswBuffer[2] = 0x42;
+        cswBuffer[3] = 0x53;
+        cswBuffer[4] = 0x12; // Tag
+        cswBuffer[8] = 0x00; // Residue
+        cswBuffer[12] = 0x00; // Passed
+    }
+
+    @Benchmark
+    public byte[] getCWBuffer()
+    {
+        return cbw.getCWBuffer();
+    }
+
+    @Benchmark
+    public CommandStatusWrapper getCWStatus()
+    {
+        return CommandStatusWrapper.getCWStatus(cswBuffer);
+    }
+}
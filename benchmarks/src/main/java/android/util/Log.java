@@ -0,0 +1,42 @@
+package android.util;
+
+public final class Log
+{
+    /*
+        No-op android.util.Log for running the library on a JVM, android.jar only has stubs that throw
+     */
+    private Log()
+    {
+
+    }
+
+    public static int v(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int d(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int i(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int w(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int e(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr)
+    {
+        return 0;
+    }
+}
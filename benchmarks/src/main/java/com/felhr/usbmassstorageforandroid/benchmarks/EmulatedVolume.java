@@ -0,0 +1,138 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import com.felhr.usbmassstorageforandroid.blockdevice.FileBlockDevice;
+import com.felhr.usbmassstorageforandroid.blockdevice.SCSIBlockDevice;
+import com.felhr.usbmassstorageforandroid.bulkonly.EmulatedMassStorageDevice;
+import com.felhr.usbmassstorageforandroid.filesystems.VirtualFileSystem;
+import com.felhr.usbmassstorageforandroid.scsi.SCSICommunicator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class EmulatedVolume
+{
+    /*
+        The whole stack over an emulated USB stick: a new FAT32 disk image, EmulatedMassStorageDevice,
+        SCSICommunicator, SCSIBlockDevice and VirtualFileSystem, mounted without FAT cache.
+        Local files to copy to the volume are created in a staging directory next to the image.
+     */
+    private static final int CLUSTER_SECTORS = 8; // 4 KB clusters
+
+    private final File image;
+    private final File staging;
+    private final EmulatedMassStorageDevice device;
+    private final SCSICommunicator comm;
+    private final VirtualFileSystem fileSystem;
+
+    private EmulatedVolume(File image, File staging, EmulatedMassStorageDevice device, SCSICommunicator comm)
+    {
+        this.image = image;
+        this.staging = staging;
+        this.device = device;
+        this.comm = comm;
+        this.fileSystem = new VirtualFileSystem(new SCSIBlockDevice(comm));
+    }
+
+    /*
+        size in bytes, the image is a sparse file. transferLatency in us and bandwidth in bytes/s,
+        see EmulatedMassStorageDevice
+     */
+    public static EmulatedVolume create(File directory, long size, long transferLatency, long bandwidth) throws IOException
+    {
+        File image = File.createTempFile("volume", ".img", directory);
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        try
+        {
+            file.setLength(size);
+        }finally
+        {
+            file.close();
+        }
+
+        FileBlockDevice imageDevice = new FileBlockDevice(image);
+        if(!imageDevice.open() || !SyntheticVolume.format(imageDevice, CLUSTER_SECTORS) || !imageDevice.close())
+            throw new IOException("Image could not be formatted: " + image);
+
+        File staging = new File(directory, image.getName() + ".staging");
+        if(!staging.mkdir())
+            throw new IOException("Staging directory could not be created: " + staging);
+
+        EmulatedMassStorageDevice device = new EmulatedMassStorageDevice(new FileBlockDevice(image), transferLatency, bandwidth);
+        EmulatedVolume volume = new EmulatedVolume(image, staging, device, new SCSICommunicator(device));
+        if(!volume.fileSystem.mount(0))
+            throw new IOException("Volume could not be mounted");
+        return volume;
+    }
+
+    public VirtualFileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    public EmulatedMassStorageDevice getDevice()
+    {
+        return device;
+    }
+
+    /*
+        Local file with length random bytes
+     */
+    public File newLocalFile(File parent, String name, int length, Random random) throws IOException
+    {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        File file = new File(parent, name);
+        FileOutputStream output = new FileOutputStream(file);
+        try
+        {
+            output.write(data);
+        }finally
+        {
+            output.close();
+        }
+        return file;
+    }
+
+    public File newLocalDirectory(File parent, String name) throws IOException
+    {
+        File directory = new File(parent, name);
+        if(!directory.mkdir())
+            throw new IOException("Local directory could not be created: " + directory);
+        return directory;
+    }
+
+    public File getStagingDirectory()
+    {
+        return staging;
+    }
+
+    public boolean remount(int cacheMode)
+    {
+        return fileSystem.unMount() && fileSystem.mount(0, cacheMode);
+    }
+
+    /*
+        Unmount and delete the image and the local files
+     */
+    public void close()
+    {
+        fileSystem.unMount();
+        comm.closeSCSICommunicator();
+        delete(staging);
+        delete(image);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if(files != null)
+        {
+            for(int i=0;i<=files.length-1;i++)
+                delete(files[i]);
+        }
+        file.delete();
+    }
+}
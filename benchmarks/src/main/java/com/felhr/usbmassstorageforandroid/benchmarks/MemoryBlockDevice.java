@@ -0,0 +1,143 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import com.felhr.usbmassstorageforandroid.blockdevice.BlockDevice;
+
+import java.nio.ByteBuffer;
+
+public class MemoryBlockDevice implements BlockDevice
+{
+    /*
+        Block device in the heap, so benchmarks do not measure the disk of the machine running them.
+        Reported as a device without a write cache.
+     */
+    private static final int BLOCK_LENGTH = 512;
+
+    private final byte[] blocks;
+    private final int maxTransferLength;
+
+    public MemoryBlockDevice(int blockCount, int maxTransferLength)
+    {
+        this.blocks = new byte[blockCount * BLOCK_LENGTH];
+        this.maxTransferLength = Math.max(BLOCK_LENGTH, maxTransferLength - maxTransferLength % BLOCK_LENGTH);
+    }
+
+    /*
+        Copy of another device with its contents, to start every benchmark from the same volume
+     */
+    public MemoryBlockDevice(MemoryBlockDevice device)
+    {
+        this.blocks = device.blocks.clone();
+        this.maxTransferLength = device.maxTransferLength;
+    }
+
+    @Override
+    public boolean open()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean close()
+    {
+        return true;
+    }
+
+    @Override
+    public int getBlockSize()
+    {
+        return BLOCK_LENGTH;
+    }
+
+    @Override
+    public long getBlockCount()
+    {
+        return blocks.length / BLOCK_LENGTH;
+    }
+
+    @Override
+    public int getMaxTransferLength()
+    {
+        return maxTransferLength;
+    }
+
+    @Override
+    public long getUnmapGranularity()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getUnmapGranularityAlignment()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean hasCachingInfo()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isWriteCacheEnabled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isReadCacheDisabled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isFuaSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public byte[] readBlocks(long lba, int blocks)
+    {
+        if(lba < 0 || lba + blocks > getBlockCount())
+            return null;
+        byte[] data = new byte[blocks * BLOCK_LENGTH];
+        System.arraycopy(this.blocks, (int) lba * BLOCK_LENGTH, data, 0, data.length);
+        return data;
+    }
+
+    @Override
+    public ByteBuffer readBuffer(long lba, int blocks)
+    {
+        if(lba < 0 || lba + blocks > getBlockCount())
+            return null;
+        return ByteBuffer.wrap(this.blocks, (int) lba * BLOCK_LENGTH, blocks * BLOCK_LENGTH).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean writeBlocks(long lba, byte[] data, boolean fua)
+    {
+        int blockCount = (data.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+        if(lba < 0 || lba + blockCount > getBlockCount())
+            return false;
+        int offset = (int) lba * BLOCK_LENGTH;
+        System.arraycopy(data, 0, blocks, offset, data.length);
+        for(int i=offset+data.length;i<=offset+blockCount*BLOCK_LENGTH-1;i++) // Padding of the last block
+            blocks[i] = 0x00;
+        return true;
+    }
+
+    @Override
+    public boolean synchronizeCache()
+    {
+        return true;
+    }
+
+    /*
+        Raw contents, blocks * 512 bytes
+     */
+    public byte[] getBlocks()
+    {
+        return blocks;
+    }
+}
@@ -0,0 +1,117 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import com.felhr.usbmassstorageforandroid.blockdevice.BlockDevice;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class SyntheticVolume
+{
+    /*
+        Formats a block device with an MBR and a single empty FAT32 partition, like a new USB stick:
+        partition at LBA 2048, 32 reserved sectors, 2 FATs and the root directory in cluster 2.
+     */
+    private static final int BLOCK_LENGTH = 512;
+    private static final int PARTITION_START = 2048;
+    private static final int RESERVED_SECTORS = 32;
+    private static final int NUMBER_FATS = 2;
+    private static final int FSINFO_SECTOR = 1;
+    private static final int BACKUP_BOOT_SECTOR = 6;
+
+    private SyntheticVolume()
+    {
+
+    }
+
+    /*
+        The device must be open. Returns false if it is too small or a write failed
+     */
+    public static boolean format(BlockDevice device, int sectorsPerCluster)
+    {
+        long partitionSectors = device.getBlockCount() - PARTITION_START;
+        if(partitionSectors <= RESERVED_SECTORS + 2 * sectorsPerCluster)
+            return false;
+
+        // Grow the FAT until it covers every cluster left after it
+        long clusters = partitionSectors / sectorsPerCluster;
+        long fatSectors = (clusters * 4 + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+        while(true)
+        {
+            clusters = (partitionSectors - RESERVED_SECTORS - NUMBER_FATS * fatSectors) / sectorsPerCluster;
+            long neededSectors = ((clusters + 2) * 4 + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+            if(neededSectors <= fatSectors)
+                break;
+            fatSectors = neededSectors;
+        }
+
+        ByteBuffer mbr = newSector();
+        mbr.put(446 + 4, (byte) 0x0c); // FAT32 LBA
+        mbr.putInt(446 + 8, PARTITION_START);
+        mbr.putInt(446 + 12, (int) partitionSectors);
+
+        ByteBuffer bootSector = newSector();
+        bootSector.put(0, (byte) 0xeb).put(1, (byte) 0x58).put(2, (byte) 0x90);
+        putAscii(bootSector, 3, "MSWIN4.1");
+        bootSector.putShort(11, (short) BLOCK_LENGTH);
+        bootSector.put(13, (byte) sectorsPerCluster);
+        bootSector.putShort(14, (short) RESERVED_SECTORS);
+        bootSector.put(16, (byte) NUMBER_FATS);
+        bootSector.put(21, (byte) 0xf8); // Fixed media
+        bootSector.putShort(24, (short) 63);
+        bootSector.putShort(26, (short) 255);
+        bootSector.putInt(28, PARTITION_START);
+        bootSector.putInt(32, (int) partitionSectors);
+        bootSector.putInt(36, (int) fatSectors);
+        bootSector.putInt(44, 2); // Root directory cluster
+        bootSector.putShort(48, (short) FSINFO_SECTOR);
+        bootSector.putShort(50, (short) BACKUP_BOOT_SECTOR);
+        bootSector.put(64, (byte) 0x80);
+        bootSector.put(66, (byte) 0x29);
+        bootSector.putInt(67, 0x12345678);
+        putAscii(bootSector, 71, "NO NAME    FAT32   ");
+
+        ByteBuffer fsInfo = newSector();
+        fsInfo.putInt(0, 0x41615252);
+        fsInfo.putInt(484, 0x61417272);
+        fsInfo.putInt(488, (int) (clusters - 1)); // Free clusters, the root directory uses one
+        fsInfo.putInt(492, 3); // Next free cluster
+
+        ByteBuffer fat = ByteBuffer.allocate(BLOCK_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        fat.putInt(0, 0x0ffffff8);
+        fat.putInt(4, 0x0fffffff);
+        fat.putInt(8, 0x0fffffff); // Root directory
+
+        boolean result = device.writeBlocks(0, mbr.array(), false)
+                && device.writeBlocks(PARTITION_START, bootSector.array(), false)
+                && device.writeBlocks(PARTITION_START + BACKUP_BOOT_SECTOR, bootSector.array(), false)
+                && device.writeBlocks(PARTITION_START + FSINFO_SECTOR, fsInfo.array(), false);
+
+        // Zero the FATs and the root directory cluster, the device may not be empty
+        byte[] zeros = new byte[64 * BLOCK_LENGTH];
+        long firstFatSector = PARTITION_START + RESERVED_SECTORS;
+        long dataStart = firstFatSector + NUMBER_FATS * fatSectors;
+        for(long lba=firstFatSector;lba<dataStart+sectorsPerCluster && result;lba+=64)
+        {
+            int sectors = (int) Math.min(64, dataStart + sectorsPerCluster - lba);
+            byte[] data = (sectors == 64) ? zeros : new byte[sectors * BLOCK_LENGTH];
+            result = device.writeBlocks(lba, data, false);
+        }
+        for(int i=0;i<=NUMBER_FATS-1 && result;i++)
+            result = device.writeBlocks(firstFatSector + i * fatSectors, fat.array(), false);
+        return result && device.synchronizeCache();
+    }
+
+    private static ByteBuffer newSector()
+    {
+        ByteBuffer sector = ByteBuffer.allocate(BLOCK_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        sector.put(510, (byte) 0x55);
+        sector.put(511, (byte) 0xaa);
+        return sector;
+    }
+
+    private static void putAscii(ByteBuffer buffer, int offset, String value)
+    {
+        for(int i=0;i<=value.length()-1;i++)
+            buffer.put(offset + i, (byte) value.charAt(i));
+    }
+}
@@ -0,0 +1,127 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import com.felhr.usbmassstorageforandroid.blockdevice.BlockDevice;
+import com.felhr.usbmassstorageforandroid.blockdevice.FileBlockDevice;
+import com.felhr.usbmassstorageforandroid.blockdevice.MappedBlockDevice;
+import com.felhr.usbmassstorageforandroid.bulkonly.EmulatedMassStorageDevice;
+import com.felhr.usbmassstorageforandroid.bulkonly.TraceReplayer;
+import com.felhr.usbmassstorageforandroid.metrics.CommandTrace;
+import com.felhr.usbmassstorageforandroid.metrics.TraceRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class TraceReplay
+{
+    /*
+        Replays a CommandTrace dump against an EmulatedMassStorageDevice over a disk image and compares
+        the time of every command with the trace.
+
+        Arguments:
+            <trace> <image>
+            --latency <us>          Latency of every bulk transfer, 125 us by default
+            --bandwidth <bytes/s>   Bandwidth of the bus, 35 MB/s by default
+            --paced                 Send every command at the time it was sent in the trace
+            --mapped                Map the image in memory, see MappedBlockDevice
+            --print                 Print the commands of the trace before replaying them
+
+        Writes send back the blocks the image already holds, so the image is not modified
+        and every command moves as many bytes as in the trace
+     */
+    private static final long DEFAULT_LATENCY = 125;
+    private static final long DEFAULT_BANDWIDTH = 35L * 1000 * 1000;
+
+    // Operation codes with data to the device taken from the medium
+    private static final int WRITE_10 = 0x2a;
+    private static final int WRITE_12 = 0xaa;
+    private static final int WRITE_16 = 0x8a;
+
+    public static void main(String[] args) throws IOException
+    {
+        File traceFile = null;
+        File image = null;
+        long latency = DEFAULT_LATENCY;
+        long bandwidth = DEFAULT_BANDWIDTH;
+        boolean paced = false;
+        boolean mapped = false;
+        boolean print = false;
+
+        for(int i=0;i<=args.length-1;i++)
+        {
+            String arg = args[i];
+            if(arg.equals("--paced"))
+                paced = true;
+            else if(arg.equals("--mapped"))
+                mapped = true;
+            else if(arg.equals("--print"))
+                print = true;
+            else if(arg.equals("--latency") && i < args.length - 1)
+                latency = Long.parseLong(args[++i]);
+            else if(arg.equals("--bandwidth") && i < args.length - 1)
+                bandwidth = Long.parseLong(args[++i]);
+            else if(arg.startsWith("--"))
+                usage("Unknown argument " + arg);
+            else if(traceFile == null)
+                traceFile = new File(arg);
+            else if(image == null)
+                image = new File(arg);
+            else
+                usage("Unexpected argument " + arg);
+        }
+        if(traceFile == null || image == null)
+            usage("Missing trace or image");
+
+        List<TraceRecord> records = CommandTrace.load(traceFile);
+        System.out.println(String.format("%d commands in %s", records.size(), traceFile));
+        if(print)
+        {
+            for(TraceRecord record : records)
+                System.out.println(record);
+        }
+
+        final BlockDevice medium = mapped ? new MappedBlockDevice(image) : new FileBlockDevice(image);
+        EmulatedMassStorageDevice device = new EmulatedMassStorageDevice(medium, latency, bandwidth);
+        if(!device.open())
+        {
+            System.err.println("Cannot open " + image);
+            System.exit(1);
+        }
+        try
+        {
+            TraceReplayer replayer = new TraceReplayer(device);
+            replayer.setPaced(paced);
+            replayer.setDataSource(new TraceReplayer.DataSource()
+            {
+                @Override
+                public byte[] getData(TraceRecord record)
+                {
+                    int opcode = record.getOpcode();
+                    if(opcode != WRITE_10 && opcode != WRITE_12 && opcode != WRITE_16)
+                        return null;
+                    long lba = record.getLba();
+                    long blocks = record.getTransferLength();
+                    if(blocks * medium.getBlockSize() != record.getDataLength()
+                            || lba < 0 || lba + blocks > medium.getBlockCount())
+                        return null;
+                    return medium.readBlocks(lba, (int) blocks);
+                }
+            });
+            TraceReplayer.Result result = replayer.replay(records);
+            System.out.println(String.format("Transfer latency %d us, bandwidth %d bytes/s%s", latency, bandwidth,
+                    paced ? ", paced" : ""));
+            System.out.println(result);
+        }finally
+        {
+            device.close();
+        }
+    }
+
+    private static void usage(String error)
+    {
+        System.err.println(error);
+        System.err.println("Usage: TraceReplay <trace> <image> [--latency <us>] [--bandwidth <bytes/s>] [--paced] "
+                + "[--mapped] [--print]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,408 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import com.felhr.usbmassstorageforandroid.filesystems.VFSFile;
+import com.felhr.usbmassstorageforandroid.filesystems.VirtualFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public abstract class Workload
+{
+    /*
+        A scenario of the workload suite. Every scenario gets a new volume, prepare() is not measured.
+        run() returns the bytes of file data it moved, or 0 when it only handles metadata, in which
+        case the suite measures it by the bytes moved on the bus
+     */
+    private static final long SEED = 0x5eed;
+
+    private final String name;
+
+    protected Workload(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void prepare(EmulatedVolume volume, Random random) throws IOException
+    {
+
+    }
+
+    public abstract long run(EmulatedVolume volume, Random random) throws IOException;
+
+    public static List<Workload> getWorkloads()
+    {
+        List<Workload> workloads = new ArrayList<Workload>();
+        workloads.add(new SequentialWrite(64 * 1024 * 1024));
+        workloads.add(new SequentialRead(64 * 1024 * 1024));
+        workloads.add(new SmallFileCreate(10, 1000));
+        workloads.add(new DeepTreeListing(6, 3, 4));
+        workloads.add(new DeleteChurn(5, 200, 150));
+        workloads.add(new MountTime("mount-none", VirtualFileSystem.CACHE_NONE, 200, 20));
+        workloads.add(new MountTime("mount-low", VirtualFileSystem.CACHE_LOW, 200, 20));
+        workloads.add(new MountTime("mount-medium", VirtualFileSystem.CACHE_MEDIUM, 200, 20));
+        workloads.add(new MountTime("mount-high", VirtualFileSystem.CACHE_HIGH, 200, 20));
+        return workloads;
+    }
+
+    /*
+        Small versions of the workloads, run before measuring so that every workload runs compiled
+        code no matter its position in the suite or whether it runs alone
+     */
+    public static List<Workload> getWarmupWorkloads()
+    {
+        List<Workload> workloads = new ArrayList<Workload>();
+        workloads.add(new SequentialWrite(4 * 1024 * 1024));
+        workloads.add(new SequentialRead(4 * 1024 * 1024));
+        workloads.add(new SmallFileCreate(2, 200));
+        workloads.add(new DeepTreeListing(4, 3, 4));
+        workloads.add(new DeleteChurn(2, 100, 75));
+        workloads.add(new MountTime("mount-high", VirtualFileSystem.CACHE_HIGH, 50, 10));
+        return workloads;
+    }
+
+    /*
+        Same random sequence in every run, so every run writes the same files
+     */
+    public static Random newRandom()
+    {
+        return new Random(SEED);
+    }
+
+    private static void check(boolean result, String operation) throws IOException
+    {
+        if(!result)
+            throw new IOException(operation + " failed");
+    }
+
+    private static String getFileName(int index)
+    {
+        return String.format("F%05d.BIN", index);
+    }
+
+    /*
+        Local files of random lengths between minLength and maxLength in directory
+     */
+    private static long newLocalFiles(EmulatedVolume volume, File directory, int files, int minLength, int maxLength,
+                                      Random random) throws IOException
+    {
+        long length = 0;
+        for(int i=0;i<=files-1;i++)
+        {
+            int fileLength = minLength + random.nextInt(maxLength - minLength + 1);
+            volume.newLocalFile(directory, getFileName(i), fileLength, random);
+            length += fileLength;
+        }
+        return length;
+    }
+
+    /*
+        One large file written in a single writeFile
+     */
+    public static class SequentialWrite extends Workload
+    {
+        private final int length;
+        private File file;
+
+        public SequentialWrite(int length)
+        {
+            super("sequential-write");
+            this.length = length;
+        }
+
+        @Override
+        public void prepare(EmulatedVolume volume, Random random) throws IOException
+        {
+            file = volume.newLocalFile(volume.getStagingDirectory(), "LARGE.BIN", length, random);
+        }
+
+        @Override
+        public long run(EmulatedVolume volume, Random random) throws IOException
+        {
+            check(volume.getFileSystem().writeFile(file), "Write of " + file.getName());
+            return length;
+        }
+    }
+
+    /*
+        One large file streamed with readFile(VFSFile, DataVisitor)
+     */
+    public static class SequentialRead extends Workload
+    {
+        private final int length;
+
+        public SequentialRead(int length)
+        {
+            super("sequential-read");
+            this.length = length;
+        }
+
+        @Override
+        public void prepare(EmulatedVolume volume, Random random) throws IOException
+        {
+            File file = volume.newLocalFile(volume.getStagingDirectory(), "LARGE.BIN", length, random);
+            check(volume.getFileSystem().writeFile(file), "Write of " + file.getName());
+        }
+
+        @Override
+        public long run(EmulatedVolume volume, Random random) throws IOException
+        {
+            VFSFile file = volume.getFileSystem().resolve("/LARGE.BIN");
+            check(file != null, "Resolve of /LARGE.BIN");
+
+            final long[] read = new long[1];
+            check(volume.getFileSystem().readFile(file, new VirtualFileSystem.DataVisitor()
+            {
+                @Override
+                public boolean visit(ByteBuffer data)
+                {
+                    read[0] += data.remaining();
+                    return true;
+                }
+            }), "Read of /LARGE.BIN");
+            check(read[0] == length, "Read of the whole /LARGE.BIN");
+            return read[0];
+        }
+    }
+
+    /*
+        Many small files written one by one, spread over several directories
+     */
+    public static class SmallFileCreate extends Workload
+    {
+        private static final int MIN_LENGTH = 1024;
+        private static final int MAX_LENGTH = 4096;
+
+        private final int directories;
+        private final int filesPerDirectory;
+        private File[] localDirectories;
+
+        public SmallFileCreate(int directories, int filesPerDirectory)
+        {
+            super("small-file-create");
+            this.directories = directories;
+            this.filesPerDirectory = filesPerDirectory;
+        }
+
+        @Override
+        public void prepare(EmulatedVolume volume, Random random) throws IOException
+        {
+            localDirectories = new File[directories];
+            for(int i=0;i<=directories-1;i++)
+            {
+                localDirectories[i] = volume.newLocalDirectory(volume.getStagingDirectory(), String.format("D%02d", i));
+                newLocalFiles(volume, localDirectories[i], filesPerDirectory, MIN_LENGTH, MAX_LENGTH, random);
+
+                // Empty directory on the volume, the files are written one by one in run()
+                File emptyDirectory = volume.newLocalDirectory(volume.getStagingDirectory(), String.format("E%02d", i));
+                check(volume.getFileSystem().writeFile(emptyDirectory), "Write of " + emptyDirectory.getName());
+            }
+        }
+
+        @Override
+        public long run(EmulatedVolume volume, Random random) throws IOException
+        {
+            VirtualFileSystem fileSystem = volume.getFileSystem();
+            long length = 0;
+            for(int i=0;i<=directories-1;i++)
+            {
+                check(fileSystem.changeDir(String.format("E%02d", i)), "Change to directory E" + i);
+                for(int j=0;j<=filesPerDirectory-1;j++)
+                {
+                    File file = new File(localDirectories[i], getFileName(j));
+                    check(fileSystem.writeFile(file), "Write of " + file.getName());
+                    length += file.length();
+                }
+                check(fileSystem.changeDirBack(), "Change back from directory E" + i);
+            }
+            return length;
+        }
+    }
+
+    /*
+        Walk of a deep directory tree on a volume just mounted, so nothing is cached
+     */
+    public static class DeepTreeListing extends Workload
+    {
+        private static final int FILE_LENGTH = 512;
+
+        private final int depth;
+        private final int fanout;
+        private final int filesPerDirectory;
+        private int expected;
+
+        public DeepTreeListing(int depth, int fanout, int filesPerDirectory)
+        {
+            super("deep-tree-listing");
+            this.depth = depth;
+            this.fanout = fanout;
+            this.filesPerDirectory = filesPerDirectory;
+        }
+
+        @Override
+        public void prepare(EmulatedVolume volume, Random random) throws IOException
+        {
+            File tree = volume.newLocalDirectory(volume.getStagingDirectory(), "TREE");
+            expected = newLocalTree(volume, tree, depth, random);
+            check(volume.getFileSystem().writeFile(tree), "Write of " + tree.getName());
+            check(volume.remount(VirtualFileSystem.CACHE_NONE), "Remount");
+        }
+
+        @Override
+        public long run(EmulatedVolume volume, Random random) throws IOException
+        {
+            final int[] visited = new int[1];
+            check(volume.getFileSystem().walk("/TREE", new VirtualFileSystem.WalkVisitor()
+            {
+                @Override
+                public boolean visit(String path, VFSFile file)
+                {
+                    visited[0]++;
+                    return true;
+                }
+
+                @Override
+                public boolean onError(String path)
+                {
+                    return false;
+                }
+            }), "Walk of /TREE");
+            check(visited[0] == expected, "Walk of the whole /TREE");
+            return 0;
+        }
+
+        /*
+            Returns the files and directories created under directory
+         */
+        private int newLocalTree(EmulatedVolume volume, File directory, int levels, Random random) throws IOException
+        {
+            newLocalFiles(volume, directory, filesPerDirectory, FILE_LENGTH, FILE_LENGTH, random);
+            int created = filesPerDirectory;
+            if(levels > 1)
+            {
+                for(int i=0;i<=fanout-1;i++)
+                {
+                    File child = volume.newLocalDirectory(directory, String.format("D%02d", i));
+                    created += 1 + newLocalTree(volume, child, levels - 1, random);
+                }
+            }
+            return created;
+        }
+    }
+
+    /*
+        Rounds of creating files, deleting most of them and compacting the directory,
+        so allocation has to reuse the clusters and entries freed by the deletes
+     */
+    public static class DeleteChurn extends Workload
+    {
+        private static final int MIN_LENGTH = 4 * 1024;
+        private static final int MAX_LENGTH = 32 * 1024;
+
+        private final int rounds;
+        private final int created;
+        private final int deleted;
+        private File[] localDirectories;
+
+        public DeleteChurn(int rounds, int created, int deleted)
+        {
+            super("delete-churn");
+            this.rounds = rounds;
+            this.created = created;
+            this.deleted = deleted;
+        }
+
+        @Override
+        public void prepare(EmulatedVolume volume, Random random) throws IOException
+        {
+            localDirectories = new File[rounds];
+            for(int i=0;i<=rounds-1;i++)
+            {
+                localDirectories[i] = volume.newLocalDirectory(volume.getStagingDirectory(), String.format("R%02d", i));
+                for(int j=0;j<=created-1;j++)
+                {
+                    int length = MIN_LENGTH + random.nextInt(MAX_LENGTH - MIN_LENGTH + 1);
+                    volume.newLocalFile(localDirectories[i], String.format("R%02d%05d.BIN", i, j), length, random);
+                }
+            }
+        }
+
+        @Override
+        public long run(EmulatedVolume volume, Random random) throws IOException
+        {
+            VirtualFileSystem fileSystem = volume.getFileSystem();
+            long length = 0;
+            for(int i=0;i<=rounds-1;i++)
+            {
+                File[] files = localDirectories[i].listFiles();
+                for(int j=0;j<=files.length-1;j++)
+                {
+                    check(fileSystem.writeFile(files[j]), "Write of " + files[j].getName());
+                    length += files[j].length();
+                }
+
+                // Delete random files of this round, the survivors fragment the free space
+                List<File> remaining = new ArrayList<File>();
+                for(int j=0;j<=files.length-1;j++)
+                    remaining.add(files[j]);
+                for(int j=0;j<=deleted-1;j++)
+                {
+                    File file = remaining.remove(random.nextInt(remaining.size()));
+                    check(fileSystem.deleteFile(file.getName()), "Delete of " + file.getName());
+                }
+                check(fileSystem.compactDir(), "Compaction of the root directory");
+            }
+            return length;
+        }
+    }
+
+    /*
+        Mounts of a volume with files, with a cache mode of VirtualFileSystem.
+        A single mount takes a few ms, so it is repeated to get steady numbers
+     */
+    public static class MountTime extends Workload
+    {
+        private static final int FILE_LENGTH = 16 * 1024;
+
+        private final int cacheMode;
+        private final int files;
+        private final int mounts;
+
+        public MountTime(String name, int cacheMode, int files, int mounts)
+        {
+            super(name);
+            this.cacheMode = cacheMode;
+            this.files = files;
+            this.mounts = mounts;
+        }
+
+        @Override
+        public void prepare(EmulatedVolume volume, Random random) throws IOException
+        {
+            File directory = volume.newLocalDirectory(volume.getStagingDirectory(), "FILES");
+            newLocalFiles(volume, directory, files, FILE_LENGTH, FILE_LENGTH, random);
+            check(volume.getFileSystem().writeFile(directory), "Write of " + directory.getName());
+            check(volume.getFileSystem().unMount(), "Unmount");
+        }
+
+        @Override
+        public long run(EmulatedVolume volume, Random random) throws IOException
+        {
+            for(int i=0;i<=mounts-1;i++)
+            {
+                check(volume.getFileSystem().mount(0, cacheMode), "Mount");
+                if(i < mounts - 1)
+                    check(volume.getFileSystem().unMount(), "Unmount");
+            }
+            return 0;
+        }
+    }
+}
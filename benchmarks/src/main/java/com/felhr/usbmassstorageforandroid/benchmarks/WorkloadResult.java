@@ -0,0 +1,147 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+public class WorkloadResult
+{
+    /*
+        Measures of a workload run and its comparison with a baseline.
+        Baseline keys are <workload>.<metric>, like sequential-write.mbPerSecond
+     */
+    public static final String MB_PER_SECOND = "mbPerSecond";
+    public static final String COMMANDS = "commands";
+    public static final String BUS_BYTES = "busBytes";
+    public static final String ALLOCATED_PER_MB = "allocatedPerMB";
+
+    // Worst change allowed against the baseline, throughput depends on the machine so it gets more room
+    private static final double MB_PER_SECOND_TOLERANCE = 0.25;
+    private static final double COMMANDS_TOLERANCE = 0.05;
+    private static final double BUS_BYTES_TOLERANCE = 0.05;
+    private static final double ALLOCATED_PER_MB_TOLERANCE = 0.20;
+
+    private static final double MB = 1024 * 1024;
+
+    private final String name;
+    private final long elapsedNanos;
+    private final long payloadBytes;
+    private final long commands;
+    private final long busBytes;
+    private final long allocatedBytes;
+
+    public WorkloadResult(String name, long elapsedNanos, long payloadBytes, long commands, long busBytes, long allocatedBytes)
+    {
+        this.name = name;
+        this.elapsedNanos = elapsedNanos;
+        this.payloadBytes = payloadBytes;
+        this.commands = commands;
+        this.busBytes = busBytes;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public double getElapsedMillis()
+    {
+        return elapsedNanos / 1000000.0;
+    }
+
+    public long getCommands()
+    {
+        return commands;
+    }
+
+    public long getBusBytes()
+    {
+        return busBytes;
+    }
+
+    /*
+        File data for the workloads that move files, bus bytes for the ones that only handle metadata
+     */
+    public long getMovedBytes()
+    {
+        return (payloadBytes > 0) ? payloadBytes : busBytes;
+    }
+
+    public double getMBPerSecond()
+    {
+        return (getMovedBytes() / MB) / (elapsedNanos / 1000000000.0);
+    }
+
+    public double getAllocatedPerMB()
+    {
+        return allocatedBytes / (getMovedBytes() / MB);
+    }
+
+    public void store(Properties baseline)
+    {
+        baseline.setProperty(name + "." + MB_PER_SECOND, format(getMBPerSecond()));
+        baseline.setProperty(name + "." + COMMANDS, String.valueOf(commands));
+        baseline.setProperty(name + "." + BUS_BYTES, String.valueOf(busBytes));
+        baseline.setProperty(name + "." + ALLOCATED_PER_MB, format(getAllocatedPerMB()));
+    }
+
+    /*
+        Descriptions of the metrics worse than the baseline beyond their tolerance.
+        Metrics missing from the baseline are not compared
+     */
+    public List<String> compare(Properties baseline)
+    {
+        List<String> regressions = new ArrayList<String>();
+        compareLower(baseline, MB_PER_SECOND, getMBPerSecond(), MB_PER_SECOND_TOLERANCE, regressions);
+        compareHigher(baseline, COMMANDS, commands, COMMANDS_TOLERANCE, regressions);
+        compareHigher(baseline, BUS_BYTES, busBytes, BUS_BYTES_TOLERANCE, regressions);
+        compareHigher(baseline, ALLOCATED_PER_MB, getAllocatedPerMB(), ALLOCATED_PER_MB_TOLERANCE, regressions);
+        return regressions;
+    }
+
+    public static String getHeader()
+    {
+        return String.format(Locale.US, "%-20s %10s %10s %10s %14s %16s", "workload", "ms", "MB/s", "commands",
+                "bus bytes", "alloc bytes/MB");
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "%-20s %10.1f %10.2f %10d %14d %16.0f", name, getElapsedMillis(),
+                getMBPerSecond(), commands, busBytes, getAllocatedPerMB());
+    }
+
+    private void compareLower(Properties baseline, String metric, double value, double tolerance, List<String> regressions)
+    {
+        String stored = baseline.getProperty(name + "." + metric);
+        if(stored == null)
+            return;
+        double expected = Double.parseDouble(stored);
+        if(value < expected * (1 - tolerance))
+            regressions.add(describe(metric, value, expected));
+    }
+
+    private void compareHigher(Properties baseline, String metric, double value, double tolerance, List<String> regressions)
+    {
+        String stored = baseline.getProperty(name + "." + metric);
+        if(stored == null)
+            return;
+        double expected = Double.parseDouble(stored);
+        if(value > expected * (1 + tolerance))
+            regressions.add(describe(metric, value, expected));
+    }
+
+    private String describe(String metric, double value, double expected)
+    {
+        return String.format(Locale.US, "%s.%s: %.2f, baseline %.2f (%+.1f%%)", name, metric, value, expected,
+                (expected == 0) ? 0.0 : (value - expected) * 100 / expected);
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
@@ -0,0 +1,254 @@
+package com.felhr.usbmassstorageforandroid.benchmarks;
+
+import com.felhr.usbmassstorageforandroid.metrics.CommandTrace;
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class WorkloadSuite
+{
+    /*
+        End to end workloads through VirtualFileSystem over an EmulatedMassStorageDevice, compared with a
+        baseline so regressions in throughput, SCSI commands, bus bytes or heap allocation fail the run.
+
+        Arguments:
+            --baseline <file>       Baseline to compare with, or to write with --update-baseline
+            --update-baseline       Store the results as the new baseline instead of comparing
+            --latency <us>          Latency of every bulk transfer, 125 us by default (one USB 2.0 microframe)
+            --bandwidth <bytes/s>   Bandwidth of the bus, 35 MB/s by default
+            --only <workload>       Run a single workload
+            --work-dir <dir>        Directory for the disk images, the temporary directory by default
+            --metrics               Enable StackMetrics and print its report after every workload,
+                                    numbers are not comparable with a baseline taken without it
+            --trace <file>          Record the commands of the workloads (not of their preparation) with
+                                    CommandTrace and dump them to file, see TraceReplay
+
+        Exits with 1 if any metric regressed
+     */
+    private static final long VOLUME_SIZE = 1024L * 1024 * 1024;
+    private static final long DEFAULT_LATENCY = 125;
+    private static final long DEFAULT_BANDWIDTH = 35L * 1000 * 1000;
+    private static final long THREAD_JOIN_TIMEOUT = 10000; // ms
+    private static final int TRACE_CAPACITY = 262144; // records, 16 MB
+
+    public static void main(String[] args) throws IOException
+    {
+        File baselineFile = null;
+        boolean updateBaseline = false;
+        long latency = DEFAULT_LATENCY;
+        long bandwidth = DEFAULT_BANDWIDTH;
+        String only = null;
+        File traceFile = null;
+        File workDir = new File(System.getProperty("java.io.tmpdir"));
+
+        for(int i=0;i<=args.length-1;i++)
+        {
+            String arg = args[i];
+            if(arg.equals("--update-baseline"))
+                updateBaseline = true;
+            else if(arg.equals("--metrics"))
+                StackMetrics.setEnabled(true);
+            else if(i == args.length - 1)
+                usage("Missing value of " + arg);
+            else if(arg.equals("--baseline"))
+                baselineFile = new File(args[++i]);
+            else if(arg.equals("--latency"))
+                latency = Long.parseLong(args[++i]);
+            else if(arg.equals("--bandwidth"))
+                bandwidth = Long.parseLong(args[++i]);
+            else if(arg.equals("--only"))
+                only = args[++i];
+            else if(arg.equals("--work-dir"))
+                workDir = new File(args[++i]);
+            else if(arg.equals("--trace"))
+                traceFile = new File(args[++i]);
+            else
+                usage("Unknown argument " + arg);
+        }
+        if(updateBaseline && baselineFile == null)
+            usage("--update-baseline needs --baseline");
+
+        System.out.println(String.format("Transfer latency %d us, bandwidth %d bytes/s", latency, bandwidth));
+        System.out.println("Warming up");
+        for(Workload workload : Workload.getWarmupWorkloads())
+            run(workload, workDir, latency, bandwidth, null);
+
+        if(traceFile != null)
+        {
+            CommandTrace.start(TRACE_CAPACITY);
+            CommandTrace.stop(); // Recording resumes while the workloads run
+        }
+
+        System.out.println(WorkloadResult.getHeader());
+        List<WorkloadResult> results = new ArrayList<WorkloadResult>();
+        for(Workload workload : Workload.getWorkloads())
+        {
+            if(only != null && !only.equals(workload.getName()))
+                continue;
+            StackMetrics.reset();
+            WorkloadResult result = run(workload, workDir, latency, bandwidth, traceFile);
+            System.out.println(result);
+            if(StackMetrics.isEnabled())
+                System.out.println(StackMetrics.snapshot());
+            results.add(result);
+        }
+
+        if(traceFile != null)
+        {
+            CommandTrace.dump(traceFile);
+            System.out.println(String.format("%d commands traced to %s", CommandTrace.getRecordCount(), traceFile));
+        }
+
+        int status = 0;
+        if(updateBaseline)
+        {
+            Properties baseline = (baselineFile.exists()) ? load(baselineFile) : new Properties();
+            for(WorkloadResult result : results)
+                result.store(baseline);
+            store(baseline, baselineFile, latency, bandwidth);
+            System.out.println("Baseline written to " + baselineFile);
+        }else if(baselineFile != null)
+        {
+            Properties baseline = load(baselineFile);
+            List<String> regressions = new ArrayList<String>();
+            for(WorkloadResult result : results)
+                regressions.addAll(result.compare(baseline));
+            if(regressions.isEmpty())
+            {
+                System.out.println("No regressions against " + baselineFile);
+            }else
+            {
+                System.out.println("Regressions against " + baselineFile + ":");
+                for(String regression : regressions)
+                    System.out.println("    " + regression);
+                status = 1;
+            }
+        }
+        if(status != 0)
+            System.exit(status);
+    }
+
+    private static WorkloadResult run(Workload workload, File workDir, long latency, long bandwidth, File traceFile)
+            throws IOException
+    {
+        EmulatedVolume volume = EmulatedVolume.create(workDir, VOLUME_SIZE, latency, bandwidth);
+        try
+        {
+            Random random = Workload.newRandom();
+            workload.prepare(volume, random);
+            System.gc();
+
+            Set<Thread> threads = Thread.getAllStackTraces().keySet();
+            long commands = volume.getDevice().getCommandCount();
+            long busBytes = volume.getDevice().getBusBytes();
+            long allocated = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            if(traceFile != null)
+                CommandTrace.resume();
+            long payload = workload.run(volume, random);
+            CommandTrace.stop();
+
+            long elapsed = System.nanoTime() - start;
+            joinNewThreads(threads);
+            return new WorkloadResult(workload.getName(), elapsed, payload,
+                    volume.getDevice().getCommandCount() - commands,
+                    volume.getDevice().getBusBytes() - busBytes,
+                    getAllocatedBytes() - allocated);
+        }finally
+        {
+            volume.close();
+        }
+    }
+
+    /*
+        Heap allocated by every live thread, the stack allocates in the caller and in its USB and SCSI threads.
+        The JVM forgets the allocations of threads that end, so short lived threads started by a workload
+        (the FAT cache thread) are never counted, see joinNewThreads()
+     */
+    private static long getAllocatedBytes()
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] allocated = threads.getThreadAllocatedBytes(threads.getAllThreadIds());
+        long total = 0;
+        for(int i=0;i<=allocated.length-1;i++)
+        {
+            if(allocated[i] > 0) // -1 for threads that died meanwhile
+                total += allocated[i];
+        }
+        return total;
+    }
+
+    /*
+        Wait for the threads started by a workload, otherwise their allocations would be counted
+        or not depending on whether they finished before the measure
+     */
+    private static void joinNewThreads(Set<Thread> threads)
+    {
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if(threads.contains(thread))
+                continue;
+            try
+            {
+                thread.join(THREAD_JOIN_TIMEOUT);
+            }catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Properties load(File file) throws IOException
+    {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try
+        {
+            properties.load(input);
+        }finally
+        {
+            input.close();
+        }
+        return properties;
+    }
+
+    /*
+        Sorted and without the date of Properties.store(), so baseline updates diff cleanly
+     */
+    private static void store(Properties properties, File file, long latency, long bandwidth) throws IOException
+    {
+        PrintWriter output = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+        try
+        {
+            output.println(String.format("# Workload baseline, transfer latency %d us, bandwidth %d bytes/s", latency, bandwidth));
+            for(String key : new TreeSet<String>(properties.stringPropertyNames()))
+                output.println(key + "=" + properties.getProperty(key));
+        }finally
+        {
+            output.close();
+        }
+    }
+
+    private static void usage(String error)
+    {
+        System.err.println(error);
+        System.err.println("Usage: WorkloadSuite [--baseline <file>] [--update-baseline] [--latency <us>] "
+                + "[--bandwidth <bytes/s>] [--only <workload>] [--work-dir <dir>] [--metrics] [--trace <file>]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,96 @@
+package com.felhr.usbmassstorageforandroid.blockdevice;
+
+import com.felhr.usbmassstorageforandroid.benchmarks.MemoryBlockDevice;
+import com.felhr.usbmassstorageforandroid.bulkonly.EmulatedMassStorageDevice;
+import com.felhr.usbmassstorageforandroid.scsi.SCSICommunicator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SCSIBlockDeviceTest
+{
+    /*
+        SCSIBlockDevice over an emulated USB stick whose medium has a volatile write cache
+     */
+    private CachingMedium medium;
+    private SCSICommunicator comm;
+    private SCSIBlockDevice device;
+
+    @Before
+    public void setUp()
+    {
+        medium = new CachingMedium();
+        comm = new SCSICommunicator(new EmulatedMassStorageDevice(medium));
+        device = new SCSIBlockDevice(comm);
+        assertTrue(device.open());
+        assertTrue(device.isWriteCacheEnabled());
+    }
+
+    @After
+    public void tearDown()
+    {
+        comm.closeSCSICommunicator();
+    }
+
+    @Test(timeout = 10000)
+    public void testPartialBlockIsPadded()
+    {
+        byte[] block = new byte[1024];
+        Arrays.fill(block, (byte) 0xff);
+        assertTrue(device.writeBlocks(4, block, false));
+
+        byte[] data = new byte[600];
+        Arrays.fill(data, (byte) 0x5a);
+        assertTrue(device.writeBlocks(4, data, false));
+
+        byte[] expected = new byte[1024];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        assertArrayEquals(expected, device.readBlocks(4, 2));
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseFlushesTheWriteCache()
+    {
+        assertTrue(device.writeBlocks(0, new byte[4096], false));
+        assertEquals(1, medium.unflushedWrites);
+        assertTrue(device.close());
+        assertEquals(0, medium.unflushedWrites);
+    }
+
+    private static class CachingMedium extends MemoryBlockDevice
+    {
+        private int unflushedWrites; // Writes since the last SYNCHRONIZE CACHE
+
+        public CachingMedium()
+        {
+            super(1024, 65536);
+        }
+
+        @Override
+        public boolean isWriteCacheEnabled()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean writeBlocks(long lba, byte[] data, boolean fua)
+        {
+            unflushedWrites++;
+            return super.writeBlocks(lba, data, fua);
+        }
+
+        @Override
+        public boolean synchronizeCache()
+        {
+            unflushedWrites = 0;
+            return true;
+        }
+    }
+}
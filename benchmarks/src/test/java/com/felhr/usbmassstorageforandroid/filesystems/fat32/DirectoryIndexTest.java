@@ -0,0 +1,153 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryIndexTest
+{
+    private static final int INITIAL_MASK = 63; // Slots of a new index - 1
+
+    @Test
+    public void testGetIgnoresCase()
+    {
+        DirectoryIndex index = new DirectoryIndex();
+        FileEntry entry = newEntry("ReadMe.txt");
+        index.put(entry);
+        assertSame(entry, index.get("README.TXT"));
+        assertSame(entry, index.get("readme.txt"));
+        assertNull(index.get("readme.txt2"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testPutTwiceKeepsOneEntry()
+    {
+        DirectoryIndex index = new DirectoryIndex();
+        FileEntry entry = newEntry("a");
+        index.put(entry);
+        index.put(entry);
+        assertEquals(1, index.size());
+        assertTrue(index.remove(entry));
+        assertFalse(index.remove(entry));
+        assertEquals(0, index.size());
+    }
+
+    /*
+        A name preferring the slot before the last one, four names preferring the last slot that wrap around
+        to the first ones and a name preferring slot 1. Removing any of them must shift back the entries
+        that would be lost behind the hole, and only those
+     */
+    @Test
+    public void testRemoveShiftsBackAcrossTheEnd() throws Exception
+    {
+        List<String> names = findNames(INITIAL_MASK - 1, 1);
+        names.addAll(findNames(INITIAL_MASK, 4));
+        names.addAll(findNames(1, 1));
+
+        for(int removed=0;removed<=names.size()-1;removed++)
+        {
+            DirectoryIndex index = new DirectoryIndex();
+            List<FileEntry> entries = new ArrayList<FileEntry>();
+            for(String name : names)
+            {
+                FileEntry entry = newEntry(name);
+                entries.add(entry);
+                index.put(entry);
+            }
+
+            assertTrue(index.remove(entries.get(removed)));
+            assertEquals(names.size() - 1, index.size());
+            for(int i=0;i<=entries.size()-1;i++)
+            {
+                if(i == removed)
+                    assertNull(index.get(names.get(i)));
+                else
+                    assertSame(entries.get(i), index.get(names.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomPutsAndRemoves()
+    {
+        Random random = new Random(42);
+        DirectoryIndex index = new DirectoryIndex();
+        Map<String, FileEntry> expected = new HashMap<String, FileEntry>();
+        for(int i=0;i<=19999;i++)
+        {
+            String name = "F" + random.nextInt(500);
+            FileEntry entry = expected.get(name.toLowerCase(Locale.US));
+            if(entry == null)
+            {
+                entry = newEntry(name);
+                index.put(entry);
+                expected.put(name.toLowerCase(Locale.US), entry);
+            }else
+            {
+                assertTrue(index.remove(entry));
+                expected.remove(name.toLowerCase(Locale.US));
+            }
+            assertEquals(expected.size(), index.size());
+        }
+
+        for(int i=0;i<=499;i++)
+        {
+            String name = "f" + i;
+            FileEntry entry = expected.get(name);
+            if(entry == null)
+                assertNull(index.get(name));
+            else
+                assertSame(entry, index.get(name));
+        }
+    }
+
+    @Test
+    public void testClear()
+    {
+        DirectoryIndex index = new DirectoryIndex();
+        for(int i=0;i<=199;i++)
+            index.put(newEntry("file" + i));
+        index.clear();
+        assertEquals(0, index.size());
+        assertNull(index.get("file0"));
+
+        FileEntry entry = newEntry("file0");
+        index.put(entry);
+        assertSame(entry, index.get("FILE0"));
+    }
+
+    private static FileEntry newEntry(String name)
+    {
+        return FileEntry.getEntry(name, 2, 0, new ShortNameGenerator(), false, false, false, 0);
+    }
+
+    /*
+        count names whose preferred slot in a new index is slot
+     */
+    private static List<String> findNames(int slot, int count) throws Exception
+    {
+        Method hash = DirectoryIndex.class.getDeclaredMethod("hash", String.class);
+        hash.setAccessible(true);
+        List<String> names = new ArrayList<String>();
+        for(int i=0;names.size()<count;i++)
+        {
+            String name = "name" + i;
+            if(((Integer) hash.invoke(null, name) & INITIAL_MASK) == slot)
+                names.add(name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,222 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.benchmarks.MemoryBlockDevice;
+import com.felhr.usbmassstorageforandroid.benchmarks.SyntheticVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectorySlotsTest
+{
+    /*
+        Slots of the root directory of a synthetic volume with 512 bytes clusters, 16 slots per cluster.
+        Names of 12 characters take 2 slots, one LFN entry and the 8.3 entry
+     */
+    private static final int VOLUME_BLOCKS = 8192;
+    private static final int BLOCK_LENGTH = 512;
+    private static final int SLOTS_PER_CLUSTER = 16;
+    private static final int ROOT_CLUSTER = 2;
+
+    private MemoryBlockDevice device;
+    private FATHandler fatHandler;
+
+    @Before
+    public void setUp()
+    {
+        device = new MemoryBlockDevice(VOLUME_BLOCKS, 65536);
+        assertTrue(SyntheticVolume.format(device, 1));
+        remount();
+    }
+
+    @After
+    public void tearDown()
+    {
+        fatHandler.unMount();
+    }
+
+    @Test
+    public void testDeletedSlotsAreReused()
+    {
+        for(int i=0;i<=3;i++)
+            assertTrue(write(getName(i)));
+
+        // A run in the middle of the directory
+        assertTrue(fatHandler.deleteFile(getName(1)));
+        assertEquals((byte) 0xe5, getSlot(2)[0]);
+        assertTrue(write(getName(4)));
+        assertEquals(3 * 32, getEntry(getName(4)).getDirectoryOffset());
+
+        // A run right before the end of the directory, the end marker stays after the new entry
+        assertTrue(fatHandler.deleteFile(getName(3)));
+        assertTrue(write(getName(5)));
+        assertEquals(7 * 32, getEntry(getName(5)).getDirectoryOffset());
+        assertEquals(0x00, getSlot(8)[0]);
+
+        // An entry does not fit in a shorter run, it goes to the end and the run is taken by the next one
+        assertTrue(fatHandler.deleteFile(getName(0)));
+        assertTrue(write("a longer file name.data"));
+        assertEquals(10 * 32, getEntry("a longer file name.data").getDirectoryOffset());
+        assertEquals(0x00, getSlot(11)[0]);
+        assertTrue(write(getName(6)));
+        assertEquals(32, getEntry(getName(6)).getDirectoryOffset());
+
+        remount();
+        assertEquals(5, fatHandler.list().size());
+        assertEquals(32, getEntry(getName(6)).getDirectoryOffset());
+        assertEquals(3 * 32, getEntry(getName(4)).getDirectoryOffset());
+        assertEquals(5 * 32, getEntry(getName(2)).getDirectoryOffset());
+        assertEquals(7 * 32, getEntry(getName(5)).getDirectoryOffset());
+        assertEquals(10 * 32, getEntry("a longer file name.data").getDirectoryOffset());
+        assertArrayEquals(getData(getName(5)), fatHandler.readFile(getName(5)));
+    }
+
+    @Test
+    public void testCompactDirectory()
+    {
+        // 40 entries of 2 slots, the directory grows to 5 clusters
+        for(int i=0;i<=39;i++)
+            assertTrue(write(getName(i)));
+        List<Long> directoryChain = getChain(ROOT_CLUSTER);
+        assertEquals(5, directoryChain.size());
+
+        List<String> kept = new ArrayList<String>();
+        for(int i=0;i<=39;i++)
+        {
+            if(i % 4 == 3)
+                kept.add(getName(i));
+            else
+                assertTrue(fatHandler.deleteFile(getName(i)));
+        }
+        assertTrue(fatHandler.compactDirectory());
+
+        remount();
+        List<FileEntry> entries = fatHandler.list();
+        assertEquals(kept.size(), entries.size());
+        for(int i=0;i<=kept.size()-1;i++)
+        {
+            FileEntry entry = entries.get(i);
+            assertEquals(kept.get(i), entry.getName());
+            assertEquals(2 * i * 32 + 32, entry.getDirectoryOffset());
+            assertArrayEquals(getData(kept.get(i)), fatHandler.readFile(entry));
+        }
+        assertEquals(0x00, getSlot(2 * kept.size())[0]);
+
+        // 20 slots take 2 clusters, the other 3 are free
+        List<Long> compactedChain = getChain(ROOT_CLUSTER);
+        assertEquals(directoryChain.subList(0, 2), compactedChain);
+        for(int i=2;i<=directoryChain.size()-1;i++)
+            assertEquals(0, getFatEntry(directoryChain.get(i)));
+
+        // New entries go after the last one without growing the directory
+        assertTrue(write(getName(40)));
+        assertEquals(2 * kept.size() * 32 + 32, getEntry(getName(40)).getDirectoryOffset());
+        assertEquals(0x00, getSlot(2 * kept.size() + 2)[0]);
+        assertEquals(2, getChain(ROOT_CLUSTER).size());
+    }
+
+    private void remount()
+    {
+        if(fatHandler != null)
+            fatHandler.unMount();
+        fatHandler = new FATHandler(device);
+        assertTrue(fatHandler.mount(0, 0));
+    }
+
+    private boolean write(String name)
+    {
+        return fatHandler.writeNewFile(name, getData(name), false, false, false, 0);
+    }
+
+    private FileEntry getEntry(String name)
+    {
+        for(FileEntry entry : fatHandler.list())
+        {
+            if(entry.getName().equals(name))
+                return entry;
+        }
+        throw new AssertionError(name + " not found");
+    }
+
+    private static String getName(int i)
+    {
+        return String.format("file-%02d.data", i);
+    }
+
+    private static byte[] getData(String name)
+    {
+        byte[] data = new byte[100];
+        for(int i=0;i<=data.length-1;i++)
+            data[i] = (byte) (name.hashCode() + i);
+        return data;
+    }
+
+    /*
+        Raw slot of the root directory as it is on the device
+     */
+    private byte[] getSlot(int slot)
+    {
+        List<Long> chain = getChain(ROOT_CLUSTER);
+        long cluster = chain.get(slot / SLOTS_PER_CLUSTER);
+        int offset = (int) (getClusterLba(cluster) * BLOCK_LENGTH) + (slot % SLOTS_PER_CLUSTER) * 32;
+        byte[] data = new byte[32];
+        System.arraycopy(device.getBlocks(), offset, data, 0, 32);
+        return data;
+    }
+
+    private List<Long> getChain(long firstCluster)
+    {
+        List<Long> chain = new ArrayList<Long>();
+        long cluster = firstCluster;
+        while(cluster >= 2 && cluster < 0x0ffffff8)
+        {
+            chain.add(cluster);
+            cluster = getFatEntry(cluster);
+        }
+        return chain;
+    }
+
+    /*
+        Entry of the first FAT
+     */
+    private long getFatEntry(long cluster)
+    {
+        ByteBuffer bootSector = getBootSector();
+        long fatStart = getPartitionStart() + (bootSector.getShort(14) & 0xffff);
+        return getBlocks().getInt((int) (fatStart * BLOCK_LENGTH + cluster * 4)) & 0x0fffffffL;
+    }
+
+    private long getClusterLba(long cluster)
+    {
+        ByteBuffer bootSector = getBootSector();
+        long dataStart = getPartitionStart() + (bootSector.getShort(14) & 0xffff)
+                + (bootSector.get(16) & 0xff) * (bootSector.getInt(36) & 0xffffffffL);
+        return dataStart + (cluster - 2) * (bootSector.get(13) & 0xff);
+    }
+
+    private ByteBuffer getBootSector()
+    {
+        ByteBuffer blocks = getBlocks();
+        blocks.position((int) (getPartitionStart() * BLOCK_LENGTH));
+        return blocks.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private long getPartitionStart()
+    {
+        return getBlocks().getInt(446 + 8) & 0xffffffffL;
+    }
+
+    private ByteBuffer getBlocks()
+    {
+        return ByteBuffer.wrap(device.getBlocks()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,122 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileEntryTest
+{
+    /*
+        Dates of new entries are written to an 8.3 slot and decoded back from it, as a directory read does.
+        The default time zone has daylight saving time so the local offset changes along the year
+     */
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp()
+    {
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Madrid"));
+    }
+
+    @After
+    public void tearDown()
+    {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    public void testFirstFatDate()
+    {
+        long millis = getLocalMillis(1980, 1, 1, 0, 0, 0);
+        assertEquals(millis, roundTrip(millis).getLastModifiedMillis());
+    }
+
+    @Test
+    public void testLastFatDate()
+    {
+        long millis = getLocalMillis(2107, 12, 31, 23, 59, 58);
+        assertEquals(millis, roundTrip(millis).getLastModifiedMillis());
+    }
+
+    @Test
+    public void testOddSecondsAreTruncated()
+    {
+        FileEntry entry = roundTrip(getLocalMillis(2015, 7, 18, 13, 45, 31));
+        assertEquals(getLocalMillis(2015, 7, 18, 13, 45, 30), entry.getLastModifiedMillis());
+
+        entry = roundTrip(getLocalMillis(2107, 12, 31, 23, 59, 59) + 999);
+        assertEquals(getLocalMillis(2107, 12, 31, 23, 59, 58), entry.getLastModifiedMillis());
+    }
+
+    @Test
+    public void testLeapDays()
+    {
+        long millis = getLocalMillis(2000, 2, 29, 12, 0, 0);
+        assertEquals(millis, roundTrip(millis).getLastModifiedMillis());
+
+        millis = getLocalMillis(2096, 2, 29, 0, 0, 0);
+        assertEquals(millis, roundTrip(millis).getLastModifiedMillis());
+
+        // 2100 is not a leap year
+        millis = getLocalMillis(2100, 2, 28, 23, 0, 0) + 3600 * 1000;
+        assertEquals(getLocalMillis(2100, 3, 1, 0, 0, 0), roundTrip(millis).getLastModifiedMillis());
+    }
+
+    @Test
+    public void testDatesBefore1980AreClamped()
+    {
+        FileEntry entry = roundTrip(getLocalMillis(1979, 12, 31, 10, 20, 30));
+        assertDate(1980, 1, 1, entry.getLastModifiedMillis());
+
+        entry = roundTrip(0);
+        assertDate(1980, 1, 1, entry.getLastModifiedMillis());
+    }
+
+    @Test
+    public void testDatesAfter2107AreClamped()
+    {
+        FileEntry entry = roundTrip(getLocalMillis(2110, 6, 15, 8, 0, 0));
+        assertEquals(getLocalMillis(2107, 6, 15, 8, 0, 0), entry.getLastModifiedMillis());
+    }
+
+    @Test
+    public void testCreationAndLastAccessDates()
+    {
+        long millis = getLocalMillis(2026, 3, 29, 3, 30, 12); // First hour of summer time
+        FileEntry entry = roundTrip(millis);
+        assertEquals(millis, entry.getCreationMillis());
+        assertEquals(millis, entry.getCreationDate().getTime());
+        // Last access has no time
+        assertEquals(getLocalMillis(2026, 3, 29, 0, 0, 0), entry.getLastAccessedMillis());
+    }
+
+    private static FileEntry roundTrip(long lastModified)
+    {
+        FileEntry entry = FileEntry.getEntry("FILE", 2, 0, null, false, false, false, lastModified);
+        byte[] raw = entry.getRawFileEntry();
+        return FileEntry.getEntry(null, raw, raw.length - 32);
+    }
+
+    private static long getLocalMillis(int year, int month, int day, int hour, int minute, int second)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void assertDate(int year, int month, int day, long millis)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        assertEquals(year, calendar.get(Calendar.YEAR));
+        assertEquals(month, calendar.get(Calendar.MONTH) + 1);
+        assertEquals(day, calendar.get(Calendar.DAY_OF_MONTH));
+    }
+}
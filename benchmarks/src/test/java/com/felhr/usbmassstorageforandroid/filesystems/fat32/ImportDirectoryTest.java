@@ -0,0 +1,86 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.benchmarks.MemoryBlockDevice;
+import com.felhr.usbmassstorageforandroid.benchmarks.SyntheticVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImportDirectoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FATHandler fatHandler;
+
+    @Before
+    public void setUp()
+    {
+        MemoryBlockDevice device = new MemoryBlockDevice(8192, 65536);
+        assertTrue(SyntheticVolume.format(device, 1));
+        fatHandler = new FATHandler(device);
+        assertTrue(fatHandler.mount(0, 0));
+    }
+
+    @After
+    public void tearDown()
+    {
+        fatHandler.unMount();
+    }
+
+    /*
+        The .. entry of a directory in the root is 0, the ones of deeper directories point to their parent
+     */
+    @Test
+    public void testDotDotEntries() throws IOException
+    {
+        File tree = folder.newFolder("tree");
+        File sub = new File(tree, "sub");
+        assertTrue(sub.mkdir());
+        byte[] data = new byte[3000];
+        for(int i=0;i<=data.length-1;i++)
+            data[i] = (byte) i;
+        FileOutputStream output = new FileOutputStream(new File(sub, "data.bin"));
+        try
+        {
+            output.write(data);
+        }finally
+        {
+            output.close();
+        }
+
+        assertTrue(fatHandler.writeNewFile(tree));
+        long treeCluster = getEntry("tree").getFirstCluster();
+
+        assertTrue(fatHandler.changeDir("tree"));
+        assertEquals(treeCluster, getEntry(".").getFirstCluster());
+        assertEquals(0, getEntry("..").getFirstCluster());
+        long subCluster = getEntry("sub").getFirstCluster();
+
+        assertTrue(fatHandler.changeDir("sub"));
+        assertEquals(subCluster, getEntry(".").getFirstCluster());
+        assertEquals(treeCluster, getEntry("..").getFirstCluster());
+        assertArrayEquals(data, fatHandler.readFile("data.bin"));
+    }
+
+    private FileEntry getEntry(String name)
+    {
+        for(FileEntry entry : fatHandler.list())
+        {
+            if(entry.getName().equals(name))
+                return entry;
+        }
+        throw new AssertionError(name + " not found");
+    }
+}
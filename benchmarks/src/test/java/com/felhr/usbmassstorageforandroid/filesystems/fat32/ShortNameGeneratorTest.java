@@ -0,0 +1,92 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ShortNameGeneratorTest
+{
+    @Test
+    public void testValidNamesAreKept()
+    {
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        assertShortName("README", "TXT", shortNames.getShortName("README.TXT"));
+        assertShortName("NOTES", "", shortNames.getShortName("notes"));
+        assertShortName("A-B@{1}", "C$", shortNames.getShortName("a-b@{1}.c$"));
+    }
+
+    @Test
+    public void testLossyNamesGetATail()
+    {
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        assertShortName("LONGFI~1", "TXT", shortNames.getShortName("Long file name.txt"));
+        assertShortName("ARCHIV~1", "GZ", shortNames.getShortName("archive.tar.gz"));
+        assertShortName("A_B~1", "TXT", shortNames.getShortName("a+b.txt"));
+        assertShortName("PROFIL~1", "", shortNames.getShortName(".profile"));
+        assertShortName("PHOTO~1", "JPE", shortNames.getShortName("photo.jpeg"));
+        assertShortName("_~1", "TXT", shortNames.getShortName("+.txt"));
+    }
+
+    @Test
+    public void testUsedNamesGetATail()
+    {
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        assertShortName("README", "TXT", shortNames.getShortName("readme.txt"));
+        assertShortName("README~1", "TXT", shortNames.getShortName("ReadMe.txt"));
+        assertShortName("README", "MD", shortNames.getShortName("readme.md"));
+    }
+
+    /*
+        The tail takes the place of the last characters of the basis name when it grows to two digits
+     */
+    @Test
+    public void testNumericTails()
+    {
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        for(int i=1;i<=9;i++)
+            assertShortName("LONGFI~" + i, "TXT", shortNames.getShortName("Long file name " + i + ".txt"));
+        assertShortName("LONGF~10", "TXT", shortNames.getShortName("Long file name 10.txt"));
+        assertShortName("LONGF~11", "TXT", shortNames.getShortName("Long file name 11.txt"));
+
+        // Basis names sharing their first 6 characters share the tails
+        assertShortName("LONGF~12", "TXT", shortNames.getShortName("Longfish.txt.txt"));
+        // A different extension starts again
+        assertShortName("LONGFI~1", "DOC", shortNames.getShortName("Long file name.doc"));
+    }
+
+    @Test
+    public void testRemovedTailIsReused()
+    {
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        for(int i=1;i<=5;i++)
+            entries.add(FileEntry.getEntry("My document " + i + ".doc", 2, 0, shortNames, false, false, false, 0));
+        assertEquals("MYDOCU~3", entries.get(2).getShortName());
+
+        shortNames.remove(entries.get(2));
+        assertShortName("MYDOCU~3", "DOC", shortNames.getShortName("My document 6.doc"));
+        assertShortName("MYDOCU~6", "DOC", shortNames.getShortName("My document 7.doc"));
+    }
+
+    @Test
+    public void testNamesOfTheDirectoryAreNotReused()
+    {
+        ShortNameGenerator previous = new ShortNameGenerator();
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        entries.add(FileEntry.getEntry("README.TXT", 2, 0, previous, false, false, false, 0));
+        entries.add(FileEntry.getEntry("Long file name.txt", 3, 0, previous, false, false, false, 0));
+
+        ShortNameGenerator shortNames = new ShortNameGenerator(entries);
+        assertShortName("README~1", "TXT", shortNames.getShortName("readme.txt"));
+        assertShortName("LONGFI~2", "TXT", shortNames.getShortName("Long file name 2.txt"));
+    }
+
+    private static void assertShortName(String name, String extension, String[] shortName)
+    {
+        assertArrayEquals(new String[]{name, extension}, shortName);
+    }
+}
@@ -0,0 +1,165 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.benchmarks.MemoryBlockDevice;
+import com.felhr.usbmassstorageforandroid.benchmarks.SyntheticVolume;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WalkTest
+{
+    private static final int BLOCK_LENGTH = 512;
+
+    private FailingBlockDevice device;
+    private FATHandler fatHandler;
+
+    @Before
+    public void setUp()
+    {
+        device = new FailingBlockDevice();
+        assertTrue(SyntheticVolume.format(device, 1));
+        fatHandler = new FATHandler(device);
+        assertTrue(fatHandler.mount(0, 0));
+
+        for(String directory : new String[]{"A", "B", "C"})
+        {
+            assertTrue(fatHandler.writeNewFile(directory, null, false, false, true, 0));
+            assertTrue(fatHandler.changeDir(directory));
+            assertTrue(fatHandler.writeNewFile(directory.toLowerCase() + ".txt", new byte[100], false, false, false, 0));
+            assertTrue(fatHandler.changeDirBack());
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        device.failLba = -1;
+        fatHandler.unMount();
+    }
+
+    @Test(timeout = 10000)
+    public void testCompleteWalk()
+    {
+        RecordingVisitor visitor = new RecordingVisitor(true);
+        assertTrue(fatHandler.walk("/", visitor));
+        assertEquals(Arrays.asList("/A", "/B", "/C", "/A/a.txt", "/B/b.txt", "/C/c.txt"), visitor.visited);
+        assertTrue(visitor.errors.isEmpty());
+    }
+
+    /*
+        A directory whose read throws is reported to the visitor as unreadable, the walk goes on with the others
+     */
+    @Test(timeout = 10000)
+    public void testUnreadableDirectoryIsReported()
+    {
+        failOn("B");
+
+        RecordingVisitor visitor = new RecordingVisitor(true);
+        assertFalse(fatHandler.walk("/", visitor));
+        assertEquals(Arrays.asList("/A", "/B", "/C", "/A/a.txt", "/C/c.txt"), visitor.visited);
+        assertEquals(Arrays.asList("/B/"), visitor.errors);
+
+        visitor = new RecordingVisitor(false);
+        assertFalse(fatHandler.walk("/", visitor));
+        assertEquals(Arrays.asList("/B/"), visitor.errors);
+    }
+
+    /*
+        Remount so the directory is read from the device again and make every read of its cluster throw
+     */
+    private void failOn(String directory)
+    {
+        long firstCluster = 0;
+        for(FileEntry entry : fatHandler.list())
+        {
+            if(entry.getName().equals(directory))
+                firstCluster = entry.getFirstCluster();
+        }
+        assertTrue(firstCluster >= 2);
+        assertTrue(fatHandler.unMount());
+        fatHandler = new FATHandler(device);
+        assertTrue(fatHandler.mount(0, 0));
+        device.failLba = getClusterLba(firstCluster);
+    }
+
+    private long getClusterLba(long cluster)
+    {
+        ByteBuffer blocks = ByteBuffer.wrap(device.getBlocks()).order(ByteOrder.LITTLE_ENDIAN);
+        long partitionStart = blocks.getInt(446 + 8) & 0xffffffffL;
+        blocks.position((int) (partitionStart * BLOCK_LENGTH));
+        ByteBuffer bootSector = blocks.slice().order(ByteOrder.LITTLE_ENDIAN);
+        long dataStart = partitionStart + (bootSector.getShort(14) & 0xffff)
+                + (bootSector.get(16) & 0xff) * (bootSector.getInt(36) & 0xffffffffL);
+        return dataStart + (cluster - 2) * (bootSector.get(13) & 0xff);
+    }
+
+    private static class RecordingVisitor implements FATHandler.WalkVisitor
+    {
+        private final boolean continueOnError;
+        private final List<String> visited = new ArrayList<String>();
+        private final List<String> errors = new ArrayList<String>();
+
+        public RecordingVisitor(boolean continueOnError)
+        {
+            this.continueOnError = continueOnError;
+        }
+
+        @Override
+        public boolean visit(String path, FileEntry entry)
+        {
+            visited.add(path);
+            return true;
+        }
+
+        @Override
+        public boolean onError(String path)
+        {
+            errors.add(path);
+            return continueOnError;
+        }
+    }
+
+    /*
+        Reads of failLba throw, as a transport that fails unexpectedly would
+     */
+    private static class FailingBlockDevice extends MemoryBlockDevice
+    {
+        private volatile long failLba = -1;
+
+        public FailingBlockDevice()
+        {
+            super(8192, 65536);
+        }
+
+        @Override
+        public byte[] readBlocks(long lba, int blocks)
+        {
+            check(lba, blocks);
+            return super.readBlocks(lba, blocks);
+        }
+
+        @Override
+        public ByteBuffer readBuffer(long lba, int blocks)
+        {
+            check(lba, blocks);
+            return super.readBuffer(lba, blocks);
+        }
+
+        private void check(long lba, int blocks)
+        {
+            if(failLba >= lba && failLba < lba + blocks)
+                throw new IllegalStateException("Read of block " + failLba + " failed");
+        }
+    }
+}
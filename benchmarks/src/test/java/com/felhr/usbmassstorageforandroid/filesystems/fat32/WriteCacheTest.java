@@ -0,0 +1,87 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.benchmarks.MemoryBlockDevice;
+import com.felhr.usbmassstorageforandroid.benchmarks.SyntheticVolume;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteCacheTest
+{
+    /*
+        A device with a volatile write cache and FUA. Metadata is written with FUA, file data is not,
+        so it must be flushed with SYNCHRONIZE CACHE before an operation returns
+     */
+    private CachingBlockDevice device;
+    private FATHandler fatHandler;
+
+    @Before
+    public void setUp()
+    {
+        device = new CachingBlockDevice();
+        assertTrue(SyntheticVolume.format(device, 8));
+        fatHandler = new FATHandler(device);
+        assertTrue(fatHandler.mount(0, 0));
+    }
+
+    @Test
+    public void testFileDataIsFlushed()
+    {
+        assertTrue(fatHandler.writeNewFile("data.bin", new byte[10000], false, false, false, 0));
+        assertTrue(device.synchronizations > 0);
+        assertEquals(0, device.unflushedWrites);
+
+        assertTrue(fatHandler.deleteFile("data.bin"));
+        assertEquals(0, device.unflushedWrites);
+    }
+
+    @Test
+    public void testUnmountFlushes()
+    {
+        assertTrue(fatHandler.writeNewFile("data.bin", new byte[10000], false, false, false, 0));
+        assertTrue(fatHandler.unMount());
+        assertEquals(0, device.unflushedWrites);
+    }
+
+    private static class CachingBlockDevice extends MemoryBlockDevice
+    {
+        private int unflushedWrites; // Writes without FUA since the last SYNCHRONIZE CACHE
+        private int synchronizations;
+
+        public CachingBlockDevice()
+        {
+            super(32768, 65536);
+        }
+
+        @Override
+        public boolean isWriteCacheEnabled()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isFuaSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean writeBlocks(long lba, byte[] data, boolean fua)
+        {
+            if(!fua)
+                unflushedWrites++;
+            return super.writeBlocks(lba, data, fua);
+        }
+
+        @Override
+        public boolean synchronizeCache()
+        {
+            unflushedWrites = 0;
+            synchronizations++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import org.junit.Test;
+
+import static com.felhr.usbmassstorageforandroid.scsi.SCSIVPDResponseTest.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SCSIModeSense10ResponseTest
+{
+    /*
+        Header, one block descriptor, an informational exceptions page and the caching page
+     */
+    @Test
+    public void testCachingPageAfterBlockDescriptorAndOtherPage()
+    {
+        byte[] data = new byte[8 + 8 + 12 + 20];
+        data[1] = (byte) (data.length - 2);
+        data[3] = (byte) 0x90; // WP and DPOFUA
+        data[7] = 8;
+        data[16] = 0x1c;
+        data[17] = 0x0a;
+        data[28] = 0x08;
+        data[29] = 0x12;
+        data[30] = 0x04; // WCE
+
+        SCSIModeSense10Response response = SCSIModeSense10Response.getResponse(data);
+        assertEquals(data.length - 2, response.getModeDataLength());
+        assertTrue(response.isWriteProtected());
+        assertTrue(response.isDpoFua());
+        assertFalse(response.isLongLba());
+        assertEquals(8, response.getBlockDescriptorLength());
+        assertTrue(response.hasCachingPage());
+        assertTrue(response.isWriteCacheEnabled());
+        assertFalse(response.isReadCacheDisabled());
+    }
+
+    @Test
+    public void testCachingPageWithoutBlockDescriptors()
+    {
+        byte[] data = bytes(0x00, 0x1a, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x88, 0x12, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00);
+        SCSIModeSense10Response response = SCSIModeSense10Response.getResponse(data);
+        assertFalse(response.isWriteProtected());
+        assertFalse(response.isDpoFua());
+        assertTrue(response.hasCachingPage()); // PS bit set
+        assertFalse(response.isWriteCacheEnabled());
+        assertTrue(response.isReadCacheDisabled());
+    }
+
+    /*
+        Page 0x08 in sub-page format is not the caching page and its 16 bit length must be skipped
+     */
+    @Test
+    public void testSubPageFormatIsSkipped()
+    {
+        byte[] data = new byte[8 + 4 + 0x0100 + 3];
+        data[0] = (byte) ((data.length - 2) >> 8);
+        data[1] = (byte) (data.length - 2);
+        data[8] = 0x48;
+        data[9] = 0x01;
+        data[10] = 0x01;
+        data[11] = 0x00;
+        data[12] = 0x04;
+        data[8 + 4 + 0x0100] = 0x08;
+        data[8 + 4 + 0x0100 + 1] = 0x01;
+        data[8 + 4 + 0x0100 + 2] = 0x05;
+
+        SCSIModeSense10Response response = SCSIModeSense10Response.getResponse(data);
+        assertTrue(response.hasCachingPage());
+        assertTrue(response.isWriteCacheEnabled());
+        assertTrue(response.isReadCacheDisabled());
+    }
+
+    /*
+        Devices that return less data than the mode data length, or more
+     */
+    @Test
+    public void testPagesOutsideTheResponseAreIgnored()
+    {
+        byte[] data = bytes(0x00, 0x40, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x08);
+        assertFalse(SCSIModeSense10Response.getResponse(data).hasCachingPage());
+
+        data = bytes(0x00, 0x06, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x08, 0x12, 0x04);
+        assertFalse(SCSIModeSense10Response.getResponse(data).hasCachingPage());
+
+        // Header only
+        data = bytes(0x00, 0x06, 0x00, 0x80, 0x00, 0x00, 0x00, 0x00);
+        SCSIModeSense10Response response = SCSIModeSense10Response.getResponse(data);
+        assertTrue(response.isWriteProtected());
+        assertFalse(response.hasCachingPage());
+    }
+}
@@ -0,0 +1,105 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import org.junit.Test;
+
+import static com.felhr.usbmassstorageforandroid.scsi.SCSIVPDResponseTest.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SCSIRequestSenseResponseTest
+{
+    @Test
+    public void testFixedFormat()
+    {
+        byte[] data = bytes(0xf0, 0x00, 0xe3, 0x00, 0x01, 0x02, 0x03, 0x0a,
+                0x00, 0x00, 0x00, 0x07, 0x11, 0x01, 0x05, 0x80, 0x12, 0x34);
+        SCSIRequestSenseResponse response = SCSIRequestSenseResponse.getResponse(data);
+        assertTrue(response.isValid());
+        assertEquals(0x70, response.getResponseCode());
+        assertTrue(response.isFileMark());
+        assertTrue(response.isEom());
+        assertTrue(response.isIli());
+        assertEquals(SCSIRequestSenseResponse.MEDIUM_ERROR, response.getSenseKey());
+        assertEquals(0x00010203, response.getInformation());
+        assertEquals(10, response.getAdditionalSenseLength());
+        assertEquals(7, response.getCommandSpecificInformation());
+        assertEquals(0x11, response.getAdditionalSenseCode());
+        assertEquals(0x01, response.getAdditionalSenseCodeCodeQualifier());
+        assertEquals(5, response.getFieldReplaceableUnitCode());
+        assertTrue(response.isSksv());
+        assertEquals(0x1234, response.getSenseKeySpecific());
+        assertEquals(0, response.getAdditionalSenseBytes().length);
+    }
+
+    @Test
+    public void testDescriptorFormat()
+    {
+        byte[] data = bytes(0x72, 0x06, 0x28, 0x00, 0x00, 0x00, 0x00, 0x04, 0x00, 0x02, 0xaa, 0xbb);
+        SCSIRequestSenseResponse response = SCSIRequestSenseResponse.getResponse(data);
+        assertFalse(response.isValid());
+        assertEquals(0x72, response.getResponseCode());
+        assertEquals(SCSIRequestSenseResponse.UNIT_ATTENTION, response.getSenseKey());
+        assertEquals(0x28, response.getAdditionalSenseCode());
+        assertEquals(0x00, response.getAdditionalSenseCodeCodeQualifier());
+        assertEquals(4, response.getAdditionalSenseLength());
+        assertArrayEquals(bytes(0x00, 0x02, 0xaa, 0xbb), response.getAdditionalSenseBytes());
+    }
+
+    /*
+        Devices may return less than the 18 bytes of fixed format sense data
+     */
+    @Test
+    public void testShortFixedFormat()
+    {
+        SCSIRequestSenseResponse response = SCSIRequestSenseResponse.getResponse(bytes(0x70, 0x00, 0x05, 0x00));
+        assertEquals(SCSIRequestSenseResponse.ILLEGAL_REQUEST, response.getSenseKey());
+        assertEquals(0, response.getAdditionalSenseCode());
+        assertEquals(0, response.getInformation());
+        assertFalse(response.isSksv());
+        assertEquals(0, response.getAdditionalSenseBytes().length);
+
+        response = SCSIRequestSenseResponse.getResponse(new byte[0]);
+        assertEquals(SCSIRequestSenseResponse.NO_SENSE, response.getSenseKey());
+    }
+
+    @Test
+    public void testTransientConditions()
+    {
+        assertTrue(getFixedSense(SCSIRequestSenseResponse.NO_SENSE, 0x00, 0x00).isTransient());
+        assertTrue(getFixedSense(SCSIRequestSenseResponse.RECOVERED_ERROR, 0x17, 0x01).isTransient());
+        assertTrue(getFixedSense(SCSIRequestSenseResponse.UNIT_ATTENTION, 0x28, 0x00).isTransient());
+        assertTrue(getFixedSense(SCSIRequestSenseResponse.ABORTED_COMMAND, 0x00, 0x00).isTransient());
+        assertTrue(getFixedSense(SCSIRequestSenseResponse.NOT_READY,
+                SCSIRequestSenseResponse.ASC_LOGICAL_UNIT_NOT_READY, SCSIRequestSenseResponse.ASCQ_BECOMING_READY)
+                .isTransient());
+    }
+
+    /*
+        Errors that sending the command again would not fix, they go to the caller at once
+     */
+    @Test
+    public void testPermanentConditions()
+    {
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.NOT_READY,
+                SCSIRequestSenseResponse.ASC_MEDIUM_NOT_PRESENT, 0x00).isTransient());
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.NOT_READY, 0x04, 0x02).isTransient()); // Initializing command required
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.MEDIUM_ERROR, 0x11, 0x00).isTransient()); // Unrecovered read error
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.MEDIUM_ERROR, 0x0c, 0x00).isTransient()); // Write error
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.HARDWARE_ERROR, 0x44, 0x00).isTransient());
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.ILLEGAL_REQUEST, 0x20, 0x00).isTransient());
+        assertFalse(getFixedSense(SCSIRequestSenseResponse.DATA_PROTECT, 0x27, 0x00).isTransient());
+    }
+
+    private static SCSIRequestSenseResponse getFixedSense(int senseKey, int asc, int ascq)
+    {
+        byte[] data = new byte[18];
+        data[0] = 0x70;
+        data[2] = (byte) senseKey;
+        data[7] = 10;
+        data[12] = (byte) asc;
+        data[13] = (byte) ascq;
+        return SCSIRequestSenseResponse.getResponse(data);
+    }
+}
@@ -0,0 +1,141 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SCSIVPDResponseTest
+{
+    @Test
+    public void testSupportedPages()
+    {
+        SCSIVPDSupportedPagesResponse response = SCSIVPDSupportedPagesResponse.getResponse(
+                bytes(0x00, 0x00, 0x00, 0x04, 0x00, 0x80, 0xb0, 0xb2));
+        assertEquals(0, response.getPeripheralQualifier());
+        assertEquals(0, response.getPeripheralDeviceType());
+        assertEquals(4, response.getPageLength());
+        assertArrayEquals(new int[]{0x00, 0x80, 0xb0, 0xb2}, response.getSupportedPages());
+        assertTrue(response.isPageSupported(0xb0));
+        assertFalse(response.isPageSupported(0xb1));
+    }
+
+    @Test
+    public void testSupportedPagesShorterThanPageLength()
+    {
+        SCSIVPDSupportedPagesResponse response = SCSIVPDSupportedPagesResponse.getResponse(
+                bytes(0x7f, 0x00, 0x00, 0x06, 0x00, 0x80));
+        assertEquals(3, response.getPeripheralQualifier());
+        assertEquals(0x1f, response.getPeripheralDeviceType());
+        assertArrayEquals(new int[]{0x00, 0x80}, response.getSupportedPages());
+        assertFalse(response.isPageSupported(0xb0));
+    }
+
+    @Test
+    public void testUnitSerialNumber()
+    {
+        byte[] data = new byte[14];
+        data[1] = (byte) 0x80;
+        data[3] = 10;
+        System.arraycopy("  AB123456".getBytes(), 0, data, 4, 10);
+        assertEquals("AB123456", SCSIVPDUnitSerialNumberResponse.getResponse(data).getProductSerialNumber());
+
+        // Page length longer than the data returned
+        data[3] = 32;
+        SCSIVPDUnitSerialNumberResponse response = SCSIVPDUnitSerialNumberResponse.getResponse(data);
+        assertEquals(32, response.getPageLength());
+        assertEquals("AB123456", response.getProductSerialNumber());
+    }
+
+    @Test
+    public void testBlockLimits()
+    {
+        byte[] data = new byte[64];
+        data[1] = (byte) 0xb0;
+        data[3] = 0x3c;
+        data[4] = 0x01; // WSNZ
+        data[5] = 0x10;
+        putInt(data, 6, 0x0008, 2);
+        putInt(data, 8, 0x00000100, 4);
+        putInt(data, 12, 0x00000080, 4);
+        putInt(data, 20, 0xffffffff, 4);
+        putInt(data, 24, 0x00000001, 4);
+        putInt(data, 28, 0x00000008, 4);
+        putInt(data, 32, 0x80000004, 4); // UGAVALID and alignment
+
+        SCSIVPDBlockLimitsResponse response = SCSIVPDBlockLimitsResponse.getResponse(data);
+        assertEquals(0x3c, response.getPageLength());
+        assertTrue(response.isWsnz());
+        assertEquals(0x10, response.getMaximumCompareAndWriteLength());
+        assertEquals(8, response.getOptimalTransferLengthGranularity());
+        assertEquals(256, response.getMaximumTransferLength());
+        assertEquals(128, response.getOptimalTransferLength());
+        assertEquals(0, response.getMaximumPrefetchLength());
+        assertEquals(0xffffffffL, response.getMaximumUnmapLbaCount());
+        assertEquals(1, response.getMaximumUnmapBlockDescriptorCount());
+        assertEquals(8, response.getOptimalUnmapGranularity());
+        assertTrue(response.isUgavalid());
+        assertEquals(4, response.getUnmapGranularityAlignment());
+    }
+
+    /*
+        Old devices stop after the optimal transfer length, the rest is not reported
+     */
+    @Test
+    public void testTruncatedBlockLimits()
+    {
+        byte[] data = new byte[16];
+        data[1] = (byte) 0xb0;
+        data[3] = 0x0c;
+        putInt(data, 8, 0xffffffff, 4);
+        putInt(data, 12, 0x00000040, 4);
+
+        SCSIVPDBlockLimitsResponse response = SCSIVPDBlockLimitsResponse.getResponse(data);
+        assertEquals(0xffffffffL, response.getMaximumTransferLength());
+        assertEquals(64, response.getOptimalTransferLength());
+        assertEquals(0, response.getMaximumPrefetchLength());
+        assertEquals(0, response.getMaximumUnmapLbaCount());
+        assertEquals(0, response.getOptimalUnmapGranularity());
+        assertFalse(response.isUgavalid());
+        assertEquals(0, response.getUnmapGranularityAlignment());
+    }
+
+    @Test
+    public void testLogicalBlockProvisioning()
+    {
+        SCSIVPDLogicalBlockProvisioningResponse response = SCSIVPDLogicalBlockProvisioningResponse.getResponse(
+                bytes(0x00, 0xb2, 0x00, 0x04, 0x03, 0xe4, 0x02, 0x00));
+        assertEquals(4, response.getPageLength());
+        assertEquals(3, response.getThresholdExponent());
+        assertTrue(response.isLbpu());
+        assertTrue(response.isLbpws());
+        assertTrue(response.isLbpws10());
+        assertTrue(response.isLbprz());
+        assertFalse(response.isAncSup());
+        assertFalse(response.isDp());
+        assertEquals(SCSIVPDLogicalBlockProvisioningResponse.PROVISIONING_TYPE_THIN, response.getProvisioningType());
+
+        response = SCSIVPDLogicalBlockProvisioningResponse.getResponse(bytes(0x00, 0xb2, 0x00, 0x04));
+        assertFalse(response.isLbpu());
+        assertEquals(SCSIVPDLogicalBlockProvisioningResponse.PROVISIONING_TYPE_FULL, response.getProvisioningType());
+    }
+
+    static byte[] bytes(int... values)
+    {
+        byte[] data = new byte[values.length];
+        for(int i=0;i<=values.length-1;i++)
+            data[i] = (byte) values[i];
+        return data;
+    }
+
+    /*
+        Big-endian, as SCSI fields are
+     */
+    static void putInt(byte[] data, int offset, int value, int length)
+    {
+        for(int i=0;i<=length-1;i++)
+            data[offset + i] = (byte) (value >> (8 * (length - 1 - i)));
+    }
+}
@@ -0,0 +1,74 @@
+package com.felhr.usbmassstorageforandroid.blockdevice;
+
+import java.nio.ByteBuffer;
+
+public interface BlockDevice
+{
+    /*
+        Block storage the file system is mounted on: a USB device through the SCSI stack or a disk image.
+        Reads and writes address logical blocks of getBlockSize() bytes
+     */
+
+    /*
+        Open the device and read its limits. The rest of the methods can be used only after it
+     */
+    boolean open();
+
+    /*
+        Release the device, writes still cached by the device are flushed
+     */
+    boolean close();
+
+    int getBlockSize();
+
+    /*
+        Capacity in blocks, 0 if the device did not report it
+     */
+    long getBlockCount();
+
+    /*
+        Longest transfer in bytes, a multiple of the block size. It may change while the device is open
+     */
+    int getMaxTransferLength();
+
+    /*
+        Optimal unmap granularity and its alignment in blocks, 0 if not reported
+     */
+    long getUnmapGranularity();
+
+    long getUnmapGranularityAlignment();
+
+    /*
+        Write cache capabilities, see FATHandler.probeWriteCache()
+     */
+    boolean hasCachingInfo();
+
+    boolean isWriteCacheEnabled();
+
+    boolean isReadCacheDisabled();
+
+    boolean isFuaSupported();
+
+    /*
+        Returns blocks * getBlockSize() bytes or null if they could not be read
+     */
+    byte[] readBlocks(long lba, int blocks);
+
+    /*
+        Same blocks as readBlocks() in a read-only buffer. Devices that are mapped in memory return
+        a view of the device without copying it, the view is valid until those blocks are written.
+        null if they could not be read
+     */
+    ByteBuffer readBuffer(long lba, int blocks);
+
+    /*
+        data is written from lba on, the last block is padded if data is not a multiple of the block size.
+        fua: data must reach the medium before returning
+     */
+    boolean writeBlocks(long lba, byte[] data, boolean fua);
+
+    /*
+        Flush the write cache of the device. false if it failed or it is not supported
+     */
+    boolean synchronizeCache();
+}
@@ -0,0 +1,214 @@
+package com.felhr.usbmassstorageforandroid.blockdevice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class FileBlockDevice implements BlockDevice
+{
+    /*
+        Block device over a disk image, so the file system can be mounted without a USB device.
+        The image is seen as a device with a volatile write cache (the page cache of the OS)
+        without FUA: FATHandler buffers FAT writes and calls synchronizeCache() after every operation,
+        which forces the image to the disk.
+     */
+    public static final int DEFAULT_MAX_TRANSFER_LENGTH = 1048576; // bytes
+    private static final int BLOCK_LENGTH = 512;
+
+    private final File image;
+    private final boolean readOnly;
+    private final int maxTransferLength;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long blockCount;
+
+    public FileBlockDevice(File image)
+    {
+        this(image, false, DEFAULT_MAX_TRANSFER_LENGTH);
+    }
+
+    /*
+        maxTransferLength: longest read or write in bytes, it is rounded down to a multiple of the block size
+     */
+    public FileBlockDevice(File image, boolean readOnly, int maxTransferLength)
+    {
+        this.image = image;
+        this.readOnly = readOnly;
+        this.maxTransferLength = Math.max(BLOCK_LENGTH, maxTransferLength - maxTransferLength % BLOCK_LENGTH);
+    }
+
+    @Override
+    public synchronized boolean open()
+    {
+        if(channel != null)
+            return true;
+        try
+        {
+            file = new RandomAccessFile(image, readOnly ? "r" : "rw");
+            channel = file.getChannel();
+            blockCount = channel.size() / BLOCK_LENGTH;
+            return true;
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            file = null;
+            channel = null;
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean close()
+    {
+        if(channel == null)
+            return true;
+        boolean result = synchronizeCache();
+        try
+        {
+            file.close();
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            result = false;
+        }
+        file = null;
+        channel = null;
+        return result;
+    }
+
+    @Override
+    public int getBlockSize()
+    {
+        return BLOCK_LENGTH;
+    }
+
+    @Override
+    public synchronized long getBlockCount()
+    {
+        return blockCount;
+    }
+
+    @Override
+    public int getMaxTransferLength()
+    {
+        return maxTransferLength;
+    }
+
+    @Override
+    public long getUnmapGranularity()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getUnmapGranularityAlignment()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean hasCachingInfo()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isWriteCacheEnabled()
+    {
+        return !readOnly;
+    }
+
+    @Override
+    public boolean isReadCacheDisabled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isFuaSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized byte[] readBlocks(long lba, int blocks)
+    {
+        if(channel == null || lba < 0 || lba + blocks > blockCount)
+            return null;
+        byte[] data = new byte[blocks * BLOCK_LENGTH];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = lba * BLOCK_LENGTH;
+        try
+        {
+            while(buffer.hasRemaining())
+            {
+                int read = channel.read(buffer, position + buffer.position());
+                if(read < 0) // Image shrunk
+                    return null;
+            }
+            return data;
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public ByteBuffer readBuffer(long lba, int blocks)
+    {
+        byte[] data = readBlocks(lba, blocks);
+        if(data == null)
+            return null;
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized boolean writeBlocks(long lba, byte[] data, boolean fua)
+    {
+        int blocks = (data.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+        if(channel == null || readOnly || lba < 0 || lba + blocks > blockCount)
+            return false;
+
+        byte[] padded = data;
+        if(data.length % BLOCK_LENGTH != 0)
+        {
+            padded = new byte[blocks * BLOCK_LENGTH];
+            System.arraycopy(data, 0, padded, 0, data.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        long position = lba * BLOCK_LENGTH;
+        try
+        {
+            while(buffer.hasRemaining())
+                channel.write(buffer, position + buffer.position());
+            if(fua)
+                channel.force(false);
+            return true;
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean synchronizeCache()
+    {
+        if(channel == null)
+            return false;
+        if(readOnly)
+            return true;
+        try
+        {
+            channel.force(false);
+            return true;
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
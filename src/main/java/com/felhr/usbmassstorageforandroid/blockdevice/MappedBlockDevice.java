@@ -0,0 +1,275 @@
+package com.felhr.usbmassstorageforandroid.blockdevice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedBlockDevice implements BlockDevice
+{
+    /*
+        Block device over a disk image mapped in memory, for processing big images offline.
+        The image is mapped in windows of windowLength bytes, mapped the first time they are used.
+        A window starts every windowLength - maxTransferLength bytes, so consecutive windows overlap
+        by maxTransferLength bytes and any transfer up to that length lies inside one window:
+        readBuffer() returns a view of that window instead of a copy.
+        Windows stay mapped until the device is closed and the garbage collector releases them,
+        keep windowLength * windows under the address space of the process (mind 32 bit devices).
+     */
+    public static final int DEFAULT_WINDOW_LENGTH = 268435456; // bytes
+    public static final int DEFAULT_MAX_TRANSFER_LENGTH = 4194304; // bytes
+    private static final int BLOCK_LENGTH = 512;
+
+    private final File image;
+    private final boolean readOnly;
+    private final int windowLength;
+    private final int maxTransferLength;
+    private final long windowStride;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long imageLength;
+    private MappedByteBuffer[] windows;
+    private boolean[] dirtyWindows;
+
+    public MappedBlockDevice(File image)
+    {
+        this(image, false, DEFAULT_WINDOW_LENGTH, DEFAULT_MAX_TRANSFER_LENGTH);
+    }
+
+    /*
+        windowLength and maxTransferLength are rounded down to a multiple of the block size,
+        windowLength must be at least twice maxTransferLength
+     */
+    public MappedBlockDevice(File image, boolean readOnly, int windowLength, int maxTransferLength)
+    {
+        this.image = image;
+        this.readOnly = readOnly;
+        this.maxTransferLength = Math.max(BLOCK_LENGTH, maxTransferLength - maxTransferLength % BLOCK_LENGTH);
+        this.windowLength = Math.max(2 * this.maxTransferLength, windowLength - windowLength % BLOCK_LENGTH);
+        this.windowStride = this.windowLength - this.maxTransferLength;
+    }
+
+    @Override
+    public synchronized boolean open()
+    {
+        if(channel != null)
+            return true;
+        try
+        {
+            file = new RandomAccessFile(image, readOnly ? "r" : "rw");
+            channel = file.getChannel();
+            imageLength = channel.size() - channel.size() % BLOCK_LENGTH;
+            int windowCount = (int) Math.max(1, (imageLength + windowStride - 1) / windowStride);
+            windows = new MappedByteBuffer[windowCount];
+            dirtyWindows = new boolean[windowCount];
+            return true;
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            file = null;
+            channel = null;
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean close()
+    {
+        if(channel == null)
+            return true;
+        boolean result = synchronizeCache();
+        try
+        {
+            file.close();
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            result = false;
+        }
+        file = null;
+        channel = null;
+        windows = null;
+        dirtyWindows = null;
+        return result;
+    }
+
+    @Override
+    public int getBlockSize()
+    {
+        return BLOCK_LENGTH;
+    }
+
+    @Override
+    public synchronized long getBlockCount()
+    {
+        return imageLength / BLOCK_LENGTH;
+    }
+
+    @Override
+    public int getMaxTransferLength()
+    {
+        return maxTransferLength;
+    }
+
+    @Override
+    public long getUnmapGranularity()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getUnmapGranularityAlignment()
+    {
+        return 0;
+    }
+
+    /*
+        Same caching as FileBlockDevice: dirty pages are forced by synchronizeCache()
+     */
+    @Override
+    public boolean hasCachingInfo()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isWriteCacheEnabled()
+    {
+        return !readOnly;
+    }
+
+    @Override
+    public boolean isReadCacheDisabled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isFuaSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized byte[] readBlocks(long lba, int blocks)
+    {
+        if(!isInImage(lba, blocks))
+            return null;
+        byte[] data = new byte[blocks * BLOCK_LENGTH];
+        int offset = 0;
+        while(offset < data.length)
+        {
+            int length = Math.min(maxTransferLength, data.length - offset);
+            ByteBuffer view = getView(lba * BLOCK_LENGTH + offset, length);
+            if(view == null)
+                return null;
+            view.get(data, offset, length);
+            offset += length;
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized ByteBuffer readBuffer(long lba, int blocks)
+    {
+        if(!isInImage(lba, blocks))
+            return null;
+        int length = blocks * BLOCK_LENGTH;
+        if(length > maxTransferLength) // It may not fit in a window
+        {
+            byte[] data = readBlocks(lba, blocks);
+            if(data == null)
+                return null;
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+        ByteBuffer view = getView(lba * BLOCK_LENGTH, length);
+        if(view == null)
+            return null;
+        return view.asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized boolean writeBlocks(long lba, byte[] data, boolean fua)
+    {
+        int blocks = (data.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+        if(readOnly || !isInImage(lba, blocks))
+            return false;
+        int offset = 0;
+        while(offset < blocks * BLOCK_LENGTH)
+        {
+            int length = Math.min(maxTransferLength, blocks * BLOCK_LENGTH - offset);
+            long position = lba * BLOCK_LENGTH + offset;
+            ByteBuffer view = getView(position, length);
+            if(view == null)
+                return false;
+            int dataLength = Math.max(0, Math.min(length, data.length - offset));
+            view.put(data, offset, dataLength);
+            while(view.hasRemaining()) // Padding of the last block
+                view.put((byte) 0x00);
+            int window = getWindowIndex(position);
+            if(fua)
+                windows[window].force();
+            else
+                dirtyWindows[window] = true;
+            offset += length;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean synchronizeCache()
+    {
+        if(channel == null)
+            return false;
+        for(int i=0;i<=windows.length-1;i++)
+        {
+            if(dirtyWindows[i])
+            {
+                windows[i].force();
+                dirtyWindows[i] = false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInImage(long lba, int blocks)
+    {
+        return channel != null && lba >= 0 && blocks >= 0 && (lba + blocks) * BLOCK_LENGTH <= imageLength;
+    }
+
+    private int getWindowIndex(long position)
+    {
+        return (int) Math.min(position / windowStride, windows.length - 1);
+    }
+
+    /*
+        View of [position, position + length) inside a window, length must not exceed maxTransferLength
+     */
+    private ByteBuffer getView(long position, int length)
+    {
+        int index = getWindowIndex(position);
+        MappedByteBuffer window = windows[index];
+        long windowStart = index * windowStride;
+        if(window == null)
+        {
+            try
+            {
+                long mappedLength = Math.min(windowLength, imageLength - windowStart);
+                window = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                        windowStart, mappedLength);
+                windows[index] = window;
+            }catch(IOException e)
+            {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        ByteBuffer view = window.duplicate();
+        int start = (int) (position - windowStart);
+        view.limit(start + length);
+        view.position(start);
+        return view.slice();
+    }
+}
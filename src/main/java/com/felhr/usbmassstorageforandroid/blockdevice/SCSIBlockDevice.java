@@ -0,0 +1,446 @@
+package com.felhr.usbmassstorageforandroid.blockdevice;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
+
+import com.felhr.usbmassstorageforandroid.scsi.SCSICommunicator;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIInquiry;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIInquiryResponse;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIInterface;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIRead10Response;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIReadCapacity10Response;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIResponse;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIVPDBlockLimitsResponse;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIVPDLogicalBlockProvisioningResponse;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIVPDSupportedPagesResponse;
+import com.felhr.usbmassstorageforandroid.scsi.SCSIVPDUnitSerialNumberResponse;
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SCSIBlockDevice implements BlockDevice
+{
+    /*
+        Block device over one LUN of a USB mass storage device. Commands are asynchronous in
+        SCSICommunicator, every method here waits for the command it sends to complete
+     */
+    private static final int MAX_BULK_TRANSFER_LENGTH = 16384; // Linux/libusb internally can only handle a buffer of 16834 for bulk transfers
+    private static final int BLOCK_LENGTH = 512;
+    private static final int SPC3_VERSION = 0x05;
+    private static final int TRANSFER_GROW_THRESHOLD = 32; // Successful transfers before trying a bigger transfer length
+
+    private SCSICommunicator comm;
+    private final UsbDevice mDevice; // Device of a communicator owned by this block device, null if comm is not owned
+    private final UsbDeviceConnection mConnection;
+    private boolean commClosed;
+    private final Object monitor;
+    private SCSIResponse currentResponse;
+    private boolean currentStatus;
+    private boolean currentTimeout;
+    private AtomicBoolean waiting;
+
+    //Device limits, see probeDeviceLimits()
+    private long blockCount;
+    private int maxTransferLength; // bytes, shrinks when transfers time out
+    private int deviceMaxTransferLength; // bytes
+    private int successfulTransfers;
+    private long unmapGranularity; // blocks
+    private long unmapGranularityAlignment; // blocks
+    private boolean synchronizeCacheSupported;
+    private boolean cachedWrites; // Writes without FUA since the last SYNCHRONIZE CACHE
+
+    /*
+        The communicator is owned by the block device, close() closes it and open() creates a new one
+     */
+    public SCSIBlockDevice(UsbDevice mDevice, UsbDeviceConnection mConnection)
+    {
+        this(new SCSICommunicator(mDevice, mConnection), mDevice, mConnection);
+    }
+
+    /*
+        comm may be the communicator of any LUN, see SCSICommunicator.getLunCommunicator().
+        It is not closed by close(), it belongs to the caller
+     */
+    public SCSIBlockDevice(SCSICommunicator comm)
+    {
+        this(comm, null, null);
+    }
+
+    private SCSIBlockDevice(SCSICommunicator comm, UsbDevice mDevice, UsbDeviceConnection mConnection)
+    {
+        this.comm = comm;
+        this.mDevice = mDevice;
+        this.mConnection = mConnection;
+        this.monitor = new Object();
+        this.waiting = new AtomicBoolean(true);
+        this.maxTransferLength = MAX_BULK_TRANSFER_LENGTH;
+        this.deviceMaxTransferLength = MAX_BULK_TRANSFER_LENGTH;
+    }
+
+    @Override
+    public synchronized boolean open()
+    {
+        if(commClosed)
+        {
+            comm = new SCSICommunicator(mDevice, mConnection);
+            commClosed = false;
+        }
+        boolean isOpen = comm.openSCSICommunicator(scsiInterface);
+        if(!isOpen)
+            return false;
+
+        comm.testUnitReady();
+        waitTillNotification();
+        if(!currentStatus)
+            return false;
+
+        probeDeviceLimits();
+        probeCapacity();
+        comm.modeSenseCachingPage(); // Caching mode page is kept by comm, see hasCachingInfo()
+        waitTillNotification();
+        synchronizeCacheSupported = true;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean close()
+    {
+        // Writes cached by the device are flushed before it can be removed
+        boolean synced = true;
+        if(synchronizeCacheSupported && cachedWrites)
+            synced = synchronizeCache() || !isWriteCacheEnabled(); // Optional command, it only fails close() if the device caches writes
+
+        comm.preventAllowRemoval(0, false);
+        waitTillNotification();
+        boolean result = currentStatus && synced;
+
+        if(mDevice != null)
+        {
+            comm.closeSCSICommunicator();
+            commClosed = true;
+        }
+        return result;
+    }
+
+    @Override
+    public int getBlockSize()
+    {
+        return BLOCK_LENGTH;
+    }
+
+    @Override
+    public synchronized long getBlockCount()
+    {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized int getMaxTransferLength()
+    {
+        return maxTransferLength;
+    }
+
+    @Override
+    public synchronized long getUnmapGranularity()
+    {
+        return unmapGranularity;
+    }
+
+    @Override
+    public synchronized long getUnmapGranularityAlignment()
+    {
+        return unmapGranularityAlignment;
+    }
+
+    @Override
+    public boolean hasCachingInfo()
+    {
+        return comm.hasCachingInfo();
+    }
+
+    @Override
+    public boolean isWriteCacheEnabled()
+    {
+        return comm.isWriteCacheEnabled();
+    }
+
+    @Override
+    public boolean isReadCacheDisabled()
+    {
+        return comm.isReadCacheDisabled();
+    }
+
+    @Override
+    public boolean isFuaSupported()
+    {
+        return comm.isFuaSupported();
+    }
+
+    @Override
+    public synchronized byte[] readBlocks(long lba, int blocks)
+    {
+        comm.read10(0, false, false, false, UnsignedUtil.ulongToInt(lba), 0, blocks);
+        waitTillNotification();
+        if(currentStatus)
+        {
+            transferSucceeded();
+            return ((SCSIRead10Response) currentResponse).getBuffer();
+        }else if(currentTimeout && blocks > 1)
+        {
+            // Try again in smaller pieces
+            transferTimedOut();
+            int chunk = Math.max(1, Math.min(maxTransferLength / BLOCK_LENGTH, blocks / 2));
+            byte[] data = new byte[blocks * BLOCK_LENGTH];
+            for(int offset=0;offset<blocks;offset+=chunk)
+            {
+                int length = Math.min(chunk, blocks - offset);
+                byte[] part = readBlocks(lba + offset, length);
+                if(part == null)
+                    return null;
+                System.arraycopy(part, 0, data, offset * BLOCK_LENGTH, length * BLOCK_LENGTH);
+            }
+            return data;
+        }else
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public ByteBuffer readBuffer(long lba, int blocks)
+    {
+        byte[] data = readBlocks(lba, blocks);
+        if(data == null)
+            return null;
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized boolean writeBlocks(long lba, byte[] data, boolean fua)
+    {
+        if(!fua)
+            cachedWrites = true;
+        int length = data.length / BLOCK_LENGTH;
+        if(data.length % BLOCK_LENGTH != 0)
+        {
+            // WRITE(10) transfers whole blocks, the end of the last one is filled with zeros
+            length += 1;
+            data = Arrays.copyOf(data, length * BLOCK_LENGTH);
+        }
+
+        comm.write10(0, false, fua, false, UnsignedUtil.ulongToInt(lba), 0, length, data);
+        waitTillNotification();
+        if(currentStatus)
+        {
+            transferSucceeded();
+            return true;
+        }else if(currentTimeout && length > 1)
+        {
+            // Try again in smaller pieces
+            transferTimedOut();
+            int chunk = Math.max(1, Math.min(maxTransferLength / BLOCK_LENGTH, length / 2));
+            for(int offset=0;offset<length;offset+=chunk)
+            {
+                int from = offset * BLOCK_LENGTH;
+                int to = Math.min(data.length, (offset + chunk) * BLOCK_LENGTH);
+                if(!writeBlocks(lba + offset, Arrays.copyOfRange(data, from, to), fua))
+                    return false;
+            }
+            return true;
+        }else
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean synchronizeCache()
+    {
+        if(!synchronizeCacheSupported)
+            return false;
+        comm.synchronizeCache10(false, 0, 0);
+        waitTillNotification();
+        if(!currentStatus) // SYNCHRONIZE CACHE is optional, do not send it again
+        {
+            Log.i("SCSIBlockDevice", "SYNCHRONIZE CACHE not supported");
+            synchronizeCacheSupported = false;
+        }else
+        {
+            cachedWrites = false;
+        }
+        return currentStatus;
+    }
+
+    /*
+        Read the Block Limits (0xB0) and Logical Block Provisioning (0xB2) VPD pages.
+        Devices older than SPC-3 or that do not list those pages keep the default limits.
+     */
+    private void probeDeviceLimits()
+    {
+        SCSIResponse response = inquiry(false, 0, 36);
+        if(!(response instanceof SCSIInquiryResponse)
+                || ((SCSIInquiryResponse) response).getSpcVersion() < SPC3_VERSION)
+            return;
+
+        response = inquiry(true, SCSIInquiry.VPD_SUPPORTED_PAGES, 255);
+        if(!(response instanceof SCSIVPDSupportedPagesResponse))
+            return;
+        SCSIVPDSupportedPagesResponse supportedPages = (SCSIVPDSupportedPagesResponse) response;
+
+        if(supportedPages.isPageSupported(SCSIInquiry.VPD_UNIT_SERIAL_NUMBER))
+        {
+            response = inquiry(true, SCSIInquiry.VPD_UNIT_SERIAL_NUMBER, 255);
+            if(response instanceof SCSIVPDUnitSerialNumberResponse)
+                Log.i("SCSIBlockDevice", "Serial number: "
+                        + ((SCSIVPDUnitSerialNumberResponse) response).getProductSerialNumber());
+        }
+
+        if(supportedPages.isPageSupported(SCSIInquiry.VPD_BLOCK_LIMITS))
+        {
+            response = inquiry(true, SCSIInquiry.VPD_BLOCK_LIMITS, 64);
+            if(response instanceof SCSIVPDBlockLimitsResponse)
+                setDeviceLimits((SCSIVPDBlockLimitsResponse) response);
+        }
+
+        if(supportedPages.isPageSupported(SCSIInquiry.VPD_LOGICAL_BLOCK_PROVISIONING))
+        {
+            response = inquiry(true, SCSIInquiry.VPD_LOGICAL_BLOCK_PROVISIONING, 8);
+            if(response instanceof SCSIVPDLogicalBlockProvisioningResponse)
+                Log.i("SCSIBlockDevice", "Provisioning type: "
+                        + ((SCSIVPDLogicalBlockProvisioningResponse) response).getProvisioningType());
+        }
+    }
+
+    private void setDeviceLimits(SCSIVPDBlockLimitsResponse limits)
+    {
+        long maximumLength = limits.getMaximumTransferLength() * BLOCK_LENGTH;
+        if(maximumLength > 0 && maximumLength < maxTransferLength)
+            maxTransferLength = (int) maximumLength;
+
+        // Transfers bigger than the optimal transfer length may be slower
+        long optimalLength = limits.getOptimalTransferLength() * BLOCK_LENGTH;
+        if(optimalLength > 0 && optimalLength < maxTransferLength)
+            maxTransferLength = (int) optimalLength;
+
+        // Keep transfers a multiple of the optimal transfer length granularity
+        int granularityLength = limits.getOptimalTransferLengthGranularity() * BLOCK_LENGTH;
+        if(granularityLength > 0 && granularityLength <= maxTransferLength)
+            maxTransferLength -= maxTransferLength % granularityLength;
+
+        if(maxTransferLength < BLOCK_LENGTH)
+            maxTransferLength = BLOCK_LENGTH;
+        deviceMaxTransferLength = maxTransferLength;
+
+        unmapGranularity = limits.getOptimalUnmapGranularity();
+        if(limits.isUgavalid())
+            unmapGranularityAlignment = limits.getUnmapGranularityAlignment();
+    }
+
+    /*
+        READ CAPACITY (10) returns the address of the last block
+     */
+    private void probeCapacity()
+    {
+        currentResponse = null;
+        comm.readCapacity10(0, false);
+        waitTillNotification();
+        if(currentStatus && currentResponse instanceof SCSIReadCapacity10Response)
+        {
+            int lastLba = ((SCSIReadCapacity10Response) currentResponse).getReturnedLogicalBlockAddress();
+            blockCount = UnsignedUtil.intToUlong(lastLba) + 1;
+        }
+    }
+
+    private SCSIResponse inquiry(boolean evpd, int pageCode, int allocationLength)
+    {
+        currentResponse = null;
+        comm.inquiry(evpd, pageCode, allocationLength);
+        waitTillNotification();
+        if(currentStatus)
+            return currentResponse;
+        else
+            return null;
+    }
+
+    /*
+        Adaptive transfer length: halve it when a transfer times out and double it back,
+        up to the device limit, after TRANSFER_GROW_THRESHOLD transfers in a row succeed
+     */
+    private void transferSucceeded()
+    {
+        if(maxTransferLength >= deviceMaxTransferLength)
+            return;
+        if(++successfulTransfers >= TRANSFER_GROW_THRESHOLD)
+        {
+            successfulTransfers = 0;
+            maxTransferLength = Math.min(maxTransferLength * 2, deviceMaxTransferLength);
+        }
+    }
+
+    private void transferTimedOut()
+    {
+        successfulTransfers = 0;
+        maxTransferLength = Math.max(BLOCK_LENGTH, (maxTransferLength / 2) - (maxTransferLength / 2) % BLOCK_LENGTH);
+        Log.i("SCSIBlockDevice", "Transfer timed out, transfer length is now " + maxTransferLength + " bytes");
+    }
+
+    private void waitTillNotification()
+    {
+        synchronized(monitor)
+        {
+            while(waiting.get())
+            {
+                try
+                {
+                    monitor.wait();
+                } catch (InterruptedException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            waiting.set(true);
+        }
+    }
+
+    private void scsiSuccessNotification()
+    {
+        synchronized(monitor)
+        {
+            waiting.set(false);
+            monitor.notify();
+        }
+    }
+
+    private SCSIInterface scsiInterface = new SCSIInterface()
+    {
+        @Override
+        public void onSCSIOperationCompleted(int status, int dataResidue)
+        {
+            currentTimeout = status == SCSICommunicator.STATUS_TIMEOUT;
+            if(status == 0)
+            {
+                currentStatus = true;
+                scsiSuccessNotification();
+            }else
+            {
+                currentStatus = false;
+                scsiSuccessNotification();
+            }
+        }
+
+        @Override
+        public void onSCSIDataReceived(SCSIResponse response)
+        {
+            currentResponse = response;
+        }
+
+        @Override
+        public void onSCSIOperationStarted(boolean status)
+        {
+
+        }
+    };
+}
@@ -0,0 +1,108 @@
+package com.felhr.usbmassstorageforandroid.bulkonly;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+public class AndroidUsbTransport implements UsbTransport
+{
+    private UsbDevice mDevice;
+    private UsbDeviceConnection mConnection;
+    private UsbInterface massStorageInterface;
+
+    private UsbEndpoint inEndpoint;
+    private UsbEndpoint outEndpoint;
+
+    public AndroidUsbTransport(UsbDevice mDevice, UsbDeviceConnection mConnection)
+    {
+        this.mDevice = mDevice;
+        this.mConnection = mConnection;
+    }
+
+    @Override
+    public boolean open()
+    {
+        int index = mDevice.getInterfaceCount();
+        for(int i=0;i<=index-1;i++)
+        {
+            if(massStorageInterface == null) // Silly check only meaningful when testing
+                massStorageInterface = mDevice.getInterface(i);
+
+            if(massStorageInterface.getInterfaceClass() == UsbConstants.USB_CLASS_MASS_STORAGE && massStorageInterface.getInterfaceSubclass() == 0x06
+                    && massStorageInterface.getInterfaceProtocol() == 0x50)
+            {
+                if(mConnection.claimInterface(massStorageInterface, true))
+                {
+                    int endpointCount = massStorageInterface.getEndpointCount();
+                    for(int j=0;j<=endpointCount-1;j++)
+                    {
+                        UsbEndpoint endpoint = massStorageInterface.getEndpoint(j);
+                        if(endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
+                                && endpoint.getDirection() == UsbConstants.USB_DIR_IN)
+                        {
+                            inEndpoint = endpoint;
+                        }else if(endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
+                                && endpoint.getDirection() == UsbConstants.USB_DIR_OUT)
+                        {
+                            outEndpoint = endpoint;
+                        }
+                    }
+                    return inEndpoint != null && outEndpoint != null;
+                }else
+                {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int bulkTransferOut(byte[] buffer, int length, int timeout)
+    {
+        return mConnection.bulkTransfer(outEndpoint, buffer, length, timeout);
+    }
+
+    @Override
+    public int bulkTransferIn(byte[] buffer, int length, int timeout)
+    {
+        return mConnection.bulkTransfer(inEndpoint, buffer, length, timeout);
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout)
+    {
+        return mConnection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+    }
+
+    @Override
+    public int getInterfaceNumber()
+    {
+        return massStorageInterface.getId();
+    }
+
+    @Override
+    public void close()
+    {
+        if(massStorageInterface != null)
+            mConnection.releaseInterface(massStorageInterface);
+    }
+
+    // Setter Injectors for Testing
+    public void injectInterface(UsbInterface usbInterface)
+    {
+        this.massStorageInterface = usbInterface;
+    }
+
+    public void injectInEndpoint(UsbEndpoint inEndpoint)
+    {
+        this.inEndpoint = inEndpoint;
+    }
+
+    public void injectOutEndpoint(UsbEndpoint outEndpoint)
+    {
+        this.outEndpoint = outEndpoint;
+    }
+}
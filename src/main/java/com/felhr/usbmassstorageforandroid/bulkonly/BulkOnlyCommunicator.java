@@ -4,6 +4,8 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
 
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
+
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import commandwrappers.CommandBlockWrapper;
@@ -23,7 +25,17 @@ public class BulkOnlyCommunicator
 
     public BulkOnlyCommunicator(UsbDevice mDevice, UsbDeviceConnection mConnection)
     {
-        this.usbFacade = new UsbFacade(mDevice, mConnection);
+        this(new UsbFacade(mDevice, mConnection));
+    }
+
+    public BulkOnlyCommunicator(UsbTransport transport)
+    {
+        this(new UsbFacade(transport));
+    }
+
+    private BulkOnlyCommunicator(UsbFacade usbFacade)
+    {
+        this.usbFacade = usbFacade;
         this.flagDataIN = new AtomicBoolean(false);
         this.flagDataOUT = new AtomicBoolean(false);
     }
@@ -36,33 +48,50 @@ public class BulkOnlyCommunicator
     }
 
     public void sendCbw(CommandBlockWrapper cbw, byte[] data)
+    {
+        sendCbw(cbw, data, UsbFacade.DEFAULT_TIMEOUT);
+    }
+
+    public void sendCbw(CommandBlockWrapper cbw, byte[] data, int timeout)
     {
         int dataLength = cbw.getdCBWDataLength();
         if(data != null && dataLength > 0) //OUT
         {
             flagDataIN.set(false);
             flagDataOUT.set(true);
-            usbFacade.sendCommand(cbw.getCWBuffer(), data);
+            usbFacade.sendCommand(cbw.getCWBuffer(), data, timeout);
         }else if(data == null && dataLength > 0) // IN
         {
             flagDataOUT.set(false);
             flagDataIN.set(true);
-            usbFacade.sendCommand(cbw.getCWBuffer(), dataLength);
+            usbFacade.sendCommand(cbw.getCWBuffer(), dataLength, timeout);
         }else
         {
             flagDataOUT.set(false);
             flagDataIN.set(false);
-            usbFacade.sendCommand(cbw.getCWBuffer(), data);
+            usbFacade.sendCommand(cbw.getCWBuffer(), data, timeout);
         }
     }
 
+    public void cancelTransfer()
+    {
+        usbFacade.cancelTransfer();
+    }
+
+    public void close()
+    {
+        usbFacade.close();
+    }
+
     public boolean reset()
     {
+        StackMetrics.recordReset();
         return usbFacade.reset();
     }
 
     public boolean resetRecovery()
     {
+        StackMetrics.recordReset();
         return usbFacade.reset() & usbFacade.clearFeatureIN() & usbFacade.clearFeatureOUT();
     }
 
@@ -0,0 +1,558 @@
+package com.felhr.usbmassstorageforandroid.bulkonly;
+
+import com.felhr.usbmassstorageforandroid.blockdevice.BlockDevice;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import commandwrappers.CommandWrapper;
+
+public class EmulatedMassStorageDevice implements UsbTransport
+{
+    /*
+        Bulk-Only mass storage device in software over a BlockDevice (usually a FileBlockDevice
+        over a disk image), so the whole stack can be run and measured on a JVM without hardware.
+        It plays the device side of the pipes UsbFacade uses: CBWs and data from the host come in
+        through bulkTransferOut(), data to the host and CSWs go out through bulkTransferIn().
+        A single LUN supporting TEST UNIT READY, REQUEST SENSE, INQUIRY (standard data), READ CAPACITY (10),
+        READ (10), WRITE (10), MODE SENSE (10) (Caching page), SYNCHRONIZE CACHE (10) and
+        PREVENT ALLOW MEDIUM REMOVAL. It reports SPC-2 so the host does not ask for VPD pages.
+
+        Timing: every transfer keeps the bus busy transferLatency us plus its length at bandwidth bytes/s,
+        one transfer at a time. 0 disables each of them.
+        Commands received and bytes moved through the pipes (CBWs, data and CSWs) are counted for benchmarks.
+     */
+    private static final int BLOCK_LENGTH = 512;
+    private static final long SPIN_THRESHOLD = 100000; // ns, shorter waits spin for accuracy
+
+    // Bulk-Only phases
+    private static final int PHASE_COMMAND = 0;
+    private static final int PHASE_DATA_OUT = 1;
+    private static final int PHASE_DATA_IN = 2;
+    private static final int PHASE_STATUS = 3;
+
+    private static final int STATUS_PASSED = 0x00;
+    private static final int STATUS_FAILED = 0x01;
+    private static final int STATUS_PHASE_ERROR = 0x02;
+
+    // Operation codes
+    private static final int TEST_UNIT_READY = 0x00;
+    private static final int REQUEST_SENSE = 0x03;
+    private static final int INQUIRY = 0x12;
+    private static final int PREVENT_ALLOW_MEDIUM_REMOVAL = 0x1e;
+    private static final int READ_CAPACITY_10 = 0x25;
+    private static final int READ_10 = 0x28;
+    private static final int WRITE_10 = 0x2a;
+    private static final int SYNCHRONIZE_CACHE_10 = 0x35;
+    private static final int MODE_SENSE_10 = 0x5a;
+
+    // Sense keys and additional sense codes
+    private static final int NO_SENSE = 0x00;
+    private static final int MEDIUM_ERROR = 0x03;
+    private static final int ILLEGAL_REQUEST = 0x05;
+    private static final int ASC_WRITE_ERROR = 0x0c;
+    private static final int ASC_UNRECOVERED_READ_ERROR = 0x11;
+    private static final int ASC_INVALID_COMMAND_OPERATION_CODE = 0x20;
+    private static final int ASC_LBA_OUT_OF_RANGE = 0x21;
+    private static final int ASC_INVALID_FIELD_IN_CDB = 0x24;
+    private static final int ASC_LOGICAL_UNIT_NOT_SUPPORTED = 0x25;
+
+    private static final int CACHING_PAGE = 0x08;
+    private static final int ALL_PAGES = 0x3f;
+
+    private final BlockDevice medium;
+    private volatile long transferLatency; // us
+    private volatile long bandwidth; // bytes/s
+    private final Object busLock;
+    private final AtomicLong commandCount;
+    private final AtomicLong busBytes;
+
+    private boolean opened;
+    private int phase;
+    private final byte[] tag;
+    private int dataLength; // dCBWDataTransferLength
+    private int status;
+    private int residue;
+
+    private byte[] inData;
+    private int inPosition;
+    private int inLength;
+
+    private byte[] outData;
+    private int outPosition;
+    private boolean pendingWrite;
+    private long writeLba;
+    private boolean writeFua;
+
+    private int senseKey;
+    private int additionalSenseCode;
+
+    public EmulatedMassStorageDevice(BlockDevice medium)
+    {
+        this(medium, 0, 0);
+    }
+
+    /*
+        transferLatency in us, bandwidth in bytes/s
+     */
+    public EmulatedMassStorageDevice(BlockDevice medium, long transferLatency, long bandwidth)
+    {
+        this.medium = medium;
+        this.transferLatency = transferLatency;
+        this.bandwidth = bandwidth;
+        this.busLock = new Object();
+        this.commandCount = new AtomicLong();
+        this.busBytes = new AtomicLong();
+        this.tag = new byte[4];
+    }
+
+    public void setTransferLatency(long transferLatency)
+    {
+        this.transferLatency = transferLatency;
+    }
+
+    public void setBandwidth(long bandwidth)
+    {
+        this.bandwidth = bandwidth;
+    }
+
+    /*
+        CBWs received since the device was created
+     */
+    public long getCommandCount()
+    {
+        return commandCount.get();
+    }
+
+    /*
+        Bytes of every successful transfer since the device was created
+     */
+    public long getBusBytes()
+    {
+        return busBytes.get();
+    }
+
+    @Override
+    public synchronized boolean open()
+    {
+        if(opened)
+            return true;
+        if(!medium.open() || medium.getBlockSize() != BLOCK_LENGTH)
+            return false;
+        opened = true;
+        phase = PHASE_COMMAND;
+        return true;
+    }
+
+    @Override
+    public int bulkTransferOut(byte[] buffer, int length, int timeout)
+    {
+        occupyBus(length);
+        synchronized(this)
+        {
+            if(!opened)
+                return -1;
+            switch(phase)
+            {
+                case PHASE_COMMAND:
+                    if(length != CommandWrapper.CBW_SIZE || getLittleEndianInt(buffer, 0) != CommandWrapper.CBW_SIGNATURE)
+                        return -1; // Not a valid CBW, the pipe stalls
+                    receiveCbw(buffer);
+                    commandCount.incrementAndGet();
+                    busBytes.addAndGet(length);
+                    notifyAll();
+                    return length;
+                case PHASE_DATA_OUT:
+                    int count = Math.min(length, dataLength - outPosition);
+                    System.arraycopy(buffer, 0, outData, outPosition, count);
+                    outPosition += count;
+                    if(outPosition == dataLength)
+                    {
+                        completeWrite();
+                        phase = PHASE_STATUS;
+                        notifyAll();
+                    }
+                    busBytes.addAndGet(count);
+                    return count;
+                default: // The device is waiting for the host to read data or the status
+                    return -1;
+            }
+        }
+    }
+
+    @Override
+    public int bulkTransferIn(byte[] buffer, int length, int timeout)
+    {
+        int count;
+        synchronized(this)
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            while(opened && phase != PHASE_DATA_IN && phase != PHASE_STATUS)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if(timeout > 0 && remaining <= 0)
+                    return -1;
+                try
+                {
+                    if(timeout > 0)
+                        wait(remaining);
+                    else
+                        wait();
+                }catch(InterruptedException e)
+                {
+                    return -1;
+                }
+            }
+            if(!opened)
+                return -1;
+
+            if(phase == PHASE_DATA_IN)
+            {
+                count = Math.min(length, inLength - inPosition);
+                System.arraycopy(inData, inPosition, buffer, 0, count);
+                inPosition += count;
+                if(inPosition == inLength)
+                {
+                    inData = null;
+                    phase = PHASE_STATUS;
+                }
+            }else
+            {
+                if(length < CommandWrapper.CBS_SIZE) // The CSW does not fit, babble
+                    return -1;
+                count = CommandWrapper.CBS_SIZE;
+                putLittleEndianInt(buffer, 0, CommandWrapper.CBS_SIGNATURE);
+                System.arraycopy(tag, 0, buffer, 4, 4);
+                putLittleEndianInt(buffer, 8, residue);
+                buffer[12] = (byte) status;
+                phase = PHASE_COMMAND;
+            }
+        }
+        occupyBus(count);
+        busBytes.addAndGet(count);
+        return count;
+    }
+
+    /*
+        Bulk-Only Mass Storage Reset, GET MAX LUN and CLEAR FEATURE (ENDPOINT HALT)
+     */
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout)
+    {
+        occupyBus(length);
+        synchronized(this)
+        {
+            if(!opened)
+                return -1;
+            if(requestType == 0x21 && request == 0xff)
+            {
+                phase = PHASE_COMMAND;
+                inData = null;
+                pendingWrite = false;
+                notifyAll();
+                return 0;
+            }else if(requestType == 0xa1 && request == 0xfe && buffer != null && length >= 1)
+            {
+                buffer[0] = 0x00;
+                busBytes.incrementAndGet();
+                return 1;
+            }else if(requestType == 0x02 && request == 0x01)
+            {
+                return 0;
+            }else
+            {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public int getInterfaceNumber()
+    {
+        return 0;
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized(this)
+        {
+            if(!opened)
+                return;
+            opened = false;
+            notifyAll();
+        }
+        medium.close();
+    }
+
+    /*
+        Execute the command as soon as the CBW arrives, data to the host is ready for the next IN transfers.
+        Data from the host is collected first and written by completeWrite()
+     */
+    private void receiveCbw(byte[] cbw)
+    {
+        System.arraycopy(cbw, 4, tag, 0, 4);
+        dataLength = getLittleEndianInt(cbw, 8);
+        boolean directionIn = (cbw[12] & 0x80) == 0x80;
+        int lun = cbw[13] & 0x0f;
+        byte[] cb = Arrays.copyOfRange(cbw, 15, CommandWrapper.CBW_SIZE);
+
+        status = STATUS_PASSED;
+        inData = null;
+        pendingWrite = false;
+        int operationCode = cb[0] & 0xff;
+        if(operationCode != REQUEST_SENSE)
+            setSense(NO_SENSE, 0);
+
+        if(lun != 0)
+            fail(ILLEGAL_REQUEST, ASC_LOGICAL_UNIT_NOT_SUPPORTED);
+        else
+            execute(cb, directionIn);
+
+        if(dataLength > 0 && !directionIn) // Data from the host is received even if the command failed
+        {
+            if(outData == null || outData.length != dataLength)
+                outData = new byte[dataLength];
+            outPosition = 0;
+            residue = (status == STATUS_PASSED) ? 0 : dataLength; // Discarded if the command failed
+            phase = PHASE_DATA_OUT;
+        }else if(dataLength > 0 && inData != null)
+        {
+            inLength = Math.min(inData.length, dataLength);
+            inPosition = 0;
+            residue = dataLength - inLength;
+            phase = (inLength > 0) ? PHASE_DATA_IN : PHASE_STATUS;
+        }else
+        {
+            residue = dataLength;
+            phase = PHASE_STATUS;
+        }
+    }
+
+    private void execute(byte[] cb, boolean directionIn)
+    {
+        switch(cb[0] & 0xff)
+        {
+            case TEST_UNIT_READY:
+            case PREVENT_ALLOW_MEDIUM_REMOVAL:
+                break;
+            case REQUEST_SENSE:
+                inData = truncate(getSenseData(), cb[4] & 0xff);
+                setSense(NO_SENSE, 0);
+                break;
+            case INQUIRY:
+                if((cb[1] & 0x01) == 0x01) // EVPD
+                    fail(ILLEGAL_REQUEST, ASC_INVALID_FIELD_IN_CDB);
+                else
+                    inData = truncate(getInquiryData(), getBigEndianShort(cb, 3));
+                break;
+            case READ_CAPACITY_10:
+                inData = getCapacityData();
+                break;
+            case MODE_SENSE_10:
+                int pageCode = cb[2] & 0x3f;
+                if((pageCode == CACHING_PAGE || pageCode == ALL_PAGES) && medium.hasCachingInfo())
+                    inData = truncate(getCachingModeData(), getBigEndianShort(cb, 7));
+                else
+                    fail(ILLEGAL_REQUEST, ASC_INVALID_FIELD_IN_CDB);
+                break;
+            case READ_10:
+                read(getBigEndianInt(cb, 2) & 0xffffffffL, getBigEndianShort(cb, 7), directionIn);
+                break;
+            case WRITE_10:
+                prepareWrite(getBigEndianInt(cb, 2) & 0xffffffffL, getBigEndianShort(cb, 7),
+                        (cb[1] & 0x08) == 0x08, directionIn);
+                break;
+            case SYNCHRONIZE_CACHE_10:
+                if(!medium.synchronizeCache())
+                    fail(MEDIUM_ERROR, ASC_WRITE_ERROR);
+                break;
+            default:
+                fail(ILLEGAL_REQUEST, ASC_INVALID_COMMAND_OPERATION_CODE);
+                break;
+        }
+    }
+
+    private void read(long lba, int blocks, boolean directionIn)
+    {
+        if(blocks * BLOCK_LENGTH > dataLength || (blocks > 0 && !directionIn))
+        {
+            status = STATUS_PHASE_ERROR; // The host expects less data than the command transfers
+            return;
+        }
+        if(lba + blocks > medium.getBlockCount())
+        {
+            fail(ILLEGAL_REQUEST, ASC_LBA_OUT_OF_RANGE);
+            return;
+        }
+        inData = medium.readBlocks(lba, blocks);
+        if(inData == null)
+            fail(MEDIUM_ERROR, ASC_UNRECOVERED_READ_ERROR);
+    }
+
+    private void prepareWrite(long lba, int blocks, boolean fua, boolean directionIn)
+    {
+        if(blocks * BLOCK_LENGTH != dataLength || (blocks > 0 && directionIn))
+        {
+            status = STATUS_PHASE_ERROR;
+            return;
+        }
+        if(lba + blocks > medium.getBlockCount())
+        {
+            fail(ILLEGAL_REQUEST, ASC_LBA_OUT_OF_RANGE);
+            return;
+        }
+        pendingWrite = blocks > 0;
+        writeLba = lba;
+        writeFua = fua;
+    }
+
+    private void completeWrite()
+    {
+        if(!pendingWrite)
+            return;
+        pendingWrite = false;
+        if(!medium.writeBlocks(writeLba, outData, writeFua))
+            fail(MEDIUM_ERROR, ASC_WRITE_ERROR);
+    }
+
+    private void fail(int senseKey, int additionalSenseCode)
+    {
+        status = STATUS_FAILED;
+        inData = null;
+        setSense(senseKey, additionalSenseCode);
+    }
+
+    private void setSense(int senseKey, int additionalSenseCode)
+    {
+        this.senseKey = senseKey;
+        this.additionalSenseCode = additionalSenseCode;
+    }
+
+    /*
+        Fixed format sense data, SPC-4 section 4.5.3
+     */
+    private byte[] getSenseData()
+    {
+        byte[] data = new byte[18];
+        data[0] = 0x70; // Current errors
+        data[2] = (byte) senseKey;
+        data[7] = 10; // Additional sense length
+        data[12] = (byte) additionalSenseCode;
+        return data;
+    }
+
+    private byte[] getInquiryData()
+    {
+        byte[] data = new byte[36];
+        data[0] = 0x00; // Direct access block device
+        data[1] = (byte) 0x80; // Removable
+        data[2] = 0x04; // SPC-2
+        data[3] = 0x02; // Response data format
+        data[4] = 31; // Additional length
+        putAscii(data, 8, "EMULATED", 8);
+        putAscii(data, 16, "Mass Storage", 16);
+        putAscii(data, 32, "1.0", 4);
+        return data;
+    }
+
+    private byte[] getCapacityData()
+    {
+        byte[] data = new byte[8];
+        long lastLba = Math.min(medium.getBlockCount() - 1, 0xffffffffL);
+        putBigEndianInt(data, 0, (int) lastLba);
+        putBigEndianInt(data, 4, BLOCK_LENGTH);
+        return data;
+    }
+
+    /*
+        Mode parameter header (10) without block descriptors followed by the Caching mode page
+     */
+    private byte[] getCachingModeData()
+    {
+        byte[] data = new byte[8 + 20];
+        data[1] = (byte) (data.length - 2); // Mode data length
+        if(medium.isFuaSupported())
+            data[3] = 0x10; // DPOFUA
+        data[8] = CACHING_PAGE;
+        data[9] = 0x12; // Page length
+        if(medium.isWriteCacheEnabled())
+            data[10] |= 0x04; // WCE
+        if(medium.isReadCacheDisabled())
+            data[10] |= 0x01; // RCD
+        return data;
+    }
+
+    /*
+        Keep the bus busy for a transfer of length bytes
+     */
+    private void occupyBus(int length)
+    {
+        long time = transferLatency * 1000;
+        long currentBandwidth = bandwidth;
+        if(currentBandwidth > 0)
+            time += length * 1000000000L / currentBandwidth;
+        if(time <= 0)
+            return;
+        synchronized(busLock)
+        {
+            long deadline = System.nanoTime() + time;
+            long remaining = time;
+            while(remaining > 0)
+            {
+                if(remaining > SPIN_THRESHOLD)
+                    LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+                else
+                    Thread.yield();
+                remaining = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    private static byte[] truncate(byte[] data, int allocationLength)
+    {
+        if(data.length <= allocationLength)
+            return data;
+        return Arrays.copyOf(data, allocationLength);
+    }
+
+    private static void putAscii(byte[] data, int offset, String value, int length)
+    {
+        for(int i=0;i<=length-1;i++)
+            data[offset + i] = (byte) ((i < value.length()) ? value.charAt(i) : ' ');
+    }
+
+    private static int getLittleEndianInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8)
+                | ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+    private static void putLittleEndianInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int getBigEndianInt(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int getBigEndianShort(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static void putBigEndianInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
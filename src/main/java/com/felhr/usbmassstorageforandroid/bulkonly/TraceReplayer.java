@@ -0,0 +1,251 @@
+package com.felhr.usbmassstorageforandroid.bulkonly;
+
+import com.felhr.usbmassstorageforandroid.metrics.CommandTrace;
+import com.felhr.usbmassstorageforandroid.metrics.Histogram;
+import com.felhr.usbmassstorageforandroid.metrics.TraceRecord;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import commandwrappers.CommandWrapper;
+
+public class TraceReplayer
+{
+    /*
+        Sends the commands of a CommandTrace again to a device, usually an EmulatedMassStorageDevice over
+        a disk image, to reproduce a field workload on the bench. It drives the Bulk-Only pipes directly,
+        one command at a time: CBW as recorded, data phase of dCBWDataTransferLength bytes and CSW.
+        A trace holds no data, OUT data comes from the DataSource and IN data is discarded.
+        Unpaced, commands are sent back to back. Paced, each command waits until the time it was sent in the trace
+     */
+    private static final int TIMEOUT = 5000; // ms
+
+    private final UsbTransport transport;
+    private DataSource dataSource;
+    private boolean paced;
+
+    public TraceReplayer(UsbTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    public void setDataSource(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    public void setPaced(boolean paced)
+    {
+        this.paced = paced;
+    }
+
+    /*
+        The transport must be open
+     */
+    public Result replay(List<TraceRecord> records)
+    {
+        Result result = new Result();
+        if(records.isEmpty())
+            return result;
+
+        byte[] csw = new byte[CommandWrapper.CBS_SIZE];
+        long traceStart = records.get(0).getCbwStart();
+        long replayStart = System.nanoTime();
+        for(int i=0;i<=records.size()-1;i++)
+        {
+            TraceRecord record = records.get(i);
+            if(paced)
+                waitUntil(replayStart + record.getCbwStart() - traceStart);
+
+            long start = System.nanoTime();
+            int status = sendCommand(record, csw);
+            result.latency.record(System.nanoTime() - start);
+            result.originalLatency.record(record.getTime());
+            result.commands++;
+            if(status < 0)
+            {
+                result.errors++;
+                resetRecovery();
+            }else if(record.getStatus() != CommandTrace.STATUS_NONE && status != record.getStatus())
+            {
+                result.statusMismatches++;
+            }
+        }
+        result.time = System.nanoTime() - replayStart;
+        result.originalTime = records.get(records.size() - 1).getCswEnd() - traceStart;
+        return result;
+    }
+
+    /*
+        CSW status of the command, -1 if a transfer failed
+     */
+    private int sendCommand(TraceRecord record, byte[] csw)
+    {
+        byte[] cbw = record.getCbw();
+        if(transport.bulkTransferOut(cbw, cbw.length, TIMEOUT) != cbw.length)
+            return -1;
+
+        int dataLength = record.getDataLength();
+        boolean cswReceived = false;
+        if(dataLength > 0 && record.isDirectionIn())
+        {
+            // The device may send less data than expected, then the CSW comes right after it
+            byte[] buffer = new byte[Math.max(dataLength, CommandWrapper.CBS_SIZE)];
+            int received = 0;
+            while(received < dataLength)
+            {
+                int response = transport.bulkTransferIn(buffer, Math.max(dataLength - received, CommandWrapper.CBS_SIZE), TIMEOUT);
+                if(response <= 0)
+                    return -1;
+                if(isCsw(buffer, response))
+                {
+                    System.arraycopy(buffer, 0, csw, 0, CommandWrapper.CBS_SIZE);
+                    cswReceived = true;
+                    break;
+                }
+                received += response;
+            }
+        }else if(dataLength > 0)
+        {
+            byte[] data = (dataSource != null) ? dataSource.getData(record) : null;
+            if(data == null || data.length != dataLength)
+                data = new byte[dataLength];
+            int sent = 0;
+            while(sent < dataLength)
+            {
+                byte[] chunk = data;
+                if(sent > 0)
+                {
+                    chunk = new byte[dataLength - sent];
+                    System.arraycopy(data, sent, chunk, 0, chunk.length);
+                }
+                int response = transport.bulkTransferOut(chunk, chunk.length, TIMEOUT);
+                if(response <= 0)
+                    return -1;
+                sent += response;
+            }
+        }
+
+        if(!cswReceived)
+        {
+            int response = transport.bulkTransferIn(csw, CommandWrapper.CBS_SIZE, TIMEOUT);
+            if(!isCsw(csw, response))
+                return -1;
+        }
+        return csw[12] & 0xff;
+    }
+
+    private boolean isCsw(byte[] buffer, int length)
+    {
+        if(length != CommandWrapper.CBS_SIZE)
+            return false;
+        int signature = (buffer[0] & 0xff) | ((buffer[1] & 0xff) << 8) | ((buffer[2] & 0xff) << 16) | ((buffer[3] & 0xff) << 24);
+        return signature == CommandWrapper.CBS_SIGNATURE;
+    }
+
+    private void resetRecovery()
+    {
+        transport.controlTransfer(0x21, 0xff, 0x0000, transport.getInterfaceNumber(), null, 0, TIMEOUT);
+        transport.controlTransfer(0x02, 0x01, 0x00, 0x00, null, 0, TIMEOUT);
+        transport.controlTransfer(0x02, 0x01, 0x00, 0x81, null, 0, TIMEOUT);
+    }
+
+    private static void waitUntil(long deadline)
+    {
+        long remaining = deadline - System.nanoTime();
+        while(remaining > 0)
+        {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    public interface DataSource
+    {
+        /*
+            dCBWDataTransferLength bytes to send in the data phase of an OUT command, null sends zeros
+         */
+        byte[] getData(TraceRecord record);
+    }
+
+    public static class Result
+    {
+        private final Histogram latency;
+        private final Histogram originalLatency;
+        private int commands;
+        private int errors;
+        private int statusMismatches;
+        private long time;
+        private long originalTime;
+
+        private Result()
+        {
+            this.latency = new Histogram();
+            this.originalLatency = new Histogram();
+        }
+
+        public int getCommands()
+        {
+            return commands;
+        }
+
+        /*
+            Commands whose transfers failed, the device was reset after each of them
+         */
+        public int getErrors()
+        {
+            return errors;
+        }
+
+        /*
+            Commands that completed with a CSW status other than the recorded one
+         */
+        public int getStatusMismatches()
+        {
+            return statusMismatches;
+        }
+
+        /*
+            ns from the first CBW to the last CSW, in the replay and in the trace
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public long getOriginalTime()
+        {
+            return originalTime;
+        }
+
+        /*
+            ns per command, CBW to CSW
+         */
+        public Histogram.Snapshot getLatency()
+        {
+            return latency.snapshot();
+        }
+
+        public Histogram.Snapshot getOriginalLatency()
+        {
+            return originalLatency.snapshot();
+        }
+
+        @Override
+        public String toString()
+        {
+            Histogram.Snapshot replayed = getLatency();
+            Histogram.Snapshot original = getOriginalLatency();
+            return String.format(Locale.US, "%d commands, %d errors, %d status mismatches%n"
+                            + "           %10s %10s %10s %10s%n"
+                            + "replay     %10.1f %10.1f %10d %10d%n"
+                            + "original   %10.1f %10.1f %10d %10d",
+                    commands, errors, statusMismatches, "total ms", "mean us", "p50 us", "p99 us",
+                    time / 1000000.0, replayed.getMean() / 1000, replayed.getPercentile(50) / 1000,
+                    replayed.getPercentile(99) / 1000,
+                    originalTime / 1000000.0, original.getMean() / 1000, original.getPercentile(50) / 1000,
+                    original.getPercentile(99) / 1000);
+        }
+    }
+}
@@ -1,18 +1,18 @@
 package com.felhr.usbmassstorageforandroid.bulkonly;
 
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 
+import com.felhr.usbmassstorageforandroid.metrics.CommandTrace;
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
 import com.felhr.usbmassstorageforandroid.utilities.EndianessUtil;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import commandwrappers.CommandBlockWrapper;
@@ -26,28 +26,41 @@ public class UsbFacade
     private final int USB_ENDPOINT_LENGTH = 512;
     private int USB_IN_BUFFER_LENGTH;
 
-    private static final int USB_TIMEOUT = 0;
+    public static final int DEFAULT_TIMEOUT = 5000; // ms
+    private static final int CONTROL_TIMEOUT = 5000; // ms
 
     private static final int CBW_TRANSPORT = 0;
     private static final int DATA_FROM_HOST = 1;
 
-    private UsbDevice mDevice;
-    private UsbDeviceConnection mConnection;
-    private UsbInterface massStorageInterface;
-
-    private UsbEndpoint inEndpoint;
-    private UsbEndpoint outEndpoint;
+    private UsbTransport transport;
 
     private DataOutThread dataOutThread;
     private DataInThread dataInThread;
-    private Handler outHandler;
 
     private UsbFacadeInterface facadeInterface;
 
+    /*
+        Phase timestamps of the command in flight (ns), only taken while StackMetrics or CommandTrace is enabled.
+        Bulk-Only has a single command in flight, every field has a single writer at a time
+     */
+    private final AtomicBoolean timing = new AtomicBoolean(false);
+    private volatile byte[] timedCbw;
+    private volatile long commandStart;
+    private volatile long cbwEnd;
+    private volatile long dataEnd;
+    private volatile long dataBytes;
+
     public UsbFacade(UsbDevice mDevice, UsbDeviceConnection mConnection)
     {
-        this.mDevice = mDevice;
-        this.mConnection = mConnection;
+        this(new AndroidUsbTransport(mDevice, mConnection));
+    }
+
+    /*
+        Bulk-Only transport over any USB transport, see EmulatedMassStorageDevice
+     */
+    public UsbFacade(UsbTransport transport)
+    {
+        this.transport = transport;
         USB_IN_BUFFER_LENGTH = USB_ENDPOINT_LENGTH;
     }
 
@@ -58,62 +71,18 @@ public class UsbFacade
 
     public boolean openDevice()
     {
-        int index = mDevice.getInterfaceCount();
-        for(int i=0;i<=index-1;i++)
-        {
-            if(massStorageInterface == null) // Silly check only meaningful when testing
-                massStorageInterface = mDevice.getInterface(i);
-
-            if(massStorageInterface.getInterfaceClass() == UsbConstants.USB_CLASS_MASS_STORAGE && massStorageInterface.getInterfaceSubclass() == 0x06
-                    && massStorageInterface.getInterfaceProtocol() == 0x50)
-            {
-                if(mConnection.claimInterface(massStorageInterface, true))
-                {
-                    int endpointCount = massStorageInterface.getEndpointCount();
-                    for(int j=0;j<=endpointCount-1;j++)
-                    {
-                        UsbEndpoint endpoint = massStorageInterface.getEndpoint(j);
-                        if(endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
-                                && endpoint.getDirection() == UsbConstants.USB_DIR_IN)
-                        {
-                            inEndpoint = endpoint;
-                        }else if(endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
-                                && endpoint.getDirection() == UsbConstants.USB_DIR_OUT)
-                        {
-                            outEndpoint = endpoint;
-                        }
-                    }
-
-                    if(inEndpoint != null && outEndpoint != null)
-                    {
-                        dataOutThread = new DataOutThread();
-                        dataOutThread.start();
-                        dataInThread = new DataInThread();
-                        dataInThread.start();
-
-                        while(outHandler == null)
-                        {
-                            //Busy waiting to avoid outHandler being null :(
-                        }
-
-                        return true;
-                    }else
-                    {
-                        return false;
-                    }
-
-                }else
-                {
-                    return false;
-                }
-            }
-        }
-        return false;
+        if(!transport.open())
+            return false;
+        dataOutThread = new DataOutThread();
+        dataOutThread.start();
+        dataInThread = new DataInThread();
+        dataInThread.start();
+        return true;
     }
 
     public boolean reset()
     {
-        return mConnection.controlTransfer(0x21, 0xff, 0x0000, massStorageInterface.getId(), null, 0, USB_TIMEOUT) >= 0;
+        return transport.controlTransfer(0x21, 0xff, 0x0000, transport.getInterfaceNumber(), null, 0, CONTROL_TIMEOUT) >= 0;
     }
 
     /*
@@ -121,32 +90,41 @@ public class UsbFacade
      */
     public boolean clearFeatureIN()
     {
-        return mConnection.controlTransfer(0x02, 0x01, 0x00, 0x00, null, 0, USB_TIMEOUT) == 0;
+        return transport.controlTransfer(0x02, 0x01, 0x00, 0x00, null, 0, CONTROL_TIMEOUT) == 0;
     }
 
     public boolean clearFeatureOUT()
     {
-        return mConnection.controlTransfer(0x02, 0x01, 0x00, 0x81, null, 0, USB_TIMEOUT) == 0;
+        return transport.controlTransfer(0x02, 0x01, 0x00, 0x81, null, 0, CONTROL_TIMEOUT) == 0;
     }
 
     public int getMaxLun()
     {
         byte[] buff = new byte[1];
-        int status = mConnection.controlTransfer(0xa1, 0xfe, 0x0000, massStorageInterface.getId(), buff, 1, USB_TIMEOUT);
-        if(status == 0)
-            return (int) buff[0];
+        int status = transport.controlTransfer(0xa1, 0xfe, 0x0000, transport.getInterfaceNumber(), buff, 1, CONTROL_TIMEOUT);
+        if(status == 1) // controlTransfer returns the number of bytes transferred
+            return buff[0] & 0x0f;
         else
             return -1;
     }
 
     public void sendCommand(byte[] cbwBuffer, byte[] data)
     {
+        sendCommand(cbwBuffer, data, DEFAULT_TIMEOUT);
+    }
+
+    /*
+        timeout: milliseconds every bulk transfer of the command can take, 0 waits forever
+     */
+    public void sendCommand(byte[] cbwBuffer, byte[] data, int timeout)
+    {
+        startTiming(cbwBuffer);
         USB_IN_BUFFER_LENGTH = 13;
-        dataInThread.setBuffer(USB_IN_BUFFER_LENGTH);
-        outHandler.obtainMessage(CBW_TRANSPORT, cbwBuffer).sendToTarget();
+        dataInThread.setBuffer(USB_IN_BUFFER_LENGTH, timeout);
+        dataOutThread.putTransfer(CBW_TRANSPORT, cbwBuffer, timeout);
         if(data != null)
         {
-            outHandler.obtainMessage(DATA_FROM_HOST, data).sendToTarget();
+            dataOutThread.putTransfer(DATA_FROM_HOST, data, timeout);
         }
     }
 
@@ -155,59 +133,193 @@ public class UsbFacade
      */
     public void sendCommand(byte[] cbwBuffer, int dataLength)
     {
-        USB_IN_BUFFER_LENGTH = dataLength;
-        dataInThread.setBuffer(USB_IN_BUFFER_LENGTH);
-        outHandler.obtainMessage(CBW_TRANSPORT, cbwBuffer).sendToTarget();
+        sendCommand(cbwBuffer, dataLength, DEFAULT_TIMEOUT);
+    }
+
+    public void sendCommand(byte[] cbwBuffer, int dataLength, int timeout)
+    {
+        startTiming(cbwBuffer);
+        // The CSW must fit in the buffer too when there is less data than a CSW
+        USB_IN_BUFFER_LENGTH = Math.max(dataLength, CommandWrapper.CBS_SIZE);
+        dataInThread.setBuffer(USB_IN_BUFFER_LENGTH, timeout);
+        dataOutThread.putTransfer(CBW_TRANSPORT, cbwBuffer, timeout);
+    }
+
+    /*
+        Stop waiting for the data and status of the current command.
+        The IN thread goes back to wait for the next command once its pending transfer times out
+     */
+    public void cancelTransfer()
+    {
+        cancelTiming();
+        dataOutThread.removeTransfers(DATA_FROM_HOST);
+        dataInThread.cancel();
     }
 
+    /*
+        Stop both threads and release the interface
+     */
     public void close()
     {
-        outHandler.getLooper().quit();
+        if(dataOutThread != null)
+            dataOutThread.stopThread();
+        if(dataInThread != null)
+            dataInThread.stopThread();
+        transport.close();
+    }
+
+    private void startTiming(byte[] cbwBuffer)
+    {
+        if(!StackMetrics.isEnabled() && !CommandTrace.isEnabled())
+        {
+            timing.set(false);
+            return;
+        }
+        timedCbw = cbwBuffer;
+        cbwEnd = 0;
+        dataEnd = 0;
+        dataBytes = 0;
+        commandStart = System.nanoTime();
+        timing.set(true);
+    }
+
+    /*
+        Called with the CSW, before the upper layers are notified and may send the next command
+     */
+    private void stopTiming(byte[] csw)
+    {
+        if(!timing.getAndSet(false))
+            return;
+        long now = System.nanoTime();
+        long cbwDone = (cbwEnd != 0) ? cbwEnd : now; // The OUT thread may not have taken its timestamp yet
+        long dataDone = (dataEnd != 0) ? dataEnd : cbwDone;
+        int status = csw[12] & 0xff;
+        if(StackMetrics.isEnabled())
+            StackMetrics.recordCommand(timedCbw[15] & 0xff, dataBytes, Math.max(0, cbwDone - commandStart),
+                    Math.max(0, dataDone - cbwDone), Math.max(0, now - dataDone), status);
+        if(CommandTrace.isEnabled())
+        {
+            int residue = (csw[8] & 0xff) | ((csw[9] & 0xff) << 8) | ((csw[10] & 0xff) << 16) | ((csw[11] & 0xff) << 24);
+            CommandTrace.record(timedCbw, status, residue, commandStart, cbwDone, dataDone, now);
+        }
+    }
+
+    /*
+        The command in flight will get no CSW. StackMetrics counts it as a timeout, the trace keeps it without status
+     */
+    private void cancelTiming()
+    {
+        if(!timing.getAndSet(false))
+            return;
+        long now = System.nanoTime();
+        long cbwDone = (cbwEnd != 0) ? cbwEnd : now;
+        long dataDone = (dataEnd != 0) ? dataEnd : cbwDone;
+        CommandTrace.record(timedCbw, CommandTrace.STATUS_NONE, 0, commandStart, cbwDone, dataDone, now);
     }
 
-    // Setter Injectors for Testing
+    // Setter Injectors for Testing, only meaningful with an AndroidUsbTransport
     public void injectInterface(UsbInterface usbInterface)
     {
-        this.massStorageInterface = usbInterface;
+        if(transport instanceof AndroidUsbTransport)
+            ((AndroidUsbTransport) transport).injectInterface(usbInterface);
     }
 
     public void injectInEndpoint(UsbEndpoint inEndpoint)
     {
-        this.inEndpoint = inEndpoint;
+        if(transport instanceof AndroidUsbTransport)
+            ((AndroidUsbTransport) transport).injectInEndpoint(inEndpoint);
     }
 
     public void injectOutEndpoint(UsbEndpoint outEndpoint)
     {
-        this.outEndpoint = outEndpoint;
+        if(transport instanceof AndroidUsbTransport)
+            ((AndroidUsbTransport) transport).injectOutEndpoint(outEndpoint);
     }
 
+    private static class OutTransfer
+    {
+        private final int type;
+        private final byte[] buffer;
+        private final int timeout;
+
+        public OutTransfer(int type, byte[] buffer, int timeout)
+        {
+            this.type = type;
+            this.buffer = buffer;
+            this.timeout = timeout;
+        }
+    }
+
+    /*
+        OUT transfers are sent in order by a single thread
+     */
     private class DataOutThread extends Thread
     {
+        private final LinkedBlockingQueue<OutTransfer> transfers;
+        private AtomicBoolean keep;
+
+        public DataOutThread()
+        {
+            this.transfers = new LinkedBlockingQueue<OutTransfer>();
+            this.keep = new AtomicBoolean(true);
+        }
+
         @Override
         public void run()
         {
-            Looper.prepare();
-            outHandler = new Handler()
+            while(keep.get())
             {
-                @Override
-                public void handleMessage(Message msg)
+                OutTransfer transfer;
+                try
                 {
-                    byte[] buffer = (byte[]) msg.obj;
-                    int response = mConnection.bulkTransfer(outEndpoint, buffer, buffer.length, USB_TIMEOUT);
-                    switch(msg.what)
-                    {
-                        case CBW_TRANSPORT:
-                            if(facadeInterface != null)
-                                facadeInterface.cbwResponse(response);
-                            break;
-                        case DATA_FROM_HOST:
-                            if(facadeInterface != null)
-                                facadeInterface.dataFromHost(response);
-                            break;
-                    }
+                    transfer = transfers.take();
+                }catch(InterruptedException e)
+                {
+                    continue; // stopThread()
+                }
+
+                byte[] buffer = transfer.buffer;
+                int response = transport.bulkTransferOut(buffer, buffer.length, transfer.timeout);
+                switch(transfer.type)
+                {
+                    case CBW_TRANSPORT:
+                        if(timing.get())
+                            cbwEnd = System.nanoTime();
+                        if(facadeInterface != null)
+                            facadeInterface.cbwResponse(response);
+                        break;
+                    case DATA_FROM_HOST:
+                        if(timing.get() && response > 0)
+                        {
+                            dataBytes += response;
+                            dataEnd = System.nanoTime();
+                        }
+                        if(facadeInterface != null)
+                            facadeInterface.dataFromHost(response);
+                        break;
                 }
-            };
-            Looper.loop();
+            }
+        }
+
+        public void putTransfer(int type, byte[] buffer, int timeout)
+        {
+            transfers.add(new OutTransfer(type, buffer, timeout));
+        }
+
+        public void removeTransfers(int type)
+        {
+            Iterator<OutTransfer> iterator = transfers.iterator();
+            while(iterator.hasNext())
+            {
+                if(iterator.next().type == type)
+                    iterator.remove();
+            }
+        }
+
+        public void stopThread()
+        {
+            keep.set(false);
+            interrupt();
         }
     }
 
@@ -216,12 +328,16 @@ public class UsbFacade
         private byte[] buffer;
         private AtomicBoolean keep;
         private AtomicBoolean waiting;
+        private AtomicBoolean cancelled;
+        private volatile int timeout;
 
         public DataInThread()
         {
             this.buffer = new byte[USB_ENDPOINT_LENGTH];
             this.keep = new AtomicBoolean(true);
             this.waiting = new AtomicBoolean(true);
+            this.cancelled = new AtomicBoolean(false);
+            this.timeout = DEFAULT_TIMEOUT;
         }
 
         @Override
@@ -230,7 +346,7 @@ public class UsbFacade
             waitTillBufferSet();
             while(keep.get())
             {
-                int response = mConnection.bulkTransfer(inEndpoint, buffer, USB_IN_BUFFER_LENGTH, 0);
+                int response = transport.bulkTransferIn(buffer, USB_IN_BUFFER_LENGTH, timeout);
 
                 if(response > 0)
                 {
@@ -243,29 +359,45 @@ public class UsbFacade
 
                     if(receivedData.length == CommandWrapper.CBS_SIZE && cswSignature == CommandBlockWrapper.CBS_SIGNATURE) // It is a CSW
                     {
+                        stopTiming(receivedData);
                         if(facadeInterface != null)
                             facadeInterface.cswData(receivedData);
                         waitTillBufferSet();
                     }else // It is data to host
                     {
+                        if(timing.get())
+                        {
+                            dataBytes += response;
+                            dataEnd = System.nanoTime();
+                        }
                         if(facadeInterface != null)
                             facadeInterface.dataToHost(receivedData);
                     }
+                }else if(cancelled.getAndSet(false)) // Command was cancelled, wait for the next one
+                {
+                    waitTillBufferSet();
                 }
             }
         }
 
-        public synchronized void setBuffer(int bufferLength)
+        public synchronized void setBuffer(int bufferLength, int timeout)
         {
             if(bufferLength != buffer.length)
                 this.buffer = new byte[bufferLength];
+            this.timeout = timeout;
             waiting.set(false);
             notify();
         }
 
+        public synchronized void cancel()
+        {
+            cancelled.set(true);
+            waiting.set(true);
+        }
+
         private synchronized void waitTillBufferSet()
         {
-            while(waiting.get())
+            while(waiting.get() && keep.get())
             {
                 try
                 {
@@ -278,9 +410,10 @@ public class UsbFacade
             waiting.set(true);
         }
 
-        public void stopThread()
+        public synchronized void stopThread()
         {
             keep.set(false);
+            notify();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package com.felhr.usbmassstorageforandroid.bulkonly;
+
+public interface UsbTransport
+{
+    /*
+        USB pipes of a Bulk-Only mass storage interface, as used by UsbFacade.
+        AndroidUsbTransport goes through UsbDeviceConnection, EmulatedMassStorageDevice is a device in software.
+        Transfers return the number of bytes transferred or a negative value if they failed,
+        like UsbDeviceConnection. timeout is in ms, 0 waits forever
+     */
+
+    /*
+        Claim the mass storage interface and find its bulk endpoints
+     */
+    boolean open();
+
+    int bulkTransferOut(byte[] buffer, int length, int timeout);
+
+    int bulkTransferIn(byte[] buffer, int length, int timeout);
+
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout);
+
+    /*
+        bInterfaceNumber of the mass storage interface, class specific requests are addressed to it
+     */
+    int getInterfaceNumber();
+
+    void close();
+}
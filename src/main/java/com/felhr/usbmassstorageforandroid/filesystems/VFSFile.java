@@ -24,6 +24,7 @@ public class VFSFile
     private Date lastAccessedDate;
     private Date lastModifiedDate;
     private long size;
+    private FileEntry fileEntry; // null if the file was not created from an entry
 
     public VFSFile()
     {
@@ -67,13 +68,16 @@ public class VFSFile
         file.setIsVolume(entry.isVolume());
         file.setIsDirectory(entry.isDirectory());
         file.setIsArchive(entry.isArchive());
-        file.setCreationDate(entry.getCreationDate());
-        file.setLastAccessedDate(entry.getLastAccessedDate());
-        file.setLastModifiedDate(entry.getLastModifiedDate());
         file.setSize(entry.getSize());
+        file.fileEntry = entry;
         return file;
     }
 
+    FileEntry getFileEntry()
+    {
+        return fileEntry;
+    }
+
     public String getFileName()
     {
         return fileName;
@@ -142,8 +146,13 @@ public class VFSFile
         this.isArchive = isArchive;
     }
 
+    /*
+        Dates of files built from an entry are decoded when they are first asked for
+     */
     public Date getCreationDate()
     {
+        if(creationDate == null && fileEntry != null)
+            creationDate = fileEntry.getCreationDate();
         return creationDate;
     }
 
@@ -154,6 +163,8 @@ public class VFSFile
 
     public Date getLastAccessedDate()
     {
+        if(lastAccessedDate == null && fileEntry != null)
+            lastAccessedDate = fileEntry.getLastAccessedDate();
         return lastAccessedDate;
     }
 
@@ -164,6 +175,8 @@ public class VFSFile
 
     public Date getLastModifiedDate()
     {
+        if(lastModifiedDate == null && fileEntry != null)
+            lastModifiedDate = fileEntry.getLastModifiedDate();
         return lastModifiedDate;
     }
 
@@ -3,10 +3,14 @@ package com.felhr.usbmassstorageforandroid.filesystems;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 
+import com.felhr.usbmassstorageforandroid.blockdevice.BlockDevice;
 import com.felhr.usbmassstorageforandroid.filesystems.fat32.FATHandler;
 import com.felhr.usbmassstorageforandroid.filesystems.fat32.FileEntry;
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
+import com.felhr.usbmassstorageforandroid.scsi.SCSICommunicator;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -21,21 +25,98 @@ public class VirtualFileSystem
     public static final int CACHE_MEDIUM = 2; // Cache half of the FAT
     public static final int CACHE_HIGH = 3; // Cache the whole FAT
 
+    private SCSICommunicator comm;
     private FATHandler fatHandler;
+    private VirtualFileSystem[] lunFileSystems; // Shared by the file systems of every LUN
+
+    public interface WalkVisitor
+    {
+        /*
+            Called for every file and directory under the root of the walk, parents before their children.
+            Return false to stop the walk
+         */
+        boolean visit(String path, VFSFile file);
+
+        /*
+            Called when the directory path (ending in /) could not be read, its entries are not visited.
+            Return false to stop the walk, true to go on with the other directories
+         */
+        boolean onError(String path);
+    }
+
+    public interface DataVisitor
+    {
+        /*
+            Called with consecutive pieces of a file, data is read-only and must not be kept after returning.
+            Return false to stop reading
+         */
+        boolean visit(ByteBuffer data);
+    }
 
     public VirtualFileSystem(UsbDevice mDevice, UsbDeviceConnection mConnection)
     {
-        fatHandler = new FATHandler(mDevice, mConnection);
+        comm = new SCSICommunicator(mDevice, mConnection);
+        fatHandler = new FATHandler(comm);
+        lunFileSystems = new VirtualFileSystem[Math.max(0, comm.getMaxLun()) + 1];
+        lunFileSystems[0] = this;
+    }
+
+    /*
+        File system on any block device, i.e. a disk image (see FileBlockDevice). It has a single LUN
+     */
+    public VirtualFileSystem(BlockDevice device)
+    {
+        fatHandler = new FATHandler(device);
+        lunFileSystems = new VirtualFileSystem[]{this};
+    }
+
+    private VirtualFileSystem(SCSICommunicator comm, VirtualFileSystem[] lunFileSystems)
+    {
+        this.comm = comm;
+        this.fatHandler = new FATHandler(comm);
+        this.lunFileSystems = lunFileSystems;
+    }
+
+    /*
+        Highest LUN of the device, card readers expose one LUN per slot
+     */
+    public int getMaxLun()
+    {
+        return lunFileSystems.length - 1;
+    }
+
+    /*
+        File system of another LUN of the same device. It is mounted independently and
+        its commands share the USB pipe with the other LUNs, so operations on different LUNs
+        run at the same time when they are called from different threads.
+     */
+    public VirtualFileSystem getLunFileSystem(int lun)
+    {
+        if(lun < 0 || lun >= lunFileSystems.length)
+            return null;
+        synchronized(lunFileSystems)
+        {
+            if(lunFileSystems[lun] == null)
+                lunFileSystems[lun] = new VirtualFileSystem(comm.getLunCommunicator(lun), lunFileSystems);
+            return lunFileSystems[lun];
+        }
     }
 
     public boolean mount(int index)
     {
-        return fatHandler.mount(index, CACHE_NONE);
+        return mount(index, CACHE_NONE);
     }
 
     public boolean mount(int index, int cacheMode)
     {
-        return fatHandler.mount(index, cacheMode);
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_MOUNT);
+        try
+        {
+            return fatHandler.mount(index, cacheMode);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
     public List<String> list()
@@ -71,6 +152,38 @@ public class VirtualFileSystem
         return files;
     }
 
+    /*
+        Lazy listing of the directory absolutePath, the directory is read as the iterator advances.
+        Returns null if absolutePath is not a directory. hasNext() and next() throw IllegalStateException
+        if a cluster of the directory cannot be read, see FATHandler.iterateDirectory()
+     */
+    public Iterator<VFSFile> iterateFiles(String absolutePath)
+    {
+        final Iterator<FileEntry> entries = fatHandler.iterateDirectory(absolutePath);
+        if(entries == null)
+            return null;
+        return new Iterator<VFSFile>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return entries.hasNext();
+            }
+
+            @Override
+            public VFSFile next()
+            {
+                return VFSFile.getVFSFile(entries.next());
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     public String getPath()
     {
         String path = "/";
@@ -90,50 +203,201 @@ public class VirtualFileSystem
         return path;
     }
 
+    /*
+        Resolve an absolute path like /DCIM/100MEDIA/IMG_0001.JPG without changing the current path.
+        Returns null if the path does not exist or if it is the root directory.
+        It can be called from several threads at the same time
+     */
+    public VFSFile resolve(String absolutePath)
+    {
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_RESOLVE);
+        FileEntry entry;
+        try
+        {
+            entry = fatHandler.resolve(absolutePath);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
+        if(entry == null)
+            return null;
+        return VFSFile.getVFSFile(entry);
+    }
+
+    /*
+        Visit every file and directory under the directory absolutePath without changing the current path.
+        Directories are read ahead of the visitor, so the walk is bound by the USB transfers rather than
+        by the time the visitor spends on each file. Directories that cannot be read are passed to
+        WalkVisitor.onError(). Returns false if the walk did not reach every file
+     */
+    public boolean walk(String absolutePath, final WalkVisitor visitor)
+    {
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_WALK);
+        try
+        {
+            return fatHandler.walk(absolutePath, new FATHandler.WalkVisitor()
+            {
+                @Override
+                public boolean visit(String path, FileEntry entry)
+                {
+                    return visitor.visit(path, VFSFile.getVFSFile(entry));
+                }
+
+                @Override
+                public boolean onError(String path)
+                {
+                    return visitor.onError(path);
+                }
+            });
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
+    }
+
     public boolean changeDir(String dirName)
     {
-        boolean result = fatHandler.changeDir(dirName);
-        return result;
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_CHANGE_DIR);
+        try
+        {
+            return fatHandler.changeDir(dirName);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
     public boolean changeDir(VFSFile file)
     {
-        boolean result = fatHandler.changeDir(file.getFileName());
-        return result;
+        return changeDir(file.getFileName());
     }
 
     public boolean changeDirBack()
     {
-        boolean result = fatHandler.changeDirBack();
-        return result;
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_CHANGE_DIR);
+        try
+        {
+            return fatHandler.changeDirBack();
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
     public boolean writeFile(File file)
     {
-        boolean result = fatHandler.writeNewFile(file);
-        return result;
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_WRITE_FILE);
+        try
+        {
+            return fatHandler.writeNewFile(file);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
     public byte[] readFile(String fileName)
     {
-        byte[] data = fatHandler.readFile(fileName);
-        return data;
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_READ_FILE);
+        try
+        {
+            return fatHandler.readFile(fileName);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
+    /*
+        Files from resolve() or listFiles() are read wherever they are, other files are looked up in the current path
+     */
     public byte[] readFile(VFSFile file)
     {
-        byte[] data = fatHandler.readFile(file.getFileName());
-        return data;
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_READ_FILE);
+        try
+        {
+            if(file.getFileEntry() != null)
+                return fatHandler.readFile(file.getFileEntry());
+            else
+                return fatHandler.readFile(file.getFileName());
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
+    }
+
+    /*
+        Read a file piece by piece without loading it whole, see FATHandler.readFile(FileEntry, DataVisitor)
+     */
+    public boolean readFile(VFSFile file, final DataVisitor visitor)
+    {
+        FATHandler.DataVisitor dataVisitor = new FATHandler.DataVisitor()
+        {
+            @Override
+            public boolean visit(ByteBuffer data)
+            {
+                return visitor.visit(data);
+            }
+        };
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_READ_FILE);
+        try
+        {
+            if(file.getFileEntry() != null)
+                return fatHandler.readFile(file.getFileEntry(), dataVisitor);
+            else
+                return fatHandler.readFile(file.getFileName(), dataVisitor);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
     public boolean deleteFile(String fileName)
     {
-        boolean result = fatHandler.deleteFile(fileName);
-        return result;
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_DELETE_FILE);
+        try
+        {
+            return fatHandler.deleteFile(fileName);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
+    }
+
+    /*
+        Remove the gaps left by deleted files in the current directory, see FATHandler.compactDirectory()
+     */
+    public boolean compactDir()
+    {
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_COMPACT_DIR);
+        try
+        {
+            return fatHandler.compactDirectory();
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
     }
 
     public boolean unMount()
     {
-        return fatHandler.unMount();
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_UNMOUNT);
+        try
+        {
+            return fatHandler.unMount();
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
+    }
+
+    /*
+        Release the USB device after unMount(), the file system cannot be mounted again.
+        Closing LUN 0 closes the device for every LUN, so the other LUNs must be unmounted first
+     */
+    public void close()
+    {
+        if(comm != null)
+            comm.closeSCSICommunicator();
     }
 }
@@ -0,0 +1,248 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+public class BlockCache
+{
+    /*
+        Write policies
+        WRITE_THROUGH: every write goes straight to the device
+        WRITE_BACK: dirty blocks stay on the host until flush() is called
+        FUA_METADATA: every write goes straight to the device with the Force Unit Access bit set
+     */
+    public static final int WRITE_THROUGH = 0;
+    public static final int WRITE_BACK = 1;
+    public static final int FUA_METADATA = 2;
+
+    private static final int BLOCK_LENGTH = 512;
+
+    private final BlockIO blockIO;
+    private final LinkedHashMap<Long, byte[]> blocks; // access ordered, eldest block is the least recently used
+    private final TreeSet<Long> dirtyBlocks;
+    private int writePolicy;
+    private int capacity; // blocks
+    private int pageBlocks;
+    private long regionStart;
+    private long regionEnd;
+
+    public interface BlockIO
+    {
+        byte[] readBlocks(long lba, int blocks);
+        boolean writeBlocks(long lba, byte[] data, boolean fua);
+
+        /*
+            Longest write flush() may issue, it may change between calls
+         */
+        int getMaxTransferBlocks();
+    }
+
+    public BlockCache(BlockIO blockIO, int capacity)
+    {
+        this.blockIO = blockIO;
+        this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+        this.dirtyBlocks = new TreeSet<Long>();
+        this.writePolicy = WRITE_THROUGH;
+        this.capacity = capacity;
+        this.pageBlocks = 1;
+    }
+
+    /*
+        Switching away from WRITE_BACK writes every dirty block first
+     */
+    public synchronized boolean setWritePolicy(int writePolicy)
+    {
+        boolean result = true;
+        if(this.writePolicy == WRITE_BACK && writePolicy != WRITE_BACK)
+            result = flush();
+        this.writePolicy = writePolicy;
+        return result;
+    }
+
+    public synchronized int getWritePolicy()
+    {
+        return writePolicy;
+    }
+
+    public synchronized void setCapacity(int capacity)
+    {
+        this.capacity = Math.max(capacity, pageBlocks);
+        evict();
+    }
+
+    /*
+        A miss inside [regionStart, regionEnd) reads the whole page of pageBlocks
+        blocks that contains the requested block
+     */
+    public synchronized void setReadAhead(long regionStart, long regionEnd, int pageBlocks)
+    {
+        this.regionStart = regionStart;
+        this.regionEnd = regionEnd;
+        this.pageBlocks = Math.max(1, pageBlocks);
+        this.capacity = Math.max(capacity, this.pageBlocks);
+    }
+
+    /*
+        Returns a copy of the block or null if it could not be read
+     */
+    public synchronized byte[] read(long lba)
+    {
+        byte[] block = blocks.get(lba);
+        StackMetrics.recordCacheAccess(StackMetrics.CACHE_FAT, block != null);
+        if(block == null)
+        {
+            if(!loadPage(lba))
+                return null;
+            block = blocks.get(lba);
+        }
+        return Arrays.copyOf(block, BLOCK_LENGTH);
+    }
+
+    /*
+        Little-endian unsigned 32 bit value at offset of the block, read in place without copying the block.
+        -1 if the block could not be read
+     */
+    public synchronized long readUint32(long lba, int offset)
+    {
+        byte[] block = blocks.get(lba);
+        StackMetrics.recordCacheAccess(StackMetrics.CACHE_FAT, block != null);
+        if(block == null)
+        {
+            if(!loadPage(lba))
+                return -1;
+            block = blocks.get(lba);
+        }
+        return (block[offset] & 0xffL) | ((block[offset + 1] & 0xffL) << 8)
+                | ((block[offset + 2] & 0xffL) << 16) | ((block[offset + 3] & 0xffL) << 24);
+    }
+
+    /*
+        data must be one block long
+     */
+    public synchronized boolean write(long lba, byte[] data)
+    {
+        byte[] block = Arrays.copyOf(data, BLOCK_LENGTH);
+        switch(writePolicy)
+        {
+            case WRITE_BACK:
+                blocks.put(lba, block);
+                dirtyBlocks.add(lba);
+                evict();
+                return true;
+            case FUA_METADATA:
+                if(!blockIO.writeBlocks(lba, block, true))
+                    return false;
+                break;
+            default:
+                if(!blockIO.writeBlocks(lba, block, false))
+                    return false;
+                break;
+        }
+        blocks.put(lba, block);
+        evict();
+        return true;
+    }
+
+    /*
+        Write every dirty block. Consecutive blocks are written with a single command
+     */
+    public synchronized boolean flush()
+    {
+        boolean result = true;
+        int maxTransferBlocks = Math.max(1, blockIO.getMaxTransferBlocks());
+        Iterator<Long> e = new TreeSet<Long>(dirtyBlocks).iterator();
+        long runStart = -1;
+        int runLength = 0;
+        byte[] run = new byte[maxTransferBlocks * BLOCK_LENGTH];
+        while(e.hasNext())
+        {
+            long lba = e.next();
+            if(runLength > 0 && (lba != runStart + runLength || runLength == maxTransferBlocks))
+            {
+                result &= writeRun(runStart, run, runLength);
+                runLength = 0;
+            }
+            if(runLength == 0)
+                runStart = lba;
+            System.arraycopy(blocks.get(lba), 0, run, runLength * BLOCK_LENGTH, BLOCK_LENGTH);
+            runLength++;
+        }
+        if(runLength > 0)
+            result &= writeRun(runStart, run, runLength);
+        return result;
+    }
+
+    public synchronized boolean isDirty()
+    {
+        return !dirtyBlocks.isEmpty();
+    }
+
+    /*
+        Drop every clean block. Dirty blocks are kept until they are flushed
+     */
+    public synchronized void invalidate()
+    {
+        Iterator<Long> e = blocks.keySet().iterator();
+        while(e.hasNext())
+        {
+            if(!dirtyBlocks.contains(e.next()))
+                e.remove();
+        }
+    }
+
+    private boolean writeRun(long lba, byte[] run, int runLength)
+    {
+        byte[] data = run;
+        if(runLength * BLOCK_LENGTH != run.length)
+            data = Arrays.copyOf(run, runLength * BLOCK_LENGTH);
+        if(!blockIO.writeBlocks(lba, data, false))
+            return false;
+        for(int i=0;i<=runLength-1;i++)
+            dirtyBlocks.remove(lba + i);
+        return true;
+    }
+
+    private boolean loadPage(long lba)
+    {
+        long start = lba;
+        int count = 1;
+        if(pageBlocks > 1 && lba >= regionStart && lba < regionEnd)
+        {
+            start = regionStart + ((lba - regionStart) / pageBlocks) * pageBlocks;
+            count = (int) Math.min(pageBlocks, regionEnd - start);
+        }
+
+        byte[] data = blockIO.readBlocks(start, count);
+        if(data == null || data.length < count * BLOCK_LENGTH)
+            return false;
+
+        for(int i=0;i<=count-1;i++)
+        {
+            long blockLba = start + i;
+            if(!dirtyBlocks.contains(blockLba)) // Never overwrite a block that has not been written yet
+                blocks.put(blockLba, Arrays.copyOfRange(data, i * BLOCK_LENGTH, (i + 1) * BLOCK_LENGTH));
+        }
+        blocks.get(lba); // Requested block becomes the most recently used one
+        evict();
+        return true;
+    }
+
+    /*
+        Evicting a dirty block flushes every dirty block so writes keep being coalesced.
+        If the flush fails dirty blocks are kept and the cache grows over its capacity
+     */
+    private void evict()
+    {
+        while(blocks.size() > capacity)
+        {
+            Long eldest = blocks.keySet().iterator().next();
+            if(dirtyBlocks.contains(eldest) && !flush())
+                return;
+            blocks.remove(eldest);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DentryCache
+{
+    /*
+        Path component -> directory entry, for path resolution.
+        Children of a directory are indexed all at once, keyed by the first cluster of the directory,
+        so a directory in the cache answers negative lookups too.
+        An index is never modified once it is in the cache, readers can use it without locking.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+
+    private final LinkedHashMap<Long, DirectoryIndex> directories;
+    private final LinkedHashMap<Long, Integer> weights;
+    private int maxEntries;
+    private int cachedEntries;
+
+    public DentryCache()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public DentryCache(int maxEntries)
+    {
+        this.directories = new LinkedHashMap<Long, DirectoryIndex>(16, 0.75f, true);
+        this.weights = new LinkedHashMap<Long, Integer>();
+        this.maxEntries = maxEntries;
+    }
+
+    /*
+        null if the directory is not in the cache
+     */
+    public synchronized DirectoryIndex getIndex(long directoryCluster)
+    {
+        return directories.get(directoryCluster);
+    }
+
+    public synchronized DirectoryIndex put(long directoryCluster, List<FileEntry> entries)
+    {
+        invalidate(directoryCluster);
+        DirectoryIndex index = new DirectoryIndex();
+        for(int i=0;i<=entries.size()-1;i++)
+            index.put(entries.get(i));
+
+        int weight = entries.size() + 1;
+        if(weight <= maxEntries)
+        {
+            directories.put(directoryCluster, index);
+            weights.put(directoryCluster, weight);
+            cachedEntries += weight;
+            evict();
+        }
+        return index;
+    }
+
+    public synchronized void invalidate(long directoryCluster)
+    {
+        directories.remove(directoryCluster);
+        Integer weight = weights.remove(directoryCluster);
+        if(weight != null)
+            cachedEntries -= weight;
+    }
+
+    public synchronized void clear()
+    {
+        directories.clear();
+        weights.clear();
+        cachedEntries = 0;
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Long, DirectoryIndex>> e = directories.entrySet().iterator();
+        while(cachedEntries > maxEntries && e.hasNext())
+        {
+            long directoryCluster = e.next().getKey();
+            e.remove();
+            cachedEntries -= weights.remove(directoryCluster);
+        }
+    }
+}
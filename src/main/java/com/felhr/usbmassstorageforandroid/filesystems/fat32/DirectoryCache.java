@@ -0,0 +1,123 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DirectoryCache
+{
+    /*
+        Parsed directories keyed by their first cluster. The least recently used directories are
+        evicted when the cached entries of all directories exceed maxEntries.
+        Writers must invalidate the directories they modify.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 32768;
+
+    private final LinkedHashMap<Long, CachedDirectory> directories;
+    private int maxEntries;
+    private int cachedEntries;
+
+    public DirectoryCache()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public DirectoryCache(int maxEntries)
+    {
+        this.directories = new LinkedHashMap<Long, CachedDirectory>(16, 0.75f, true);
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized CachedDirectory get(long firstCluster)
+    {
+        CachedDirectory directory = directories.get(firstCluster);
+        StackMetrics.recordCacheAccess(StackMetrics.CACHE_DIRECTORY, directory != null);
+        return directory;
+    }
+
+    /*
+        Returns the new directory, even if it is too big to be kept in the cache
+     */
+    public synchronized CachedDirectory put(long firstCluster, List<Long> clusterChain, List<FileEntry> entries, int freeEntries)
+    {
+        invalidate(firstCluster);
+        CachedDirectory directory = new CachedDirectory(clusterChain, entries, freeEntries);
+        if(directory.getWeight() > maxEntries)
+            return directory;
+        directories.put(firstCluster, directory);
+        cachedEntries += directory.getWeight();
+        evict();
+        return directory;
+    }
+
+    public synchronized void invalidate(long firstCluster)
+    {
+        CachedDirectory directory = directories.remove(firstCluster);
+        if(directory != null)
+            cachedEntries -= directory.getWeight();
+    }
+
+    public synchronized void clear()
+    {
+        directories.clear();
+        cachedEntries = 0;
+    }
+
+    public synchronized void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Long, CachedDirectory>> e = directories.entrySet().iterator();
+        while(cachedEntries > maxEntries && e.hasNext())
+        {
+            cachedEntries -= e.next().getValue().getWeight();
+            e.remove();
+        }
+    }
+
+    public static class CachedDirectory
+    {
+        private final List<Long> clusterChain;
+        private final List<FileEntry> entries;
+        private final int freeEntries;
+
+        private CachedDirectory(List<Long> clusterChain, List<FileEntry> entries, int freeEntries)
+        {
+            this.clusterChain = new ArrayList<Long>(clusterChain);
+            this.entries = Collections.unmodifiableList(new ArrayList<FileEntry>(entries));
+            this.freeEntries = freeEntries;
+        }
+
+        /*
+            A copy, callers may modify it
+         */
+        public List<Long> getClusterChain()
+        {
+            return new ArrayList<Long>(clusterChain);
+        }
+
+        public List<FileEntry> getEntries()
+        {
+            return entries;
+        }
+
+        public int getFreeEntries()
+        {
+            return freeEntries;
+        }
+
+        private int getWeight()
+        {
+            return entries.size() + 1;
+        }
+    }
+}
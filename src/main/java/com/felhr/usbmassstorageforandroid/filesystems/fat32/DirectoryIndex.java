@@ -0,0 +1,134 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+import java.util.Arrays;
+
+public class DirectoryIndex
+{
+    /*
+        Case insensitive hash index of the entries of a directory, keyed by FileEntry.getName().
+        Open addressing with linear probing, so neither lookups nor insertions allocate.
+     */
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+
+    private FileEntry[] entries;
+    private int[] hashes;
+    private int mask;
+    private int size;
+
+    public DirectoryIndex()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void put(FileEntry entry)
+    {
+        if((size + 1) * 2 > entries.length) // Keep load factor under 0.5
+            rehash(entries.length * 2);
+
+        int hash = hash(entry.getName());
+        int i = hash & mask;
+        while(entries[i] != null)
+        {
+            if(entries[i] == entry)
+                return;
+            i = (i + 1) & mask;
+        }
+        entries[i] = entry;
+        hashes[i] = hash;
+        size++;
+    }
+
+    public FileEntry get(String name)
+    {
+        int hash = hash(name);
+        int i = hash & mask;
+        while(entries[i] != null)
+        {
+            if(hashes[i] == hash && entries[i].getName().equalsIgnoreCase(name))
+                return entries[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean remove(FileEntry entry)
+    {
+        int i = hash(entry.getName()) & mask;
+        while(entries[i] != entry)
+        {
+            if(entries[i] == null)
+                return false;
+            i = (i + 1) & mask;
+        }
+        entries[i] = null;
+        size--;
+
+        // Shift back the entries of the probe sequence so lookups do not stop at the hole
+        int j = i;
+        while(true)
+        {
+            j = (j + 1) & mask;
+            if(entries[j] == null)
+                return true;
+            int k = hashes[j] & mask; // Preferred slot of the entry at j
+            boolean inPlace = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if(!inPlace)
+            {
+                entries[i] = entries[j];
+                hashes[i] = hashes[j];
+                entries[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    public void clear()
+    {
+        if(entries.length > INITIAL_CAPACITY)
+            allocate(INITIAL_CAPACITY);
+        else
+            Arrays.fill(entries, null);
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /*
+        Same folding String.equalsIgnoreCase uses, char by char
+     */
+    private static int hash(String name)
+    {
+        int h = 0;
+        for(int i=0;i<=name.length()-1;i++)
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity)
+    {
+        entries = new FileEntry[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity)
+    {
+        FileEntry[] oldEntries = entries;
+        int[] oldHashes = hashes;
+        allocate(capacity);
+        for(int i=0;i<=oldEntries.length-1;i++)
+        {
+            if(oldEntries[i] != null)
+            {
+                int j = oldHashes[i] & mask;
+                while(entries[j] != null)
+                    j = (j + 1) & mask;
+                entries[j] = oldEntries[i];
+                hashes[j] = oldHashes[i];
+            }
+        }
+    }
+}
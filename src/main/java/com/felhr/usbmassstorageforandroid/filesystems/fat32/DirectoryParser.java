@@ -0,0 +1,62 @@
+package com.felhr.usbmassstorageforandroid.filesystems.fat32;
+
+public class DirectoryParser
+{
+    /*
+        Parses the 32-byte slots of a directory one at a time, in order. LFN slots are decoded into
+        a reusable char[] at the position given by their sequence number, so a long name is built
+        with a single String when the short entry it belongs to arrives.
+     */
+    public static final int ENTRY_SIZE = 32;
+
+    private final char[] longName;
+    private int longNameLength;
+    private int lfnEntries;
+
+    public DirectoryParser()
+    {
+        this.longName = new char[LFNHandler.MAX_LFN_ENTRIES * LFNHandler.LFN_CHARS];
+    }
+
+    /*
+        True if the slot at offset marks the end of the directory, no entries follow it
+     */
+    public static boolean isEndOfDirectory(byte[] data, int offset)
+    {
+        return data[offset] == 0x00;
+    }
+
+    /*
+        Parse the slot at offset of data. directoryOffset is the offset of the slot from the beginning of the directory.
+        Returns the entry if the slot is a short entry, null for LFN, deleted and free slots
+     */
+    public FileEntry parse(byte[] data, int offset, int directoryOffset)
+    {
+        if(data[offset] == 0x00 || data[offset] == (byte) 0xe5)
+            return null;
+
+        byte attr = data[offset + 11];
+        if(attr == 0x0f || attr == 0x1f || attr == 0x2f || attr == 0x3f) // LFN Entry
+        {
+            int sequence = data[offset] & 0x1f;
+            if(sequence >= 1 && sequence <= LFNHandler.MAX_LFN_ENTRIES)
+            {
+                int index = (sequence - 1) * LFNHandler.LFN_CHARS;
+                int chars = LFNHandler.decodeLFNEntry(data, offset, longName, index);
+                longNameLength = Math.max(longNameLength, index + chars);
+            }
+            lfnEntries++;
+            return null;
+        }
+
+        // Normal entry
+        String lfn = null;
+        if(lfnEntries > 0)
+            lfn = new String(longName, 0, longNameLength);
+        FileEntry entry = FileEntry.getEntry(lfn, data, offset);
+        entry.setDirectoryOffset(directoryOffset, lfnEntries);
+        lfnEntries = 0;
+        longNameLength = 0;
+        return entry;
+    }
+}
@@ -2,28 +2,31 @@ package com.felhr.usbmassstorageforandroid.filesystems.fat32;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.util.Log;
 
+import com.felhr.usbmassstorageforandroid.blockdevice.BlockDevice;
+import com.felhr.usbmassstorageforandroid.blockdevice.SCSIBlockDevice;
 import com.felhr.usbmassstorageforandroid.filesystems.MasterBootRecord;
 import com.felhr.usbmassstorageforandroid.filesystems.Partition;
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
 import com.felhr.usbmassstorageforandroid.scsi.SCSICommunicator;
-import com.felhr.usbmassstorageforandroid.scsi.SCSIInterface;
-import com.felhr.usbmassstorageforandroid.scsi.SCSIRead10Response;
-import com.felhr.usbmassstorageforandroid.scsi.SCSIResponse;
 import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
 
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -31,15 +34,21 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class FATHandler
 {
-    private static final int LOAD_CACHE = 0;
-    private static final int FIND_EMPTY_CLUSTERCHAIN = 1;
-
-    private SCSICommunicator comm;
-    private final Object monitor;
+    private static final int BLOCK_LENGTH = 512;
+    private static final int MAX_ALIGNED_PROBES = 64;
+    private static final int BLOCK_CACHE_CAPACITY = 256; // FAT sectors
+    private static final int BLOCK_CACHE_CAPACITY_NO_DEVICE_CACHE = 4096; // FAT sectors, 2MB
+    private static final int WALK_PREFETCH_DIRECTORIES = 8; // Directories read ahead of the visitor during a walk
+    private static final long MAX_FILE_SIZE = 0xffffffffL; // Size field of a directory entry
+
+    // FAT32 entries, only the low 28 bits are meaningful
+    private static final long FAT_ENTRY_MASK = 0x0fffffffL;
+    private static final long BAD_CLUSTER = 0x0ffffff7L;
+    private static final long END_OF_CHAIN = 0x0ffffff8L; // And above
+    private static final long CLUSTER_ERROR = -1; // The FAT could not be read or the chain is corrupted
+
+    private BlockDevice device;
     private final Object cacheMonitor;
-    private SCSIResponse currentResponse;
-    private boolean currentStatus;
-    private AtomicBoolean waiting;
 
     private MasterBootRecord mbr;
 
@@ -47,35 +56,58 @@ public class FATHandler
     private Partition partition;
     private ReservedRegion reservedRegion;
     private Path path;
+    private DirectoryCache directoryCache;
+    private DentryCache dentryCache;
+
+    //Device limits, see BlockDevice
+    private int cachePageSectors;
+    private long allocationAlignment; // clusters, 0 if allocations are not aligned
+    private long firstAlignedCluster;
+
+    //FAT sectors cache, see probeWriteCache()
+    private BlockCache blockCache;
+    private boolean synchronizeCache; // Device has a volatile write cache that must be flushed
 
     //CacheThread vars
-    private Handler wHandler;
     private FAT32Cache cache;
     private CacheThread cacheThread;
 
     public FATHandler(UsbDevice mDevice, UsbDeviceConnection mConnection)
     {
-        this.comm = new SCSICommunicator(mDevice, mConnection);
-        this.monitor = new Object();
+        this(new SCSIBlockDevice(mDevice, mConnection));
+    }
+
+    /*
+        comm may be the communicator of any LUN, see SCSICommunicator.getLunCommunicator()
+     */
+    public FATHandler(SCSICommunicator comm)
+    {
+        this(new SCSIBlockDevice(comm));
+    }
+
+    public FATHandler(BlockDevice device)
+    {
+        this.device = device;
         this.cacheMonitor = new Object();
         this.cache = new FAT32Cache();
         this.path = new Path();
-        this.waiting = new AtomicBoolean(true);
-        this.cacheThread = new CacheThread();
+        this.directoryCache = new DirectoryCache();
+        this.dentryCache = new DentryCache();
+        this.blockCache = new BlockCache(blockIO, BLOCK_CACHE_CAPACITY);
     }
 
-    public boolean mount(int partitionIndex, int cacheMode)
+    public synchronized boolean mount(int partitionIndex, int cacheMode)
     {
-        boolean isOpen = comm.openSCSICommunicator(scsiInterface);
-
-        if(!isOpen)
+        if(!device.open())
             return false;
 
-        testUnitReady();
+        if(device.getBlockSize() != BLOCK_LENGTH)
+            return false;
 
-        if(currentStatus)
-            mbr = getMbr();
-        else
+        cachePageSectors = device.getMaxTransferLength() / BLOCK_LENGTH;
+        probeWriteCache();
+        mbr = getMbr();
+        if(mbr == null)
             return false;
 
         if(mbr.getPartitions().length >= partitionIndex + 1)
@@ -84,15 +116,17 @@ public class FATHandler
             if(!partition.isFAT32())
                 return false;
             reservedRegion = getReservedRegion();
-            List<Long> clustersRoot = getClusterChain(2);
-            byte[] data = readClusters(clustersRoot);
-            path.setDirectoryContent(getFileEntries(data));
+            computeAllocationAlignment();
+            long lbaFatStart = getEntryLBA(0);
+            blockCache.setReadAhead(lbaFatStart, lbaFatStart + reservedRegion.getNumberSectorsPerFat(), cachePageSectors);
+            directoryCache.clear();
+            dentryCache.clear();
+            loadDirectory(2);
 
             if(cacheMode != 0)
             {
+                cacheThread = new CacheThread(cacheMode);
                 cacheThread.start();
-                while(wHandler == null){}
-                wHandler.obtainMessage(LOAD_CACHE, cacheMode, 0).sendToTarget();
                 cacheThread.waitTillCaching();
             }
             return true;
@@ -102,9 +136,10 @@ public class FATHandler
         }
     }
 
-    public boolean unMount()
+    public synchronized boolean unMount()
     {
-        return preventAllowRemoval(false);
+        boolean synced = syncMetadata();
+        return device.close() && synced;
     }
 
     public List<FileEntry> list()
@@ -117,33 +152,20 @@ public class FATHandler
         return path.getAbsolutePath();
     }
 
-    public boolean changeDir(String directoryName)
+    public synchronized boolean changeDir(String directoryName)
     {
-        Iterator<FileEntry> e = path.getDirectoryContent().iterator();
-        while(e.hasNext())
+        FileEntry entry = path.getFileEntry(directoryName);
+        if(entry != null && entry.isDirectory())
         {
-            FileEntry entry = e.next();
-            String name;
-            if(!entry.getLongName().equals(""))
-                name = entry.getLongName();
-            else
-                name = entry.getShortName();
-            if(name.equalsIgnoreCase(directoryName) && entry.isDirectory())
-            {
-                path.addDirectory(entry);
-                long firstCluster = entry.getFirstCluster();
-                List<Long> clusterChain = getClusterChain(firstCluster);
-                byte[] data = readClusters(clusterChain);
-                path.clearDirectoryContent();
-                path.setDirectoryContent(getFileEntries(data));
-                return true;
-            }
+            path.addDirectory(entry);
+            loadDirectory(entry.getFirstCluster());
+            return true;
         }
 
         return false;
     }
 
-    public boolean changeDirBack()
+    public synchronized boolean changeDirBack()
     {
         FileEntry currentEntry = path.getCurrentDirectory();
         if(currentEntry != null)
@@ -151,23 +173,8 @@ public class FATHandler
             path.clearDirectoryContent();
             if(path.deleteLastDir())
             {
-                if(!path.isRoot())
-                {
-                    FileEntry backEntry = path.getCurrentDirectory();
-                    long firstCluster = backEntry.getFirstCluster();
-                    List<Long> clusterChain = getClusterChain(firstCluster);
-                    byte[] data = readClusters(clusterChain);
-                    path.clearDirectoryContent();
-                    path.setDirectoryContent(getFileEntries(data));
-                    return true;
-                }else
-                {
-                    List<Long> clustersRoot = getClusterChain(2);
-                    byte[] data = readClusters(clustersRoot);
-                    path.clearDirectoryContent();
-                    path.setDirectoryContent(getFileEntries(data));
-                    return true;
-                }
+                loadDirectory(getCurrentDirectoryCluster());
+                return true;
             }else
             {
                 //You are in root directory, no back dir to go!!
@@ -182,127 +189,407 @@ public class FATHandler
     /*
         Filename: fileName should be a LFN or a short file name + extension
      */
-    public byte[] readFile(String fileName)
+    public synchronized byte[] readFile(String fileName)
     {
-        Iterator<FileEntry> e = path.getDirectoryContent().iterator();
-        while(e.hasNext())
-        {
-            FileEntry entry = e.next();
-            String name;
-            if(!entry.getLongName().equals(""))
-                name = entry.getLongName();
-            else if(!entry.getFileExtension().equals(""))
-                name = entry.getShortName() + "." + entry.getFileExtension();
-            else
-                name = entry.getShortName();
+        FileEntry entry = path.getFileEntry(fileName);
+        if(entry != null)
+            return readFile(entry);
+        return null;
+    }
 
-            if(name.equalsIgnoreCase(fileName) && !entry.isDirectory())
+    /*
+        Read a file from its entry, wherever it is. See resolve()
+     */
+    public synchronized byte[] readFile(FileEntry entry)
+    {
+        if(!entry.isDirectory())
+        {
+            long firstCluster = entry.getFirstCluster();
+            if(firstCluster != 0) // File size is not 0
             {
-                long firstCluster = entry.getFirstCluster();
-                if(firstCluster != 0) // File size is not 0
-                {
-                    List<Long> clusterChain = getClusterChain(firstCluster);
-                    byte[] data = readClusters(clusterChain);
-                    return Arrays.copyOf(data, (int) entry.getSize());
-                }else
-                {
-                    return new byte[0];
-                }
+                List<Long> clusterChain = getClusterChain(firstCluster);
+                if(clusterChain == null)
+                    return null;
+                byte[] data = readClusters(clusterChain, false);
+                if(data == null || data.length < entry.getSize()) // The chain is shorter than the file
+                    return null;
+                return Arrays.copyOf(data, (int) entry.getSize());
+            }else
+            {
+                return new byte[0];
             }
         }
         return null;
     }
 
-    public boolean writeNewFile(java.io.File file)
+    public interface DataVisitor
     {
-        String fileName = file.getName();
-        boolean isReadOnly = !file.canWrite();
-        boolean isHidden = file.isHidden();
-        boolean isDirectory = file.isDirectory();
-        long lastModified = file.lastModified();
+        /*
+            Called with consecutive pieces of a file, data is read-only and must not be kept after returning.
+            Return false to stop reading
+         */
+        boolean visit(ByteBuffer data);
+    }
 
-        if(!file.isDirectory())
+    /*
+        Read a file without loading it whole. Runs of consecutive clusters are read at once up to the
+        transfer limit of the device and handed to the visitor as they come from the device,
+        a mapped image (see MappedBlockDevice) passes views of its memory without copying them.
+        Returns false if the file could not be read or the visitor stopped
+     */
+    public synchronized boolean readFile(String fileName, DataVisitor visitor)
+    {
+        FileEntry entry = path.getFileEntry(fileName);
+        return entry != null && readFile(entry, visitor);
+    }
+
+    public synchronized boolean readFile(FileEntry entry, DataVisitor visitor)
+    {
+        if(entry.isDirectory())
+            return false;
+
+        long sectorsPerCluster = reservedRegion.getSectorsPerCluster();
+        long clusterLength = sectorsPerCluster * reservedRegion.getBytesPerSector();
+        int maxClusters = (int) Math.max(1, device.getMaxTransferLength() / clusterLength);
+        long firstClusterLba = getFirstClusterLba();
+        long remaining = entry.getSize();
+        long cluster = entry.getFirstCluster();
+        while(remaining > 0 && cluster != 0)
         {
-            byte[] fileData = new byte[(int) file.length()];
-            try
+            if(cluster == CLUSTER_ERROR)
+                return false;
+            long runStart = cluster;
+            int runLength = 1;
+            cluster = getNextCluster(cluster);
+            while(runLength < maxClusters && cluster == runStart + runLength && runLength * clusterLength < remaining)
             {
-                DataInputStream dis = new DataInputStream(new FileInputStream(file));
-                try
-                {
-                    dis.readFully(fileData);
-                } catch (IOException e)
-                {
-                    e.printStackTrace();
-                    return false;
-                }
+                runLength++;
+                cluster = getNextCluster(cluster);
+            }
 
-            }catch(FileNotFoundException e)
-            {
-                e.printStackTrace();
+            long lba = firstClusterLba + (runStart - 2) * sectorsPerCluster;
+            if(StackMetrics.isEnabled())
+                recordBlockRequest(false, lba, (int) (runLength * sectorsPerCluster), false);
+            ByteBuffer data = device.readBuffer(lba, (int) (runLength * sectorsPerCluster));
+            if(data == null)
+                return false;
+            if(data.remaining() > remaining) // Last cluster of the file
+                data.limit((int) remaining);
+            remaining -= data.remaining();
+            if(!visitor.visit(data))
                 return false;
+        }
+        return remaining == 0;
+    }
+
+    /*
+        Directories are copied with importDirectory(), every directory of the tree is written once.
+        Files are streamed from the local file system into their clusters, they are never loaded whole
+     */
+    public synchronized boolean writeNewFile(java.io.File file)
+    {
+        if(!file.isDirectory())
+        {
+            boolean result = importFile(file);
+            return syncMetadata() && result;
+        }
+
+        // FAT sectors of every allocation are written together at the end
+        int writePolicy = blockCache.getWritePolicy();
+        blockCache.setWritePolicy(BlockCache.WRITE_BACK);
+        boolean result = importDirectory(file);
+        result &= blockCache.setWritePolicy(writePolicy);
+        return syncMetadata() && result;
+    }
+
+    /*
+        The data is written before the entry, a failed copy leaves no entry behind and its clusters are freed
+     */
+    private boolean importFile(java.io.File file)
+    {
+        long size = file.length();
+        if(size > MAX_FILE_SIZE)
+            return false;
+        List<Long> fileChain = setClusterChain(getFileClusters(size), true);
+        if(fileChain == null)
+            return false;
+        if(!writeLocalFile(file, size, fileChain) || !writeFileEntry(file.getName(), null, size, !file.canWrite(),
+                file.isHidden(), false, file.lastModified(), fileChain))
+        {
+            deleteClusterChain(fileChain);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+        Copy a local directory tree into the current path. The whole tree is planned first: entries of every
+        directory and clusters of every directory and file. Then each directory is written with a single
+        writeClusters() followed by the data of its files in cluster order, and the entry of the tree
+        in the current path is written last. If anything fails there is no entry pointing to a half copied
+        tree and every planned cluster is freed
+     */
+    private boolean importDirectory(java.io.File directory)
+    {
+        java.io.File[] files = listLocalFiles(directory);
+        List<List<Long>> allocatedChains = new ArrayList<List<Long>>();
+        List<Long> directoryChain = setClusterChain(getDirectoryClusters(files), true);
+        if(directoryChain == null)
+            return false;
+        allocatedChains.add(directoryChain);
+
+        // The .. entry of a directory in the root points to cluster 0, not to the first cluster of the root
+        long parentCluster = path.isRoot() ? 0 : getCurrentDirectoryCluster();
+        List<PlannedDirectory> plan = new ArrayList<PlannedDirectory>();
+        boolean result = planDirectory(files, directoryChain, parentCluster, directory.lastModified(),
+                plan, allocatedChains);
+        for(int i=0;i<=plan.size()-1 && result;i++)
+            result = writePlannedDirectory(plan.get(i));
+        if(result)
+            result = writeFileEntry(directory.getName(), null, 0, !directory.canWrite(), directory.isHidden(), true
+                    , directory.lastModified(), directoryChain);
+
+        if(!result)
+        {
+            for(int i=0;i<=allocatedChains.size()-1;i++)
+                deleteClusterChain(allocatedChains.get(i));
+        }
+        return result;
+    }
+
+    /*
+        Allocate the clusters of the entries of a directory and build its content, then plan its subdirectories.
+        Every allocated chain is added to allocatedChains, the planned directories to plan in the order they are written
+     */
+    private boolean planDirectory(java.io.File[] files, List<Long> directoryChain, long parentCluster, long lastModified,
+                                  List<PlannedDirectory> plan, List<List<Long>> allocatedChains)
+    {
+        int clusterLength = (int) (reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector());
+        PlannedDirectory planned = new PlannedDirectory(files, directoryChain, new byte[directoryChain.size() * clusterLength]);
+        plan.add(planned);
+
+        FileEntry dotEntry = FileEntry.getEntry(".", directoryChain.get(0), 0, null, false, false, true, lastModified);
+        FileEntry dotDotEntry = FileEntry.getEntry("..", parentCluster, 0, null, false, false, true, lastModified);
+        dotDotEntry.writeRawFileEntry(planned.content, dotEntry.writeRawFileEntry(planned.content, 0));
+
+        ShortNameGenerator shortNames = new ShortNameGenerator();
+        int index = 64;
+        for(int i=0;i<=files.length-1;i++)
+        {
+            java.io.File file = files[i];
+            List<Long> fileChain;
+            long size = 0;
+            if(file.isDirectory())
+            {
+                fileChain = setClusterChain(getDirectoryClusters(listLocalFiles(file)), true);
+            }else
+            {
+                size = file.length();
+                if(size > MAX_FILE_SIZE)
+                    return false;
+                fileChain = setClusterChain(getFileClusters(size), true);
             }
+            if(fileChain == null) // It was no possible to get a clusterchain
+                return false;
+            allocatedChains.add(fileChain);
+
+            FileEntry entry = FileEntry.getEntry(file.getName(), fileChain.get(0), size, shortNames
+                    , !file.canWrite(), file.isHidden(), file.isDirectory(), file.lastModified());
+            int lfnEntries = entry.getRawLength() / 32 - 1;
+            index = entry.writeRawFileEntry(planned.content, index);
+            entry.setDirectoryOffset(index - 32, lfnEntries);
+
+            planned.fileChains.add(fileChain);
+            planned.fileSizes[i] = size;
+            if(!file.isDirectory() && size != 0)
+                planned.filesByCluster.put(fileChain.get(0), i);
+        }
 
-            return writeNewFile(fileName, fileData, isReadOnly, isHidden, isDirectory, lastModified);
-        }else
+        for(int i=0;i<=files.length-1;i++)
         {
-            boolean result = writeNewFile(fileName, null, isReadOnly, isHidden, isDirectory, lastModified);
-            changeDir(fileName);
+            if(files[i].isDirectory() && !planDirectory(listLocalFiles(files[i]), planned.fileChains.get(i)
+                    , directoryChain.get(0), files[i].lastModified(), plan, allocatedChains))
+                return false;
+        }
+        return true;
+    }
 
-            if(!result)
+    private boolean writePlannedDirectory(PlannedDirectory planned)
+    {
+        // Whole directory at once
+        if(!writeClusters(planned.directoryChain, planned.content, true))
+            return false;
+
+        // File data in cluster order
+        Iterator<Integer> e = planned.filesByCluster.values().iterator();
+        while(e.hasNext())
+        {
+            int i = e.next();
+            if(!writeLocalFile(planned.files[i], planned.fileSizes[i], planned.fileChains.get(i)))
                 return false;
+        }
+        return true;
+    }
 
-            java.io.File[] files = file.listFiles();
-            for(int i=0;i<=files.length-1;i++)
+    /*
+        Stream size bytes of a local file into its clusters, a run of consecutive clusters at a time
+        up to the transfer limit of the device. Fails if the file does not have size bytes
+     */
+    private boolean writeLocalFile(java.io.File file, long size, List<Long> clusters)
+    {
+        long sectorsPerCluster = reservedRegion.getSectorsPerCluster();
+        int clusterLength = (int) (sectorsPerCluster * reservedRegion.getBytesPerSector());
+        int maxClusters = Math.max(1, device.getMaxTransferLength() / clusterLength);
+        long firstClusterLba = getFirstClusterLba();
+
+        InputStream input;
+        try
+        {
+            input = new FileInputStream(file);
+        }catch(FileNotFoundException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+        try
+        {
+            DataInputStream dis = new DataInputStream(input);
+            byte[] buffer = null;
+            long remaining = size;
+            int i = 0;
+            while(remaining > 0 && i < clusters.size())
             {
-                java.io.File subFile = files[i];
-                writeNewFile(subFile);
+                long runStart = clusters.get(i);
+                int runLength = 1;
+                while(runLength < maxClusters && i + runLength < clusters.size()
+                        && clusters.get(i + runLength) == runStart + runLength
+                        && (long) runLength * clusterLength < remaining)
+                    runLength++;
+
+                int runBytes = runLength * clusterLength;
+                if(buffer == null || buffer.length != runBytes)
+                    buffer = new byte[runBytes];
+                int count = (int) Math.min(runBytes, remaining);
+                dis.readFully(buffer, 0, count);
+                Arrays.fill(buffer, count, runBytes, (byte) 0x00); // Slack of the last cluster
+
+                if(!writeBytes(firstClusterLba + (runStart - 2) * sectorsPerCluster, buffer, false, false))
+                    return false;
+                remaining -= count;
+                i += runLength;
+            }
+            return remaining == 0;
+        }catch(IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }finally
+        {
+            try
+            {
+                input.close();
+            }catch(IOException e)
+            {
+                e.printStackTrace();
             }
-            changeDirBack();
         }
-        return true;
     }
 
+    /*
+        Clusters a new directory needs for its . and .. entries plus an entry for every file
+     */
+    private int getDirectoryClusters(java.io.File[] files)
+    {
+        int slots = 2;
+        for(int i=0;i<=files.length-1;i++)
+            slots += (files[i].getName().length() + 12) / 13 + 1; // LFN slots + short entry
+        int clusterLength = (int) (reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector());
+        return Math.max(1, (slots * 32 + clusterLength - 1) / clusterLength);
+    }
+
+    /*
+        Clusters of a file of size bytes, empty files get one too
+     */
+    private int getFileClusters(long size)
+    {
+        long clusterLength = reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector();
+        return (int) Math.max(1, (size + clusterLength - 1) / clusterLength);
+    }
+
+    private static java.io.File[] listLocalFiles(java.io.File directory)
+    {
+        java.io.File[] files = directory.listFiles();
+        if(files == null)
+            return new java.io.File[0];
+        return files;
+    }
 
     /*
         Write a file in the current Path
 
      */
-    public boolean writeNewFile(String fileName, byte[] data, boolean isReadOnly, boolean isHidden, boolean isDirectory, long lastModified)
+    public synchronized boolean writeNewFile(String fileName, byte[] data, boolean isReadOnly, boolean isHidden, boolean isDirectory, long lastModified)
+    {
+        boolean result = writeFileEntry(fileName, data, isReadOnly, isHidden, isDirectory, lastModified);
+        return syncMetadata() && result;
+    }
+
+    private boolean writeFileEntry(String fileName, byte[] data, boolean isReadOnly, boolean isHidden, boolean isDirectory, long lastModified)
+    {
+        return writeFileEntry(fileName, data, (data != null) ? data.length : 0, isReadOnly, isHidden, isDirectory,
+                lastModified, null);
+    }
+
+    /*
+        allocatedChain: clusters already allocated for the new file, null to allocate them here.
+        The content of a file or a directory with allocated clusters is written by the caller (data is null),
+        . and .. entries included. size: bytes of the file, ignored for directories
+     */
+    private boolean writeFileEntry(String fileName, byte[] data, long size, boolean isReadOnly, boolean isHidden,
+                                   boolean isDirectory, long lastModified, List<Long> allocatedChain)
     {
         // Get clusterchain of the current folder
-        List<Long> clusterChain;
-        if(!path.isRoot())
-        {
-            FileEntry dir = path.getCurrentDirectory();
-            clusterChain = getClusterChain(dir.getFirstCluster());
-        }else
-        {
-            clusterChain = getClusterChain(2);
-        }
+        long dirCluster = getCurrentDirectoryCluster();
+        List<Long> clusterChain = getDirectoryClusterChain(dirCluster);
+        if(clusterChain == null)
+            return false;
+        directoryCache.invalidate(dirCluster);
+        dentryCache.invalidate(dirCluster);
+
 
+        // LFN entries required (13 characters each) + 1 fileEntry
+        int fileEntriesRequired = (fileName.length() + 12) / 13 + 1;
 
-        // LFN entries required + 1 fileEntry + 1 more if fileName.length() % 11 != 0
-        int fileEntriesRequired = fileName.length() / 11 + 1;
-        if(fileName.length() % 11 != 0)
-            fileEntriesRequired += 1;
+        // Deleted slots are reused first, then the free slots at the end of the folder
+        int clusterLength = (int) (reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector());
+        int dirLength = clusterChain.size() * clusterLength;
+        int index = findFreeSlots(path.getDirectoryContent(), fileEntriesRequired, dirLength);
 
         // There is no space for a new entry. resize the folder.
-        if(path.getFreeEntries() < fileEntriesRequired)
+        if(index == -1)
         {
             long lastCluster = clusterChain.get(clusterChain.size()-1);
-            long newLastCluster = resizeClusterChain(lastCluster);
-            int freeEntriesNewCluster = (int) (reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector()) / 32;
-            path.setFreeEntries(freeEntriesNewCluster + path.getFreeEntries());
+            long newLastCluster;
+            StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_ALLOCATE);
+            try
+            {
+                newLastCluster = resizeClusterChain(lastCluster);
+            }finally
+            {
+                StackMetrics.endOperation(operation);
+            }
             if(newLastCluster != 0)
                 clusterChain.add(newLastCluster);
             else
                 return false;
+            dirLength += clusterLength;
+            index = findFreeSlots(path.getDirectoryContent(), fileEntriesRequired, dirLength);
         }
+        boolean append = index >= getUsedLength(path.getDirectoryContent());
 
-        // get dir fileEntries and obtain a valid cluster chain for the new file
-        byte[] dirData = readClusters(clusterChain);
-        List<Long> fileClusterChain = new ArrayList<Long>();
-        if(!isDirectory)
+        // obtain a valid cluster chain for the new file
+        List<Long> fileClusterChain = allocatedChain;
+        if(fileClusterChain == null && !isDirectory)
         {
             int clusters;
             if(data.length != 0)
@@ -317,7 +604,7 @@ public class FATHandler
             fileClusterChain = setClusterChain(clusters, true);
             if(fileClusterChain == null) // It was no possible to get a clusterchain
                 return false;
-        }else
+        }else if(fileClusterChain == null)
         {
             // It is a dir, it just needs one cluster at least at this moment
             fileClusterChain = setClusterChain(1, true);
@@ -326,38 +613,47 @@ public class FATHandler
         }
 
         // get a raw FileEntry
-        long size;
-        if(!isDirectory)
-            size = data.length;
-        else
+        if(isDirectory)
             size = 0;
 
         FileEntry newEntry = FileEntry.getEntry(
-                fileName, fileClusterChain.get(0), size, path.getDirectoryContent()
+                fileName, fileClusterChain.get(0), size, path.getShortNameGenerator()
                 , isReadOnly, isHidden, isDirectory, lastModified);
-        byte[] rawFileEntry = newEntry.getRawFileEntry();
-
-
-        // Write fileEntry in dir clusters
-        int index = getFirstFileEntryIndex(dirData);
-        System.arraycopy(rawFileEntry, 0, dirData, index, rawFileEntry.length);
+        int rawLength = newEntry.getRawLength();
+
+        // Write fileEntry in the slots found above, only the sectors it touches are written
+        int end = index + rawLength;
+        if(append)
+            end = Math.min(end + 32, dirLength); // Slot after the entry must stay the end of the directory
+        int sectorLength = (int) reservedRegion.getBytesPerSector();
+        int firstSector = index / sectorLength;
+        byte[] sectors = readDirectorySectors(clusterChain, firstSector, (end - 1) / sectorLength - firstSector + 1);
+        if(sectors == null)
+            return false;
+        int sectorsOffset = firstSector * sectorLength;
+        newEntry.writeRawFileEntry(sectors, index - sectorsOffset);
+        if(append && index + rawLength < dirLength)
+            sectors[index + rawLength - sectorsOffset] = 0x00;
+        newEntry.setDirectoryOffset(index + rawLength - 32, rawLength / 32 - 1);
 
         // Write file entry
-        writeClusters(clusterChain, dirData);
+        if(!writeDirectorySectors(clusterChain, firstSector, sectors))
+            return false;
 
         // update free entries
-        path.setFreeEntries(path.getFreeEntries() - fileEntriesRequired);
+        if(append)
+            path.setFreeEntries((dirLength - index - rawLength) / 32);
 
-        // Write file only if file entry is not a directory and the size is not 0
-        if(!isDirectory && size != 0)
+        // Write file only if file entry is not a directory, the size is not 0 and the caller did not write it
+        if(!isDirectory && size != 0 && data != null)
         {
-            boolean result = writeClusters(fileClusterChain, data);
+            boolean result = writeClusters(fileClusterChain, data, false);
             if(result)
             {
                 path.addFileEntry(newEntry);
             }
             return result;
-        }else if(isDirectory)
+        }else if(isDirectory && allocatedChain == null)
         {
             // Add . and .. entries
             FileEntry dotEntry = FileEntry.getEntry(
@@ -368,64 +664,462 @@ public class FATHandler
                     "..", clusterChain.get(0), 0, null
                     , false, false, true, lastModified);
 
-            byte[] dotEntryRaw = dotEntry.getRawFileEntry();
-            byte[] dotDotEntryRaw = dotDotEntry.getRawFileEntry();
-
             byte[] dotEntriesRaw = new byte[64];
-            System.arraycopy(dotEntryRaw, 0, dotEntriesRaw, 0, 32);
-            System.arraycopy(dotDotEntryRaw, 0, dotEntriesRaw, 32, 32);
+            dotDotEntry.writeRawFileEntry(dotEntriesRaw, dotEntry.writeRawFileEntry(dotEntriesRaw, 0));
 
-            writeClusters(fileClusterChain, dotEntriesRaw);
+            writeClusters(fileClusterChain, dotEntriesRaw, true);
         }
 
         path.addFileEntry(newEntry);
         return true;
     }
 
-    public boolean deleteFile(String fileName)
+    public synchronized boolean deleteFile(String fileName)
+    {
+        boolean result = deleteFileEntry(fileName);
+        return syncMetadata() && result;
+    }
+
+    private boolean deleteFileEntry(String fileName)
+    {
+        FileEntry entry = path.getFileEntry(fileName);
+        if(entry == null)
+            return false;
+
+        long firstCluster = getCurrentDirectoryCluster();
+        List<Long> clusterChainFolder = getDirectoryClusterChain(firstCluster);
+        // The whole chain of the file must be known before its entry is erased, or part of it would leak
+        List<Long> clusterChainFile = getClusterChain(entry.getFirstCluster());
+        if(clusterChainFolder == null || clusterChainFile == null)
+            return false;
+        directoryCache.invalidate(firstCluster);
+        dentryCache.invalidate(firstCluster);
+        if(entry.isDirectory())
+        {
+            directoryCache.invalidate(entry.getFirstCluster());
+            dentryCache.invalidate(entry.getFirstCluster());
+        }
+
+        // Only the sectors holding the entry and its LFN entries are read and written
+        int sectorLength = (int) reservedRegion.getBytesPerSector();
+        int firstSector = Math.max(0, entry.getDirectoryOffset() - entry.getLfnEntries() * 32) / sectorLength;
+        int lastSector = entry.getDirectoryOffset() / sectorLength;
+        byte[] data = readDirectorySectors(clusterChainFolder, firstSector, lastSector - firstSector + 1);
+        if(data == null || !setEntryToErased(data, firstSector * sectorLength, entry))
+            return false;
+        if(!writeDirectorySectors(clusterChainFolder, firstSector, data))
+            return false;
+
+        // Delete the FileEntry object
+        path.deleteFileEntry(entry);
+
+        return deleteClusterChain(clusterChainFile);
+    }
+
+    /*
+        Move the entries of the current directory to its first slots, in the same order, dropping
+        the deleted slots between them. Clusters the directory does not need anymore are freed
+     */
+    public synchronized boolean compactDirectory()
+    {
+        long dirCluster = getCurrentDirectoryCluster();
+        List<Long> clusterChain = getDirectoryClusterChain(dirCluster);
+        if(clusterChain == null)
+            return false;
+        directoryCache.invalidate(dirCluster);
+        dentryCache.invalidate(dirCluster);
+        byte[] dirData = readClusters(clusterChain, true);
+        if(dirData == null)
+            return false;
+
+        List<FileEntry> entries = sortByDirectoryOffset(path.getDirectoryContent());
+        byte[] compactedData = new byte[dirData.length];
+        int index = 0;
+        for(int i=0;i<=entries.size()-1;i++)
+        {
+            FileEntry entry = entries.get(i);
+            int start = Math.max(0, entry.getDirectoryOffset() - entry.getLfnEntries() * 32);
+            int length = entry.getDirectoryOffset() + 32 - start;
+            System.arraycopy(dirData, start, compactedData, index, length);
+            entry.setDirectoryOffset(index + length - 32, length / 32 - 1);
+            index += length;
+        }
+
+        int clusterLength = (int) (reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector());
+        int clusters = Math.max(1, (index + clusterLength - 1) / clusterLength);
+        List<Long> keptClusters = new ArrayList<Long>(clusterChain.subList(0, clusters));
+        List<Long> freedClusters = new ArrayList<Long>(clusterChain.subList(clusters, clusterChain.size()));
+        boolean result = writeClusters(keptClusters, compactedData, true);
+        if(result && !freedClusters.isEmpty())
+            result = setEndOfChain(keptClusters.get(keptClusters.size() - 1)) && deleteClusterChain(freedClusters);
+        path.setFreeEntries((clusters * clusterLength - index) / 32);
+        return syncMetadata() && result;
+    }
+
+    /*
+        Offset of the first run of deleted slots long enough for slots entries. If there is none
+        the entry goes after the last used slot, so deleted slots at the end of the directory are reused too.
+        Returns -1 if the directory has to grow
+     */
+    private static int findFreeSlots(List<FileEntry> entries, int slots, int dirLength)
+    {
+        List<FileEntry> sortedEntries = sortByDirectoryOffset(entries);
+        int usedEnd = 0;
+        for(int i=0;i<=sortedEntries.size()-1;i++)
+        {
+            FileEntry entry = sortedEntries.get(i);
+            int start = Math.max(0, entry.getDirectoryOffset() - entry.getLfnEntries() * 32);
+            if(start - usedEnd >= slots * 32)
+                return usedEnd;
+            usedEnd = Math.max(usedEnd, entry.getDirectoryOffset() + 32);
+        }
+        if(dirLength - usedEnd >= slots * 32)
+            return usedEnd;
+        return -1;
+    }
+
+    /*
+        Bytes of the directory up to the end of its last entry
+     */
+    private static int getUsedLength(List<FileEntry> entries)
+    {
+        int usedLength = 0;
+        for(int i=0;i<=entries.size()-1;i++)
+        {
+            if(entries.get(i).getDirectoryOffset() >= 0)
+                usedLength = Math.max(usedLength, entries.get(i).getDirectoryOffset() + 32);
+        }
+        return usedLength;
+    }
+
+    /*
+        Entries with a known position in the directory, first slot first
+     */
+    private static List<FileEntry> sortByDirectoryOffset(List<FileEntry> entries)
+    {
+        List<FileEntry> sortedEntries = new ArrayList<FileEntry>(entries.size());
+        for(int i=0;i<=entries.size()-1;i++)
+        {
+            if(entries.get(i).getDirectoryOffset() >= 0)
+                sortedEntries.add(entries.get(i));
+        }
+        Collections.sort(sortedEntries, new Comparator<FileEntry>()
+        {
+            @Override
+            public int compare(FileEntry lhs, FileEntry rhs)
+            {
+                return lhs.getDirectoryOffset() - rhs.getDirectoryOffset();
+            }
+        });
+        return sortedEntries;
+    }
+
+    /*
+        Make the directory starting at firstCluster the content of the current path.
+        Directories in the cache are loaded without any USB traffic
+     */
+    private void loadDirectory(long firstCluster)
+    {
+        path.clearDirectoryContent();
+        DirectoryCache.CachedDirectory directory = readDirectory(firstCluster);
+        if(directory != null)
+        {
+            path.setDirectoryContent(directory.getEntries());
+            path.setFreeEntries(directory.getFreeEntries());
+        }
+    }
+
+    /*
+        Parsed directory starting at firstCluster, from the cache or from the device.
+        It does not touch the current path
+     */
+    private DirectoryCache.CachedDirectory readDirectory(long firstCluster)
+    {
+        DirectoryCache.CachedDirectory directory = directoryCache.get(firstCluster);
+        if(directory != null)
+            return directory;
+
+        List<Long> clusterChain = getClusterChain(firstCluster);
+        if(clusterChain == null)
+            return null;
+        byte[] data = readClusters(clusterChain, true);
+        if(data == null)
+            return null;
+        return directoryCache.put(firstCluster, clusterChain, getFileEntries(data), getFreeEntries(data));
+    }
+
+    /*
+        Resolve an absolute path like /DCIM/100MEDIA/IMG_0001.JPG without changing the current path.
+        Every component is looked up in the dentry cache, only directories that are not there yet
+        are read from the device. Returns null if the path does not exist or if it is the root directory
+     */
+    public FileEntry resolve(String absolutePath)
+    {
+        long directoryCluster = 2;
+        FileEntry entry = null;
+        int start = 0;
+        int length = absolutePath.length();
+        while(start < length)
+        {
+            int end = absolutePath.indexOf('/', start);
+            if(end == -1)
+                end = length;
+            if(end > start)
+            {
+                if(entry != null && !entry.isDirectory())
+                    return null;
+                entry = lookup(directoryCluster, absolutePath.substring(start, end));
+                if(entry == null)
+                    return null;
+                directoryCluster = entry.getFirstCluster();
+                if(directoryCluster == 0) // .. entry of a first level directory
+                    directoryCluster = 2;
+            }
+            start = end + 1;
+        }
+        return entry;
+    }
+
+    public interface WalkVisitor
+    {
+        /*
+            Called for every entry under the root of the walk, parents before their children.
+            Return false to stop the walk
+         */
+        boolean visit(String path, FileEntry entry);
+
+        /*
+            Called when the directory path (ending in /) could not be read.
+            Return false to stop the walk, true to go on with the other directories
+         */
+        boolean onError(String path);
+    }
+
+    /*
+        Visit every entry under the directory absolutePath, breadth first and without changing the current path.
+        Directories are read by a prefetch thread up to WALK_PREFETCH_DIRECTORIES ahead of the visitor,
+        so the device keeps reading while earlier directories are visited.
+        Returns false if the root is not a directory, a directory could not be read or the visitor stopped the walk
+     */
+    public boolean walk(String absolutePath, WalkVisitor visitor)
+    {
+        long rootCluster = resolveDirectoryCluster(absolutePath);
+        if(rootCluster == 0)
+            return false;
+
+        String rootPath = absolutePath.endsWith("/") ? absolutePath : absolutePath + "/";
+        LinkedList<String> directoryPaths = new LinkedList<String>();
+        WalkPrefetcher prefetcher = new WalkPrefetcher();
+        directoryPaths.add(rootPath);
+        prefetcher.enqueue(rootCluster);
+        prefetcher.start();
+        boolean complete = true;
+        try
+        {
+            while(!directoryPaths.isEmpty())
+            {
+                String directoryPath = directoryPaths.removeFirst();
+                List<FileEntry> entries = prefetcher.take();
+                if(entries == null)
+                {
+                    complete = false;
+                    if(!visitor.onError(directoryPath))
+                        return false;
+                    continue;
+                }
+                for(int i=0;i<=entries.size()-1;i++)
+                {
+                    FileEntry entry = entries.get(i);
+                    String name = entry.getName();
+                    if(entry.isVolume() || name.equals(".") || name.equals(".."))
+                        continue;
+                    String entryPath = directoryPath + name;
+                    if(!visitor.visit(entryPath, entry))
+                        return false;
+                    if(entry.isDirectory() && entry.getFirstCluster() != 0)
+                    {
+                        directoryPaths.add(entryPath + "/");
+                        prefetcher.enqueue(entry.getFirstCluster());
+                    }
+                }
+            }
+            return complete;
+        }finally
+        {
+            prefetcher.cancel();
+        }
+    }
+
+    /*
+        Lazy listing of the directory absolutePath, without changing the current path.
+        Clusters of the directory are read when the iterator reaches them, so stopping early only
+        reads the clusters that were needed. Returns null if absolutePath is not a directory.
+        hasNext() and next() throw IllegalStateException if a cluster of the directory cannot be read,
+        a short listing would look complete
+     */
+    public Iterator<FileEntry> iterateDirectory(String absolutePath)
+    {
+        long firstCluster = resolveDirectoryCluster(absolutePath);
+        if(firstCluster == 0)
+            return null;
+        DirectoryCache.CachedDirectory directory = directoryCache.get(firstCluster);
+        if(directory != null)
+            return directory.getEntries().iterator();
+        return new DirectoryIterator(absolutePath, firstCluster);
+    }
+
+    /*
+        First cluster of the directory absolutePath, 0 if it is not a directory
+     */
+    private long resolveDirectoryCluster(String absolutePath)
+    {
+        FileEntry entry = resolve(absolutePath);
+        if(entry == null)
+            return absolutePath.replace("/", "").length() == 0 ? 2 : 0;
+        if(!entry.isDirectory())
+            return 0;
+        if(entry.getFirstCluster() == 0) // .. entry of a first level directory
+            return 2;
+        return entry.getFirstCluster();
+    }
+
+    /*
+        Entries of the directory starting at firstCluster. Directories that are not cached
+        are parsed without being added to the cache, a walk would evict every other directory
+     */
+    private synchronized List<FileEntry> readDirectoryEntries(long firstCluster)
+    {
+        DirectoryCache.CachedDirectory directory = directoryCache.get(firstCluster);
+        if(directory != null)
+            return directory.getEntries();
+        List<Long> clusterChain = getClusterChain(firstCluster);
+        if(clusterChain == null)
+            return null;
+        byte[] data = readClusters(clusterChain, true);
+        if(data == null)
+            return null;
+        return getFileEntries(data);
+    }
+
+    /*
+        Entry called name in the directory starting at directoryCluster.
+        Cached directories are looked up without taking the lock of the handler
+     */
+    private FileEntry lookup(long directoryCluster, String name)
+    {
+        DirectoryIndex index = dentryCache.getIndex(directoryCluster);
+        StackMetrics.recordCacheAccess(StackMetrics.CACHE_DENTRY, index != null);
+        if(index == null)
+        {
+            synchronized(this)
+            {
+                index = dentryCache.getIndex(directoryCluster); // Another thread may have read it meanwhile
+                if(index == null)
+                {
+                    DirectoryCache.CachedDirectory directory = readDirectory(directoryCluster);
+                    if(directory == null)
+                        return null;
+                    index = dentryCache.put(directoryCluster, directory.getEntries());
+                }
+            }
+        }
+        return index.get(name);
+    }
+
+    private List<Long> getDirectoryClusterChain(long firstCluster)
+    {
+        DirectoryCache.CachedDirectory cachedDirectory = directoryCache.get(firstCluster);
+        if(cachedDirectory != null)
+            return cachedDirectory.getClusterChain();
+        else
+            return getClusterChain(firstCluster);
+    }
+
+    private long getCurrentDirectoryCluster()
+    {
+        if(!path.isRoot())
+            return path.getCurrentDirectory().getFirstCluster();
+        else
+            return 2;
+    }
+
+    /*
+        Large allocations start on a cluster aligned to the unmap granularity of the device
+        so new files do not straddle the erase blocks behind it.
+     */
+    private void computeAllocationAlignment()
     {
-        Iterator<FileEntry> e = path.getDirectoryContent().iterator();
-        int i = 0;
-        while(e.hasNext())
+        allocationAlignment = 0;
+        long unmapGranularity = device.getUnmapGranularity();
+        long unmapGranularityAlignment = device.getUnmapGranularityAlignment();
+        long sectorsPerCluster = reservedRegion.getSectorsPerCluster();
+        if(unmapGranularity <= sectorsPerCluster || unmapGranularity % sectorsPerCluster != 0)
+            return;
+
+        long clustersPerGranule = unmapGranularity / sectorsPerCluster;
+        long firstClusterLba = getFirstClusterLba();
+        for(long cluster=2;cluster<=clustersPerGranule+1;cluster++)
         {
-            FileEntry entry = e.next();
-            String name;
-            if(!entry.getLongName().equals(""))
-                name = entry.getLongName();
-            else
-                name = entry.getShortName();
-            if(name.equalsIgnoreCase(fileName))
+            long lba = firstClusterLba + (cluster - 2) * sectorsPerCluster;
+            long offset = ((lba - unmapGranularityAlignment) % unmapGranularity + unmapGranularity) % unmapGranularity;
+            if(offset == 0)
             {
-                long firstCluster;
-                if(!path.isRoot())
-                    firstCluster = path.getCurrentDirectory().getFirstCluster();
-                else
-                    firstCluster = 2;
-
-                List<Long> clusterChainFolder = getClusterChain(firstCluster);
-                List<Long> clusterChainFile = getClusterChain(entry.getFirstCluster());
-                // if no elements in clusterchain get out
-                byte[] data = readClusters(clusterChainFolder);
-                boolean result = setEntryToErased(data, i, entry.getLongName());
-                if(result)
-                    writeClusters(clusterChainFolder, data);
-                else
-                    return false;
+                firstAlignedCluster = cluster;
+                allocationAlignment = clustersPerGranule;
+                return;
+            }
+        }
+    }
 
-                // Delete the FileEntry object
-                path.deleteFileEntry(i);
+    /*
+        Choose how FAT and directory writes reach the device from its Caching mode page
+        - Page not reported: write-through, nothing is known about the device
+        - WCE=0: writes are not cached by the device. FAT sectors are buffered on the host
+          and written back at the end of every operation
+        - WCE=1 and DPOFUA=1: metadata is written with FUA, file data goes through the device cache
+        - WCE=1 and DPOFUA=0: FAT sectors are written back
+        With WCE=1 the device cache is synchronized at the end of every operation, file data
+        would be lost otherwise if the device is unplugged
+     */
+    private void probeWriteCache()
+    {
+        synchronizeCache = device.hasCachingInfo() && device.isWriteCacheEnabled();
+        if(!device.hasCachingInfo())
+        {
+            blockCache.setWritePolicy(BlockCache.WRITE_THROUGH);
+            return;
+        }
 
-                return deleteClusterChain(clusterChainFile);
-            }
-            i++;
+        if(!device.isWriteCacheEnabled())
+        {
+            blockCache.setWritePolicy(BlockCache.WRITE_BACK);
+            blockCache.setCapacity(BLOCK_CACHE_CAPACITY_NO_DEVICE_CACHE);
+        }else if(device.isFuaSupported())
+        {
+            blockCache.setWritePolicy(BlockCache.FUA_METADATA);
+        }else
+        {
+            blockCache.setWritePolicy(BlockCache.WRITE_BACK);
         }
-        return false;
+
+        // Nothing is cached by the device on reads, keep more FAT sectors on the host
+        if(device.isReadCacheDisabled())
+            blockCache.setCapacity(BLOCK_CACHE_CAPACITY_NO_DEVICE_CACHE);
     }
 
-    private void testUnitReady()
+    /*
+        Write every buffered FAT sector and flush the device cache if needed
+     */
+    private boolean syncMetadata()
     {
-        comm.testUnitReady();
-        waitTillNotification();
+        boolean result = blockCache.flush();
+        if(synchronizeCache)
+        {
+            StackMetrics.recordBlockRequest(true, 0, 0, 0);
+            if(!device.synchronizeCache()) // SYNCHRONIZE CACHE is optional, do not send it again
+                synchronizeCache = false;
+        }
+        return result;
     }
 
     private MasterBootRecord getMbr()
@@ -438,37 +1132,83 @@ public class FATHandler
     }
 
     /*
-        Optimization required: if next cluster pointer is the next sector
-        there is no need to use readBytes again.
+        Clusters of the chain starting at cluster, null if the FAT could not be read or the chain is corrupted
      */
-    private List<Long> getClusterChain(long cluster)
+    List<Long> getClusterChain(long cluster) // Package-private for the benchmarks
     {
-        boolean keepSearching = true;
-        List<Long> clusterChain = new ArrayList<Long>();
-        clusterChain.add(cluster);
-        while(keepSearching)
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_CLUSTER_CHAIN);
+        try
         {
-            long lbaCluster = getEntryLBA(cluster);
-            byte[] sector = readBytes(lbaCluster, 1);
-            int entrySectorIndex = getEntrySectorIndex(cluster);
-            int[] indexes = getRealIndexes(entrySectorIndex);
-            cluster = UnsignedUtil.convertBytes2Long(sector[indexes[3]], sector[indexes[2]], sector[indexes[1]], sector[indexes[0]]);
-            if(cluster != 0xfffffff)
+            List<Long> clusterChain = new ArrayList<Long>();
+            long lastCluster = getLastCluster();
+            while(cluster != 0)
             {
+                if(cluster == CLUSTER_ERROR || clusterChain.size() > lastCluster) // A longer chain has a loop
+                    return null;
                 clusterChain.add(cluster);
-            }else
-            {
-                keepSearching = false;
+                cluster = getNextCluster(cluster);
             }
+            return clusterChain;
+        }finally
+        {
+            StackMetrics.endOperation(operation);
         }
-        return clusterChain;
+    }
+
+    /*
+        Next cluster of the chain, 0 if cluster is the last one.
+        CLUSTER_ERROR if the FAT sector could not be read or the entry is not part of a chain
+        (free, bad cluster or out of the volume)
+     */
+    private long getNextCluster(long cluster)
+    {
+        long nextCluster = blockCache.readUint32(getEntryLBA(cluster), getEntrySectorIndex(cluster) * 4);
+        if(nextCluster == -1)
+            return CLUSTER_ERROR;
+        nextCluster &= FAT_ENTRY_MASK;
+        if(nextCluster >= END_OF_CHAIN)
+            return 0;
+        if(nextCluster < 2 || nextCluster == BAD_CLUSTER || nextCluster > getLastCluster())
+            return CLUSTER_ERROR;
+        return nextCluster;
     }
 
     /*
       Set a clusterchain on the FAT
       Return null if is not possible to get clusterchain
      */
-    private List<Long> setClusterChain(int clusters, boolean forceCache)
+    List<Long> setClusterChain(int clusters, boolean forceCache) // Package-private for the benchmarks
+    {
+        StackMetrics.Operation operation = StackMetrics.beginOperation(StackMetrics.OP_ALLOCATE);
+        try
+        {
+            return allocateClusterChain(clusters, forceCache);
+        }finally
+        {
+            StackMetrics.endOperation(operation);
+        }
+    }
+
+    private List<Long> allocateClusterChain(int clusters, boolean forceCache)
+    {
+        if(allocationAlignment > 0 && clusters >= allocationAlignment)
+        {
+            long alignedCluster = findAlignedFreeCluster();
+            if(alignedCluster != 0)
+            {
+                List<Long> alignedChain = setClusterChain(clusters, false, alignedCluster);
+                if(alignedChain != null)
+                    return alignedChain;
+            }
+        }
+        return setClusterChain(clusters, forceCache, 0);
+    }
+
+    /*
+      startCluster: first cluster where free clusters are searched, 0 to start from the FAT cache
+      or from the beginning of the FAT
+     */
+    private List<Long> setClusterChain(int clusters, boolean forceCache, long startCluster)
     {
         List<Long> clusterChainList = new ArrayList<Long>();
         long[] lbaChain = new long[clusters];
@@ -476,7 +1216,12 @@ public class FATHandler
         int i = 0; // index for clusterchain
         long lbaFatStart = getEntryLBA(0);
         long lbaIndex;
-        if(!forceCache)
+        int firstEntry = 0;
+        if(startCluster != 0)
+        {
+            lbaIndex = getEntryLBA(startCluster);
+            firstEntry = getEntrySectorIndex(startCluster);
+        }else if(!forceCache)
             lbaIndex = lbaFatStart;
         else
         {
@@ -488,8 +1233,8 @@ public class FATHandler
         boolean keep = true;
         while(keep)
         {
-            byte[] data = readBytes(lbaIndex, 1);
-            for(int indexEntry=0;indexEntry<=127;indexEntry++)
+            byte[] data = blockCache.read(lbaIndex);
+            for(int indexEntry=firstEntry;indexEntry<=127;indexEntry++)
             {
                 int[] indexes = getRealIndexes(indexEntry);
                 long value = UnsignedUtil.convertBytes2Long(data[indexes[3]], data[indexes[2]], data[indexes[1]], data[indexes[0]]);
@@ -504,7 +1249,7 @@ public class FATHandler
                         for(int j=0;j<=clusters-1;j++)
                         {
                             long lba = lbaChain[j];
-                            byte[] data2 = readBytes(lba, 1);
+                            byte[] data2 = blockCache.read(lba);
                             long nextCluster;
                             if(j < clusters-1)
                                 nextCluster = clusterChainList.get(j+1);
@@ -521,13 +1266,14 @@ public class FATHandler
                             data2[currentIndexes[2]] = nextClusterRaw[1];
                             data2[currentIndexes[3]] = nextClusterRaw[0];
 
-                            writeBytes(lba, data2);
+                            blockCache.write(lba, data2);
                         }
                         keep = false;
                         break;
                     }
                 }
             }
+            firstEntry = 0;
             if(!forceCache)
                 lbaIndex++;
             else
@@ -536,24 +1282,63 @@ public class FATHandler
                 {
                     cache.deleteCluster();
                     lbaIndex = cache.getCluster();
-                    if (lbaIndex == 0)
-                        lbaIndex += 2; // No more clusters in cache.
+                    if(lbaIndex == 0) // No more clusters in cache. Nothing has been written yet, search the whole FAT
+                        return setClusterChain(clusters, false, 0);
                 }
             }
-            if(lbaIndex > lbaFatEnd)
+            if(lbaIndex >= lbaFatEnd)
                 return null;
         }
 
         return clusterChainList;
     }
 
+    /*
+        Probe clusters aligned to the unmap granularity, starting where the FAT cache
+        expects free clusters. Returns 0 if no free aligned cluster was found.
+     */
+    private long findAlignedFreeCluster()
+    {
+        long lbaFatStart = getEntryLBA(0);
+        long lbaFatEnd = lbaFatStart + reservedRegion.getNumberSectorsPerFat();
+        long lbaCache = cache.getCluster();
+        long startCluster = firstAlignedCluster;
+        if(lbaCache != 0)
+            startCluster = Math.max(firstAlignedCluster, (lbaCache - lbaFatStart) * 128);
+
+        long k = (startCluster - firstAlignedCluster + allocationAlignment - 1) / allocationAlignment;
+        long lbaLoaded = 0;
+        byte[] data = null;
+        for(int probe=0;probe<=MAX_ALIGNED_PROBES-1;probe++)
+        {
+            long cluster = firstAlignedCluster + (k + probe) * allocationAlignment;
+            if(cluster > getLastCluster())
+                return 0;
+            long lba = getEntryLBA(cluster);
+            if(lba >= lbaFatEnd)
+                return 0;
+            if(lba != lbaLoaded)
+            {
+                data = blockCache.read(lba);
+                if(data == null)
+                    return 0;
+                lbaLoaded = lba;
+            }
+            int[] indexes = getRealIndexes(getEntrySectorIndex(cluster));
+            long value = UnsignedUtil.convertBytes2Long(data[indexes[3]], data[indexes[2]], data[indexes[1]], data[indexes[0]]);
+            if(value == 0x0000000)
+                return cluster;
+        }
+        return 0;
+    }
+
     /*
        Resize a clusterchain. Returns the new last cluster or 0 if it was not possible to resize
      */
     private long resizeClusterChain(long lastCluster)
     {
         long lbaFATLastCluster = getEntryLBA(lastCluster);
-        byte[] data = readBytes(lbaFATLastCluster, 1);
+        byte[] data = blockCache.read(lbaFATLastCluster);
         int sectorIndex = getEntrySectorIndex(lastCluster); // 0-127
         if(sectorIndex < 127)
             sectorIndex++;
@@ -572,7 +1357,7 @@ public class FATHandler
                     List<Long> singleList = new ArrayList<Long>();
                     singleList.add(clusterEntry);
                     byte[] zeroedCluster = new byte[(int) (reservedRegion.getBytesPerSector() * reservedRegion.getSectorsPerCluster())];
-                    writeClusters(singleList, zeroedCluster); // Set the referred cluster to 0x00 (whole cluster is empty)
+                    writeClusters(singleList, zeroedCluster, true); // Set the referred cluster to 0x00 (whole cluster is empty)
 
                     // Previous last cluster FAT entry now points to the new last cluster
                     byte[] dataPrevLBA;
@@ -582,7 +1367,7 @@ public class FATHandler
                         dataPrevLBA = data;
                     }else
                     {
-                        dataPrevLBA = readBytes(lbaFATLastCluster, 1);
+                        dataPrevLBA = blockCache.read(lbaFATLastCluster);
                     }
 
                     sectorIndex = getEntrySectorIndex(lastCluster); // 0-127
@@ -592,7 +1377,7 @@ public class FATHandler
                     dataPrevLBA[prevIndexes[1]] = lastClusterRaw[2];
                     dataPrevLBA[prevIndexes[2]] = lastClusterRaw[1];
                     dataPrevLBA[prevIndexes[3]] = lastClusterRaw[0];
-                    if(!writeBytes(lbaFATLastCluster, dataPrevLBA))
+                    if(!blockCache.write(lbaFATLastCluster, dataPrevLBA))
                         return 0;
 
                     // Current last cluster FAT entry points to NUL (0xfffffff)
@@ -601,7 +1386,7 @@ public class FATHandler
                     data[indexes[1]] = lastClusterRaw[2];
                     data[indexes[2]] = lastClusterRaw[1];
                     data[indexes[3]] = lastClusterRaw[0];
-                    if(!writeBytes(indexFat, data))
+                    if(!blockCache.write(indexFat, data))
                         return 0;
 
                     return clusterEntry;
@@ -611,13 +1396,13 @@ public class FATHandler
             sectorIndex = 0;
             if(indexFat > lbaFatEnd)
                 return 0; // 0 is not a valid cluster
-            data = readBytes(indexFat, 1);
+            data = blockCache.read(indexFat);
         }
 
         return 0;
     }
 
-    private boolean deleteClusterChain(List<Long> clusterChain)
+    boolean deleteClusterChain(List<Long> clusterChain) // Package-private for the benchmarks
     {
         Iterator<Long> e = clusterChain.iterator();
         while(e.hasNext())
@@ -627,25 +1412,45 @@ public class FATHandler
             int sectorIndex = getEntrySectorIndex(cluster); // 0-127
             int realIndexes[] = getRealIndexes(sectorIndex);
 
-            byte[] data = readBytes(lbaCluster, 1);
+            byte[] data = blockCache.read(lbaCluster);
 
             data[realIndexes[0]] = 0x00;
             data[realIndexes[1]] = 0x00;
             data[realIndexes[2]] = 0x00;
             data[realIndexes[3]] = 0x00;
 
-            if(!writeBytes(lbaCluster, data))
+            if(!blockCache.write(lbaCluster, data))
                 return false;
         }
         return true;
     }
 
-    private boolean writeClusters(List<Long> clusters, byte[] data)
+    /*
+        Mark cluster as the last cluster of its chain
+     */
+    private boolean setEndOfChain(long cluster)
     {
-        int maxLength = 16384; // Linux/libusb internally can only handle a buffer of 16834 for bulk transfers
-        int maxClusters = (int) (maxLength / (reservedRegion.getBytesPerSector() * reservedRegion.getSectorsPerCluster()));
-        long firstClusterLba = partition.getLbaStart() + reservedRegion.getNumberReservedSectors()
-                + (reservedRegion.getFatCopies() * reservedRegion.getNumberSectorsPerFat());
+        long lbaCluster = getEntryLBA(cluster);
+        int realIndexes[] = getRealIndexes(getEntrySectorIndex(cluster));
+        byte[] data = blockCache.read(lbaCluster);
+        if(data == null)
+            return false;
+
+        data[realIndexes[0]] = (byte) 0xff;
+        data[realIndexes[1]] = (byte) 0xff;
+        data[realIndexes[2]] = (byte) 0xff;
+        data[realIndexes[3]] = 0x0f;
+        return blockCache.write(lbaCluster, data);
+    }
+
+    /*
+        metadata: data belongs to a directory, it is written with FUA if the device supports it
+     */
+    private boolean writeClusters(List<Long> clusters, byte[] data, boolean metadata)
+    {
+        boolean fua = metadata && blockCache.getWritePolicy() == BlockCache.FUA_METADATA;
+        int maxClusters = (int) Math.max(1, device.getMaxTransferLength() / (reservedRegion.getBytesPerSector() * reservedRegion.getSectorsPerCluster()));
+        long firstClusterLba = getFirstClusterLba();
         ListIterator<Long> e = clusters.listIterator();
         int pointer = 0;
 
@@ -681,7 +1486,7 @@ public class FATHandler
             else
                 System.arraycopy(data, pointer, buffer, 0, data.length - pointer);
 
-            boolean result = writeBytes(lbaCluster, buffer);
+            boolean result = writeBytes(lbaCluster, buffer, fua, metadata);
             if(!result)
                 return false;
 
@@ -691,12 +1496,13 @@ public class FATHandler
         return true;
     }
 
-    private byte[] readClusters(List<Long> clusters)
+    /*
+        directory: clusters of a directory, for StackMetrics
+     */
+    private byte[] readClusters(List<Long> clusters, boolean directory)
     {
-        int maxLength = 16384; // Linux/libusb internally can only handle a buffer of 16834 for bulk transfers
-        int maxClusters = (int) (maxLength / (reservedRegion.getBytesPerSector() * reservedRegion.getSectorsPerCluster()));
-        long firstClusterLba = partition.getLbaStart() + reservedRegion.getNumberReservedSectors()
-                + (reservedRegion.getFatCopies() * reservedRegion.getNumberSectorsPerFat());
+        int maxClusters = (int) Math.max(1, device.getMaxTransferLength() / (reservedRegion.getBytesPerSector() * reservedRegion.getSectorsPerCluster()));
+        long firstClusterLba = getFirstClusterLba();
 
         int lengthData = clusters.size() * ((int) (reservedRegion.getSectorsPerCluster() * reservedRegion.getBytesPerSector()));
         byte[] data = new byte[lengthData];
@@ -731,7 +1537,7 @@ public class FATHandler
             int clustersLength = i *  (int) (reservedRegion.getSectorsPerCluster());
             int bufferLength = clustersLength * ((int) reservedRegion.getBytesPerSector());
 
-            byte[] rawClusters = readBytes(lbaCluster, clustersLength);
+            byte[] rawClusters = readBytes(lbaCluster, clustersLength, directory);
             if(rawClusters == null)
                 return null;
 
@@ -754,137 +1560,152 @@ public class FATHandler
 
     private byte[] readBytes(long lba, int length)
     {
-        comm.read10(0, false, false, false, UnsignedUtil.ulongToInt(lba), 0, length);
-        waitTillNotification();
-        if(currentStatus)
-        {
-            return ((SCSIRead10Response) currentResponse).getBuffer();
-        }else
-        {
-            return null;
-        }
+        return readBytes(lba, length, false);
     }
 
-    private boolean writeBytes(long lba, byte[] data)
+    /*
+        directory: sectors in the clusters belong to a directory, for StackMetrics
+     */
+    private byte[] readBytes(long lba, int length, boolean directory)
     {
-        int length = data.length / 512;
-        if(data.length % 512 != 0)
-            length += 1;
-
-        comm.write10(0, false, false, false, UnsignedUtil.ulongToInt(lba), 0, length, data);
-        waitTillNotification();
-        return currentStatus;
+        if(StackMetrics.isEnabled())
+            recordBlockRequest(false, lba, length, directory);
+        return device.readBlocks(lba, length);
     }
 
-    private boolean preventAllowRemoval(boolean prevent)
+    private boolean writeBytes(long lba, byte[] data, boolean fua, boolean directory)
     {
-        comm.preventAllowRemoval(0, prevent);
-        waitTillNotification();
-        return currentStatus;
+        if(StackMetrics.isEnabled())
+            recordBlockRequest(true, lba, (data.length + BLOCK_LENGTH - 1) / BLOCK_LENGTH, directory);
+        return device.writeBlocks(lba, data, fua);
     }
 
-    private int getFirstFileEntryIndex(byte[] data)
+    /*
+        Split [lba, lba + sectors) in FAT sectors and sectors in the clusters for StackMetrics
+     */
+    private void recordBlockRequest(boolean write, long lba, int sectors, boolean directory)
     {
-        int k = 0;
-        boolean keep = true;
-        while(keep)
+        long fatSectors = 0;
+        long clusterSectors = 0;
+        if(partition != null && reservedRegion != null)
         {
-            if(data[k * 32] == 0x00)
-                keep = false;
-            else
-                k++;
-
+            long fatStart = partition.getLbaStart() + reservedRegion.getNumberReservedSectors();
+            long fatEnd = fatStart + reservedRegion.getFatCopies() * reservedRegion.getNumberSectorsPerFat();
+            fatSectors = Math.max(0, Math.min(lba + sectors, fatEnd) - Math.max(lba, fatStart));
+            clusterSectors = Math.max(0, lba + sectors - Math.max(lba, fatEnd));
         }
-        return k * 32;
+        StackMetrics.recordBlockRequest(write, fatSectors, directory ? clusterSectors : 0, directory ? 0 : clusterSectors);
     }
 
-    private List<FileEntry> getFileEntries(byte[] data)
+    static List<FileEntry> getFileEntries(byte[] data) // Package-private for the benchmarks
     {
-        int freeEntries = 0;
         List<FileEntry> entries = new ArrayList<FileEntry>();
-        List<String> longFileEntryNames = new ArrayList<String>();
-        int entrySize = 32;
-        byte[] bufferEntry = new byte[entrySize];
-        int i = 0;
-        int index1 = entrySize * i;
-        while(index1 < data.length)
+        DirectoryParser parser = new DirectoryParser();
+        int offset = 0;
+        while(offset < data.length && !DirectoryParser.isEndOfDirectory(data, offset))
         {
-            System.arraycopy(data, index1, bufferEntry, 0, entrySize);
-            if((bufferEntry[0] != 0x00 && bufferEntry[0] != (byte) 0xe5)
-                    && (bufferEntry[11] == 0x0f || bufferEntry[11] == 0x1f || bufferEntry[11] == 0x2f
-                    || bufferEntry[11] == 0x3f)) // LFN Entry
-            {
-                longFileEntryNames.add(LFNHandler.parseLFNEntry(bufferEntry));
-            }else if((bufferEntry[0] != 0x00 && bufferEntry[0] != (byte) 0xe5)) // Normal entry
-            {
-
-                if(longFileEntryNames != null) // LFN is present
-                {
-                    String lfn = "";
-                    int index2 = longFileEntryNames.size() - 1;
-                    while(index2 >= 0)
-                    {
-                        lfn += longFileEntryNames.get(index2);
-                        index2--;
-                    }
-                    entries.add(FileEntry.getEntry(lfn, bufferEntry));
-                    longFileEntryNames.clear();
-                }else // No LFN
-                {
-                    entries.add(FileEntry.getEntry(null, bufferEntry));
-                }
-            }else if(bufferEntry[0] == 0x00) // Free entries batch started. Calculate free entries and break
-            {
-                int freeBytes = data.length - index1;
-                freeEntries = freeBytes / 32;
-                break;
-            }
-            i++;
-            index1 = entrySize * i;
+            FileEntry entry = parser.parse(data, offset, offset);
+            if(entry != null)
+                entries.add(entry);
+            offset += DirectoryParser.ENTRY_SIZE;
         }
-        path.setFreeEntries(freeEntries);
         return entries;
     }
 
-    private boolean setEntryToErased(byte[] data, int indexEntry, String longName)
+    /*
+        Entries after the last used one in the raw data of a directory
+     */
+    private int getFreeEntries(byte[] data)
     {
-        int counterEntries = 0;
-        int lfnEntries;
-        if(!longName.equals(""))
+        for(int i=0;i<=data.length/32-1;i++)
         {
-            lfnEntries = longName.length() / 11;
-            if(longName.length() % 11 != 0)
-                lfnEntries += 1;
-        }else
+            if(data[i * 32] == 0x00)
+                return data.length / 32 - i;
+        }
+        return 0;
+    }
+
+    /*
+        Mark the 8.3 entry and its LFN entries as deleted.
+        data holds the directory from dataOffset on
+     */
+    private boolean setEntryToErased(byte[] data, int dataOffset, FileEntry entry)
+    {
+        int offset = entry.getDirectoryOffset() - dataOffset;
+        if(offset < 0 || offset + 32 > data.length)
+            return false;
+
+        data[offset] = (byte) 0xe5;
+        for(int j=1;j<=entry.getLfnEntries();j++)
         {
-            lfnEntries = 0;
+            int k = offset - (j * 32);
+            if(k >= 0)
+                data[k] = (byte) 0xe5;
         }
+        return true;
+    }
 
+    /*
+        Read sectors of a directory. firstSector is counted from the beginning of the directory,
+        consecutive sectors on disk are read with a single command
+     */
+    private byte[] readDirectorySectors(List<Long> clusterChain, int firstSector, int sectors)
+    {
+        int sectorLength = (int) reservedRegion.getBytesPerSector();
+        byte[] data = new byte[sectors * sectorLength];
         int i = 0;
-        while(i < data.length-1)
+        while(i < sectors)
         {
-            byte firstByte = data[i * 32];
-            byte attr = data[i * 32 + 11];
-            if(firstByte != 0x00 && firstByte != (byte) 0xe5
-                    && attr != 0x0f && attr != 0x1f && attr != 0x2f && attr != 0x3f)
-            {
-                if(counterEntries == indexEntry) // given entry has been found
-                {
-                    data[i * 32] = (byte) 0xe5; // Mark entry as delete
-                    for (int j = 1; j <= lfnEntries; j++) // Mark all lfn entries as deleted
-                    {
-                        int k = i * 32;
-                        data[k - (j * 32)] = (byte) 0xe5;
-                    }
-                    return true;
-                }else
-                {
-                    counterEntries++;
-                }
-            }
-            i++;
+            long lba = getDirectorySectorLba(clusterChain, firstSector + i);
+            int run = 1;
+            while(i + run < sectors && getDirectorySectorLba(clusterChain, firstSector + i + run) == lba + run)
+                run++;
+            byte[] rawSectors = readBytes(lba, run, true);
+            if(rawSectors == null)
+                return null;
+            System.arraycopy(rawSectors, 0, data, i * sectorLength, run * sectorLength);
+            i += run;
         }
-        return false;
+        return data;
+    }
+
+    private boolean writeDirectorySectors(List<Long> clusterChain, int firstSector, byte[] data)
+    {
+        boolean fua = blockCache.getWritePolicy() == BlockCache.FUA_METADATA;
+        int sectorLength = (int) reservedRegion.getBytesPerSector();
+        int sectors = data.length / sectorLength;
+        int i = 0;
+        while(i < sectors)
+        {
+            long lba = getDirectorySectorLba(clusterChain, firstSector + i);
+            int run = 1;
+            while(i + run < sectors && getDirectorySectorLba(clusterChain, firstSector + i + run) == lba + run)
+                run++;
+            if(!writeBytes(lba, Arrays.copyOfRange(data, i * sectorLength, (i + run) * sectorLength), fua, true))
+                return false;
+            i += run;
+        }
+        return true;
+    }
+
+    private long getDirectorySectorLba(List<Long> clusterChain, int sector)
+    {
+        int sectorsPerCluster = (int) reservedRegion.getSectorsPerCluster();
+        long cluster = clusterChain.get(sector / sectorsPerCluster);
+        return getFirstClusterLba() + (cluster - 2) * sectorsPerCluster + sector % sectorsPerCluster;
+    }
+
+    private long getFirstClusterLba()
+    {
+        return partition.getLbaStart() + reservedRegion.getNumberReservedSectors()
+                + (reservedRegion.getFatCopies() * reservedRegion.getNumberSectorsPerFat());
+    }
+
+    private long getLastCluster()
+    {
+        long dataSectors = reservedRegion.getNumberSectors() - reservedRegion.getNumberReservedSectors()
+                - (reservedRegion.getFatCopies() * reservedRegion.getNumberSectorsPerFat());
+        return dataSectors / reservedRegion.getSectorsPerCluster() + 1;
     }
 
     private long getEntryLBA(long entry)
@@ -915,94 +1736,252 @@ public class FATHandler
     }
 
 
-    private void waitTillNotification()
+    private BlockCache.BlockIO blockIO = new BlockCache.BlockIO()
     {
-        synchronized(monitor)
+        @Override
+        public byte[] readBlocks(long lba, int blocks)
         {
-            while(waiting.get())
-            {
-                try
-                {
-                    monitor.wait();
-                } catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-            waiting.set(true);
+            return readBytes(lba, blocks);
         }
-    }
 
-    private void scsiSuccessNotification()
+        @Override
+        public boolean writeBlocks(long lba, byte[] data, boolean fua)
+        {
+            return writeBytes(lba, data, fua, false);
+        }
+
+        @Override
+        public int getMaxTransferBlocks()
+        {
+            return device.getMaxTransferLength() / BLOCK_LENGTH;
+        }
+    };
+
+    /*
+        A directory of an import, see importDirectory()
+     */
+    private static class PlannedDirectory
     {
-        synchronized(monitor)
+        private final java.io.File[] files;
+        private final List<Long> directoryChain;
+        private final byte[] content;
+        private final List<List<Long>> fileChains; // By index in files
+        private final long[] fileSizes;
+        private final TreeMap<Long, Integer> filesByCluster; // Files with data, by first cluster
+
+        public PlannedDirectory(java.io.File[] files, List<Long> directoryChain, byte[] content)
         {
-            waiting.set(false);
-            monitor.notify();
+            this.files = files;
+            this.directoryChain = directoryChain;
+            this.content = content;
+            this.fileChains = new ArrayList<List<Long>>();
+            this.fileSizes = new long[files.length];
+            this.filesByCluster = new TreeMap<Long, Integer>();
         }
     }
 
-    private SCSIInterface scsiInterface = new SCSIInterface()
+    /*
+        Reads one cluster of the directory at a time, when the entries of the previous one are exhausted
+     */
+    private class DirectoryIterator implements Iterator<FileEntry>
     {
+        private final String absolutePath;
+        private final DirectoryParser parser;
+        private long nextCluster; // 0 when every cluster has been read
+        private byte[] clusterData;
+        private int offset; // inside clusterData
+        private int clusterOffset; // of clusterData from the beginning of the directory
+        private FileEntry next;
+        private boolean finished;
+
+        public DirectoryIterator(String absolutePath, long firstCluster)
+        {
+            this.absolutePath = absolutePath;
+            this.parser = new DirectoryParser();
+            this.nextCluster = firstCluster;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if(next == null && !finished)
+                next = advance();
+            return next != null;
+        }
+
+        @Override
+        public FileEntry next()
+        {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            FileEntry entry = next;
+            next = null;
+            return entry;
+        }
+
         @Override
-        public void onSCSIOperationCompleted(int status, int dataResidue)
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private FileEntry advance()
         {
-            if(status == 0)
+            while(true)
             {
-                currentStatus = true;
-                scsiSuccessNotification();
-            }else
+                if((clusterData == null || offset >= clusterData.length) && !readNextCluster())
+                    break;
+                if(DirectoryParser.isEndOfDirectory(clusterData, offset))
+                    break;
+                FileEntry entry = parser.parse(clusterData, offset, clusterOffset + offset);
+                offset += DirectoryParser.ENTRY_SIZE;
+                if(entry != null)
+                    return entry;
+            }
+            finished = true;
+            return null;
+        }
+
+        /*
+            false when every cluster has been read
+         */
+        private boolean readNextCluster()
+        {
+            if(nextCluster == 0)
+                return false;
+            if(nextCluster == CLUSTER_ERROR)
+                throw new IllegalStateException("Cannot read the cluster chain of " + absolutePath);
+            synchronized(FATHandler.this)
             {
-                currentStatus = false;
-                scsiSuccessNotification();
+                long lbaCluster = getFirstClusterLba() + (nextCluster - 2) * reservedRegion.getSectorsPerCluster();
+                byte[] data = readBytes(lbaCluster, (int) reservedRegion.getSectorsPerCluster(), true);
+                if(data == null)
+                    throw new IllegalStateException("Cannot read cluster " + nextCluster + " of " + absolutePath);
+                if(clusterData != null)
+                    clusterOffset += clusterData.length;
+                clusterData = data;
+                offset = 0;
+                nextCluster = getNextCluster(nextCluster);
             }
+            return true;
         }
+    }
 
-        @Override
-        public void onSCSIDataReceived(SCSIResponse response)
+    /*
+        Reads the directories of a walk in the order they are enqueued, keeping at most
+        WALK_PREFETCH_DIRECTORIES of them waiting to be taken
+     */
+    private class WalkPrefetcher extends Thread
+    {
+        private final LinkedList<Long> pending;
+        private final LinkedList<List<FileEntry>> ready; // null elements are directories that could not be read
+        private boolean cancelled;
+
+        public WalkPrefetcher()
         {
-            currentResponse = response;
+            pending = new LinkedList<Long>();
+            ready = new LinkedList<List<FileEntry>>();
+            setDaemon(true);
         }
 
         @Override
-        public void onSCSIOperationStarted(boolean status)
+        public void run()
+        {
+            while(true)
+            {
+                long firstCluster;
+                synchronized(this)
+                {
+                    while(!cancelled && (pending.isEmpty() || ready.size() >= WALK_PREFETCH_DIRECTORIES))
+                    {
+                        try
+                        {
+                            wait();
+                        }catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    if(cancelled)
+                        return;
+                    firstCluster = pending.removeFirst();
+                }
+
+                // Whatever happens the directory gets its element, walk() would wait for it forever otherwise
+                List<FileEntry> entries = null;
+                try
+                {
+                    entries = readDirectoryEntries(firstCluster);
+                }catch(RuntimeException e)
+                {
+                    e.printStackTrace();
+                }catch(OutOfMemoryError e)
+                {
+                    e.printStackTrace();
+                }
+
+                synchronized(this)
+                {
+                    ready.add(entries);
+                    notifyAll();
+                }
+            }
+        }
+
+        public synchronized void enqueue(long firstCluster)
+        {
+            pending.add(firstCluster);
+            notifyAll();
+        }
+
+        /*
+            Entries of the next enqueued directory, waits until it has been read
+         */
+        public synchronized List<FileEntry> take()
         {
+            while(ready.isEmpty())
+            {
+                try
+                {
+                    wait();
+                }catch (InterruptedException e)
+                {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+            List<FileEntry> entries = ready.removeFirst();
+            notifyAll();
+            return entries;
+        }
 
+        public synchronized void cancel()
+        {
+            cancelled = true;
+            notifyAll();
         }
-    };
+    }
 
+    /*
+        Reads the FAT once looking for free sectors and finishes, a plain thread so
+        the file system does not need an Android Looper
+     */
     private class CacheThread extends Thread
     {
-        private AtomicBoolean keep;
         private AtomicBoolean cacheReading;
+        private final int cacheMode;
         private int maxElements;
 
-        public CacheThread()
+        public CacheThread(int cacheMode)
         {
-            keep = new AtomicBoolean(false);
+            this.cacheMode = cacheMode;
             cacheReading = new AtomicBoolean(true);
         }
 
         @Override
         public void run()
         {
-            Looper.prepare();
-            wHandler = new Handler()
-            {
-                @Override
-                public void handleMessage(Message msg)
-                {
-                    switch(msg.what)
-                    {
-                        case LOAD_CACHE:
-                            populateCache(msg.arg1);
-                            break;
-                        case FIND_EMPTY_CLUSTERCHAIN:
-                            break;
-                    }
-                }
-            };
-            Looper.loop();
+            populateCache(cacheMode);
         }
 
         public boolean waitTillCaching()
@@ -1046,18 +2025,27 @@ public class FATHandler
             else if(cacheMode == 3) // High Cache
                 maxElements = (int) reservedRegion.getNumberSectorsPerFat();
 
-            for(long i=lbaFATStart;i<=lbaFATEnd-1;i++)
+            // The FAT is read in pages sized after the device transfer limits
+            long i = lbaFATStart;
+            while(i < lbaFATEnd)
             {
-                byte[] rawFATLba = readBytes(i, 1);
-                if(isCacheable(rawFATLba))
+                int sectors = (int) Math.min(cachePageSectors, lbaFATEnd - i);
+                byte[] rawFATPage = readBytes(i, sectors);
+                if(rawFATPage == null)
+                    break;
+                for(int k=0;k<=sectors-1;k++)
                 {
-                    cache.addCluster(i);
-                    if(++j == maxElements)
+                    if(isCacheable(rawFATPage, k * BLOCK_LENGTH))
                     {
-                        notifyCacheRead();
-                        return;
+                        cache.addCluster(i + k);
+                        if(++j == maxElements)
+                        {
+                            notifyCacheRead();
+                            return;
+                        }
                     }
                 }
+                i += sectors;
             }
             notifyCacheRead();
         }
@@ -1065,13 +2053,13 @@ public class FATHandler
         /*
             Consider the sector cacheable if at least 1/4 is available
          */
-        private boolean isCacheable(byte[] rawSector)
+        private boolean isCacheable(byte[] rawPage, int offset)
         {
             int counter = 0;
-            for(int j=0;j<=rawSector.length-1;j+=4)
+            for(int j=offset;j<=offset+BLOCK_LENGTH-1;j+=4)
             {
-                long entry = UnsignedUtil.convertBytes2Long(rawSector[j+3],
-                        rawSector[j+2], rawSector[j+1], rawSector[j]);
+                long entry = UnsignedUtil.convertBytes2Long(rawPage[j+3],
+                        rawPage[j+2], rawPage[j+1], rawPage[j]);
                 if(entry == 0)
                     counter++;
                 if(counter > 100)
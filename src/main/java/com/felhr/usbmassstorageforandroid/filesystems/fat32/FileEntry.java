@@ -5,11 +5,7 @@ import android.util.Log;
 
 import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
 
-import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.List;
 import java.util.TimeZone;
 
 /**
@@ -27,6 +23,11 @@ public class FileEntry
     private long firstCluster;
     private Date lastModifiedDate;
     private long size;
+    private byte[] raw; // 8.3 slot of entries read from a directory, names, attributes and dates are decoded from it
+
+    private String name; // See getName()
+    private int directoryOffset = -1; // Offset of the 8.3 entry in the directory data, -1 if unknown
+    private int lfnEntries; // LFN entries preceding the 8.3 entry
 
     private FileEntry()
     {
@@ -34,6 +35,15 @@ public class FileEntry
     }
 
     public static FileEntry getEntry(String longName ,byte[] data) // data 32-byte long and the longName if available
+    {
+        return getEntry(longName, data, 0);
+    }
+
+    /*
+        Entry over the 8.3 slot at offset of data. Only the fields a listing needs are decoded here,
+        names and dates are decoded from the slot when they are first used
+     */
+    public static FileEntry getEntry(String longName, byte[] data, int offset)
     {
         FileEntry entry = new FileEntry();
 
@@ -42,91 +52,30 @@ public class FileEntry
         else
             entry.longName = "";
 
-        byte[] buffer = new byte[8];
-
-        System.arraycopy(data, 0, buffer, 0, 8);
-        int length = findNullChar(buffer, 8);
-        if(length > 0)
-        {
-            entry.shortName = new String(buffer, 0, length);
-        }else
-        {
-            entry.shortName = new String(buffer);
-        }
-
-        Arrays.fill(buffer, (byte) 0x20);
-        System.arraycopy(data, 8, buffer, 0, 3);
-        length = findNullChar(buffer, 3);
-        if(length > -1)
-        {
-            if(length == 0)
-                entry.fileExtension = "";
-            else
-                entry.fileExtension = new String(buffer, 0, length);
-        }else // No null char
-        {
-            entry.fileExtension = new String(Arrays.copyOf(buffer, 3));
-        }
-        //entry.fileExtension = new String(Arrays.copyOf(buffer, 3));
-
-        System.arraycopy(data, 11, buffer, 0, 1);
-        entry.attr = new Attributes(buffer[0]);
-
-        System.arraycopy(data, 13, buffer, 0, 1);
-        entry.fileCreationTime = buffer[0];
-
-        System.arraycopy(data, 14, buffer, 0, 2);
-
-        int value0 = UnsignedUtil.byteToUint(buffer[0]);
-        int value1 = UnsignedUtil.byteToUint(buffer[1]);
-
-        int timeData = (value1 << 8) + value0;
-
-        System.arraycopy(data, 16, buffer, 0, 2);
-
-        int value2 = UnsignedUtil.byteToUint(buffer[0]);
-        int value3 = UnsignedUtil.byteToUint(buffer[1]);
-        int dateData = (value3 << 8) + value2;
-
-        entry.creationDate = parseCreationDate(timeData, dateData);
-
-        System.arraycopy(data, 18, buffer, 0, 2);
-        int accessedDate = (buffer[0] << 8) + buffer[1];
-        entry.lastAccessedDate = parseAccessedDate(accessedDate);
-
-        System.arraycopy(data, 20, buffer, 0, 2);
-        System.arraycopy(data, 26, buffer, 2, 2);
+        entry.raw = new byte[32];
+        System.arraycopy(data, offset, entry.raw, 0, 32);
+        entry.fileCreationTime = entry.raw[13];
         // High and Low word of the cluster are Little-Endian
-        entry.firstCluster = UnsignedUtil.convertBytes2Long(buffer[1], buffer[0], buffer[3], buffer[2]);
-
-        System.arraycopy(data, 22, buffer, 0, 2);
-        value0 = UnsignedUtil.byteToUint(buffer[0]);
-        value1 = UnsignedUtil.byteToUint(buffer[1]);
-        timeData = (value1 << 8) + value0;
-
-        System.arraycopy(data, 24, buffer, 0, 2);
-        value2 = UnsignedUtil.byteToUint(buffer[0]);
-        value3 = UnsignedUtil.byteToUint(buffer[1]);
-        dateData =  (value3 << 8) + value2;
-
-        entry.lastModifiedDate = parseCreationDate(timeData, dateData);
-
-        System.arraycopy(data, 28, buffer, 0, 4);
-        entry.size = UnsignedUtil.convertBytes2Long(buffer[3], buffer[2], buffer[1], buffer[0]);
+        entry.firstCluster = ((long) getUint16(entry.raw, 20) << 16) + getUint16(entry.raw, 26);
+        entry.size = ((long) getUint16(entry.raw, 30) << 16) + getUint16(entry.raw, 28);
 
         return entry;
     }
 
-    public static FileEntry getEntry(String name, long firstCluster, long size, List<FileEntry> files,
+    /*
+        shortNames: short names of the directory the entry goes to, the new short name is added to them.
+        null for dot and dot-dot entries
+     */
+    public static FileEntry getEntry(String name, long firstCluster, long size, ShortNameGenerator shortNames,
                                      boolean isRead, boolean isHidden, boolean isdirectory, long lastModified)
     {
         /*
             System, volume and archive attributes not added yet because not accesible from Android API
          */
         FileEntry entry = new FileEntry();
-        if(files != null)
+        if(shortNames != null)
         {
-            String[] fileAndExtension = ShortNameGenerator.getRandomShortName(name);
+            String[] fileAndExtension = shortNames.getShortName(name);
             entry.shortName = fileAndExtension[0];
             entry.fileExtension = fileAndExtension[1];
             entry.longName = name;
@@ -143,53 +92,50 @@ public class FileEntry
         entry.attr.setHidden(isHidden);
         entry.attr.setDirectory(isdirectory);
 
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(lastModified);
         /*
             Only lastModifiedDate can be accessed through Java API.
          */
-        entry.lastModifiedDate = cal.getTime();
-        entry.creationDate = cal.getTime();
-        entry.lastAccessedDate = cal.getTime();
+        entry.lastModifiedDate = new Date(lastModified);
+        entry.creationDate = new Date(lastModified);
+        entry.lastAccessedDate = new Date(lastModified);
         entry.fileCreationTime = 0;
 
         return entry;
     }
 
-    private static Date parseCreationDate(int timeData, int dateData)
+    private static int getUint16(byte[] data, int index)
     {
-        int hour = timeData >> 11 ;
-        int minute = (timeData >> 5) & 0x3f;
-        int second = (timeData & 0x1f) / 2;
-
-
-        int year = 1980 + (dateData >> 9);
-        int month = (dateData >> 5) & 0x0f;
-        int day = dateData & 0x1f;
-
-        GregorianCalendar creationDate = new GregorianCalendar();
-        creationDate.setTimeZone(TimeZone.getDefault());
-        creationDate.set(year, --month, day, hour, minute, second);
-        return creationDate.getTime();
+        return UnsignedUtil.byteToUint(data[index]) + (UnsignedUtil.byteToUint(data[index + 1]) << 8);
     }
 
-    private static Date parseAccessedDate(int accessedDate)
+    /*
+        FAT dates and times are local time. They are converted with arithmetic because building
+        a Calendar for every entry is too slow for big listings
+     */
+    private static long fatToMillis(int date, int time)
     {
-        int year = 1980 + (accessedDate >> 9);
-        int month = (accessedDate >> 5) & 0x0f;
-        int day = accessedDate & 0x1f;
-
-        GregorianCalendar accessDate = new GregorianCalendar();
-        accessDate.setTimeZone(TimeZone.getDefault());
-        accessDate.set(year, --month, day);
-        return accessDate.getTime();
+        int year = 1980 + (date >> 9);
+        int month = Math.max(1, (date >> 5) & 0x0f);
+        int day = Math.max(1, date & 0x1f);
+        int hour = time >> 11;
+        int minute = (time >> 5) & 0x3f;
+        int second = (time & 0x1f) * 2;
+
+        // Days since 1970-01-01, years start in March so the leap day is the last day of the year
+        int y = (month <= 2) ? year - 1 : year;
+        int m = (month <= 2) ? month + 9 : month - 3;
+        long days = 365L * y + y / 4 - y / 100 + y / 400 + (153 * m + 2) / 5 + day - 1 - 719468;
+
+        long localMillis = (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000;
+        TimeZone timeZone = TimeZone.getDefault();
+        return localMillis - timeZone.getOffset(localMillis - timeZone.getRawOffset());
     }
 
-    private static int findNullChar(byte[] data, int length)
+    private static int findNullChar(byte[] data, int offset, int length)
     {
         for(int i=0;i<=length-1;i++)
         {
-            if(data[i] == (byte) 0x20)
+            if(data[offset + i] == (byte) 0x20)
             {
                 return i;
             }
@@ -197,164 +143,139 @@ public class FileEntry
         return -1;
     }
 
-    public byte[] getRawFileEntry()
+    private void decodeShortName()
     {
-        byte[] rawLongName = LFNHandler.getRawLongName(longName, shortName, fileExtension);
-        byte[] rawFileEntry = new byte[rawLongName.length + 32];
-        int index = 0;
-
-        System.arraycopy(rawLongName, 0, rawFileEntry, index, rawLongName.length);
-        index = rawLongName.length;
-        if (shortName.length() == 8)
-        {
-            System.arraycopy(shortName.getBytes(), 0, rawFileEntry, index, 8);
-        }else
-        {
-            byte[] shortNameRawExpanded = new byte[]{0x20, 0x20, 0x20, 0x20, 0x20, 0x20, 0x20, 0x20};
-            byte[] shortNameRaw = shortName.getBytes();
-            System.arraycopy(shortNameRaw, 0, shortNameRawExpanded, 0, shortNameRaw.length);
-            System.arraycopy(shortNameRawExpanded, 0, rawFileEntry, index, 8);
-        }
-        index += 8;
-
-        if (fileExtension.length() == 3)
-        {
-            System.arraycopy(fileExtension.getBytes(), 0, rawFileEntry, index, 3);
-        }else
-        {
-            byte[] extensionRawExtended = new byte[]{0x20, 0x20, 0x20};
-            byte[] extensionRaw = fileExtension.getBytes();
-            if(extensionRaw.length != 0)
-            {
-                System.arraycopy(extensionRaw, 0, extensionRawExtended, 0, extensionRaw.length);
-                System.arraycopy(extensionRawExtended, 0, rawFileEntry, index, 3);
-            }else
-            {
-                System.arraycopy(new byte[]{0x20, 0x20, 0x20}, 0, rawFileEntry, index, 3);
-            }
-        }
-        index += 3;
-        System.arraycopy(new byte[]{attr.getAttrByte()}, 0, rawFileEntry, index, 1);
-        index += 1;
-        System.arraycopy(new byte[]{0x00}, 0, rawFileEntry, index, 1);
-        index += 1;
-        System.arraycopy(new byte[]{(byte)fileCreationTime}, 0, rawFileEntry, index, 1);
-        index += 1;
-
-        /*
-          get Raw creation Date
-         */
-        Calendar dateCal = Calendar.getInstance();
-        dateCal.setTime(creationDate);
-        int value = 0;
-        int hours = dateCal.get(Calendar.HOUR_OF_DAY);
-        int minutes = dateCal.get(Calendar.MINUTE);
-        int seconds = dateCal.get(Calendar.SECOND) / 2;
-
-        value += (hours << 11);
-        value += (minutes << 5) & 0x07e0;
-        value += (seconds & 0x1f);
-
-        byte lsb = (byte) (value & 0xff);
-        byte msb = (byte) (value >> 8);
-
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
-        value = 0;
-        int years = dateCal.get(Calendar.YEAR) - 1980;
-        int month = dateCal.get(Calendar.MONTH) + 1;
-        int day = dateCal.get(Calendar.DAY_OF_MONTH);
-
-        value += (years << 9);
-        value += (month << 5) & 0x1e0;
-        value += (day & 0x1f);
-
-        lsb = (byte) (value & 0xff);
-        msb = (byte) (value >> 8);
-
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
-        value = 0;
-
-        /*
-          get Raw Last accesed date
-         */
-        dateCal.setTime(lastAccessedDate);
-        years = dateCal.get(Calendar.YEAR) - 1980;
-        month = dateCal.get(Calendar.MONTH) + 1;
-        day = dateCal.get(Calendar.DAY_OF_MONTH);
-
-        value += (years << 9);
-        value += (month << 5) & 0x1e0;
-        value += (day & 0x1f);
+        int length = findNullChar(raw, 0, 8);
+        if(length > 0)
+            shortName = new String(raw, 0, length);
+        else
+            shortName = new String(raw, 0, 8);
 
-        lsb = (byte) (value & 0xff);
-        msb = (byte) (value >> 8);
+        length = findNullChar(raw, 8, 3);
+        if(length > -1)
+            fileExtension = new String(raw, 8, length);
+        else // No null char
+            fileExtension = new String(raw, 8, 3);
+    }
 
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
-        value = 0;
+    private boolean hasAttribute(int mask)
+    {
+        return (getAttrByte() & mask) == mask;
+    }
 
-        /*
-          get high word cluster
-         */
-        int cluster = UnsignedUtil.ulongToInt(firstCluster);
-        msb = (byte) (cluster >> 24);
-        lsb = (byte) (cluster >> 16 & 0xff);
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
+    private byte getAttrByte()
+    {
+        if(raw != null)
+            return raw[11];
+        return attr.getAttrByte();
+    }
 
-        /*
-          get last modified date
-         */
-        dateCal.setTime(lastModifiedDate);
-        hours = dateCal.get(Calendar.HOUR_OF_DAY);
-        minutes = dateCal.get(Calendar.MINUTE);
-        seconds = dateCal.get(Calendar.SECOND) / 2;
+    public byte[] getRawFileEntry()
+    {
+        byte[] rawFileEntry = new byte[getRawLength()];
+        writeRawFileEntry(rawFileEntry, 0);
+        return rawFileEntry;
+    }
 
-        value += (hours << 11);
-        value += (minutes << 5) & 0x07e0;
-        value += (seconds & 0x1f);
+    /*
+        Bytes the entry takes in a directory: its LFN entries and the 8.3 entry
+     */
+    public int getRawLength()
+    {
+        return (LFNHandler.getLFNEntries(longName) + 1) * 32;
+    }
 
-        lsb = (byte) (value & 0xff);
-        msb = (byte) (value >> 8);
+    /*
+        Write the LFN entries and the 8.3 entry at offset of data, usually the buffer of a directory.
+        Returns the offset after the 8.3 entry
+     */
+    public int writeRawFileEntry(byte[] data, int offset)
+    {
+        int shortEntryOffset = offset + LFNHandler.getLFNEntries(longName) * 32;
+        writeShortEntry(data, shortEntryOffset);
+        LFNHandler.writeLFNEntries(longName, data, offset, LFNHandler.getChecksum(data, shortEntryOffset));
+        return shortEntryOffset + 32;
+    }
 
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
-        value = 0;
-        years = dateCal.get(Calendar.YEAR) - 1980;
-        month = dateCal.get(Calendar.MONTH) + 1;
-        day = dateCal.get(Calendar.DAY_OF_MONTH);
+    private void writeShortEntry(byte[] data, int offset)
+    {
+        if(raw != null) // Entry read from a directory
+        {
+            System.arraycopy(raw, 0, data, offset, 32);
+            return;
+        }
 
-        value += (years << 9);
-        value += (month << 5)  & 0x1e0;
-        value += (day & 0x1f);
+        writePadded(shortName, data, offset, 8);
+        writePadded(fileExtension, data, offset + 8, 3);
+        data[offset + 11] = getAttrByte();
+        data[offset + 12] = 0x00;
+        data[offset + 13] = (byte) fileCreationTime;
+
+        TimeZone timeZone = TimeZone.getDefault();
+        long creation = toLocalMillis(creationDate.getTime(), timeZone);
+        putUint16(data, offset + 14, toFatTime(creation));
+        putUint16(data, offset + 16, toFatDate(creation));
+        putUint16(data, offset + 18, toFatDate(toLocalMillis(lastAccessedDate.getTime(), timeZone)));
+        putUint16(data, offset + 20, (int) (firstCluster >> 16)); // High word of the cluster
+        long lastModified = toLocalMillis(lastModifiedDate.getTime(), timeZone);
+        putUint16(data, offset + 22, toFatTime(lastModified));
+        putUint16(data, offset + 24, toFatDate(lastModified));
+        putUint16(data, offset + 26, (int) (firstCluster & 0xffff)); // Low word of the cluster
+        putUint16(data, offset + 28, (int) (size & 0xffff));
+        putUint16(data, offset + 30, (int) ((size >> 16) & 0xffff));
+    }
 
-        lsb = (byte) (value & 0xff);
-        msb = (byte) (value >> 8);
+    private static void writePadded(String name, byte[] data, int offset, int length)
+    {
+        for(int i=0;i<=length-1;i++)
+            data[offset + i] = (i < name.length()) ? (byte) name.charAt(i) : 0x20;
+    }
 
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
+    private static void putUint16(byte[] data, int index, int value)
+    {
+        data[index] = (byte) (value & 0xff);
+        data[index + 1] = (byte) ((value >> 8) & 0xff);
+    }
 
-        /*
-         get low word cluster
-         */
-        msb = (byte) (cluster >> 8 & 0xff);
-        lsb = (byte) (cluster & 0xff);
-        System.arraycopy(new byte[]{lsb, msb}, 0, rawFileEntry, index, 2);
-        index += 2;
+    private static long toLocalMillis(long millis, TimeZone timeZone)
+    {
+        return millis + timeZone.getOffset(millis);
+    }
 
-        /*
-         get file size
-         */
-        int uSize = UnsignedUtil.ulongToInt(size);
-        byte b1 = (byte) (uSize >> 24);
-        byte b2 = (byte) (uSize >> 16 & 0xff);
-        byte b3 = (byte) (uSize >> 8 & 0xff);
-        byte b4 = (byte) (uSize & 0xff);
-        System.arraycopy(new byte[]{b4, b3, b2, b1}, 0, rawFileEntry, index, 4);
+    /*
+        Inverse of fatToMillis(), localMillis already includes the time zone offset
+     */
+    private static int toFatDate(long localMillis)
+    {
+        long days = localMillis / 86400000L;
+        if(localMillis < 0 && localMillis % 86400000L != 0)
+            days--;
+
+        // Civil date from days since 1970-01-01, years start in March
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = (mp < 10) ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+
+        if(year < 1980) // FAT dates start on 1980-01-01
+            return (1 << 5) | 1;
+        if(year > 2107)
+            year = 2107;
+        return (int) ((year - 1980) << 9) | (month << 5) | day;
+    }
 
-        return rawFileEntry;
+    private static int toFatTime(long localMillis)
+    {
+        int secondsOfDay = (int) (((localMillis / 1000) % 86400 + 86400) % 86400);
+        int hours = secondsOfDay / 3600;
+        int minutes = (secondsOfDay / 60) % 60;
+        int seconds = secondsOfDay % 60;
+        return (hours << 11) | (minutes << 5) | (seconds / 2);
     }
 
     private static class Attributes
@@ -461,13 +382,50 @@ public class FileEntry
         return longName;
     }
 
+    /*
+        Name used to look the entry up: the long name if present, short name and extension otherwise
+     */
+    public String getName()
+    {
+        if(name == null)
+        {
+            if(!longName.equals(""))
+                name = longName;
+            else if(!getFileExtension().equals(""))
+                name = getShortName() + "." + getFileExtension();
+            else
+                name = getShortName();
+        }
+        return name;
+    }
+
+    public int getDirectoryOffset()
+    {
+        return directoryOffset;
+    }
+
+    public int getLfnEntries()
+    {
+        return lfnEntries;
+    }
+
+    void setDirectoryOffset(int directoryOffset, int lfnEntries)
+    {
+        this.directoryOffset = directoryOffset;
+        this.lfnEntries = lfnEntries;
+    }
+
     public String getShortName()
     {
+        if(shortName == null)
+            decodeShortName();
         return shortName;
     }
 
     public String getFileExtension()
     {
+        if(fileExtension == null)
+            decodeShortName();
         return fileExtension;
     }
 
@@ -478,14 +436,32 @@ public class FileEntry
 
     public Date getCreationDate()
     {
+        if(creationDate == null && raw != null)
+            creationDate = new Date(getCreationMillis());
         return creationDate;
     }
 
+    public long getCreationMillis()
+    {
+        if(raw != null)
+            return fatToMillis(getUint16(raw, 16), getUint16(raw, 14));
+        return creationDate.getTime();
+    }
+
     public Date getLastAccessedDate()
     {
+        if(lastAccessedDate == null && raw != null)
+            lastAccessedDate = new Date(getLastAccessedMillis());
         return lastAccessedDate;
     }
 
+    public long getLastAccessedMillis()
+    {
+        if(raw != null)
+            return fatToMillis(getUint16(raw, 18), 0);
+        return lastAccessedDate.getTime();
+    }
+
     public long getFirstCluster()
     {
         return firstCluster;
@@ -493,9 +469,18 @@ public class FileEntry
 
     public Date getLastModifiedDate()
     {
+        if(lastModifiedDate == null && raw != null)
+            lastModifiedDate = new Date(getLastModifiedMillis());
         return lastModifiedDate;
     }
 
+    public long getLastModifiedMillis()
+    {
+        if(raw != null)
+            return fatToMillis(getUint16(raw, 24), getUint16(raw, 22));
+        return lastModifiedDate.getTime();
+    }
+
     public long getSize()
     {
         return size;
@@ -503,31 +488,43 @@ public class FileEntry
 
     public boolean isReadOnly()
     {
+        if(raw != null)
+            return hasAttribute(0x01);
         return attr.isReadOnly();
     }
 
     public boolean isHidden()
     {
+        if(raw != null)
+            return hasAttribute(0x02);
         return attr.isHidden();
     }
 
     public boolean isSystem()
     {
+        if(raw != null)
+            return hasAttribute(0x04);
         return attr.isSystem();
     }
 
     public boolean isVolume()
     {
+        if(raw != null)
+            return hasAttribute(0x08);
         return attr.isVolume();
     }
 
     public boolean isDirectory()
     {
+        if(raw != null)
+            return hasAttribute(0x10);
         return attr.isDirectory();
     }
 
     public boolean isArchive()
     {
+        if(raw != null)
+            return hasAttribute(0x20);
         return attr.isArchive();
     }
 }
\ No newline at end of file
@@ -10,12 +10,15 @@ public class Path
 {
     private List<FileEntry> path;
     private List<FileEntry> directoryContent;
+    private DirectoryIndex directoryIndex;
+    private ShortNameGenerator shortNameGenerator; // Built when the first file is created in the directory
     private int freeEntries;
 
     public Path()
     {
         this.path = new ArrayList<FileEntry>();
         this.directoryContent = new ArrayList<FileEntry>();
+        this.directoryIndex = new DirectoryIndex();
     }
 
     /*
@@ -69,6 +72,9 @@ public class Path
     public void setDirectoryContent(List<FileEntry> entries)
     {
         directoryContent.addAll(entries);
+        for(int i=0;i<=entries.size()-1;i++)
+            directoryIndex.put(entries.get(i));
+        shortNameGenerator = null;
     }
 
     public void setFreeEntries(int freeEntries)
@@ -81,16 +87,30 @@ public class Path
         return directoryContent;
     }
 
+    /*
+        Case insensitive lookup by FileEntry.getName(). null if there is no such entry
+     */
+    public FileEntry getFileEntry(String name)
+    {
+        return directoryIndex.get(name);
+    }
+
     public void addFileEntry(FileEntry newEntry)
     {
         directoryContent.add(newEntry);
+        directoryIndex.put(newEntry);
+        if(shortNameGenerator != null)
+            shortNameGenerator.add(newEntry);
     }
 
     public boolean deleteFileEntry(int index)
     {
         try
         {
-            directoryContent.remove(index);
+            FileEntry entry = directoryContent.remove(index);
+            directoryIndex.remove(entry);
+            if(shortNameGenerator != null)
+                shortNameGenerator.remove(entry);
             return true;
         }catch(IndexOutOfBoundsException e)
         {
@@ -99,9 +119,29 @@ public class Path
         }
     }
 
+    public boolean deleteFileEntry(FileEntry entry)
+    {
+        directoryIndex.remove(entry);
+        if(shortNameGenerator != null)
+            shortNameGenerator.remove(entry);
+        return directoryContent.remove(entry);
+    }
+
     public void clearDirectoryContent()
     {
         directoryContent.clear();
+        directoryIndex.clear();
+        shortNameGenerator = null;
+    }
+
+    /*
+        Short names used in the current directory, new entries must get their short name from here
+     */
+    public ShortNameGenerator getShortNameGenerator()
+    {
+        if(shortNameGenerator == null)
+            shortNameGenerator = new ShortNameGenerator(directoryContent);
+        return shortNameGenerator;
     }
 
     public int getFreeEntries()
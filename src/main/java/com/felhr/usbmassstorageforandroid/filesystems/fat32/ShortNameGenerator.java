@@ -1,58 +1,156 @@
 package com.felhr.usbmassstorageforandroid.filesystems.fat32;
 
-import java.util.Random;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Created by Felipe Herranz(felhr85@gmail.com) on 18/7/15.
  */
 public class ShortNameGenerator
 {
-    private ShortNameGenerator()
+    /*
+        Short names of one directory. New names follow the Windows scheme: the upper case basis name
+        when it is a valid 8.3 name not used yet, BASENA~N.EXT with the lowest free N otherwise.
+        Basis names sharing their first 6 characters compete for the same ~N names, the next N to try
+        is remembered for each of those prefixes so creating many similar names does not probe every tail again.
+     */
+    private static final String VALID_SYMBOLS = "!#$%&'()-@^_`{}~";
+
+    private final HashSet<String> shortNames; // NAME.EXT
+    private final HashMap<String, Integer> nextTails; // First 6 characters of the basis NAME.EXT -> next N
+
+    public ShortNameGenerator()
     {
+        this.shortNames = new HashSet<String>();
+        this.nextTails = new HashMap<String, Integer>();
+    }
 
+    public ShortNameGenerator(List<FileEntry> entries)
+    {
+        this();
+        for(int i=0;i<=entries.size()-1;i++)
+            add(entries.get(i));
+    }
+
+    public void add(FileEntry entry)
+    {
+        shortNames.add(getKey(entry.getShortName(), entry.getFileExtension()));
+    }
+
+    public void remove(FileEntry entry)
+    {
+        if(shortNames.remove(getKey(entry.getShortName(), entry.getFileExtension()))
+                && entry.getShortName().indexOf('~') != -1)
+            nextTails.clear(); // A lower N is free again
     }
 
     /*
-       Trying to generate shortnames that will force Windows to read the LFN instead
+        Returns the short name and the extension for longName, and reserves them in this directory
      */
-
-    public static String[] getRandomShortName(String name)
+    public String[] getShortName(String longName)
     {
-        String[] fileAndExtension = new String[2];
-        String strStep1 = name.replaceAll("\\s+", "");
-        boolean first = false;
-        StringBuilder strStep2Builder = new StringBuilder(strStep1);
-        for(int i=strStep1.length()-1;i>=0;i--)
+        String name = longName.toUpperCase(Locale.US);
+        boolean lossy = false;
+
+        // Spaces and leading periods are dropped
+        StringBuilder stripped = new StringBuilder(name.length());
+        for(int i=0;i<=name.length()-1;i++)
+        {
+            char c = name.charAt(i);
+            if(c == ' ' || (c == '.' && stripped.length() == 0))
+                lossy = true;
+            else
+                stripped.append(c);
+        }
+
+        int lastDot = stripped.lastIndexOf(".");
+        String base;
+        String extension;
+        if(lastDot != -1)
+        {
+            base = stripped.substring(0, lastDot);
+            extension = stripped.substring(lastDot + 1);
+        }else
+        {
+            base = stripped.toString();
+            extension = "";
+        }
+
+        StringBuilder baseBuilder = new StringBuilder(8);
+        for(int i=0;i<=base.length()-1;i++)
         {
-            if(strStep1.charAt(i) == '.' && !first)
+            char c = base.charAt(i);
+            if(c == '.') // Only the last period separates the extension
+            {
+                lossy = true;
+                continue;
+            }
+            if(baseBuilder.length() == 8)
             {
-                first = true;
-            }else if(strStep1.charAt(i) == '.' && first)
+                lossy = true;
+                break;
+            }
+            if(!isValidChar(c))
             {
-                strStep2Builder.deleteCharAt(i);
+                c = '_';
+                lossy = true;
             }
+            baseBuilder.append(c);
         }
 
-        String[] strStep3 = strStep2Builder.toString().split("\\.");
-        if(strStep3.length > 1)
+        StringBuilder extensionBuilder = new StringBuilder(3);
+        for(int i=0;i<=extension.length()-1;i++)
         {
-            if(strStep3[1].length() > 3)
-                strStep3[1] = strStep3[1].substring(0, 3);
-            fileAndExtension[1] = strStep3[1];
-        }else
-            fileAndExtension[1] = "";
+            char c = extension.charAt(i);
+            if(extensionBuilder.length() == 3)
+            {
+                lossy = true;
+                break;
+            }
+            if(!isValidChar(c))
+            {
+                c = '_';
+                lossy = true;
+            }
+            extensionBuilder.append(c);
+        }
 
-        String shortName = "";
-        Random r = new Random();
-        for(int i=0; i<=5;i++)
+        if(baseBuilder.length() == 0)
         {
-            char c = (char)(r.nextInt(26) + 'a');
-            shortName += String.valueOf(c);
+            baseBuilder.append('_');
+            lossy = true;
         }
 
-        shortName += "~";
-        shortName += String.valueOf((int) (Math.random() * 10));
-        fileAndExtension[0] = shortName;
-        return fileAndExtension;
+        String basisName = baseBuilder.toString();
+        String basisExtension = extensionBuilder.toString();
+        if(!lossy && shortNames.add(getKey(basisName, basisExtension)))
+            return new String[]{basisName, basisExtension};
+
+        String tailKey = getKey(basisName.substring(0, Math.min(basisName.length(), 6)), basisExtension);
+        Integer nextTail = nextTails.get(tailKey);
+        int tail = (nextTail != null) ? nextTail : 1;
+        while(true)
+        {
+            String tailString = "~" + tail;
+            String shortName = basisName.substring(0, Math.min(basisName.length(), 8 - tailString.length())) + tailString;
+            tail++;
+            if(shortNames.add(getKey(shortName, basisExtension)))
+            {
+                nextTails.put(tailKey, tail);
+                return new String[]{shortName, basisExtension};
+            }
+        }
+    }
+
+    private static boolean isValidChar(char c)
+    {
+        return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || VALID_SYMBOLS.indexOf(c) != -1;
+    }
+
+    private static String getKey(String shortName, String extension)
+    {
+        return shortName.toUpperCase(Locale.US) + "." + extension.toUpperCase(Locale.US);
     }
 }
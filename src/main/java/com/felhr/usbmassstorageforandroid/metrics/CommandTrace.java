@@ -0,0 +1,216 @@
+package com.felhr.usbmassstorageforandroid.metrics;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class CommandTrace
+{
+    /*
+        Flight recorder of the Bulk-Only traffic of the process: CBW, CSW status and the time of every phase
+        of each command, see TraceRecord. Records live in a fixed size ring out of the Java heap,
+        the oldest ones are overwritten, so it can be left running on devices in the field
+        and dumped when something is slow. Recording a command takes a lock and a few puts, without allocation.
+
+        Dump file, little-endian: 32 byte header (magic "BOTT", version, record length, record count,
+        wall clock time of the start in ms, records overwritten) followed by the records from the oldest.
+        TraceReplayer sends a dump again to a device
+     */
+    public static final int DEFAULT_CAPACITY = 8192; // records, 512 KB
+    public static final int STATUS_NONE = 0xff; // The command got no CSW, it timed out or it was cancelled
+
+    private static final int MAGIC = 0x54544f42; // "BOTT"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 32;
+
+    private static volatile boolean enabled;
+
+    // Guarded by CommandTrace.class
+    private static ByteBuffer ring;
+    private static int capacity;
+    private static long recorded; // Records since the trace started, the ring keeps the last capacity ones
+    private static long startNanos;
+    private static long startMillis;
+
+    private CommandTrace()
+    {
+
+    }
+
+    public static void start()
+    {
+        start(DEFAULT_CAPACITY);
+    }
+
+    /*
+        Drop the current records and start recording in a ring of capacity records
+     */
+    public static synchronized void start(int capacity)
+    {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Trace capacity must be positive: " + capacity);
+        if(ring == null || CommandTrace.capacity != capacity)
+        {
+            ring = ByteBuffer.allocateDirect(capacity * TraceRecord.LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            CommandTrace.capacity = capacity;
+        }
+        recorded = 0;
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+        enabled = true;
+    }
+
+    /*
+        Stop recording, the records are kept until the next start()
+     */
+    public static void stop()
+    {
+        enabled = false;
+    }
+
+    /*
+        Keep recording after stop() without dropping the records
+     */
+    public static synchronized void resume()
+    {
+        if(ring != null)
+            enabled = true;
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /*
+        cbw is the 31 byte CBW as sent, times come from System.nanoTime()
+     */
+    public static synchronized void record(byte[] cbw, int status, int residue, long cbwStart, long cbwEnd,
+                                           long dataEnd, long cswEnd)
+    {
+        if(!enabled)
+            return;
+        int offset = (int) (recorded % capacity) * TraceRecord.LENGTH;
+        TraceRecord.write(ring, offset, cbw, status, residue, cbwStart - startNanos, cbwEnd - startNanos,
+                dataEnd - startNanos, cswEnd - startNanos);
+        recorded++;
+    }
+
+    public static synchronized int getRecordCount()
+    {
+        return (int) Math.min(recorded, capacity);
+    }
+
+    /*
+        Records in the ring from the oldest
+     */
+    public static List<TraceRecord> getRecords()
+    {
+        return parseRecords(ByteBuffer.wrap(copyRecords()).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    public static void dump(File file) throws IOException
+    {
+        OutputStream output = new FileOutputStream(file);
+        try
+        {
+            dump(output);
+        }finally
+        {
+            output.close();
+        }
+    }
+
+    public static void dump(OutputStream output) throws IOException
+    {
+        byte[] records;
+        long overwritten;
+        long millis;
+        synchronized(CommandTrace.class)
+        {
+            records = copyRecords();
+            overwritten = recorded - getRecordCount();
+            millis = startMillis;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(TraceRecord.LENGTH);
+        header.putInt(records.length / TraceRecord.LENGTH);
+        header.putLong(millis);
+        header.putLong(overwritten);
+        output.write(header.array());
+        output.write(records);
+        output.flush();
+    }
+
+    /*
+        Records of a dump from the oldest
+     */
+    public static List<TraceRecord> load(File file) throws IOException
+    {
+        InputStream input = new FileInputStream(file);
+        try
+        {
+            return load(input);
+        }finally
+        {
+            input.close();
+        }
+    }
+
+    public static List<TraceRecord> load(InputStream input) throws IOException
+    {
+        DataInputStream dataInput = new DataInputStream(input);
+        byte[] rawHeader = new byte[HEADER_LENGTH];
+        dataInput.readFully(rawHeader);
+        ByteBuffer header = ByteBuffer.wrap(rawHeader).order(ByteOrder.LITTLE_ENDIAN);
+        if(header.getInt(0) != MAGIC)
+            throw new IOException("Not a command trace");
+        if(header.getInt(4) != VERSION || header.getInt(8) != TraceRecord.LENGTH)
+            throw new IOException("Unsupported command trace version " + header.getInt(4));
+        int count = header.getInt(12);
+        if(count < 0)
+            throw new IOException("Corrupted command trace, " + count + " records");
+
+        byte[] records = new byte[count * TraceRecord.LENGTH];
+        dataInput.readFully(records);
+        return parseRecords(ByteBuffer.wrap(records).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private static synchronized byte[] copyRecords()
+    {
+        int count = getRecordCount();
+        byte[] records = new byte[count * TraceRecord.LENGTH];
+        if(count == 0)
+            return records;
+        int oldest = (int) ((recorded - count) % capacity);
+        ByteBuffer view = ring.duplicate();
+        int firstPart = Math.min(count, capacity - oldest);
+        view.position(oldest * TraceRecord.LENGTH);
+        view.get(records, 0, firstPart * TraceRecord.LENGTH);
+        if(firstPart < count)
+        {
+            view.position(0);
+            view.get(records, firstPart * TraceRecord.LENGTH, (count - firstPart) * TraceRecord.LENGTH);
+        }
+        return records;
+    }
+
+    private static List<TraceRecord> parseRecords(ByteBuffer buffer)
+    {
+        int count = buffer.capacity() / TraceRecord.LENGTH;
+        List<TraceRecord> records = new ArrayList<TraceRecord>(count);
+        for(int i=0;i<=count-1;i++)
+            records.add(TraceRecord.read(buffer, i * TraceRecord.LENGTH));
+        return records;
+    }
+}
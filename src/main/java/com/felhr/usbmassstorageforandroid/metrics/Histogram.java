@@ -0,0 +1,140 @@
+package com.felhr.usbmassstorageforandroid.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram
+{
+    /*
+        Concurrent histogram of non-negative values in power of two buckets: bucket 0 counts zeros and
+        bucket i counts values in [2^(i-1), 2^i). Recording a value is a few atomic additions,
+        without locks or allocation
+     */
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public Histogram()
+    {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long value)
+    {
+        if(value < 0)
+            value = 0;
+        buckets.incrementAndGet(getBucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while(value > currentMax && !max.compareAndSet(currentMax, value))
+            currentMax = max.get();
+    }
+
+    /*
+        Values recorded while the snapshot is taken may be missing from some of its fields
+     */
+    public Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        for(int i=0;i<=BUCKETS-1;i++)
+            counts[i] = buckets.get(i);
+        return new Snapshot(counts, count.get(), sum.get(), max.get());
+    }
+
+    public void reset()
+    {
+        for(int i=0;i<=BUCKETS-1;i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public static int getBucket(long value)
+    {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /*
+        Highest value counted by a bucket
+     */
+    public static long getBucketUpperBound(int bucket)
+    {
+        if(bucket == 0)
+            return 0;
+        if(bucket >= BUCKETS - 1)
+            return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+
+    public static class Snapshot
+    {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] buckets, long count, long sum, long max)
+        {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getSum()
+        {
+            return sum;
+        }
+
+        public long getMax()
+        {
+            return max;
+        }
+
+        public double getMean()
+        {
+            return (count > 0) ? (double) sum / count : 0;
+        }
+
+        public long getBucketCount(int bucket)
+        {
+            return buckets[bucket];
+        }
+
+        /*
+            Upper bound of the bucket that holds the value at percentile (0-100), so it may be up to
+            twice the real value. Never greater than the maximum
+         */
+        public long getPercentile(double percentile)
+        {
+            long total = 0;
+            for(int i=0;i<=BUCKETS-1;i++)
+                total += buckets[i];
+            if(total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for(int i=0;i<=BUCKETS-1;i++)
+            {
+                seen += buckets[i];
+                if(seen >= rank && seen > 0)
+                    return Math.min(getBucketUpperBound(i), max);
+            }
+            return max;
+        }
+    }
+}
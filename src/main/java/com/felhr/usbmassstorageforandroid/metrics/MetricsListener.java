@@ -0,0 +1,18 @@
+package com.felhr.usbmassstorageforandroid.metrics;
+
+public interface MetricsListener
+{
+    /*
+        Called while metrics are enabled, from the thread that recorded the event (the USB IN thread
+        for commands, the SCSI handler for retries and timeouts, the caller for operations),
+        so implementations must return quickly. Times are in ns
+     */
+    void onCommandCompleted(int opcode, long bytes, long cbwTime, long dataTime, long cswTime, int status);
+    void onCommandRetried(int opcode);
+    void onCommandTimedOut(int opcode);
+    void onReset();
+    /*
+        A span was closed, nested spans are reported before the span they belong to
+     */
+    void onOperationCompleted(StackMetrics.Operation operation);
+}
@@ -0,0 +1,283 @@
+package com.felhr.usbmassstorageforandroid.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class MetricsSnapshot
+{
+    /*
+        Copy of StackMetrics at a point in time, see StackMetrics for what every metric means.
+        Latencies are in ns
+     */
+    private final CommandStats[] commands; // By opcode, null if the opcode was not sent
+    private final long resets;
+    private final Histogram.Snapshot queueDepth;
+    private final long[] cacheHits;
+    private final long[] cacheMisses;
+    private final long fatSectorsRead;
+    private final long fatSectorsWritten;
+    private final OperationStats[] operations;
+
+    MetricsSnapshot(CommandStats[] commands, long resets, Histogram.Snapshot queueDepth, long[] cacheHits,
+                    long[] cacheMisses, long fatSectorsRead, long fatSectorsWritten, OperationStats[] operations)
+    {
+        this.commands = commands;
+        this.resets = resets;
+        this.queueDepth = queueDepth;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.fatSectorsRead = fatSectorsRead;
+        this.fatSectorsWritten = fatSectorsWritten;
+        this.operations = operations;
+    }
+
+    /*
+        Stats of the opcodes that were sent, by opcode
+     */
+    public List<CommandStats> getCommands()
+    {
+        List<CommandStats> stats = new ArrayList<CommandStats>();
+        for(int i=0;i<=commands.length-1;i++)
+        {
+            if(commands[i] != null)
+                stats.add(commands[i]);
+        }
+        return stats;
+    }
+
+    /*
+        null if the opcode was not sent
+     */
+    public CommandStats getCommand(int opcode)
+    {
+        return commands[opcode & 0xff];
+    }
+
+    public long getResets()
+    {
+        return resets;
+    }
+
+    public Histogram.Snapshot getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    public long getCacheHits(int cache)
+    {
+        return cacheHits[cache];
+    }
+
+    public long getCacheMisses(int cache)
+    {
+        return cacheMisses[cache];
+    }
+
+    public long getFatSectorsRead()
+    {
+        return fatSectorsRead;
+    }
+
+    public long getFatSectorsWritten()
+    {
+        return fatSectorsWritten;
+    }
+
+    public OperationStats getOperation(int operation)
+    {
+        return operations[operation];
+    }
+
+    /*
+        Human readable report, meant for logs
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("opcode    count        bytes fail retry  tmo  cbw p50/p99 us  data p50/p99 us   csw p50/p99 us\n");
+        for(CommandStats stats : getCommands())
+        {
+            builder.append(String.format(Locale.US, "0x%02x %10d %12d %4d %5d %4d %7d/%-7d %8d/%-8d %7d/%-7d\n",
+                    stats.opcode, stats.count, stats.bytes, stats.failures, stats.retries, stats.timeouts,
+                    micros(stats.cbwLatency.getPercentile(50)), micros(stats.cbwLatency.getPercentile(99)),
+                    micros(stats.dataLatency.getPercentile(50)), micros(stats.dataLatency.getPercentile(99)),
+                    micros(stats.cswLatency.getPercentile(50)), micros(stats.cswLatency.getPercentile(99))));
+        }
+        builder.append(String.format(Locale.US, "resets %d, queue depth mean %.2f max %d\n", resets,
+                queueDepth.getMean(), queueDepth.getMax()));
+        builder.append(String.format(Locale.US, "caches hits/misses: FAT %d/%d, directories %d/%d, dentries %d/%d\n",
+                cacheHits[StackMetrics.CACHE_FAT], cacheMisses[StackMetrics.CACHE_FAT],
+                cacheHits[StackMetrics.CACHE_DIRECTORY], cacheMisses[StackMetrics.CACHE_DIRECTORY],
+                cacheHits[StackMetrics.CACHE_DENTRY], cacheMisses[StackMetrics.CACHE_DENTRY]));
+        builder.append(String.format(Locale.US, "FAT sectors read %d, written %d\n", fatSectorsRead, fatSectorsWritten));
+        builder.append("per operation, nested spans included     round trips   FAT sectors  dir sectors   data sectors\n");
+        builder.append("operation      count   mean us    p99 us    mean    max   read write   read write     read  write\n");
+        for(int i=0;i<=operations.length-1;i++)
+        {
+            OperationStats stats = operations[i];
+            long count = stats.latency.getCount();
+            if(count == 0)
+                continue;
+            builder.append(String.format(Locale.US, "%-12s %7d %9d %9d %7.1f %6d %6.1f %5.1f %6.1f %5.1f %8.1f %6.1f\n",
+                    StackMetrics.getOperationName(i), count, micros((long) stats.latency.getMean()),
+                    micros(stats.latency.getPercentile(99)), stats.roundTrips.getMean(), stats.roundTrips.getMax(),
+                    (double) stats.sectorsRead[StackMetrics.SECTORS_FAT] / count,
+                    (double) stats.sectorsWritten[StackMetrics.SECTORS_FAT] / count,
+                    (double) stats.sectorsRead[StackMetrics.SECTORS_DIRECTORY] / count,
+                    (double) stats.sectorsWritten[StackMetrics.SECTORS_DIRECTORY] / count,
+                    (double) stats.sectorsRead[StackMetrics.SECTORS_DATA] / count,
+                    (double) stats.sectorsWritten[StackMetrics.SECTORS_DATA] / count));
+        }
+        return builder.toString();
+    }
+
+    private static long micros(long nanos)
+    {
+        return nanos / 1000;
+    }
+
+    public static class CommandStats
+    {
+        private final int opcode;
+        private final long count;
+        private final long bytes;
+        private final long failures;
+        private final long retries;
+        private final long timeouts;
+        private final Histogram.Snapshot cbwLatency;
+        private final Histogram.Snapshot dataLatency;
+        private final Histogram.Snapshot cswLatency;
+
+        CommandStats(int opcode, long count, long bytes, long failures, long retries, long timeouts,
+                     Histogram.Snapshot cbwLatency, Histogram.Snapshot dataLatency, Histogram.Snapshot cswLatency)
+        {
+            this.opcode = opcode;
+            this.count = count;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.retries = retries;
+            this.timeouts = timeouts;
+            this.cbwLatency = cbwLatency;
+            this.dataLatency = dataLatency;
+            this.cswLatency = cswLatency;
+        }
+
+        public int getOpcode()
+        {
+            return opcode;
+        }
+
+        /*
+            Commands that got a CSW, retries included
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /*
+            Commands whose CSW status was not passed
+         */
+        public long getFailures()
+        {
+            return failures;
+        }
+
+        public long getRetries()
+        {
+            return retries;
+        }
+
+        public long getTimeouts()
+        {
+            return timeouts;
+        }
+
+        public Histogram.Snapshot getCbwLatency()
+        {
+            return cbwLatency;
+        }
+
+        public Histogram.Snapshot getDataLatency()
+        {
+            return dataLatency;
+        }
+
+        public Histogram.Snapshot getCswLatency()
+        {
+            return cswLatency;
+        }
+    }
+
+    public static class OperationStats
+    {
+        private final int operation;
+        private final Histogram.Snapshot latency;
+        private final Histogram.Snapshot roundTrips;
+        private final long[] sectorsRead; // By region, StackMetrics.SECTORS_*
+        private final long[] sectorsWritten;
+
+        OperationStats(int operation, Histogram.Snapshot latency, Histogram.Snapshot roundTrips, long[] sectorsRead,
+                       long[] sectorsWritten)
+        {
+            this.operation = operation;
+            this.latency = latency;
+            this.roundTrips = roundTrips;
+            this.sectorsRead = sectorsRead;
+            this.sectorsWritten = sectorsWritten;
+        }
+
+        public int getOperation()
+        {
+            return operation;
+        }
+
+        public long getCount()
+        {
+            return latency.getCount();
+        }
+
+        public Histogram.Snapshot getLatency()
+        {
+            return latency;
+        }
+
+        /*
+            Round trips per operation
+         */
+        public Histogram.Snapshot getRoundTrips()
+        {
+            return roundTrips;
+        }
+
+        /*
+            Sectors of a region (StackMetrics.SECTORS_*) read by all the operations
+         */
+        public long getSectorsRead(int region)
+        {
+            return sectorsRead[region];
+        }
+
+        public long getSectorsWritten(int region)
+        {
+            return sectorsWritten[region];
+        }
+
+        public long getFatSectorsRead()
+        {
+            return sectorsRead[StackMetrics.SECTORS_FAT];
+        }
+
+        public long getFatSectorsWritten()
+        {
+            return sectorsWritten[StackMetrics.SECTORS_FAT];
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.felhr.usbmassstorageforandroid.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public final class StackMetrics
+{
+    /*
+        Process wide metrics of the whole stack, from the Bulk-Only transfers to the VirtualFileSystem calls.
+        Disabled by default. While disabled every record method returns after reading a volatile flag,
+        call sites that need a timestamp check isEnabled() before taking it.
+
+        Commands: count, data bytes, failures, retries, timeouts and latency of each Bulk-Only phase per opcode.
+            CBW: from the command being queued to the CBW sent
+            Data: from the CBW sent to the last data transfer
+            CSW: from the last data transfer (or the CBW if there is no data) to the CSW received
+        Queue depth: SCSI commands waiting, sampled every time a command is queued
+        Caches: hits and misses of the FAT sector, directory and dentry caches
+        Operations: spans of the VirtualFileSystem operations and of the work nested in them (cluster chain
+            resolution, cluster allocation). Every span counts latency, FAT, directory and data sectors read
+            and written and round trips (requests to the BlockDevice) made by its thread while it was open,
+            those of its nested spans included. Work done by other threads (the FAT cache thread,
+            the USB threads) is not attributed to any span
+        FAT sectors: read and written by the whole process
+     */
+
+    // VirtualFileSystem operations
+    public static final int OP_MOUNT = 0;
+    public static final int OP_UNMOUNT = 1;
+    public static final int OP_CHANGE_DIR = 2;
+    public static final int OP_READ_FILE = 3;
+    public static final int OP_WRITE_FILE = 4;
+    public static final int OP_DELETE_FILE = 5;
+    public static final int OP_COMPACT_DIR = 6;
+    public static final int OP_RESOLVE = 7;
+    public static final int OP_WALK = 8;
+    public static final int OP_CLUSTER_CHAIN = 9; // Nested, following a cluster chain in the FAT
+    public static final int OP_ALLOCATE = 10; // Nested, allocating or growing a cluster chain
+    public static final int OPERATIONS = 11;
+
+    // Regions of the volume
+    public static final int SECTORS_FAT = 0;
+    public static final int SECTORS_DIRECTORY = 1;
+    public static final int SECTORS_DATA = 2;
+    public static final int SECTOR_REGIONS = 3;
+
+    // Caches
+    public static final int CACHE_FAT = 0; // FAT sectors, see BlockCache
+    public static final int CACHE_DIRECTORY = 1; // Parsed directories, see DirectoryCache
+    public static final int CACHE_DENTRY = 2; // Name lookups, see DentryCache
+    public static final int CACHES = 3;
+
+    private static final int OPCODES = 256;
+    private static final String[] OPERATION_NAMES = {"mount", "unMount", "changeDir", "readFile", "writeFile",
+            "deleteFile", "compactDir", "resolve", "walk", "clusterChain", "allocate"};
+
+    private static volatile boolean enabled;
+    private static volatile MetricsListener listener;
+
+    private static final AtomicReferenceArray<CommandCounters> commands = new AtomicReferenceArray<CommandCounters>(OPCODES);
+    private static final AtomicLong resets = new AtomicLong();
+    private static final Histogram queueDepth = new Histogram();
+    private static final AtomicLongArray cacheHits = new AtomicLongArray(CACHES);
+    private static final AtomicLongArray cacheMisses = new AtomicLongArray(CACHES);
+    private static final AtomicLong fatSectorsRead = new AtomicLong();
+    private static final AtomicLong fatSectorsWritten = new AtomicLong();
+    private static final OperationCounters[] operations = new OperationCounters[OPERATIONS];
+    private static final ThreadLocal<Operation> currentOperation = new ThreadLocal<Operation>();
+
+    static
+    {
+        for(int i=0;i<=OPERATIONS-1;i++)
+            operations[i] = new OperationCounters();
+    }
+
+    private StackMetrics()
+    {
+
+    }
+
+    public static void setEnabled(boolean enabled)
+    {
+        StackMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /*
+        null removes the listener
+     */
+    public static void setListener(MetricsListener listener)
+    {
+        StackMetrics.listener = listener;
+    }
+
+    public static String getOperationName(int operation)
+    {
+        return OPERATION_NAMES[operation];
+    }
+
+    public static MetricsSnapshot snapshot()
+    {
+        MetricsSnapshot.CommandStats[] commandStats = new MetricsSnapshot.CommandStats[OPCODES];
+        for(int i=0;i<=OPCODES-1;i++)
+        {
+            CommandCounters counters = commands.get(i);
+            if(counters != null)
+                commandStats[i] = counters.snapshot(i);
+        }
+        long[] hits = new long[CACHES];
+        long[] misses = new long[CACHES];
+        for(int i=0;i<=CACHES-1;i++)
+        {
+            hits[i] = cacheHits.get(i);
+            misses[i] = cacheMisses.get(i);
+        }
+        MetricsSnapshot.OperationStats[] operationStats = new MetricsSnapshot.OperationStats[OPERATIONS];
+        for(int i=0;i<=OPERATIONS-1;i++)
+            operationStats[i] = operations[i].snapshot(i);
+        return new MetricsSnapshot(commandStats, resets.get(), queueDepth.snapshot(), hits, misses,
+                fatSectorsRead.get(), fatSectorsWritten.get(), operationStats);
+    }
+
+    public static void reset()
+    {
+        for(int i=0;i<=OPCODES-1;i++)
+            commands.set(i, null);
+        resets.set(0);
+        queueDepth.reset();
+        for(int i=0;i<=CACHES-1;i++)
+        {
+            cacheHits.set(i, 0);
+            cacheMisses.set(i, 0);
+        }
+        fatSectorsRead.set(0);
+        fatSectorsWritten.set(0);
+        for(int i=0;i<=OPERATIONS-1;i++)
+            operations[i].reset();
+    }
+
+    /*
+        A command that got its CSW. Times in ns, status is the CSW status
+     */
+    public static void recordCommand(int opcode, long bytes, long cbwTime, long dataTime, long cswTime, int status)
+    {
+        if(!enabled)
+            return;
+        CommandCounters counters = getCommandCounters(opcode);
+        counters.count.incrementAndGet();
+        counters.bytes.addAndGet(bytes);
+        if(status != 0)
+            counters.failures.incrementAndGet();
+        counters.cbwLatency.record(cbwTime);
+        counters.dataLatency.record(dataTime);
+        counters.cswLatency.record(cswTime);
+        MetricsListener currentListener = listener;
+        if(currentListener != null)
+            currentListener.onCommandCompleted(opcode, bytes, cbwTime, dataTime, cswTime, status);
+    }
+
+    public static void recordRetry(int opcode)
+    {
+        if(!enabled)
+            return;
+        getCommandCounters(opcode).retries.incrementAndGet();
+        MetricsListener currentListener = listener;
+        if(currentListener != null)
+            currentListener.onCommandRetried(opcode);
+    }
+
+    public static void recordTimeout(int opcode)
+    {
+        if(!enabled)
+            return;
+        getCommandCounters(opcode).timeouts.incrementAndGet();
+        MetricsListener currentListener = listener;
+        if(currentListener != null)
+            currentListener.onCommandTimedOut(opcode);
+    }
+
+    /*
+        Bulk-Only reset, alone or as part of a reset recovery
+     */
+    public static void recordReset()
+    {
+        if(!enabled)
+            return;
+        resets.incrementAndGet();
+        MetricsListener currentListener = listener;
+        if(currentListener != null)
+            currentListener.onReset();
+    }
+
+    public static void recordQueueDepth(int depth)
+    {
+        if(!enabled)
+            return;
+        queueDepth.record(depth);
+    }
+
+    public static void recordCacheAccess(int cache, boolean hit)
+    {
+        if(!enabled)
+            return;
+        if(hit)
+            cacheHits.incrementAndGet(cache);
+        else
+            cacheMisses.incrementAndGet(cache);
+    }
+
+    /*
+        A request to the BlockDevice, a round trip to the device. Sectors it moved in each region of the volume,
+        sectors out of the FAT and the clusters (boot sectors) are not counted
+     */
+    public static void recordBlockRequest(boolean write, long fatSectors, long directorySectors, long dataSectors)
+    {
+        if(!enabled)
+            return;
+        if(fatSectors > 0)
+        {
+            if(write)
+                fatSectorsWritten.addAndGet(fatSectors);
+            else
+                fatSectorsRead.addAndGet(fatSectors);
+        }
+        Operation operation = currentOperation.get();
+        if(operation == null)
+            return;
+        long[] sectors = write ? operation.sectorsWritten : operation.sectorsRead;
+        sectors[SECTORS_FAT] += fatSectors;
+        sectors[SECTORS_DIRECTORY] += directorySectors;
+        sectors[SECTORS_DATA] += dataSectors;
+        operation.roundTrips++;
+    }
+
+    /*
+        Open a span for operation on the current thread, nested in the span already open if any.
+        Returns null while disabled, without allocating
+     */
+    public static Operation beginOperation(int operation)
+    {
+        if(!enabled)
+            return null;
+        Operation span = new Operation(operation, currentOperation.get(), System.nanoTime());
+        currentOperation.set(span);
+        return span;
+    }
+
+    /*
+        Close a span, operation may be null, see beginOperation(). Spans must be closed in reverse order
+     */
+    public static void endOperation(Operation operation)
+    {
+        if(operation == null)
+            return;
+        currentOperation.set(operation.parent);
+        if(!enabled)
+            return;
+        operation.time = System.nanoTime() - operation.start;
+        OperationCounters counters = operations[operation.operation];
+        counters.latency.record(operation.time);
+        counters.roundTrips.record(operation.roundTrips);
+        for(int i=0;i<=SECTOR_REGIONS-1;i++)
+        {
+            counters.sectorsRead.addAndGet(i, operation.sectorsRead[i]);
+            counters.sectorsWritten.addAndGet(i, operation.sectorsWritten[i]);
+        }
+        if(operation.parent != null)
+        {
+            for(int i=0;i<=SECTOR_REGIONS-1;i++)
+            {
+                operation.parent.sectorsRead[i] += operation.sectorsRead[i];
+                operation.parent.sectorsWritten[i] += operation.sectorsWritten[i];
+            }
+            operation.parent.roundTrips += operation.roundTrips;
+        }
+        MetricsListener currentListener = listener;
+        if(currentListener != null)
+            currentListener.onOperationCompleted(operation);
+    }
+
+    private static CommandCounters getCommandCounters(int opcode)
+    {
+        CommandCounters counters = commands.get(opcode);
+        if(counters == null)
+        {
+            commands.compareAndSet(opcode, null, new CommandCounters());
+            counters = commands.get(opcode);
+        }
+        return counters;
+    }
+
+    /*
+        A span. Its counters belong to the thread that opened it until it is closed
+     */
+    public static final class Operation
+    {
+        private final int operation;
+        private final Operation parent;
+        private final long start;
+        private long time;
+        private final long[] sectorsRead;
+        private final long[] sectorsWritten;
+        private long roundTrips;
+
+        private Operation(int operation, Operation parent, long start)
+        {
+            this.operation = operation;
+            this.parent = parent;
+            this.start = start;
+            this.sectorsRead = new long[SECTOR_REGIONS];
+            this.sectorsWritten = new long[SECTOR_REGIONS];
+        }
+
+        public int getOperation()
+        {
+            return operation;
+        }
+
+        /*
+            Span this one is nested in, null for a top level operation
+         */
+        public Operation getParent()
+        {
+            return parent;
+        }
+
+        public int getDepth()
+        {
+            int depth = 0;
+            for(Operation span = parent; span != null; span = span.parent)
+                depth++;
+            return depth;
+        }
+
+        /*
+            ns, once closed
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public long getSectorsRead(int region)
+        {
+            return sectorsRead[region];
+        }
+
+        public long getSectorsWritten(int region)
+        {
+            return sectorsWritten[region];
+        }
+
+        public long getRoundTrips()
+        {
+            return roundTrips;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%s %d us, %d round trips, sectors read/written FAT %d/%d directory %d/%d "
+                            + "data %d/%d", getOperationName(operation), time / 1000, roundTrips,
+                    sectorsRead[SECTORS_FAT], sectorsWritten[SECTORS_FAT],
+                    sectorsRead[SECTORS_DIRECTORY], sectorsWritten[SECTORS_DIRECTORY],
+                    sectorsRead[SECTORS_DATA], sectorsWritten[SECTORS_DATA]);
+        }
+    }
+
+    private static class CommandCounters
+    {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final Histogram cbwLatency = new Histogram();
+        private final Histogram dataLatency = new Histogram();
+        private final Histogram cswLatency = new Histogram();
+
+        private MetricsSnapshot.CommandStats snapshot(int opcode)
+        {
+            return new MetricsSnapshot.CommandStats(opcode, count.get(), bytes.get(), failures.get(), retries.get(),
+                    timeouts.get(), cbwLatency.snapshot(), dataLatency.snapshot(), cswLatency.snapshot());
+        }
+    }
+
+    private static class OperationCounters
+    {
+        private final Histogram latency = new Histogram();
+        private final Histogram roundTrips = new Histogram();
+        private final AtomicLongArray sectorsRead = new AtomicLongArray(SECTOR_REGIONS);
+        private final AtomicLongArray sectorsWritten = new AtomicLongArray(SECTOR_REGIONS);
+
+        private MetricsSnapshot.OperationStats snapshot(int operation)
+        {
+            long[] read = new long[SECTOR_REGIONS];
+            long[] written = new long[SECTOR_REGIONS];
+            for(int i=0;i<=SECTOR_REGIONS-1;i++)
+            {
+                read[i] = sectorsRead.get(i);
+                written[i] = sectorsWritten.get(i);
+            }
+            return new MetricsSnapshot.OperationStats(operation, latency.snapshot(), roundTrips.snapshot(), read, written);
+        }
+
+        private void reset()
+        {
+            latency.reset();
+            roundTrips.reset();
+            for(int i=0;i<=SECTOR_REGIONS-1;i++)
+            {
+                sectorsRead.set(i, 0);
+                sectorsWritten.set(i, 0);
+            }
+        }
+    }
+}
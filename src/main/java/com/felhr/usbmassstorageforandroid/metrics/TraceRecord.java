@@ -0,0 +1,250 @@
+package com.felhr.usbmassstorageforandroid.metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class TraceRecord
+{
+    /*
+        A command of a CommandTrace. Record layout, little-endian:
+            0   tag             4 bytes, as sent in the CBW
+            4   dataLength      dCBWDataTransferLength
+            8   flags           bmCBWFlags, 0x80 for data to the host
+            9   lun
+            10  cdbLength
+            11  status          CSW status, CommandTrace.STATUS_NONE if the command got no CSW
+            12  residue         dCSWDataResidue
+            16  cdb             16 bytes, CBWCB
+            32  cbwStart        ns since the trace started, when the command was queued
+            40  cbwEnd          CBW sent
+            48  dataEnd         Last data transfer, cbwEnd if there was no data
+            56  cswEnd          CSW received or command cancelled
+     */
+    public static final int LENGTH = 64;
+    public static final int CDB_LENGTH = 16;
+
+    private static final int CBW_SIZE = 31;
+    private static final int CBW_SIGNATURE = 0x43425355;
+
+    private final int tag;
+    private final int dataLength;
+    private final int flags;
+    private final int lun;
+    private final int cdbLength;
+    private final int status;
+    private final int residue;
+    private final byte[] cdb;
+    private final long cbwStart;
+    private final long cbwEnd;
+    private final long dataEnd;
+    private final long cswEnd;
+
+    private TraceRecord(ByteBuffer buffer, int offset)
+    {
+        this.tag = buffer.getInt(offset);
+        this.dataLength = buffer.getInt(offset + 4);
+        this.flags = buffer.get(offset + 8) & 0xff;
+        this.lun = buffer.get(offset + 9) & 0xff;
+        this.cdbLength = buffer.get(offset + 10) & 0xff;
+        this.status = buffer.get(offset + 11) & 0xff;
+        this.residue = buffer.getInt(offset + 12);
+        this.cdb = new byte[CDB_LENGTH];
+        for(int i=0;i<=CDB_LENGTH-1;i++)
+            cdb[i] = buffer.get(offset + 16 + i);
+        this.cbwStart = buffer.getLong(offset + 32);
+        this.cbwEnd = buffer.getLong(offset + 40);
+        this.dataEnd = buffer.getLong(offset + 48);
+        this.cswEnd = buffer.getLong(offset + 56);
+    }
+
+    /*
+        buffer must be little-endian
+     */
+    public static TraceRecord read(ByteBuffer buffer, int offset)
+    {
+        return new TraceRecord(buffer, offset);
+    }
+
+    /*
+        Write a command at offset of a little-endian buffer. cbw is the 31 byte CBW as sent
+     */
+    static void write(ByteBuffer buffer, int offset, byte[] cbw, int status, int residue, long cbwStart,
+                      long cbwEnd, long dataEnd, long cswEnd)
+    {
+        buffer.put(offset, cbw[4]);
+        buffer.put(offset + 1, cbw[5]);
+        buffer.put(offset + 2, cbw[6]);
+        buffer.put(offset + 3, cbw[7]);
+        buffer.put(offset + 4, cbw[8]);
+        buffer.put(offset + 5, cbw[9]);
+        buffer.put(offset + 6, cbw[10]);
+        buffer.put(offset + 7, cbw[11]);
+        buffer.put(offset + 8, cbw[12]);
+        buffer.put(offset + 9, cbw[13]);
+        buffer.put(offset + 10, cbw[14]);
+        buffer.put(offset + 11, (byte) status);
+        buffer.putInt(offset + 12, residue);
+        for(int i=0;i<=CDB_LENGTH-1;i++)
+            buffer.put(offset + 16 + i, cbw[15 + i]);
+        buffer.putLong(offset + 32, cbwStart);
+        buffer.putLong(offset + 40, cbwEnd);
+        buffer.putLong(offset + 48, dataEnd);
+        buffer.putLong(offset + 56, cswEnd);
+    }
+
+    /*
+        The CBW that was sent, to send it again
+     */
+    public byte[] getCbw()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(CBW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CBW_SIGNATURE);
+        buffer.putInt(tag);
+        buffer.putInt(dataLength);
+        buffer.put((byte) flags);
+        buffer.put((byte) lun);
+        buffer.put((byte) cdbLength);
+        buffer.put(cdb);
+        return buffer.array();
+    }
+
+    public int getTag()
+    {
+        return tag;
+    }
+
+    public int getOpcode()
+    {
+        return cdb[0] & 0xff;
+    }
+
+    public int getDataLength()
+    {
+        return dataLength;
+    }
+
+    public boolean isDirectionIn()
+    {
+        return (flags & 0x80) == 0x80;
+    }
+
+    public int getLun()
+    {
+        return lun;
+    }
+
+    public byte[] getCdb()
+    {
+        return Arrays.copyOf(cdb, CDB_LENGTH);
+    }
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    public int getResidue()
+    {
+        return residue;
+    }
+
+    /*
+        Logical block address of the 6, 10, 12 and 16 byte CDBs of reads, writes and the like.
+        -1 if the command group has no LBA field
+     */
+    public long getLba()
+    {
+        switch(getCommandGroup())
+        {
+            case 0: // 6 bytes
+                return ((cdb[1] & 0x1fL) << 16) | ((cdb[2] & 0xffL) << 8) | (cdb[3] & 0xffL);
+            case 1: // 10 bytes
+            case 2:
+            case 5: // 12 bytes
+                return getBigEndian(2, 4);
+            case 4: // 16 bytes
+                return getBigEndian(2, 8);
+            default:
+                return -1;
+        }
+    }
+
+    /*
+        Transfer length field of the CDB, in blocks for reads and writes. -1 if the command group has none
+     */
+    public long getTransferLength()
+    {
+        switch(getCommandGroup())
+        {
+            case 0:
+                return cdb[4] & 0xff;
+            case 1:
+            case 2:
+                return getBigEndian(7, 2);
+            case 5:
+                return getBigEndian(6, 4);
+            case 4:
+                return getBigEndian(10, 4);
+            default:
+                return -1;
+        }
+    }
+
+    /*
+        Times in ns since the trace started
+     */
+    public long getCbwStart()
+    {
+        return cbwStart;
+    }
+
+    public long getCswEnd()
+    {
+        return cswEnd;
+    }
+
+    public long getCbwTime()
+    {
+        return cbwEnd - cbwStart;
+    }
+
+    public long getDataTime()
+    {
+        return dataEnd - cbwEnd;
+    }
+
+    public long getCswTime()
+    {
+        return cswEnd - dataEnd;
+    }
+
+    public long getTime()
+    {
+        return cswEnd - cbwStart;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "%12.3f ms tag %08x op 0x%02x lun %d lba %d len %d data %d %s status %s "
+                        + "residue %d cbw %d us data %d us csw %d us", cbwStart / 1000000.0, tag, getOpcode(), lun,
+                getLba(), getTransferLength(), dataLength, isDirectionIn() ? "in" : "out",
+                (status == CommandTrace.STATUS_NONE) ? "none" : String.valueOf(status), residue,
+                getCbwTime() / 1000, getDataTime() / 1000, getCswTime() / 1000);
+    }
+
+    private int getCommandGroup()
+    {
+        return (cdb[0] >> 5) & 0x07;
+    }
+
+    private long getBigEndian(int offset, int length)
+    {
+        long value = 0;
+        for(int i=0;i<=length-1;i++)
+            value = (value << 8) | (cdb[offset + i] & 0xffL);
+        return value;
+    }
+}
@@ -9,9 +9,17 @@ import commandwrappers.CommandBlockWrapper;
  */
 public abstract class SCSICommand
 {
+    public static final int DEFAULT_TIMEOUT = 5000; // ms
+    protected static final int SHORT_TIMEOUT = 2000; // ms
+    protected static final int LONG_TIMEOUT = 30000; // ms
+    private static final int TRANSFER_BASE_TIMEOUT = 2000; // ms
+    private static final int MIN_TRANSFER_RATE = 100; // bytes per ms, slowest device we wait for
+
     protected byte[] dataBuffer;
     protected boolean dataTransportPhase;
     protected int direction; // 0:NONE 1:IN(to host) 2:OUT(from host)
+    protected int timeout = DEFAULT_TIMEOUT; // ms, 0 waits forever
+    protected int lun; // Logical unit the CBW is addressed to
 
     public SCSICommand()
     {
@@ -50,6 +58,34 @@ public abstract class SCSICommand
         return direction;
     }
 
+    public int getTimeout() // This will be called by the SCSI command handler
+    {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    public int getLun()
+    {
+        return lun;
+    }
+
+    public void setLun(int lun)
+    {
+        this.lun = lun;
+    }
+
+    /*
+        Timeout for commands moving data, proportional to the number of blocks
+     */
+    protected static int getTransferTimeout(int blocks)
+    {
+        return TRANSFER_BASE_TIMEOUT + (blocks * 512) / MIN_TRANSFER_RATE;
+    }
+
     protected byte[] convertToByte(int number, int numberOfBytes)
     {
         byte[] buffer;
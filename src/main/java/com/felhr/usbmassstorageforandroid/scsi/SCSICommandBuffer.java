@@ -1,6 +1,10 @@
 package com.felhr.usbmassstorageforandroid.scsi;
 
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
+
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -9,40 +13,75 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class SCSICommandBuffer
 {
+    public static final int MAX_LUNS = 16; // Bulk-Only supports LUNs 0-15
+
     private AtomicBoolean waiting;
-    private LinkedList<SCSICommand> commands;
+    private AtomicBoolean closed;
+    private List<LinkedList<SCSICommand>> commands; // One queue per LUN
+    private int size;
+    private int nextLun;
 
     public SCSICommandBuffer()
     {
         this.waiting = new AtomicBoolean(true);
-        this.commands = new LinkedList<SCSICommand>();
+        this.closed = new AtomicBoolean(false);
+        this.commands = new ArrayList<LinkedList<SCSICommand>>(MAX_LUNS);
+        for(int i=0;i<=MAX_LUNS-1;i++)
+            commands.add(new LinkedList<SCSICommand>());
     }
 
+    /*
+        Commands of a LUN are sent in the same order they were put.
+        The command handler waits for each command to complete before getting the next one
+     */
     public synchronized void putCommand(SCSICommand command)
     {
-        commands.push(command);
+        commands.get(command.getLun()).addLast(command);
+        size++;
+        StackMetrics.recordQueueDepth(size);
         waiting.set(false);
         notify();
     }
 
+    /*
+        LUNs are served round robin so a LUN with a long queue does not starve the others.
+        Blocks until there is a command, null once the buffer is closed
+     */
     public synchronized SCSICommand getCommand()
     {
-        while(commands.size() == 0)
+        while(size == 0 && !closed.get())
         {
             waitingForCommands();
         }
-        return commands.pop();
+        if(closed.get())
+            return null;
+
+        for(int i=0;i<=MAX_LUNS-1;i++)
+        {
+            int lun = (nextLun + i) % MAX_LUNS;
+            LinkedList<SCSICommand> lunCommands = commands.get(lun);
+            if(!lunCommands.isEmpty())
+            {
+                nextLun = (lun + 1) % MAX_LUNS;
+                size--;
+                return lunCommands.removeFirst();
+            }
+        }
+        return null;
     }
 
-    public synchronized void goAhead()
+    /*
+        Wake up the command handler, getCommand() returns null from now on and the commands still queued are dropped
+     */
+    public synchronized void close()
     {
-        waiting.set(false);
+        closed.set(true);
         notify();
     }
 
     private void waitingForCommands()
     {
-        while(waiting.get())
+        while(waiting.get() && !closed.get())
         {
             try
             {
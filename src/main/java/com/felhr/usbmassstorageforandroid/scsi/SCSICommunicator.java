@@ -2,10 +2,15 @@ package com.felhr.usbmassstorageforandroid.scsi;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
 
 import com.felhr.usbmassstorageforandroid.bulkonly.BulkOnlyCommunicator;
 import com.felhr.usbmassstorageforandroid.bulkonly.BulkOnlyStatusInterface;
+import com.felhr.usbmassstorageforandroid.bulkonly.UsbTransport;
+import com.felhr.usbmassstorageforandroid.metrics.StackMetrics;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import commandwrappers.CommandBlockWrapper;
@@ -16,36 +21,172 @@ import commandwrappers.CommandStatusWrapper;
  */
 public class SCSICommunicator
 {
+    private static final int STATUS_PASSED = 0x00;
+    private static final int STATUS_FAILED = 0x01;
+    private static final int STATUS_PHASE_ERROR = 0x02;
+    public static final int STATUS_TIMEOUT = 0x10; // Not a CSW status, the device did not complete the command in time
+
+    // Extra time given to a command before the watchdog cancels it
+    private static final long WATCHDOG_GRACE_TIME = 1000;
+
+    // Transient failures are retried MAX_RETRIES times waiting 50, 100, 200... ms between them
+    private static final int MAX_RETRIES = 5;
+    private static final long BACKOFF_BASE_TIME = 50;
+    private static final long BACKOFF_MAX_TIME = 2000;
+    private static final int SENSE_ALLOCATION_LENGTH = 18;
+
     private SCSIInterface scsiInterfaceCallback;
+    private final int lun;
+
+    /*
+        Shared by the communicators of every LUN of the device.
+        lunCommunicators[0] is the communicator that owns the transport and the command handler
+     */
     private BulkOnlyCommunicator communicator;
     private SCSICommandBuffer buffer;
     private SCSICommandHandler commandHandler;
+    private final SCSICommunicator[] lunCommunicators;
+    private final AtomicBoolean opened;
+    private int maxLun;
 
     /*
         Read10 response can be greater than a sector (512 bytes)
         In order to do not send 512 bytes packets to the upper layers
         currentRead10Response will append all packets and will send them altogether.
+        Responses are kept until the CSW arrives and only sent if the command succeeded.
      */
     private SCSIRead10Response currentRead10Response;
+    private SCSIResponse currentResponse;
     private int lengthResponse;
 
+    // Sense data of the last command that failed, null if it succeeded
+    private volatile SCSIRequestSenseResponse lastSense;
+
+    // Timeouts set by the user for a whole class of commands
+    private final Map<Class<? extends SCSICommand>, Integer> commandTimeouts;
+
+    /*
+        Last Caching mode page returned by the device. null until the page has been read
+        or if the device does not report it
+     */
+    private volatile SCSIModeSense10Response cachingModePage;
+
     public SCSICommunicator(UsbDevice mDevice, UsbDeviceConnection mConnection)
     {
-        this.communicator = new BulkOnlyCommunicator(mDevice, mConnection);
+        this(new BulkOnlyCommunicator(mDevice, mConnection));
+    }
+
+    /*
+        SCSI over any USB transport, see EmulatedMassStorageDevice
+     */
+    public SCSICommunicator(UsbTransport transport)
+    {
+        this(new BulkOnlyCommunicator(transport));
+    }
+
+    private SCSICommunicator(BulkOnlyCommunicator communicator)
+    {
+        this.lun = 0;
+        this.communicator = communicator;
         this.buffer = new SCSICommandBuffer();
+        this.commandTimeouts = new HashMap<Class<? extends SCSICommand>, Integer>();
+        this.lunCommunicators = new SCSICommunicator[SCSICommandBuffer.MAX_LUNS];
+        this.lunCommunicators[0] = this;
+        this.opened = new AtomicBoolean(false);
         this.commandHandler = new SCSICommandHandler();
         this.commandHandler.start();
     }
 
+    private SCSICommunicator(SCSICommunicator root, int lun)
+    {
+        this.lun = lun;
+        this.communicator = root.communicator;
+        this.buffer = root.buffer;
+        this.commandTimeouts = root.commandTimeouts;
+        this.lunCommunicators = root.lunCommunicators;
+        this.opened = root.opened;
+        this.commandHandler = root.commandHandler;
+    }
+
+    /*
+        The first call opens the device. Communicators of other LUNs just register their callback
+     */
     public boolean openSCSICommunicator(SCSIInterface scsiInterfaceCallback)
     {
         this.scsiInterfaceCallback = scsiInterfaceCallback;
-        return communicator.startBulkOnly(mCallback);
+        return lunCommunicators[0].openTransport();
     }
 
+    /*
+        Only the communicator of LUN 0 stops the command handler and closes the transport, the rest are detached
+     */
     public void closeSCSICommunicator()
     {
-        commandHandler.stopHandler();
+        if(lun == 0)
+        {
+            commandHandler.stopHandler();
+            if(opened.get())
+                communicator.close();
+        }else
+            scsiInterfaceCallback = null;
+    }
+
+    /*
+        Highest LUN of the device, 0 if it has a single LUN. -1 if the device could not be opened
+     */
+    public int getMaxLun()
+    {
+        SCSICommunicator root = lunCommunicators[0];
+        if(!root.openTransport())
+            return -1;
+        return root.maxLun;
+    }
+
+    public int getLun()
+    {
+        return lun;
+    }
+
+    /*
+        Communicator for another LUN of the same device. Commands of every LUN share the bulk pipe
+        and are interleaved fairly by the command handler
+     */
+    public SCSICommunicator getLunCommunicator(int lun)
+    {
+        if(lun < 0 || lun >= SCSICommandBuffer.MAX_LUNS)
+            throw new IllegalArgumentException("LUN out of range: " + lun);
+        synchronized(lunCommunicators)
+        {
+            if(lunCommunicators[lun] == null)
+                lunCommunicators[lun] = new SCSICommunicator(lunCommunicators[0], lun);
+            return lunCommunicators[lun];
+        }
+    }
+
+    private synchronized boolean openTransport()
+    {
+        if(opened.get())
+            return true;
+        if(!communicator.startBulkOnly(mCallback))
+            return false;
+        // Single LUN devices may stall GET MAX LUN
+        maxLun = Math.max(0, communicator.getMaxLun());
+        opened.set(true);
+        return true;
+    }
+
+    private void putCommand(SCSICommand command)
+    {
+        command.setLun(lun);
+        buffer.putCommand(command);
+    }
+
+    private SCSICommunicator getOwner(SCSICommand command)
+    {
+        SCSICommunicator owner = null;
+        if(command != null)
+            owner = lunCommunicators[command.getLun()];
+        return (owner != null) ? owner : lunCommunicators[0];
     }
 
     public void reset()
@@ -58,16 +199,27 @@ public class SCSICommunicator
         communicator.resetRecovery();
     }
 
+    /*
+        Override the default timeout of a command class, in ms. 0 waits forever
+     */
+    public void setCommandTimeout(Class<? extends SCSICommand> commandClass, int timeout)
+    {
+        synchronized(commandTimeouts)
+        {
+            commandTimeouts.put(commandClass, timeout);
+        }
+    }
+
     public void inquiry(boolean evpd, int pageCode, int allocationLength)
     {
         SCSIInquiry inquiry = new SCSIInquiry(evpd, pageCode, allocationLength);
-        buffer.putCommand(inquiry);
+        putCommand(inquiry);
     }
 
     public void readCapacity10(int logicalBlockAddress, boolean pmi)
     {
         SCSIReadCapacity10 readCapacity10 = new SCSIReadCapacity10(logicalBlockAddress, pmi);
-        buffer.putCommand(readCapacity10);
+        putCommand(readCapacity10);
     }
 
     public void read10(int rdProtect, boolean dpo, boolean fua,
@@ -77,20 +229,19 @@ public class SCSICommunicator
         SCSIRead10 read10 = new SCSIRead10(rdProtect, dpo, fua,
                 fuaNv, logicalBlockAddress, groupNumber,
                 transferLength);
-        lengthResponse = transferLength * 512;
-        buffer.putCommand(read10);
+        putCommand(read10);
     }
 
     public void requestSense(boolean desc, int allocationLength)
     {
         SCSIRequestSense requestSense = new SCSIRequestSense(desc, allocationLength);
-        buffer.putCommand(requestSense);
+        putCommand(requestSense);
     }
 
     public void testUnitReady()
     {
         SCSITestUnitReady testUnitReady = new SCSITestUnitReady();
-        buffer.putCommand(testUnitReady);
+        putCommand(testUnitReady);
     }
 
     public void write10(int wrProtect, boolean dpo, boolean fua,
@@ -102,20 +253,34 @@ public class SCSICommunicator
                transferLength);
 
         write10.setDataPhaseBuffer(data);
-        buffer.putCommand(write10);
+        putCommand(write10);
     }
 
     public void modeSense10(boolean llbaa, boolean dbd, int pc,
                             int pageCode, int subPageCode, int allocationLength)
     {
         SCSIModeSense10 modeSense10 = new SCSIModeSense10(llbaa, dbd, pc, pageCode, subPageCode, allocationLength);
-        buffer.putCommand(modeSense10);
+        putCommand(modeSense10);
+    }
+
+    /*
+        Read the current values of the Caching mode page. Block descriptors are not requested
+     */
+    public void modeSenseCachingPage()
+    {
+        modeSense10(false, true, 0, SCSIModeSense10Response.CACHING_PAGE, 0, 192);
+    }
+
+    public void synchronizeCache10(boolean immed, int logicalBlockAddress, int numberOfBlocks)
+    {
+        SCSISynchronizeCache10 synchronizeCache10 = new SCSISynchronizeCache10(immed, logicalBlockAddress, 0, numberOfBlocks);
+        putCommand(synchronizeCache10);
     }
 
     public void modeSelect10(boolean pageFormat, boolean savePages, int parameterListLength)
     {
         SCSIModeSelect10 modeSelect10 = new SCSIModeSelect10(pageFormat, savePages, parameterListLength);
-        buffer.putCommand(modeSelect10);
+        putCommand(modeSelect10);
     }
 
     public void formatUnit(boolean fmtpinfo, boolean rtoReq, boolean longList,
@@ -124,13 +289,44 @@ public class SCSICommunicator
         SCSIFormatUnit formatUnit = new SCSIFormatUnit(fmtpinfo, rtoReq, longList,
                 fmtData, cmplst, defectListFormat);
 
-        buffer.putCommand(formatUnit);
+        putCommand(formatUnit);
     }
 
     public void preventAllowRemoval(int lun, boolean prevent)
     {
         SCSIPreventAllowRemoval preventAllowRemoval = new SCSIPreventAllowRemoval(lun, prevent);
-        buffer.putCommand(preventAllowRemoval);
+        putCommand(preventAllowRemoval);
+    }
+
+    /*
+        Write cache capabilities reported by the Caching mode page
+     */
+    public boolean hasCachingInfo()
+    {
+        return cachingModePage != null;
+    }
+
+    public boolean isWriteCacheEnabled()
+    {
+        SCSIModeSense10Response page = cachingModePage;
+        return page != null && page.isWriteCacheEnabled();
+    }
+
+    public boolean isReadCacheDisabled()
+    {
+        SCSIModeSense10Response page = cachingModePage;
+        return page != null && page.isReadCacheDisabled();
+    }
+
+    public boolean isFuaSupported()
+    {
+        SCSIModeSense10Response page = cachingModePage;
+        return page != null && page.isDpoFua();
+    }
+
+    public SCSIRequestSenseResponse getLastSense()
+    {
+        return lastSense;
     }
 
     private BulkOnlyStatusInterface mCallback = new BulkOnlyStatusInterface()
@@ -138,38 +334,29 @@ public class SCSICommunicator
         @Override
         public void onOperationStarted(boolean status)
         {
-            scsiInterfaceCallback.onSCSIOperationStarted(status);
+            SCSIInterface callback = getOwner(commandHandler.getLastSCSICommand()).scsiInterfaceCallback;
+            if(callback != null)
+                callback.onSCSIOperationStarted(status);
+            if(!status) // CBW was not sent, no CSW is coming
+                commandHandler.notifyCompletion(null);
         }
 
         @Override
         public void onOperationCompleted(CommandStatusWrapper csw)
         {
-            if(csw.getbCSWStatus() == 0x00 && currentRead10Response != null)
-            {
-                scsiInterfaceCallback.onSCSIDataReceived(currentRead10Response);
-                currentRead10Response = null;
-            }
-
-            if(csw.getbCSWStatus() == 0x02)
-              communicator.resetRecovery();
-
-            scsiInterfaceCallback.onSCSIOperationCompleted((int) csw.getbCSWStatus(), csw.getdCSWDataResidue());
-            buffer.goAhead();
+            commandHandler.notifyCompletion(csw);
         }
 
         @Override
         public void onDataToHost(byte[] data)
         {
             SCSICommand lastCommand = commandHandler.getLastSCSICommand();
-            SCSIResponse response = null;
             if(lastCommand instanceof SCSIInquiry)
             {
-                response = SCSIInquiryResponse.getResponse(data);
-                scsiInterfaceCallback.onSCSIDataReceived(response);
+                currentResponse = getInquiryResponse((SCSIInquiry) lastCommand, data);
             }else if(lastCommand instanceof SCSIModeSense10)
             {
-                response = SCSIModeSense10Response.getResponse(data);
-                scsiInterfaceCallback.onSCSIDataReceived(response);
+                currentResponse = SCSIModeSense10Response.getResponse(data);
             }else if(lastCommand instanceof SCSIRead10)
             {
                 // This case is different because more than one sector are probably be read
@@ -179,29 +366,57 @@ public class SCSICommunicator
                     currentRead10Response.addToBuffer(data);
             }else if(lastCommand instanceof SCSIReadCapacity10)
             {
-                response = SCSIReadCapacity10Response.getResponse(data);
-                scsiInterfaceCallback.onSCSIDataReceived(response);
+                currentResponse = SCSIReadCapacity10Response.getResponse(data);
             }else if(lastCommand instanceof SCSIReportLuns)
             {
-                response = SCSIReportLunsResponse.getResponse(data);
-                scsiInterfaceCallback.onSCSIDataReceived(response);
+                currentResponse = SCSIReportLunsResponse.getResponse(data);
             }else if(lastCommand instanceof SCSIRequestSense)
             {
-                response = SCSIRequestSenseResponse.getResponse(data);
-                scsiInterfaceCallback.onSCSIDataReceived(response);
+                currentResponse = SCSIRequestSenseResponse.getResponse(data);
             }
         }
     };
 
+    /*
+        An INQUIRY with the EVPD bit set returns the requested Vital Product Data page
+        instead of the standard inquiry data
+     */
+    private SCSIResponse getInquiryResponse(SCSIInquiry inquiry, byte[] data)
+    {
+        if(!inquiry.isEvpd())
+            return SCSIInquiryResponse.getResponse(data);
+
+        switch(inquiry.getPageCode())
+        {
+            case SCSIInquiry.VPD_SUPPORTED_PAGES:
+                return SCSIVPDSupportedPagesResponse.getResponse(data);
+            case SCSIInquiry.VPD_UNIT_SERIAL_NUMBER:
+                return SCSIVPDUnitSerialNumberResponse.getResponse(data);
+            case SCSIInquiry.VPD_BLOCK_LIMITS:
+                return SCSIVPDBlockLimitsResponse.getResponse(data);
+            case SCSIInquiry.VPD_LOGICAL_BLOCK_PROVISIONING:
+                return SCSIVPDLogicalBlockProvisioningResponse.getResponse(data);
+            default:
+                return null;
+        }
+    }
+
     private class SCSICommandHandler extends Thread
     {
         private AtomicBoolean keep;
 
         private SCSICommand lastCommand;
 
+        private final Object completionMonitor;
+        private boolean awaiting;
+        private boolean completed;
+        private boolean timedOut;
+        private CommandStatusWrapper currentCsw;
+
         public SCSICommandHandler()
         {
             this.keep = new AtomicBoolean(true);
+            this.completionMonitor = new Object();
         }
 
         @Override
@@ -210,20 +425,216 @@ public class SCSICommunicator
             while(keep.get())
             {
                 SCSICommand scsiCommand = buffer.getCommand();
-                lastCommand = scsiCommand;
-                CommandBlockWrapper cbw = scsiCommand.getCbw();
-                communicator.sendCbw(cbw, scsiCommand.getDataPhaseBuffer());
+                if(scsiCommand == null) // stopHandler()
+                    break;
+                execute(scsiCommand);
             }
         }
 
+        /*
+            The handler ends after the command in progress, if any
+         */
         public void stopHandler()
         {
             keep.set(false);
+            buffer.close();
         }
 
         public SCSICommand getLastSCSICommand()
         {
             return lastCommand;
         }
+
+        /*
+            csw is null if the command could not be sent
+         */
+        public void notifyCompletion(CommandStatusWrapper csw)
+        {
+            synchronized(completionMonitor)
+            {
+                if(!awaiting) // Late CSW of a command cancelled by the watchdog
+                    return;
+                currentCsw = csw;
+                completed = true;
+                completionMonitor.notify();
+            }
+        }
+
+        /*
+            Send a command and send it again while the device reports a transient condition.
+            Upper layers only get the final outcome. If the command finally fails its sense data
+            is sent before the status.
+         */
+        private void execute(SCSICommand scsiCommand)
+        {
+            SCSICommunicator owner = getOwner(scsiCommand);
+            SCSIInterface callback = owner.scsiInterfaceCallback;
+            if(callback == null) // LUN detached, nobody is waiting for this command
+                return;
+            int retries = 0;
+            while(true)
+            {
+                CommandStatusWrapper csw = transfer(scsiCommand);
+                if(timedOut)
+                {
+                    if(StackMetrics.isEnabled())
+                        StackMetrics.recordTimeout(getOpcode(scsiCommand));
+                    // Upper layers decide whether to send it again, maybe with a smaller transfer
+                    owner.lastSense = null;
+                    callback.onSCSIOperationCompleted(STATUS_TIMEOUT, 0);
+                    return;
+                }
+
+                int status = (csw != null) ? csw.getbCSWStatus() : STATUS_PHASE_ERROR;
+                int dataResidue = (csw != null) ? csw.getdCSWDataResidue() : 0;
+                if(status == STATUS_PASSED)
+                {
+                    owner.lastSense = null;
+                    deliverResponse(owner);
+                    callback.onSCSIOperationCompleted(status, dataResidue);
+                    return;
+                }
+
+                boolean retry;
+                long backoffTime = getBackoffTime(retries);
+                if(status == STATUS_FAILED)
+                {
+                    SCSIRequestSenseResponse sense = null;
+                    if(!(scsiCommand instanceof SCSIRequestSense))
+                        sense = requestSense(scsiCommand.getLun());
+                    owner.lastSense = sense;
+                    retry = sense != null && sense.isTransient();
+                    // A unit attention is reported once, the command can be sent again right away
+                    if(sense != null && sense.getSenseKey() == SCSIRequestSenseResponse.UNIT_ATTENTION)
+                        backoffTime = 0;
+                }else
+                {
+                    // Phase error or CBW not sent. The device must be reset before sending anything else
+                    owner.lastSense = null;
+                    communicator.resetRecovery();
+                    retry = true;
+                }
+
+                if(!retry || retries == MAX_RETRIES)
+                {
+                    if(owner.lastSense != null)
+                        callback.onSCSIDataReceived(owner.lastSense);
+                    callback.onSCSIOperationCompleted(status, dataResidue);
+                    return;
+                }
+
+                retries++;
+                if(StackMetrics.isEnabled())
+                    StackMetrics.recordRetry(getOpcode(scsiCommand));
+                if(backoffTime > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(backoffTime);
+                    }catch(InterruptedException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        /*
+            Send a command and wait for its CSW.
+            Watchdog: if the CSW does not arrive in time the transfer is cancelled, the device
+            goes through reset recovery and timedOut is set.
+         */
+        private CommandStatusWrapper transfer(SCSICommand scsiCommand)
+        {
+            int timeout = getTimeout(scsiCommand);
+            CommandBlockWrapper cbw = scsiCommand.getCbw();
+            synchronized(completionMonitor)
+            {
+                lastCommand = scsiCommand;
+                currentResponse = null;
+                currentRead10Response = null;
+                lengthResponse = cbw.getdCBWDataLength();
+                currentCsw = null;
+                awaiting = true;
+                completed = false;
+                timedOut = false;
+            }
+
+            communicator.sendCbw(cbw, scsiCommand.getDataPhaseBuffer(), timeout);
+
+            synchronized(completionMonitor)
+            {
+                long deadline = System.currentTimeMillis() + timeout + WATCHDOG_GRACE_TIME;
+                while(!completed)
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(timeout > 0 && remaining <= 0)
+                        break;
+                    try
+                    {
+                        if(timeout > 0)
+                            completionMonitor.wait(remaining);
+                        else
+                            completionMonitor.wait();
+                    }catch(InterruptedException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+                awaiting = false;
+                if(completed)
+                    return currentCsw;
+                timedOut = true;
+                lastCommand = null; // Late data is discarded
+            }
+
+            Log.i("SCSICommunicator", "Command timed out after " + timeout + " ms");
+            communicator.cancelTransfer();
+            communicator.resetRecovery();
+            return null;
+        }
+
+        private int getTimeout(SCSICommand scsiCommand)
+        {
+            synchronized(commandTimeouts)
+            {
+                Integer timeout = commandTimeouts.get(scsiCommand.getClass());
+                if(timeout != null)
+                    return timeout;
+            }
+            return scsiCommand.getTimeout();
+        }
+
+        private SCSIRequestSenseResponse requestSense(int lun)
+        {
+            SCSIRequestSense requestSense = new SCSIRequestSense(false, SENSE_ALLOCATION_LENGTH);
+            requestSense.setLun(lun);
+            CommandStatusWrapper csw = transfer(requestSense);
+            if(csw != null && csw.getbCSWStatus() == STATUS_PASSED
+                    && currentResponse instanceof SCSIRequestSenseResponse)
+                return (SCSIRequestSenseResponse) currentResponse;
+            else
+                return null;
+        }
+
+        private void deliverResponse(SCSICommunicator owner)
+        {
+            SCSIResponse response = (currentRead10Response != null) ? currentRead10Response : currentResponse;
+            if(response instanceof SCSIModeSense10Response
+                    && ((SCSIModeSense10Response) response).hasCachingPage())
+                owner.cachingModePage = (SCSIModeSense10Response) response;
+            if(response != null && owner.scsiInterfaceCallback != null)
+                owner.scsiInterfaceCallback.onSCSIDataReceived(response);
+        }
+
+        private int getOpcode(SCSICommand scsiCommand)
+        {
+            return scsiCommand.getSCSICommandBuffer()[0] & 0xff;
+        }
+
+        private long getBackoffTime(int retries)
+        {
+            return Math.min(BACKOFF_BASE_TIME << retries, BACKOFF_MAX_TIME);
+        }
     }
-}
\ No newline at end of file
+}
@@ -25,6 +25,7 @@ public class SCSIFormatUnit extends SCSICommand
     {
         this.dataTransportPhase = true; // Format Unit can send data during data-phase
         this.direction = 0;
+        this.timeout = 0; // Formatting can take hours
         this.fmtpinfo = fmtpinfo;
         this.rtoReq = rtoReq;
         this.longList = longList;
@@ -110,7 +111,7 @@ public class SCSIFormatUnit extends SCSICommand
 
         byte bmCBWFlags = 0x00;
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = (byte) (rawInstruction.length);
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
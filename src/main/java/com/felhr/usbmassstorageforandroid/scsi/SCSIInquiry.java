@@ -16,6 +16,12 @@ public class SCSIInquiry extends SCSICommand
     public static final byte INQUIRY_OPERATION_CODE = 0x12;
     private static final int INQUIRY_COMMAND_LENGTH = 6;
 
+    // Vital Product Data pages requested when evpd is set
+    public static final int VPD_SUPPORTED_PAGES = 0x00;
+    public static final int VPD_UNIT_SERIAL_NUMBER = 0x80;
+    public static final int VPD_BLOCK_LIMITS = 0xb0;
+    public static final int VPD_LOGICAL_BLOCK_PROVISIONING = 0xb2;
+
     private byte operationCode;
     private boolean evpd;
     private int pageCode;
@@ -62,7 +68,7 @@ public class SCSIInquiry extends SCSICommand
 
         bmCBWFlags |= (1 << 7); // From device to host
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = (byte) (INQUIRY_COMMAND_LENGTH);
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
@@ -81,4 +87,14 @@ public class SCSIInquiry extends SCSICommand
     {
         return null;
     }
+
+    public boolean isEvpd()
+    {
+        return evpd;
+    }
+
+    public int getPageCode()
+    {
+        return pageCode;
+    }
 }
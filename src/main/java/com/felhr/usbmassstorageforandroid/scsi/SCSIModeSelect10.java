@@ -55,7 +55,7 @@ public class SCSIModeSelect10 extends SCSICommand
 
         byte bmCBWFlags = 0x00;
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = (byte) (rawInstruction.length);
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
@@ -4,18 +4,30 @@ import android.os.Bundle;
 import android.util.Log;
 
 import com.felhr.usbmassstorageforandroid.utilities.HexUtil;
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
 
 /**
  * Created by Felipe Herranz(felhr85@gmail.com) on 22/12/14.
  */
 public class SCSIModeSense10Response extends SCSIResponse
 {
+    public static final int CACHING_PAGE = 0x08;
+
     private int modeDataLength;
     private int mediumType;
     private int deviceSpecificParameter;
     private boolean longLba;
     private int blockDescriptorLength;
 
+    // Device specific parameter for direct access devices
+    private boolean writeProtected;
+    private boolean dpoFua;
+
+    // Caching mode page (0x08), SBC-3 section 6.4.5
+    private boolean cachingPage;
+    private boolean writeCacheEnabled; // WCE
+    private boolean readCacheDisabled; // RCD
+
     private SCSIModeSense10Response()
     {
 
@@ -26,14 +38,52 @@ public class SCSIModeSense10Response extends SCSIResponse
         Log.i("Buffer state", "Data to host: " + HexUtil.hexToString(data));
 
         SCSIModeSense10Response response = new SCSIModeSense10Response();
-        response.modeDataLength = (data[0] << 8) + (data[1]);
+        response.modeDataLength = (UnsignedUtil.byteToUint(data[0]) << 8) + UnsignedUtil.byteToUint(data[1]);
         response.mediumType = data[2];
         response.deviceSpecificParameter = data[3];
+        response.writeProtected = (data[3] & (1 << 7)) == (1 << 7);
+        response.dpoFua = (data[3] & (1 << 4)) == (1 << 4);
         response.longLba = (data[4] & 1) == 1;
-        response.blockDescriptorLength = (data[6] << 8) + (data[7]);
+        response.blockDescriptorLength = (UnsignedUtil.byteToUint(data[6]) << 8) + UnsignedUtil.byteToUint(data[7]);
+        parseModePages(response, data);
         return response;
     }
 
+    /*
+        Mode pages follow the 8 bytes header and the block descriptors
+     */
+    private static void parseModePages(SCSIModeSense10Response response, byte[] data)
+    {
+        int end = Math.min(data.length, response.modeDataLength + 2);
+        int index = 8 + response.blockDescriptorLength;
+        while(index + 1 < end)
+        {
+            int pageCode = data[index] & 0x3f;
+            boolean subPageFormat = (data[index] & (1 << 6)) == (1 << 6);
+            int headerLength;
+            int pageLength;
+            if(subPageFormat)
+            {
+                if(index + 3 >= end)
+                    return;
+                headerLength = 4;
+                pageLength = (UnsignedUtil.byteToUint(data[index + 2]) << 8) + UnsignedUtil.byteToUint(data[index + 3]);
+            }else
+            {
+                headerLength = 2;
+                pageLength = UnsignedUtil.byteToUint(data[index + 1]);
+            }
+
+            if(pageCode == CACHING_PAGE && !subPageFormat && index + 2 < end)
+            {
+                response.cachingPage = true;
+                response.writeCacheEnabled = (data[index + 2] & (1 << 2)) == (1 << 2);
+                response.readCacheDisabled = (data[index + 2] & 1) == 1;
+            }
+            index += headerLength + pageLength;
+        }
+    }
+
     @Override
     public Bundle getReadableResponse()
     {
@@ -43,6 +93,11 @@ public class SCSIModeSense10Response extends SCSIResponse
         bundle.putString("deviceSpecificParameter", String.valueOf(deviceSpecificParameter));
         bundle.putString("longLba", String.valueOf(longLba));
         bundle.putString("blockDescriptorLength", String.valueOf(blockDescriptorLength));
+        bundle.putString("writeProtected", String.valueOf(writeProtected));
+        bundle.putString("dpoFua", String.valueOf(dpoFua));
+        bundle.putString("cachingPage", String.valueOf(cachingPage));
+        bundle.putString("writeCacheEnabled", String.valueOf(writeCacheEnabled));
+        bundle.putString("readCacheDisabled", String.valueOf(readCacheDisabled));
         return bundle;
     }
 
@@ -95,4 +150,29 @@ public class SCSIModeSense10Response extends SCSIResponse
     {
         this.blockDescriptorLength = blockDescriptorLength;
     }
+
+    public boolean isWriteProtected()
+    {
+        return writeProtected;
+    }
+
+    public boolean isDpoFua()
+    {
+        return dpoFua;
+    }
+
+    public boolean hasCachingPage()
+    {
+        return cachingPage;
+    }
+
+    public boolean isWriteCacheEnabled()
+    {
+        return writeCacheEnabled;
+    }
+
+    public boolean isReadCacheDisabled()
+    {
+        return readCacheDisabled;
+    }
 }
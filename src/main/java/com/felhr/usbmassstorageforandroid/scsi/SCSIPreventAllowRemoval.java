@@ -97,7 +97,7 @@ public class SCSIPreventAllowRemoval extends SCSICommand
 
         byte bmCBWFlags = 0x00;
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = PREVENTALLOWREMOVAL_COMMAND_LENGTH;
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
@@ -35,6 +35,7 @@ public class SCSIRead10 extends SCSICommand
         this.logicalBlockAddress = logicalBlockAddress;
         this.groupNumber = groupNumber;
         this.transferLength = transferLength;
+        this.timeout = getTransferTimeout(transferLength);
         this.control = 0x00;
 
     }
@@ -115,7 +116,7 @@ public class SCSIRead10 extends SCSICommand
 
         bmCBWFlags |= (1 << 7); // From device to host
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = READ10_COMMAND_LENGTH;
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
@@ -58,7 +58,7 @@ public class SCSIReadCapacity10 extends SCSICommand
 
         bmCBWFlags |= (1 << 7); // From device to host
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = (byte) (READCAPACITY10_COMMAND_LENGTH);
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
@@ -24,8 +24,8 @@ public class SCSIReadCapacity10Response extends SCSIResponse
         Log.i("Buffer state", "Data to host: " + HexUtil.hexToString(data));
 
         SCSIReadCapacity10Response response = new SCSIReadCapacity10Response();
-        response.returnedLogicalBlockAddress = (data[0] << 24) + (data[1] << 16) + (data[2] << 8) + data[3];
-        response.blockLength = (data[4] << 24) + (data[5] << 16) + (data[6] << 8) + data[7];
+        response.returnedLogicalBlockAddress = ((data[0] & 0xff) << 24) + ((data[1] & 0xff) << 16) + ((data[2] & 0xff) << 8) + (data[3] & 0xff);
+        response.blockLength = ((data[4] & 0xff) << 24) + ((data[5] & 0xff) << 16) + ((data[6] & 0xff) << 8) + (data[7] & 0xff);
         return response;
     }
 
@@ -59,7 +59,7 @@ public class SCSIRequestSense extends SCSICommand
 
         bmCBWFlags |= (1 << 7); // From device to host
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = (byte) (REQUESTSENSE_COMMAND_LENGTH);
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
@@ -4,6 +4,7 @@ import android.os.Bundle;
 import android.util.Log;
 
 import com.felhr.usbmassstorageforandroid.utilities.HexUtil;
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
 
 import java.util.Arrays;
 
@@ -12,6 +13,26 @@ import java.util.Arrays;
  */
 public class SCSIRequestSenseResponse extends SCSIResponse
 {
+    // Sense keys
+    public static final int NO_SENSE = 0x00;
+    public static final int RECOVERED_ERROR = 0x01;
+    public static final int NOT_READY = 0x02;
+    public static final int MEDIUM_ERROR = 0x03;
+    public static final int HARDWARE_ERROR = 0x04;
+    public static final int ILLEGAL_REQUEST = 0x05;
+    public static final int UNIT_ATTENTION = 0x06;
+    public static final int DATA_PROTECT = 0x07;
+    public static final int BLANK_CHECK = 0x08;
+    public static final int ABORTED_COMMAND = 0x0b;
+
+    public static final int ASC_LOGICAL_UNIT_NOT_READY = 0x04;
+    public static final int ASCQ_BECOMING_READY = 0x01;
+    public static final int ASC_MEDIUM_NOT_PRESENT = 0x3a;
+
+    // Response codes
+    private static final int DESCRIPTOR_CURRENT_ERRORS = 0x72;
+    private static final int DESCRIPTOR_DEFERRED_ERRORS = 0x73;
+
     private boolean valid;
     private int responseCode;
     private boolean fileMark;
@@ -38,52 +59,85 @@ public class SCSIRequestSenseResponse extends SCSIResponse
         Log.i("Buffer state", "Data to host: " + HexUtil.hexToString(data));
 
         SCSIRequestSenseResponse response = new SCSIRequestSenseResponse();
-        response.valid = (data[0] & (1 << 7)) == (1 << 7);
+        response.valid = (getByte(data, 0) & (1 << 7)) == (1 << 7);
+        response.responseCode = getByte(data, 0) & 0x7f;
 
-        data[0] &= ~(1 << 7);
-        response.responseCode = data[0];
+        if(response.responseCode == DESCRIPTOR_CURRENT_ERRORS || response.responseCode == DESCRIPTOR_DEFERRED_ERRORS)
+        {
+            // Descriptor format sense data, SPC-4 section 4.5.2
+            response.senseKey = getByte(data, 1) & 0x0f;
+            response.additionalSenseCode = getByte(data, 2);
+            response.additionalSenseCodeCodeQualifier = getByte(data, 3);
+            response.additionalSenseLength = getByte(data, 7);
+            response.additionalSenseBytes = getBytesFrom(data, 8);
+            return response;
+        }
 
-        response.fileMark = (data[2] & (1 << 7)) == (1 << 7);
-        response.eom = (data[2] & (1 << 6)) == (1 << 6);
-        response.ili = (data[2] & (1 << 5)) == (1 << 5);
+        // Fixed format sense data, SPC-4 section 4.5.3
+        response.fileMark = (getByte(data, 2) & (1 << 7)) == (1 << 7);
+        response.eom = (getByte(data, 2) & (1 << 6)) == (1 << 6);
+        response.ili = (getByte(data, 2) & (1 << 5)) == (1 << 5);
+        response.senseKey = getByte(data, 2) & 0x0f;
 
-        data[2] &= ~(1 << 7);
-        data[2] &= ~(1 << 6);
-        data[2] &= ~(1 << 5);
-        data[2] &= ~(1 << 4);
-        response.senseKey = data[2];
+        response.information = (getByte(data, 3) << 24) + (getByte(data, 4) << 16) + (getByte(data, 5) << 8) + getByte(data, 6);
 
-        response.information = (data[6] << 24) + (data[5] << 16) + (data[4] << 8) + data[3];
+        response.additionalSenseLength = getByte(data, 7);
 
-        response.additionalSenseLength = data[7];
+        response.commandSpecificInformation = (getByte(data, 8) << 24) + (getByte(data, 9) << 16) + (getByte(data, 10) << 8) + getByte(data, 11);
 
-        response.commandSpecificInformation = (data[11] << 24) + (data[10] << 16) + (data[9] << 8) + data[8];
+        response.additionalSenseCode = getByte(data, 12);
 
-        response.additionalSenseCode = data[12];
+        response.additionalSenseCodeCodeQualifier = getByte(data, 13);
 
-        response.additionalSenseCodeCodeQualifier = data[13];
+        response.fieldReplaceableUnitCode = getByte(data, 14);
 
-        response.fieldReplaceableUnitCode = data[14];
+        response.sksv = (getByte(data, 15) & (1 << 7)) == (1 << 7);
 
-        response.sksv = (data[15] & (1 << 7)) == (1 << 7);
+        response.senseKeySpecific = ((getByte(data, 15) & 0x7f) << 16) + (getByte(data, 16) << 8) + getByte(data, 17);
 
-        data[15] &= ~(1 << 7);
-        response.senseKeySpecific = (data[17] << 16) + (data[16] << 8) + data[15];
+        response.additionalSenseBytes = getBytesFrom(data, 18);
 
-        try
-        {
-            response.additionalSenseBytes = Arrays.copyOfRange(data, 18, data.length);
-        }catch (IllegalArgumentException e)
-        {
-            response.additionalSenseBytes = new byte[]{};
-            e.printStackTrace();
-        }catch (ArrayIndexOutOfBoundsException e)
+        return response;
+    }
+
+    /*
+        Devices may return less sense data than requested. Missing fields are reported as 0
+     */
+    private static int getByte(byte[] data, int index)
+    {
+        if(index < data.length)
+            return UnsignedUtil.byteToUint(data[index]);
+        else
+            return 0;
+    }
+
+    private static byte[] getBytesFrom(byte[] data, int index)
+    {
+        if(index < data.length)
+            return Arrays.copyOfRange(data, index, data.length);
+        else
+            return new byte[]{};
+    }
+
+    /*
+        Conditions that may go away if the command is sent again. Medium and hardware errors are not,
+        sending the command again would only delay the error
+     */
+    public boolean isTransient()
+    {
+        switch(senseKey)
         {
-            response.additionalSenseBytes = new byte[]{};
-            e.printStackTrace();
+            case NO_SENSE:
+            case RECOVERED_ERROR:
+            case UNIT_ATTENTION:
+            case ABORTED_COMMAND:
+                return true;
+            case NOT_READY:
+                return additionalSenseCode == ASC_LOGICAL_UNIT_NOT_READY
+                        && additionalSenseCodeCodeQualifier == ASCQ_BECOMING_READY;
+            default:
+                return false;
         }
-
-        return response;
     }
 
     @Override
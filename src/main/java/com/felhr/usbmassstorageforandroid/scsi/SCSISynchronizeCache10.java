@@ -0,0 +1,73 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import java.nio.ByteBuffer;
+
+import commandwrappers.CommandBlockWrapper;
+
+public class SCSISynchronizeCache10 extends SCSICommand
+{
+    public static final byte SYNCHRONIZECACHE10_OPERATION_CODE = 0x35;
+    private static final byte SYNCHRONIZECACHE10_COMMAND_LENGTH = 10;
+
+    private boolean immed;
+    private int logicalBlockAddress;
+    private int groupNumber;
+    private int numberOfBlocks; // 0 means every block from logicalBlockAddress to the end of the medium
+    private byte control;
+
+    public SCSISynchronizeCache10(boolean immed, int logicalBlockAddress, int groupNumber, int numberOfBlocks)
+    {
+        this.dataTransportPhase = false;
+        this.direction = 0;
+        this.immed = immed;
+        this.logicalBlockAddress = logicalBlockAddress;
+        this.groupNumber = groupNumber;
+        this.numberOfBlocks = numberOfBlocks;
+        this.timeout = LONG_TIMEOUT; // The whole device cache may be written
+        this.control = 0x00;
+    }
+
+    @Override
+    public byte[] getSCSICommandBuffer()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        buffer.put(SYNCHRONIZECACHE10_OPERATION_CODE);
+        byte firstByte = 0x00;
+        if(immed)
+            firstByte |= (1 << 1);
+        buffer.put(firstByte);
+        buffer.putInt(logicalBlockAddress);
+        buffer.put(convertToByte(groupNumber, 1));
+        buffer.put(convertToByte(numberOfBlocks, 2));
+        buffer.put(control);
+        return buffer.array();
+    }
+
+    @Override
+    public CommandBlockWrapper getCbw()
+    {
+        byte[] rawCommand = getCbwcb(getSCSICommandBuffer());
+        int dCBWDataTransferLength = 0;
+
+        byte bmCBWFlags = 0x00;
+
+        byte bCBWLUN = (byte) lun;
+        byte bCBWCBLength = SYNCHRONIZECACHE10_COMMAND_LENGTH;
+
+        CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
+        cbw.setCommandBlock(rawCommand);
+        return cbw;
+    }
+
+    @Override
+    public void setDataPhaseBuffer(byte[] data)
+    {
+
+    }
+
+    @Override
+    public byte[] getDataPhaseBuffer()
+    {
+        return null;
+    }
+}
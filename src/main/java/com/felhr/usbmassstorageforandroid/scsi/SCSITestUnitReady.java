@@ -17,6 +17,7 @@ public class SCSITestUnitReady extends SCSICommand
     {
         this.dataTransportPhase = false;
         this.direction = 0;
+        this.timeout = SHORT_TIMEOUT;
         this.control = 0x00;
     }
 
@@ -41,7 +42,7 @@ public class SCSITestUnitReady extends SCSICommand
 
         byte bmCBWFlags = 0x00;
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = (byte) (TESTUNIT_COMMAND_LENGTH);
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);
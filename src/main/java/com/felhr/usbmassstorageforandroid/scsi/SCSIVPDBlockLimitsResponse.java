@@ -0,0 +1,164 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import android.os.Bundle;
+
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
+
+public class SCSIVPDBlockLimitsResponse extends SCSIResponse
+{
+    /***
+     *  Block Limits VPD page (page code 0xB0)
+     *  SBC-3, section 6.5.3
+     *  All lengths are expressed in logical blocks. A value of 0 means "not reported".
+     */
+    private int peripheralQualifier;
+    private int peripheralDeviceType;
+    private int pageLength;
+    private boolean wsnz;
+    private int maximumCompareAndWriteLength; // 1 byte
+    private int optimalTransferLengthGranularity; // 2 bytes
+    private long maximumTransferLength; // 4 bytes
+    private long optimalTransferLength; // 4 bytes
+    private long maximumPrefetchLength; // 4 bytes
+    private long maximumUnmapLbaCount; // 4 bytes
+    private long maximumUnmapBlockDescriptorCount; // 4 bytes
+    private long optimalUnmapGranularity; // 4 bytes
+    private boolean ugavalid;
+    private long unmapGranularityAlignment; // 31 bits
+
+    private SCSIVPDBlockLimitsResponse()
+    {
+
+    }
+
+    public static SCSIVPDBlockLimitsResponse getResponse(byte[] data)
+    {
+        SCSIVPDBlockLimitsResponse response = new SCSIVPDBlockLimitsResponse();
+        response.peripheralQualifier = (data[0] >> 5) & 0x07;
+        response.peripheralDeviceType = data[0] & 0x1f;
+        response.pageLength = (getByte(data, 2) << 8) + getByte(data, 3);
+        response.wsnz = (getByte(data, 4) & 1) == 1;
+        response.maximumCompareAndWriteLength = getByte(data, 5);
+        response.optimalTransferLengthGranularity = (getByte(data, 6) << 8) + getByte(data, 7);
+        response.maximumTransferLength = getLong(data, 8);
+        response.optimalTransferLength = getLong(data, 12);
+        response.maximumPrefetchLength = getLong(data, 16);
+        response.maximumUnmapLbaCount = getLong(data, 20);
+        response.maximumUnmapBlockDescriptorCount = getLong(data, 24);
+        response.optimalUnmapGranularity = getLong(data, 28);
+        response.ugavalid = (getByte(data, 32) & (1 << 7)) == (1 << 7);
+        response.unmapGranularityAlignment = getLong(data, 32) & 0x7fffffffL;
+        return response;
+    }
+
+    /*
+        Old devices return a truncated page (only up to the optimal transfer length)
+        Missing fields are reported as 0
+     */
+    private static int getByte(byte[] data, int index)
+    {
+        if(index < data.length)
+            return UnsignedUtil.byteToUint(data[index]);
+        else
+            return 0;
+    }
+
+    private static long getLong(byte[] data, int index)
+    {
+        if(index + 3 < data.length)
+            return UnsignedUtil.convertBytes2Long(data[index], data[index + 1], data[index + 2], data[index + 3]);
+        else
+            return 0;
+    }
+
+    @Override
+    public Bundle getReadableResponse()
+    {
+        Bundle bundle = new Bundle();
+        bundle.putString("peripheralQualifier", String.valueOf(peripheralQualifier));
+        bundle.putString("peripheralDeviceType", String.valueOf(peripheralDeviceType));
+        bundle.putString("pageLength", String.valueOf(pageLength));
+        bundle.putString("wsnz", String.valueOf(wsnz));
+        bundle.putString("maximumCompareAndWriteLength", String.valueOf(maximumCompareAndWriteLength));
+        bundle.putString("optimalTransferLengthGranularity", String.valueOf(optimalTransferLengthGranularity));
+        bundle.putString("maximumTransferLength", String.valueOf(maximumTransferLength));
+        bundle.putString("optimalTransferLength", String.valueOf(optimalTransferLength));
+        bundle.putString("maximumPrefetchLength", String.valueOf(maximumPrefetchLength));
+        bundle.putString("maximumUnmapLbaCount", String.valueOf(maximumUnmapLbaCount));
+        bundle.putString("maximumUnmapBlockDescriptorCount", String.valueOf(maximumUnmapBlockDescriptorCount));
+        bundle.putString("optimalUnmapGranularity", String.valueOf(optimalUnmapGranularity));
+        bundle.putString("ugavalid", String.valueOf(ugavalid));
+        bundle.putString("unmapGranularityAlignment", String.valueOf(unmapGranularityAlignment));
+        return bundle;
+    }
+
+    public int getPeripheralQualifier()
+    {
+        return peripheralQualifier;
+    }
+
+    public int getPeripheralDeviceType()
+    {
+        return peripheralDeviceType;
+    }
+
+    public int getPageLength()
+    {
+        return pageLength;
+    }
+
+    public boolean isWsnz()
+    {
+        return wsnz;
+    }
+
+    public int getMaximumCompareAndWriteLength()
+    {
+        return maximumCompareAndWriteLength;
+    }
+
+    public int getOptimalTransferLengthGranularity()
+    {
+        return optimalTransferLengthGranularity;
+    }
+
+    public long getMaximumTransferLength()
+    {
+        return maximumTransferLength;
+    }
+
+    public long getOptimalTransferLength()
+    {
+        return optimalTransferLength;
+    }
+
+    public long getMaximumPrefetchLength()
+    {
+        return maximumPrefetchLength;
+    }
+
+    public long getMaximumUnmapLbaCount()
+    {
+        return maximumUnmapLbaCount;
+    }
+
+    public long getMaximumUnmapBlockDescriptorCount()
+    {
+        return maximumUnmapBlockDescriptorCount;
+    }
+
+    public long getOptimalUnmapGranularity()
+    {
+        return optimalUnmapGranularity;
+    }
+
+    public boolean isUgavalid()
+    {
+        return ugavalid;
+    }
+
+    public long getUnmapGranularityAlignment()
+    {
+        return unmapGranularityAlignment;
+    }
+}
@@ -0,0 +1,126 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import android.os.Bundle;
+
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
+
+public class SCSIVPDLogicalBlockProvisioningResponse extends SCSIResponse
+{
+    /***
+     *  Logical Block Provisioning VPD page (page code 0xB2)
+     *  SBC-3, section 6.5.4
+     */
+    public static final int PROVISIONING_TYPE_FULL = 0;
+    public static final int PROVISIONING_TYPE_RESOURCE = 1;
+    public static final int PROVISIONING_TYPE_THIN = 2;
+
+    private int peripheralQualifier;
+    private int peripheralDeviceType;
+    private int pageLength;
+    private int thresholdExponent;
+    private boolean lbpu; // UNMAP command supported
+    private boolean lbpws; // WRITE SAME(16) with UNMAP bit supported
+    private boolean lbpws10; // WRITE SAME(10) with UNMAP bit supported
+    private boolean lbprz; // Unmapped blocks read as zeroes
+    private boolean ancSup;
+    private boolean dp;
+    private int provisioningType;
+
+    private SCSIVPDLogicalBlockProvisioningResponse()
+    {
+
+    }
+
+    public static SCSIVPDLogicalBlockProvisioningResponse getResponse(byte[] data)
+    {
+        SCSIVPDLogicalBlockProvisioningResponse response = new SCSIVPDLogicalBlockProvisioningResponse();
+        response.peripheralQualifier = (data[0] >> 5) & 0x07;
+        response.peripheralDeviceType = data[0] & 0x1f;
+        response.pageLength = (UnsignedUtil.byteToUint(data[2]) << 8) + UnsignedUtil.byteToUint(data[3]);
+        if(data.length >= 7)
+        {
+            response.thresholdExponent = UnsignedUtil.byteToUint(data[4]);
+            response.lbpu = (data[5] & (1 << 7)) == (1 << 7);
+            response.lbpws = (data[5] & (1 << 6)) == (1 << 6);
+            response.lbpws10 = (data[5] & (1 << 5)) == (1 << 5);
+            response.lbprz = (data[5] & (1 << 2)) == (1 << 2);
+            response.ancSup = (data[5] & (1 << 1)) == (1 << 1);
+            response.dp = (data[5] & 1) == 1;
+            response.provisioningType = data[6] & 0x07;
+        }
+        return response;
+    }
+
+    @Override
+    public Bundle getReadableResponse()
+    {
+        Bundle bundle = new Bundle();
+        bundle.putString("peripheralQualifier", String.valueOf(peripheralQualifier));
+        bundle.putString("peripheralDeviceType", String.valueOf(peripheralDeviceType));
+        bundle.putString("pageLength", String.valueOf(pageLength));
+        bundle.putString("thresholdExponent", String.valueOf(thresholdExponent));
+        bundle.putString("lbpu", String.valueOf(lbpu));
+        bundle.putString("lbpws", String.valueOf(lbpws));
+        bundle.putString("lbpws10", String.valueOf(lbpws10));
+        bundle.putString("lbprz", String.valueOf(lbprz));
+        bundle.putString("ancSup", String.valueOf(ancSup));
+        bundle.putString("dp", String.valueOf(dp));
+        bundle.putString("provisioningType", String.valueOf(provisioningType));
+        return bundle;
+    }
+
+    public int getPeripheralQualifier()
+    {
+        return peripheralQualifier;
+    }
+
+    public int getPeripheralDeviceType()
+    {
+        return peripheralDeviceType;
+    }
+
+    public int getPageLength()
+    {
+        return pageLength;
+    }
+
+    public int getThresholdExponent()
+    {
+        return thresholdExponent;
+    }
+
+    public boolean isLbpu()
+    {
+        return lbpu;
+    }
+
+    public boolean isLbpws()
+    {
+        return lbpws;
+    }
+
+    public boolean isLbpws10()
+    {
+        return lbpws10;
+    }
+
+    public boolean isLbprz()
+    {
+        return lbprz;
+    }
+
+    public boolean isAncSup()
+    {
+        return ancSup;
+    }
+
+    public boolean isDp()
+    {
+        return dp;
+    }
+
+    public int getProvisioningType()
+    {
+        return provisioningType;
+    }
+}
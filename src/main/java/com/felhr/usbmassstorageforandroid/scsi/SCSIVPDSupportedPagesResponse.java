@@ -0,0 +1,85 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import android.os.Bundle;
+
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
+
+public class SCSIVPDSupportedPagesResponse extends SCSIResponse
+{
+    /***
+     *  Supported VPD Pages (page code 0x00)
+     *  SPC-4, section 7.8.16
+     */
+    private int peripheralQualifier;
+    private int peripheralDeviceType;
+    private int pageLength;
+    private int[] supportedPages;
+
+    private SCSIVPDSupportedPagesResponse()
+    {
+
+    }
+
+    public static SCSIVPDSupportedPagesResponse getResponse(byte[] data)
+    {
+        SCSIVPDSupportedPagesResponse response = new SCSIVPDSupportedPagesResponse();
+        response.peripheralQualifier = (data[0] >> 5) & 0x07;
+        response.peripheralDeviceType = data[0] & 0x1f;
+        response.pageLength = (UnsignedUtil.byteToUint(data[2]) << 8) + UnsignedUtil.byteToUint(data[3]);
+
+        // A device may return less data than it announces in the page length field
+        int pagesReturned = Math.max(0, Math.min(response.pageLength, data.length - 4));
+        response.supportedPages = new int[pagesReturned];
+        for(int i=0;i<=pagesReturned-1;i++)
+        {
+            response.supportedPages[i] = UnsignedUtil.byteToUint(data[4 + i]);
+        }
+        return response;
+    }
+
+    @Override
+    public Bundle getReadableResponse()
+    {
+        Bundle bundle = new Bundle();
+        bundle.putString("peripheralQualifier", String.valueOf(peripheralQualifier));
+        bundle.putString("peripheralDeviceType", String.valueOf(peripheralDeviceType));
+        bundle.putString("pageLength", String.valueOf(pageLength));
+        StringBuilder pages = new StringBuilder();
+        for(int page : supportedPages)
+        {
+            pages.append(Integer.toHexString(page)).append(" ");
+        }
+        bundle.putString("supportedPages", pages.toString().trim());
+        return bundle;
+    }
+
+    public boolean isPageSupported(int pageCode)
+    {
+        for(int page : supportedPages)
+        {
+            if(page == pageCode)
+                return true;
+        }
+        return false;
+    }
+
+    public int getPeripheralQualifier()
+    {
+        return peripheralQualifier;
+    }
+
+    public int getPeripheralDeviceType()
+    {
+        return peripheralDeviceType;
+    }
+
+    public int getPageLength()
+    {
+        return pageLength;
+    }
+
+    public int[] getSupportedPages()
+    {
+        return supportedPages;
+    }
+}
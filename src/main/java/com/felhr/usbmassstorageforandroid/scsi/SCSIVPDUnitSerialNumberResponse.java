@@ -0,0 +1,65 @@
+package com.felhr.usbmassstorageforandroid.scsi;
+
+import android.os.Bundle;
+
+import com.felhr.usbmassstorageforandroid.utilities.UnsignedUtil;
+
+public class SCSIVPDUnitSerialNumberResponse extends SCSIResponse
+{
+    /***
+     *  Unit Serial Number VPD page (page code 0x80)
+     *  SPC-4, section 7.8.18
+     */
+    private int peripheralQualifier;
+    private int peripheralDeviceType;
+    private int pageLength;
+    private String productSerialNumber;
+
+    private SCSIVPDUnitSerialNumberResponse()
+    {
+
+    }
+
+    public static SCSIVPDUnitSerialNumberResponse getResponse(byte[] data)
+    {
+        SCSIVPDUnitSerialNumberResponse response = new SCSIVPDUnitSerialNumberResponse();
+        response.peripheralQualifier = (data[0] >> 5) & 0x07;
+        response.peripheralDeviceType = data[0] & 0x1f;
+        response.pageLength = UnsignedUtil.byteToUint(data[3]);
+
+        int serialLength = Math.max(0, Math.min(response.pageLength, data.length - 4));
+        response.productSerialNumber = new String(data, 4, serialLength).trim();
+        return response;
+    }
+
+    @Override
+    public Bundle getReadableResponse()
+    {
+        Bundle bundle = new Bundle();
+        bundle.putString("peripheralQualifier", String.valueOf(peripheralQualifier));
+        bundle.putString("peripheralDeviceType", String.valueOf(peripheralDeviceType));
+        bundle.putString("pageLength", String.valueOf(pageLength));
+        bundle.putString("productSerialNumber", productSerialNumber);
+        return bundle;
+    }
+
+    public int getPeripheralQualifier()
+    {
+        return peripheralQualifier;
+    }
+
+    public int getPeripheralDeviceType()
+    {
+        return peripheralDeviceType;
+    }
+
+    public int getPageLength()
+    {
+        return pageLength;
+    }
+
+    public String getProductSerialNumber()
+    {
+        return productSerialNumber;
+    }
+}
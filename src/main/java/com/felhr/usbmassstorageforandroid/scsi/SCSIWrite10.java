@@ -34,6 +34,7 @@ public class SCSIWrite10 extends SCSICommand
         this.logicalBlockAddress = logicalBlockAddress;
         this.groupNumber = groupNumber;
         this.transferLength = transferLength;
+        this.timeout = getTransferTimeout(transferLength);
         this.control = 0x00;
     }
 
@@ -110,7 +111,7 @@ public class SCSIWrite10 extends SCSICommand
 
         byte bmCBWFlags = 0x00;
 
-        byte bCBWLUN = 0x00; // Check this!!!
+        byte bCBWLUN = (byte) lun;
         byte bCBWCBLength = WRITE10_COMMAND_LENGTH;
 
         CommandBlockWrapper cbw = new CommandBlockWrapper(dCBWDataTransferLength, bmCBWFlags, bCBWLUN, bCBWCBLength);